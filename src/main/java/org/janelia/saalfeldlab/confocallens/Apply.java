@@ -19,7 +19,14 @@ package org.janelia.saalfeldlab.confocallens;
 import java.awt.Rectangle;
 import java.io.File;
 import java.io.IOException;
+import java.util.EnumSet;
 
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
 import org.imagearchive.lsm.reader.Reader;
 
 import ij.IJ;
@@ -41,12 +48,19 @@ import mpicbg.trakem2.transform.TransformMeshMappingWithMasks;
  */
 public class Apply {
 
+	/**
+	 * Resampling without higher order interpolation, flat-field correction
+	 * or out-of-core stacks, also used by {@link LensCorrectionServer} jobs.
+	 */
+	final static public String DEFAULT_RESAMPLING = "mesh";
+
 	final static public ImagePlus openImagePlus(
 			final String path) {
+		final String lower = path.toLowerCase();
 		final ImagePlus imp;
-		if (path.endsWith(".tif"))
+		if (lower.endsWith(".tif") || lower.endsWith(".tiff"))
 			imp = new Opener().openImage(path);
-		else if (path.endsWith(".lsm"))
+		else if (lower.endsWith(".lsm"))
 			imp = new Reader().open(path);
 		else
 			imp = null;
@@ -54,12 +68,28 @@ public class Apply {
 		return imp;
 	}
 
+	/**
+	 * Transform all slices of a stack by rendering a triangle mesh that can
+	 * be reused for all stacks of the same size and lens model.
+	 */
 	final static public ImageStack createTransformedStack(
 			final ImageStack srcStack,
-			final CoordinateTransform t,
+			final TransformMesh mesh,
+			final int cropWidth) {
+		return createTransformedStack(srcStack, mesh, cropWidth, null);
+	}
+
+	/**
+	 * Transform all slices of a stack by rendering a triangle mesh and add
+	 * every transformed slice to <code>projections</code>.
+	 *
+	 * @param projections may be null
+	 */
+	final static public ImageStack createTransformedStack(
+			final ImageStack srcStack,
+			final TransformMesh mesh,
 			final int cropWidth,
-			final int meshResolution) {
-		final TransformMesh mesh = new TransformMesh(t, meshResolution, srcStack.getWidth(), srcStack.getHeight());
+			final Projections projections) {
 		final Rectangle bounds = mesh.getBoundingBox();
 		final ImageStack stack = new ImageStack(bounds.width - 2 * cropWidth, bounds.height - 2 * cropWidth);
 		final TransformMeshMappingWithMasks<TransformMesh> mapping = new TransformMeshMappingWithMasks<TransformMesh>(mesh);
@@ -70,12 +100,23 @@ public class Apply {
 			mapping.mapInterpolated(src, dst);
 			final ImageProcessor cropped = dst.createProcessor(bounds.width - 2 * cropWidth, bounds.height - 2 * cropWidth);
 			cropped.copyBits(dst, -cropWidth, -cropWidth, Blitter.COPY);
+			if (projections != null)
+				projections.add(i, cropped);
 
 			stack.addSlice(cropped);
 		}
 		return stack;
 	}
 
+	final static public ImageStack createTransformedStack(
+			final ImageStack srcStack,
+			final CoordinateTransform t,
+			final int cropWidth,
+			final int meshResolution) {
+		final TransformMesh mesh = new TransformMesh(LensTransforms.flatten(t), meshResolution, srcStack.getWidth(), srcStack.getHeight());
+		return createTransformedStack(srcStack, mesh, cropWidth);
+	}
+
 	final static public ImageStack createTransformedStack(
 			final ImageStack srcStack,
 			final CoordinateTransform t,
@@ -83,6 +124,111 @@ public class Apply {
 		return createTransformedStack(srcStack, t, cropWidth, 128);
 	}
 
+	/**
+	 * Transform all slices of a stack by pulling every target pixel through
+	 * the fitted inverse of the lens model.  The target raster is the same
+	 * as for the mesh based version up to the rounding of the bounding box.
+	 *
+	 * @param srcStack
+	 * @param model
+	 * @param cropWidth
+	 * @return
+	 */
+	final static public ImageStack createTransformedStack(
+			final ImageStack srcStack,
+			final InverseLensModel model,
+			final int cropWidth) {
+		return createTransformedStack(srcStack, model.createCoordinateMap(cropWidth));
+	}
+
+	/**
+	 * Transform all slices of a stack with a precomputed
+	 * {@link CoordinateMap} in cache sized tiles, see
+	 * {@link Resampler#mapInterpolatedTiled}, and add every transformed
+	 * slice to <code>projections</code>.
+	 *
+	 * @param projections may be null
+	 */
+	final static public ImageStack createTiledTransformedStack(
+			final ImageStack srcStack,
+			final CoordinateMap map,
+			final int tileSize,
+			final Projections projections) {
+		final ImageStack stack = new ImageStack(map.getWidth(), map.getHeight());
+		for (int i = 0; i < srcStack.getSize(); ++i) {
+			final ImageProcessor src = srcStack.getProcessor(i + 1);
+			final ImageProcessor dst = src.createProcessor(map.getWidth(), map.getHeight());
+			Resampler.mapInterpolatedTiled(src, map, dst, tileSize);
+			if (projections != null)
+				projections.add(i, dst);
+			stack.addSlice(srcStack.getSliceLabel(i + 1), dst);
+		}
+		return stack;
+	}
+
+	/**
+	 * Transform all slices of a stack with a precomputed
+	 * {@link CoordinateMap}.
+	 */
+	final static public ImageStack createTransformedStack(
+			final ImageStack srcStack,
+			final CoordinateMap map) {
+		return createTransformedStack(srcStack, map, Interpolation.BILINEAR);
+	}
+
+	/**
+	 * Transform all slices of a stack with a precomputed
+	 * {@link CoordinateMap} and <code>interpolation</code>.  The kernel
+	 * weights of higher order interpolations are cached with the map.
+	 */
+	final static public ImageStack createTransformedStack(
+			final ImageStack srcStack,
+			final CoordinateMap map,
+			final Interpolation interpolation) {
+		return createTransformedStack(srcStack, map, interpolation, null);
+	}
+
+	/**
+	 * Transform all slices of a stack with a precomputed
+	 * {@link CoordinateMap} and correct slice i with flat field
+	 * <code>flatFields[i % flatFields.length]</code> in the same pass,
+	 * i.e. one flat field per channel of an ImageJ hyperstack.
+	 *
+	 * @param flatFields may be null
+	 */
+	final static public ImageStack createTransformedStack(
+			final ImageStack srcStack,
+			final CoordinateMap map,
+			final Interpolation interpolation,
+			final FlatField[] flatFields) {
+		return createTransformedStack(srcStack, map, interpolation, flatFields, null);
+	}
+
+	/**
+	 * Transform and flat-field correct all slices of a stack and add every
+	 * transformed slice to <code>projections</code> while it is in cache.
+	 *
+	 * @param flatFields may be null
+	 * @param projections may be null
+	 */
+	final static public ImageStack createTransformedStack(
+			final ImageStack srcStack,
+			final CoordinateMap map,
+			final Interpolation interpolation,
+			final FlatField[] flatFields,
+			final Projections projections) {
+		final ImageStack stack = new ImageStack(map.getWidth(), map.getHeight());
+		for (int i = 0; i < srcStack.getSize(); ++i) {
+			final ImageProcessor src = srcStack.getProcessor(i + 1);
+			final ImageProcessor dst = src.createProcessor(map.getWidth(), map.getHeight());
+			Resampler.mapInterpolated(src, map, dst, interpolation, flatFields == null ? null : flatFields[i % flatFields.length]);
+			if (projections != null)
+				projections.add(i, dst);
+			stack.addSlice(srcStack.getSliceLabel(i + 1), dst);
+		}
+		return stack;
+	}
+
 
 
 	/**
@@ -107,19 +253,59 @@ public class Apply {
 		return null;
 	}
 
+	/**
+	 * Transform and save all <code>fileNames</code> that are not up to date
+	 * in the {@link BatchManifest} of <code>outDirStr</code>.
+	 */
 	final static public void saveTransformedImages(
 			final String dirStr,
 			final Iterable<String> fileNames,
 			final String outDirStr,
 			final CoordinateTransform t,
 			final int cropWidth) {
+		BatchManifest manifest = null;
+		try {
+			manifest = new BatchManifest(outDirStr);
+		} catch (final IOException e) {
+			System.err.println(e.getMessage() + ", processing all files");
+		}
+		saveTransformedImages(dirStr, fileNames, outDirStr, t, cropWidth, manifest);
+	}
+
+	/**
+	 * Transform and save <code>fileNames</code>, skipping outputs that are
+	 * up to date in <code>manifest</code> and recording each new output.
+	 *
+	 * @param manifest null to process and save all files
+	 */
+	final static public void saveTransformedImages(
+			final String dirStr,
+			final Iterable<String> fileNames,
+			final String outDirStr,
+			final CoordinateTransform t,
+			final int cropWidth,
+			final BatchManifest manifest) {
+		final String model = manifest == null ? null : BatchManifest.modelChecksum(t);
 		for (final String fileName : fileNames) {
+			final String outputName = fileName + ".tif";
+			try {
+				if (manifest != null && manifest.isUpToDate(dirStr + fileName, outDirStr, outputName, model, cropWidth)) {
+					System.out.println("Skipping up to date " + outputName);
+					continue;
+				}
+			} catch (final IOException e) {
+				System.err.println(e.getMessage());
+			}
 			final ImagePlus imp = loadAndTransformImagePlus(
 					dirStr + fileName,
 					t,
 					cropWidth);
-			if (imp != null) {
-				IJ.saveAsTiff(imp, outDirStr + fileName + ".tif");
+			if (imp != null && IJ.saveAsTiff(imp, outDirStr + outputName) && manifest != null) {
+				try {
+					manifest.record(dirStr + fileName, outputName, model, cropWidth);
+				} catch (final IOException e) {
+					System.err.println("Cannot record " + outputName + " in " + manifest.getPath() + ": " + e.getMessage());
+				}
 			}
 		}
 	}
@@ -129,9 +315,17 @@ public class Apply {
 	static private CoordinateTransform transform;
 	static private int crop = 0;
 
-	static public boolean setup(final String... args) {
+	static public boolean setup(final boolean virtual, final String... args) {
 		if (args.length < 4) return false;
-		impInput = openImagePlus(args[0]);
+		if (virtual) {
+			try {
+				impInput = OutOfCoreLensCorrection.openVirtualImagePlus(args[0]);
+			} catch (final Exception e) {
+				e.printStackTrace(System.err);
+				return false;
+			}
+		} else
+			impInput = openImagePlus(args[0]);
 		if (impInput == null) return false;
 		pathOutput = args[1];
 		try {
@@ -150,6 +344,118 @@ public class Apply {
 		return true;
 	}
 
+	static public boolean setup(final String... args) {
+		return setup(false, args);
+	}
+
+
+	/**
+	 * Open flat-field and dark-frame images for a stack with
+	 * <code>numChannels</code> channels.
+	 *
+	 * @param flatPath may be null
+	 * @param darkPath may be null
+	 * @return null if both paths are null
+	 * @throws IOException
+	 */
+	final static public FlatField[] openFlatFields(
+			final String flatPath,
+			final String darkPath,
+			final int numChannels) throws IOException {
+		if (flatPath == null && darkPath == null)
+			return null;
+		final ImagePlus flat = flatPath == null ? null : IJ.openImage(flatPath);
+		final ImagePlus dark = darkPath == null ? null : IJ.openImage(darkPath);
+		if ((flatPath != null && flat == null) || (darkPath != null && dark == null))
+			throw new IOException("Cannot open " + (flat == null ? flatPath : darkPath));
+		return FlatField.create(flat, dark, numChannels);
+	}
+
+	final static public Options createOptions() {
+		final Options options = new Options();
+		options.addOption(new Option(
+				"r",
+				"resampling",
+				true,
+				"'mesh' (default) to render a triangle mesh of the lens model, 'map' to pull every target pixel through a fitted inverse lens model, or 'tiled' to do that in cache sized tiles"));
+		options.addOption(new Option(
+				null,
+				"warp-tile",
+				true,
+				"tile size in pixels of '--resampling tiled', default " + Resampler.DEFAULT_TILE_SIZE));
+		options.addOption(new Option(
+				"n",
+				"interpolation",
+				true,
+				"'bilinear' (default), 'bicubic', or 'lanczos3', higher orders require '--resampling map', the default with them"));
+		options.addOption(new Option(
+				"f",
+				"flat-field",
+				true,
+				"flat-field image with one slice per channel or one for all channels, applied in the resampling pass, requires '--resampling map', the default with it"));
+		options.addOption(new Option(
+				"d",
+				"dark-frame",
+				true,
+				"dark-frame image with one slice per channel or one for all channels, subtracted in the resampling pass, requires '--resampling map', the default with it"));
+		options.addOption(new Option(
+				"o",
+				"out-of-core",
+				false,
+				"read and write the stack through bounded slice caches for stacks that do not fit into memory, requires '--resampling map', the default with it"));
+		options.addOption(new Option(
+				"c",
+				"cache-slices",
+				true,
+				"number of slices cached in memory for reading and writing each in out-of-core mode, default " + OutOfCoreLensCorrection.DEFAULT_CACHED_SLICES));
+		options.addOption(new Option(
+				"z",
+				"compression",
+				true,
+				"save compressed with 'lzw', 'deflate', or 'none' in strips, or as tiled BigTIFF beyond 4GB, instead of an ImageJ TIFF, strips and tiles are compressed in parallel"));
+		options.addOption(new Option(
+				null,
+				"tile-size",
+				true,
+				"rows per strip and tile size of the BigTIFF, default " + TiledTiffWriter.DEFAULT_TILE_SIZE));
+		options.addOption(new Option(
+				null,
+				"no-predictor",
+				false,
+				"do not apply horizontal differencing before compressing"));
+		options.addOption(new Option(
+				null,
+				"z-range",
+				true,
+				"correct only slices 'first-last' (1-based, inclusive) and save them as a part file next to the output"));
+		options.addOption(new Option(
+				null,
+				"channels",
+				true,
+				"correct only the comma separated channels (1-based) and save them as a part file next to the output"));
+		options.addOption(new Option(
+				null,
+				"merge",
+				false,
+				"assemble all part files of <output_path>, the only argument, into <output_path>"));
+		options.addOption(new Option(
+				null,
+				"delete-parts",
+				false,
+				"delete the part files after '--merge'"));
+		options.addOption(new Option(
+				"s",
+				"summary",
+				true,
+				"comma separated side outputs computed while resampling and saved next to the output, 'max' and 'mean' projection per channel, 'stats' per slice"));
+		return options;
+	}
+
+	final static private void printUsage(final Options options) {
+		new HelpFormatter().printHelp(
+				"java ... [options] <input_path> <output_path> \"<lens_model>\" <crop_width>",
+				options);
+	}
 
 	/**
 	 * @param args
@@ -157,13 +463,148 @@ public class Apply {
 	 */
 	public static void main(final String[] args) throws IOException {
 
-		if (setup(args)) {
-			impInput.setStack(createTransformedStack(impInput.getStack(), transform, crop));
-			IJ.saveAsTiff(impInput, pathOutput );
+		final Options options = createOptions();
+		final CommandLine cmd;
+		try {
+			cmd = new DefaultParser().parse(options, args);
+		} catch (final ParseException e) {
+			System.err.println(e.getMessage());
+			printUsage(options);
+			return;
+		}
+
+		final TiledTiffWriter writer;
+		if (cmd.hasOption("compression")) {
+			try {
+				writer = new TiledTiffWriter(
+						Integer.parseInt(cmd.getOptionValue("tile-size", Integer.toString(TiledTiffWriter.DEFAULT_TILE_SIZE))),
+						TiledTiffWriter.Compression.valueOf(cmd.getOptionValue("compression").toUpperCase()),
+						!cmd.hasOption("no-predictor"));
+			} catch (final IllegalArgumentException e) {
+				System.err.println(e.getMessage());
+				printUsage(options);
+				return;
+			}
+		} else
+			writer = null;
+
+		final Interpolation interpolation;
+		try {
+			interpolation = Interpolation.fromString(cmd.getOptionValue("interpolation", "bilinear"));
+		} catch (final IllegalArgumentException e) {
+			System.err.println("Unknown interpolation " + cmd.getOptionValue("interpolation"));
+			printUsage(options);
+			return;
+		}
+
+		final EnumSet<Projections.Output> summary;
+		try {
+			summary = Projections.Output.parse(cmd.getOptionValue("summary", ""));
+		} catch (final IllegalArgumentException e) {
+			System.err.println("Unknown summary " + cmd.getOptionValue("summary"));
+			printUsage(options);
+			return;
+		}
+
+		if (cmd.hasOption("merge")) {
+			if (cmd.getArgs().length < 1) {
+				printUsage(options);
+				return;
+			}
+			final int numParts = StackShard.merge(cmd.getArgs()[0], writer, cmd.hasOption("delete-parts"));
+			System.out.println("Merged " + numParts + " parts into " + cmd.getArgs()[0]);
+			return;
+		}
+
+		final boolean outOfCore = cmd.hasOption("out-of-core");
+		final boolean sharded = cmd.hasOption("z-range") || cmd.hasOption("channels");
+		if (setup(outOfCore || sharded, cmd.getArgs())) {
+			FlatField[] flatFields = openFlatFields(
+					cmd.getOptionValue("flat-field"),
+					cmd.getOptionValue("dark-frame"),
+					impInput.getNChannels());
+			final TiledTiffWriter outputWriter;
+			if (sharded) {
+				final StackShard shard;
+				try {
+					shard = StackShard.parse(cmd.getOptionValue("z-range"), cmd.getOptionValue("channels"), impInput);
+				} catch (final IllegalArgumentException e) {
+					System.err.println(e.getMessage());
+					printUsage(options);
+					return;
+				}
+				impInput = shard.select(impInput);
+				flatFields = shard.select(flatFields);
+				pathOutput = shard.getPartPath(pathOutput);
+				/* parts are plain ImageJ TIFFs, compression applies to the merged output */
+				outputWriter = null;
+			} else
+				outputWriter = writer;
+
+			/* only 'map' resampling supports higher order interpolation, flat-fields and out-of-core stacks */
+			final String mapOnly =
+					interpolation != Interpolation.BILINEAR ? "'--interpolation " + cmd.getOptionValue("interpolation") + "'" :
+					flatFields != null ? "flat-field correction" :
+					outOfCore ? "'--out-of-core'" : null;
+			final String resampling = cmd.getOptionValue("resampling", mapOnly == null ? DEFAULT_RESAMPLING : "map");
+			if (mapOnly != null && !resampling.equals("map")) {
+				System.err.println("'--resampling " + resampling + "' does not support " + mapOnly + ", use '--resampling map'.");
+				printUsage(options);
+				return;
+			}
+
+			final Projections projections;
+			if (outOfCore) {
+				final InverseLensModel model = InverseLensModel.fit(transform, impInput.getWidth(), impInput.getHeight());
+				System.out.println(model);
+				final CoordinateMap map = model.createCoordinateMap(crop);
+				projections = Projections.create(impInput, map.getWidth(), map.getHeight(), summary);
+				OutOfCoreLensCorrection.saveTransformed(
+						impInput,
+						map,
+						Integer.parseInt(cmd.getOptionValue("cache-slices", Integer.toString(OutOfCoreLensCorrection.DEFAULT_CACHED_SLICES))),
+						interpolation,
+						flatFields,
+						projections,
+						outputWriter,
+						pathOutput);
+			} else {
+				final ImageStack stack;
+				if (resampling.equals("tiled")) {
+					final InverseLensModel model = InverseLensModel.fit(transform, impInput.getWidth(), impInput.getHeight());
+					System.out.println(model);
+					final CoordinateMap map = model.createCoordinateMap(crop);
+					projections = Projections.create(impInput, map.getWidth(), map.getHeight(), summary);
+					stack = createTiledTransformedStack(
+							impInput.getStack(),
+							map,
+							Integer.parseInt(cmd.getOptionValue("warp-tile", Integer.toString(Resampler.DEFAULT_TILE_SIZE))),
+							projections);
+				} else if (resampling.equals("map")) {
+					final InverseLensModel model = InverseLensModel.fit(transform, impInput.getWidth(), impInput.getHeight());
+					System.out.println(model);
+					final CoordinateMap map = model.createCoordinateMap(crop);
+					projections = Projections.create(impInput, map.getWidth(), map.getHeight(), summary);
+					stack = createTransformedStack(impInput.getStack(), map, interpolation, flatFields, projections);
+				} else if (resampling.equals("mesh")) {
+					final TransformMesh mesh = new TransformMesh(LensTransforms.flatten(transform), 128, impInput.getWidth(), impInput.getHeight());
+					final Rectangle bounds = mesh.getBoundingBox();
+					projections = Projections.create(impInput, bounds.width - 2 * crop, bounds.height - 2 * crop, summary);
+					stack = createTransformedStack(impInput.getStack(), mesh, crop, projections);
+				} else {
+					printUsage(options);
+					return;
+				}
+				impInput.setStack(stack);
+				if (outputWriter == null)
+					IJ.saveAsTiff(impInput, pathOutput );
+				else
+					outputWriter.write(impInput, pathOutput);
+			}
+			if (projections != null)
+				projections.save(pathOutput);
 		} else {
-			System.err.println("Usage: "
-					+ "java ... <input_path> <output_path> \"<lens_model>\" <crop_width>."
-					);
+			printUsage(options);
 		}
 	}
 }
@@ -0,0 +1,262 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.EnumSet;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import ij.ImagePlus;
+import ij.io.FileSaver;
+
+/**
+ * Fast starting variant of {@link Apply} for single files.  The lens model
+ * is parsed into a {@link PolynomialLensTransform} and every slice is
+ * resampled through the {@link CoordinateMap} of its fitted inverse,
+ * optionally flat-field corrected and summarized in {@link Projections}
+ * in the same pass.
+ * Uncompressed TIFF and LSM files are read by {@link TiffReader}, other
+ * files by a full reader (LSM_Reader or the ImageJ opener) that is only
+ * loaded when needed, such that the core path depends only on ImageJ and
+ * mpicbg.  The <code>slim</code> build profile packages it as
+ * <code>confocal-lens-*-apply.jar</code> with only these dependencies.
+ *
+ * With <code>--timing</code>, the time of all stages including JVM
+ * startup is printed and saved for comparison with later runs.
+ *
+ * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
+ */
+public class ApplyLite {
+
+	/**
+	 * Full readers by file extension, class name and method that opens a
+	 * path.
+	 */
+	final static private String[][] PLUGINS = new String[][] {
+		{".lsm", "org.imagearchive.lsm.reader.Reader", "open"},
+		{"", "ij.io.Opener", "openImage"}
+	};
+
+	private ApplyLite() {}
+
+	final static protected ImagePlus openWithPlugin(final String path) throws IOException {
+		for (final String[] plugin : PLUGINS) {
+			if (!path.toLowerCase().endsWith(plugin[0]))
+				continue;
+			try {
+				final Class<?> c = Class.forName(plugin[1]);
+				final Method open = c.getMethod(plugin[2], String.class);
+				return (ImagePlus)open.invoke(c.getDeclaredConstructor().newInstance(), path);
+			} catch (final ClassNotFoundException e) {
+				throw new IOException(plugin[1] + " is not on the class path, use Apply to open " + path);
+			} catch (final ReflectiveOperationException e) {
+				throw new IOException("Cannot open " + path, e);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Open with {@link TiffReader} or, if it does not support the file,
+	 * with a full reader.
+	 */
+	final static public ImagePlus openImagePlus(final String path) throws IOException {
+		try {
+			return TiffReader.open(path);
+		} catch (final TiffReader.UnsupportedFormatException e) {
+			System.out.println(e.getMessage() + " Opening " + path + " with a full reader.");
+			return openWithPlugin(path);
+		}
+	}
+
+	final static public Options createOptions() {
+		final Options options = new Options();
+		options.addOption(new Option(
+				"z",
+				"compression",
+				true,
+				"save compressed with 'lzw', 'deflate', or 'none' in strips, or as tiled BigTIFF beyond 4GB, instead of an ImageJ TIFF"));
+		options.addOption(new Option(
+				null,
+				"tile-size",
+				true,
+				"rows per strip and tile size of the BigTIFF, default " + TiledTiffWriter.DEFAULT_TILE_SIZE));
+		options.addOption(new Option(
+				null,
+				"no-predictor",
+				false,
+				"do not apply horizontal differencing before compressing"));
+		options.addOption(new Option(
+				"n",
+				"interpolation",
+				true,
+				"'bilinear' (default), 'bicubic', or 'lanczos3'"));
+		options.addOption(new Option(
+				"f",
+				"flat-field",
+				true,
+				"flat-field image with one slice per channel or one for all channels, applied in the resampling pass"));
+		options.addOption(new Option(
+				"d",
+				"dark-frame",
+				true,
+				"dark-frame image with one slice per channel or one for all channels, subtracted in the resampling pass"));
+		options.addOption(new Option(
+				"s",
+				"summary",
+				true,
+				"comma separated side outputs computed while resampling and saved next to the output, 'max' and 'mean' projection per channel, 'stats' per slice"));
+		options.addOption(new Option(
+				"t",
+				"timing",
+				true,
+				"print the time of all stages including JVM startup and save it as json"));
+		options.addOption(new Option(
+				null,
+				"timing-reference",
+				true,
+				"timing json of a previous run to compare against"));
+		return options;
+	}
+
+	final static private void printUsage(final Options options) {
+		new HelpFormatter().printHelp(
+				"java ... [options] <input_path> <output_path> \"<lens_model>\" <crop_width>",
+				options);
+	}
+
+	/**
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(final String[] args) throws IOException {
+
+		final long mainMillis = System.currentTimeMillis();
+		final StageTimer timer = new StageTimer("lite");
+		timer.start("setup");
+
+		final Options options = createOptions();
+		final CommandLine cmd;
+		try {
+			cmd = new DefaultParser().parse(options, args);
+		} catch (final ParseException e) {
+			System.err.println(e.getMessage());
+			printUsage(options);
+			return;
+		}
+		final String[] paths = cmd.getArgs();
+		if (paths.length < 4) {
+			printUsage(options);
+			return;
+		}
+		final boolean timing = cmd.hasOption("timing") || cmd.hasOption("timing-reference");
+		if (timing)
+			timer.add("jvm", (mainMillis - ManagementFactory.getRuntimeMXBean().getStartTime()) * 1e-3);
+
+		final TiledTiffWriter writer;
+		if (cmd.hasOption("compression")) {
+			try {
+				writer = new TiledTiffWriter(
+						Integer.parseInt(cmd.getOptionValue("tile-size", Integer.toString(TiledTiffWriter.DEFAULT_TILE_SIZE))),
+						TiledTiffWriter.Compression.valueOf(cmd.getOptionValue("compression").toUpperCase()),
+						!cmd.hasOption("no-predictor"));
+			} catch (final IllegalArgumentException e) {
+				System.err.println(e.getMessage());
+				printUsage(options);
+				return;
+			}
+		} else
+			writer = null;
+
+		final Interpolation interpolation;
+		try {
+			interpolation = Interpolation.fromString(cmd.getOptionValue("interpolation", "bilinear"));
+		} catch (final IllegalArgumentException e) {
+			System.err.println("Unknown interpolation " + cmd.getOptionValue("interpolation"));
+			printUsage(options);
+			return;
+		}
+
+		final EnumSet<Projections.Output> summary;
+		try {
+			summary = Projections.Output.parse(cmd.getOptionValue("summary", ""));
+		} catch (final IllegalArgumentException e) {
+			System.err.println("Unknown summary " + cmd.getOptionValue("summary"));
+			printUsage(options);
+			return;
+		}
+
+		timer.start("open");
+		final ImagePlus imp = openImagePlus(paths[0]);
+		if (imp == null) {
+			System.err.println("Cannot open " + paths[0]);
+			return;
+		}
+
+		final FlatField[] flatFields;
+		if (cmd.hasOption("flat-field") || cmd.hasOption("dark-frame")) {
+			final String flatPath = cmd.getOptionValue("flat-field");
+			final String darkPath = cmd.getOptionValue("dark-frame");
+			final ImagePlus flat = flatPath == null ? null : openImagePlus(flatPath);
+			final ImagePlus dark = darkPath == null ? null : openImagePlus(darkPath);
+			if ((flatPath != null && flat == null) || (darkPath != null && dark == null)) {
+				System.err.println("Cannot open " + (flat == null ? flatPath : darkPath));
+				return;
+			}
+			flatFields = FlatField.create(flat, dark, imp.getNChannels());
+		} else
+			flatFields = null;
+
+		timer.start("model");
+		final PolynomialLensTransform lens = new PolynomialLensTransform();
+		lens.init(paths[2]);
+		final CoordinateMap map = InverseLensModel.fit(lens, imp.getWidth(), imp.getHeight()).createCoordinateMap(Integer.parseInt(paths[3]));
+
+		timer.start("resample");
+		final Projections projections = Projections.create(imp, map.getWidth(), map.getHeight(), summary);
+		imp.setStack(Resampler.mapInterpolated(imp, map, 0, interpolation, flatFields, projections));
+
+		timer.start("save");
+		final File parent = new File(paths[1]).getParentFile();
+		if (parent != null)
+			parent.mkdirs();
+		if (writer == null)
+			new FileSaver(imp).saveAsTiff(paths[1]);
+		else
+			writer.write(imp, paths[1]);
+		if (projections != null) {
+			timer.start("summary");
+			projections.save(paths[1]);
+		}
+		timer.stop();
+
+		if (timing) {
+			if (cmd.getOptionValue("timing") != null)
+				timer.save(cmd.getOptionValue("timing"));
+			timer.report(System.out, cmd.getOptionValue("timing-reference"));
+		}
+	}
+}
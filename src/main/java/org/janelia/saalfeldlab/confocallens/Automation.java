@@ -71,6 +71,7 @@ import mpicbg.trakem2.align.Align;
 import mpicbg.trakem2.align.AlignTask;
 import mpicbg.trakem2.align.RegularizedAffineLayerAlignment;
 import mpicbg.trakem2.transform.CoordinateTransform;
+import mpicbg.trakem2.transform.NonLinearCoordinateTransform;
 
 import java.awt.geom.AffineTransform;
 import java.awt.image.IndexColorModel;
@@ -122,8 +123,8 @@ public class Automation {
 			int h,
 			int pWidth,
 			int pHeight,
-			CoordinateTransformList<?> ct1,
-			CoordinateTransformList<?> ct2,
+			mpicbg.models.CoordinateTransform ct1,
+			mpicbg.models.CoordinateTransform ct2,
 			double max) {
 		double hw = 0.5 * w;
 		double hh = 0.5 * h;
@@ -154,8 +155,8 @@ public class Automation {
 			int h,
 			int pWidth,
 			int pHeight,
-			CoordinateTransformList<?> ct1,
-			CoordinateTransformList<?> ct2,
+			mpicbg.models.CoordinateTransform ct1,
+			mpicbg.models.CoordinateTransform ct2,
 			double max) {
 		double sx = (double)pWidth / w;
 		double sy = (double)pHeight / h;
@@ -248,6 +249,323 @@ public class Automation {
 		return ctl;
 	}
 
+	static Align.ParamOptimize createMontageParam(JSONObject montage_jo) {
+		Align.ParamOptimize param = new Align.ParamOptimize();
+		param.sift.initialSigma = (float)montage_jo.getDouble("initialSigma");
+		param.sift.steps = montage_jo.getInt("steps");
+		param.sift.minOctaveSize = montage_jo.getInt("minOctaveSize");
+		param.sift.maxOctaveSize = montage_jo.getInt("maxOctaveSize");
+		param.sift.fdSize = montage_jo.getInt("fdSize");
+		param.sift.fdBins = montage_jo.getInt("fdBins");
+		param.rod = (float)montage_jo.getDouble("rod");
+		param.maxEpsilon = (float)montage_jo.getDouble("maxEpsilon");
+		param.minInlierRatio = (float)montage_jo.getDouble("minInlierRatio");
+		param.minNumInliers = montage_jo.getInt("minNumInliers");
+		param.expectedModelIndex = montage_jo.getInt("expectedModelIndex");
+		param.rejectIdentity = montage_jo.getBoolean("rejectIdentity");
+		param.identityTolerance = (float)montage_jo.getDouble("identityTolerance");
+		param.desiredModelIndex = montage_jo.getInt("desiredModelIndex");
+		param.correspondenceWeight = (float)montage_jo.getDouble("correspondenceWeight");
+		param.regularize = montage_jo.getBoolean("regularize");
+		param.maxIterations = montage_jo.getInt("maxIterations");
+		param.maxPlateauwidth = montage_jo.getInt("maxPlateauwidth");
+		param.filterOutliers = montage_jo.getBoolean("filterOutliers");
+		param.meanFactor = (float)montage_jo.getDouble("meanFactor");
+		return param;
+	}
+
+	static RegularizedAffineLayerAlignment.Param createLayerAlignmentParam(JSONObject align_jo, int maxNumThreads) {
+		return new RegularizedAffineLayerAlignment.Param(
+				align_jo.getInt("SIFTfdBins"),//SIFTfdBins, 
+				align_jo.getInt("SIFTfdSize"),//SIFTfdSize, 
+				(float)align_jo.getDouble("SIFTinitialSigma"),//SIFTinitialSigma, 
+				align_jo.getInt("SIFTmaxOctaveSize"),//SIFTmaxOctaveSize, 
+				align_jo.getInt("SIFTminOctaveSize"),//SIFTminOctaveSize, 
+				align_jo.getInt("SIFTsteps"),//SIFTsteps, 
+				align_jo.getBoolean("clearCache"),//clearCache, 
+				maxNumThreads,//maxNumThreadsSift,
+				(float)align_jo.getDouble("rod"),//rod, 
+				align_jo.getInt("desiredModelIndex"),//desiredModelIndex,
+				align_jo.getInt("expectedModelIndex"),//expectedModelIndex, 
+				(float)align_jo.getDouble("identityTolerance"),//identityTolerance,
+				(float)align_jo.getDouble("lambda"),//lambda, 
+				(float)align_jo.getDouble("maxEpsilon"),////maxEpsilon,
+				align_jo.getInt("maxIterationsOptimize"),//maxIterationsOptimize,
+				align_jo.getInt("maxNumFailures"),//maxNumFailures,
+				align_jo.getInt("maxNumNeighbors"),//maxNumNeighbors, 
+				maxNumThreads,//maxNumThreads, 
+				align_jo.getInt("maxPlateauwidthOptimize"),//maxPlateauwidthOptimize,
+				(float)align_jo.getDouble("minInlierRatio"),//minInlierRatio,
+				align_jo.getInt("minNumInliers"),//minNumInliers,
+				align_jo.getBoolean("multipleHypotheses"),//multipleHypotheses,
+				align_jo.getBoolean("widestSetOnly"),//widestSetOnly,
+				align_jo.getBoolean("regularize"),//regularize, 
+				align_jo.getInt("regularizerIndex"),//regularizerIndex, 
+				align_jo.getBoolean("rejectIdentity"),//rejectIdentity, 
+				false//visualize
+		);
+	}
+
+	/**
+	 * A copy of SIFT parameters with octave sizes reduced by
+	 * <code>factor</code>, such that features are extracted at
+	 * correspondingly lower resolution.  Matches are still in full
+	 * resolution patch coordinates, so the result initializes the next
+	 * stage directly.
+	 */
+	static JSONObject downsampleOctaves(JSONObject jo, int factor) {
+		JSONObject downsampled = new JSONObject(jo.toString());
+		for (String key : new String[]{"minOctaveSize", "maxOctaveSize", "SIFTminOctaveSize", "SIFTmaxOctaveSize"}) {
+			if (downsampled.has(key))
+				downsampled.put(key, Math.max(64, downsampled.getInt(key) / factor));
+		}
+		return downsampled;
+	}
+
+	/**
+	 * Index pairs of overlapping tiles, from the tile layout if known,
+	 * otherwise from the current bounding boxes.
+	 */
+	static ArrayList<int[]> tilePairs(List<Patch> tiles, TileLayout layout) {
+		if (layout != null)
+			return layout.getNeighborPairs();
+		ArrayList<int[]> pairs = new ArrayList<int[]>();
+		for (int i = 0; i < tiles.size(); ++i) {
+			Rectangle box = tiles.get(i).getBoundingBox();
+			for (int j = i + 1; j < tiles.size(); ++j)
+				if (box.intersects(tiles.get(j).getBoundingBox()))
+					pairs.add(new int[]{i, j});
+		}
+		return pairs;
+	}
+
+	/**
+	 * Estimate the lens model of one layer from bead correspondences
+	 * between overlapping tiles, then set it as the coordinate transform of
+	 * all tiles and place the tiles at the translations estimated with it.
+	 */
+	static LensModelFit correctDistortionFromBeads(List<Patch> tiles, TileLayout layout, JSONObject bead_jo, int dimension, int w, int h) {
+		BeadDetector detector = new BeadDetector(bead_jo.getDouble("sigma"), bead_jo.getDouble("threshold"));
+		ArrayList<ArrayList<double[]>> beads = new ArrayList<ArrayList<double[]>>();
+		for (Patch patch : tiles)
+			beads.add(detector.detect(patch.getImageProcessor()));
+		
+		ArrayList<int[]> pairs = tilePairs(tiles, layout);
+		ArrayList<ArrayList<PointMatch>> matches = new ArrayList<ArrayList<PointMatch>>();
+		for (int[] pair : pairs)
+			matches.add(BeadDetector.match(
+					beads.get(pair[0]),
+					beads.get(pair[1]),
+					bead_jo.getInt("numNeighbors"),
+					bead_jo.getDouble("rod"),
+					bead_jo.getDouble("maxEpsilon"),
+					bead_jo.getInt("minNumInliers")));
+		
+		LensModelFit fit = LensModelFit.fit(
+				tiles.size(),
+				pairs,
+				matches,
+				dimension,
+				w,
+				h,
+				bead_jo.getDouble("lambda"),
+				bead_jo.getDouble("meanFactor"),
+				bead_jo.getInt("iterations"));
+		
+		setLensModel(tiles, fit);
+		return fit;
+	}
+
+	/**
+	 * Set the lens model of <code>fit</code> as the coordinate transform of
+	 * all tiles and place the tiles at its translations relative to the
+	 * first tile.
+	 */
+	static void setLensModel(List<Patch> tiles, LensModelFit fit) {
+		/* export as NonLinearCoordinateTransform like DistortionCorrectionTask, the data string is the same */
+		NonLinearCoordinateTransform lens = new NonLinearCoordinateTransform();
+		lens.init(fit.getLens().toDataString());
+		AffineTransform first = tiles.get(0).getAffineTransformCopy();
+		for (int i = 0; i < tiles.size(); ++i) {
+			double[] t = fit.getTranslation(i);
+			tiles.get(i).setCoordinateTransform(lens.copy());
+			tiles.get(i).setAffineTransform(AffineTransform.getTranslateInstance(first.getTranslateX() + t[0], first.getTranslateY() + t[1]));
+		}
+	}
+
+	/**
+	 * Write the lens model and affine of each layer to
+	 * <code>outdir/pname.json</code> and save the comparison of all lens
+	 * models as <code>outdir/pname_compare_lenses.tif</code>.
+	 */
+	static void exportModels(
+			List<CoordinateTransformList<CoordinateTransform>> models,
+			String scope,
+			String sample,
+			String outdir,
+			String pname) throws Exception {
+
+		Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+		ArrayList<HashMap<String, Object>> transformExports = new ArrayList<HashMap<String, Object>>();
+		for (int i = 0; i < models.size(); ++i) {
+			final CoordinateTransformList< CoordinateTransform > ctl = models.get(i);
+			List<HashMap<String, String>> maplist = new ArrayList<HashMap<String, String>>();
+			maplist.add(exportTransform(ctl.get(0)));
+			maplist.add(exportTransform(ctl.get(1)));
+			HashMap<String, Object> export = exportTransform(
+				String.format(format, scope, sample, lambdas[i]), maplist);
+			transformExports.add(export);
+		}
+		
+		String result_jsontxt = gson.toJson(transformExports);
+		String jsonpath = outdir + File.separator + pname + ".json";
+		Files.write(Paths.get(jsonpath), result_jsontxt.getBytes());
+		System.out.println(result_jsontxt);
+		
+		
+		//compare lenses
+		ArrayList<ArrayList<String>> tr_lists = new ArrayList<ArrayList<String>>();
+		ArrayList<String> temp_id_list = new ArrayList<String>();
+		temp_id_list.add("Identity");
+		temp_id_list.add("mpicbg.trakem2.transform.AffineModel2D");
+		temp_id_list.add("1.0 0.0 0.0 1.0 0.0 0.0");
+		tr_lists.add(temp_id_list);
+		for (int i = 0; i < models.size(); ++i) {
+			final CoordinateTransformList< CoordinateTransform > ctl = models.get(i);
+			ArrayList<String> templist = new ArrayList<String>();
+			String label = String.format(format, scope, sample, lambdas[i]);
+			String classname1 = ctl.get(0).getClass().getName();
+			String ctstr1 = ctl.get(0).toDataString();
+			String classname2 = ctl.get(1).getClass().getName();
+			String ctstr2 = ctl.get(1).toDataString();
+			templist.add(label);
+			templist.add(classname1);
+			templist.add(ctstr1);
+			templist.add(classname2);
+			templist.add(ctstr2);
+			tr_lists.add(templist);
+		}
+		String[][] transforms = new String[tr_lists.size()][];
+		String[] blankArray = new String[0];
+		for(int i = 0; i < tr_lists.size(); i++) {
+			transforms[i] = tr_lists.get(i).toArray(blankArray);
+		}
+		
+		int iw = 256;
+		int ih = 256;
+		double max = 5;
+		int pWidth = 1024;
+		int pHeight = 1024;
+
+		int ySkip = 4;
+		int xSkip = 4;
+		
+		ImagePlus impVectors = showDifferenceVectors(transforms, pWidth, pHeight, iw, ih, xSkip, ySkip, max);
+		ImagePlus impDists = showDifferenceVectorDistributions(transforms, pWidth, pHeight, iw, ih, xSkip, ySkip, max);
+
+		impDists.setDisplayRange(0, 32);
+		Thread.sleep(1000);
+		impDists.setLut(createFireLUT(32.0));
+		Thread.sleep(1000);
+		new ImageConverter(impDists).convertToRGB();
+		Thread.sleep(1000);
+		impDists.getProcessor().snapshot();
+		
+//		{
+//			FileSaver saver = new FileSaver(impDists);
+//			saver.saveAsTiff(outdir + File.separator + pname + "_dists" + ".tif");
+//			FileSaver saver2 = new FileSaver(impVectors);
+//			saver2.saveAsTiff(outdir + File.separator + pname + "_vectors" + ".tif");
+//		}
+		
+		ColorProcessor ip_src = (ColorProcessor)impVectors.getProcessor();
+		ColorProcessor ip_dst = (ColorProcessor)impDists.getProcessor();
+		
+		for(int y = 0; y < ip_src.getHeight(); y++) {
+			for(int x = y; x < ip_src.getWidth(); x++) {
+				ip_dst.set(x, y, ip_src.get(x, y));
+			}
+		}
+		
+		drawCircles((ColorProcessor)impDists.getProcessor(), transforms, iw, ih, xSkip, ySkip, max);
+		drawLabels(impDists, 26, transforms, iw, ih, xSkip, ySkip);
+		
+		FileSaver saver = new FileSaver(impDists);
+		String compare_path = outdir + File.separator + pname + "_compare_lenses" + ".tif";
+		saver.saveAsTiff(compare_path);
+	}
+
+	/**
+	 * Save a TrakEM2 project of the normalized MIPs with the lens models and
+	 * tile positions of an {@link InMemoryCalibration} for inspection.
+	 */
+	static void saveCalibratedProject(
+			String strage_dir,
+			String path,
+			List<? extends List<String>> layer_patch_paths,
+			List<CoordinateTransformList<CoordinateTransform>> models,
+			InMemoryCalibration calibration) throws Exception {
+
+		ControlWindow.setGUIEnabled(false);
+		
+		Project project = Project.newFSProject("blank", null, strage_dir);
+		LayerSet layerset = project.getRootLayerSet();
+		for (int i = 0; i < layer_patch_paths.size(); i++)
+			  layerset.getLayer(i, 1, true);
+		project.getLayerTree().updateList(layerset);
+		
+		for (int i = 0; i < layer_patch_paths.size(); i++)
+		{
+			Layer layer = layerset.getLayer(i);
+			List<String> path_list = layer_patch_paths.get(i);
+			LensModelFit fit = calibration.getFits().get(i);
+			AffineTransform affine = ((AffineModel2D)models.get(i).get(1)).createAffine();
+			for (int s = 0; s < path_list.size(); s++)
+			{
+				Patch patch = Patch.createPatch(project, path_list.get(s));
+				NonLinearCoordinateTransform lens = new NonLinearCoordinateTransform();
+				lens.init(models.get(i).get(0).toDataString());
+				patch.setCoordinateTransform(lens);
+				double[] t = fit.getTranslation(s);
+				AffineTransform at = new AffineTransform(affine);
+				at.translate(t[0], t[1]);
+				patch.setAffineTransform(at);
+				layer.add(patch);
+			}
+			layer.recreateBuckets();
+		}
+		layerset.setMinimumDimensions();
+		project.saveAs(path, true);
+	}
+
+	static void alignLayers(LayerSet layerset, RegularizedAffineLayerAlignment.Param param) throws Exception {
+		boolean propagateTransformBefore = false;
+		boolean propagateTransformAfter = false;
+
+		Rectangle box = null;
+		HashSet< Layer > emptyLayers = new HashSet< Layer >();
+		for ( final Iterator< Layer > it = layerset.getLayers().iterator(); it.hasNext(); )
+		{
+			/* remove empty layers */
+			final Layer la = it.next();
+			if ( !la.contains( Patch.class, true ) )
+			{
+				emptyLayers.add( la );
+			}
+			else
+			{
+				/* accumulate boxes */
+				if ( null == box ) // The first layer:
+					box = la.getMinimalBoundingBox( Patch.class, true );
+				else
+					box = box.union( la.getMinimalBoundingBox( Patch.class, true ) );
+			}
+		}
+
+		new RegularizedAffineLayerAlignment().exec(param, layerset.getLayers(), new HashSet<Layer>(), emptyLayers, box, propagateTransformBefore, propagateTransformAfter, null);
+	}
+
 	static ImagePlus showDifferenceVectors(String[][] transforms, int pWidth, int pHeight, int w, int h, int xSkip, int ySkip, double max) throws InstantiationException, IllegalAccessException, NotEnoughDataPointsException, IllDefinedDataPointsException, ClassNotFoundException {
 		ColorProcessor table = new ColorProcessor(
 			(w + xSkip) * transforms.length - xSkip,
@@ -257,20 +575,22 @@ public class Automation {
 		
 		for (int i = 0; i < transforms.length; ++i) {
 			CoordinateTransformList<mpicbg.models.CoordinateTransform> ct1 = createTransformList(i, transforms);
+			mpicbg.models.CoordinateTransform flat1 = LensTransforms.flatten(ct1);
 			for (int j = 0; j < transforms.length; ++j) {
 				CoordinateTransformList<mpicbg.models.CoordinateTransform> ct2 = createTransformList(j, transforms);
 		
 				/* fit a simple linear model to compare with using some transferred samples */
 				mpicbg.models.CoordinateTransform t = (mpicbg.models.CoordinateTransform)sampleModel2(ct2, ct1, invarianceModelClass, pWidth, pHeight);
 				ct2.add(t);
+				mpicbg.models.CoordinateTransform flat2 = LensTransforms.flatten(ct2);
 		
 				ImageProcessor ip = visualizeDifferenceVectors(
 					w,
 					h,
 					pWidth,
 					pHeight,
-					ct1,
-					ct2,
+					flat1,
+					flat2,
 					max);
 		
 				table.copyBits(ip, (w + xSkip) * i, (h + ySkip) * j, Blitter.COPY);
@@ -291,20 +611,22 @@ public class Automation {
 		
 		for (int i = 0; i < transforms.length; ++i) {
 			CoordinateTransformList<mpicbg.models.CoordinateTransform> ct1 = createTransformList(i, transforms);
+			mpicbg.models.CoordinateTransform flat1 = LensTransforms.flatten(ct1);
 			for (int j = 0; j < transforms.length; ++j) {
 				CoordinateTransformList<mpicbg.models.CoordinateTransform> ct2 = createTransformList(j, transforms);
 		
 				/* fit a simple linear model to compare with using some transferred samples */
 				mpicbg.models.CoordinateTransform t = (mpicbg.models.CoordinateTransform)sampleModel2(ct2, ct1, invarianceModelClass, pWidth, pHeight);
 				ct2.add(t);
+				mpicbg.models.CoordinateTransform flat2 = LensTransforms.flatten(ct2);
 		
 				ImageProcessor ip = visualizeDifferenceVectorDistribution(
 					w,
 					h,
 					pWidth,
 					pHeight,
-					ct1,
-					ct2,
+					flat1,
+					flat2,
 					max);
 		
 				table.copyBits(ip, (w + xSkip) * i, (h + ySkip) * j, Blitter.COPY);
@@ -555,6 +877,45 @@ public class Automation {
         Option sample_op = new Option("s", "sample", true, "sample name");
         sample_op.setRequired(true);
         options.addOption(sample_op);
+        
+        Option warm_op = new Option("w", "warm-start", true, "previous lens model json to start from");
+        options.addOption(warm_op);
+        
+        Option residual_op = new Option(null, "max-residual", true, "mean residual in px above which the warm start falls back to a full calibration");
+        options.addOption(residual_op);
+        
+        Option tileconf_op = new Option(null, "tile-configuration", true, "TileConfiguration.txt with the tile positions of the mosaic");
+        options.addOption(tileconf_op);
+        
+        Option grid_op = new Option(null, "tile-grid", true, "row-major tile grid of the mosaic, <rows>x<cols>[,<overlap>]");
+        options.addOption(grid_op);
+        
+        Option pyramid_op = new Option(null, "pyramid", true, "downsampling factor for the SIFT octaves of the early alignment stages");
+        options.addOption(pyramid_op);
+        
+        Option timing_op = new Option(null, "timing-reference", true, "timing json of a previous run to compare the stage timings against");
+        options.addOption(timing_op);
+        
+        Option matcher_op = new Option(null, "matcher", true, "correspondences for the lens model, sift (default) or beads");
+        options.addOption(matcher_op);
+        
+        Option normalize_op = new Option(null, "fast-normalize", false, "normalize local contrast with integral images, tiles in parallel");
+        options.addOption(normalize_op);
+        
+        Option verify_op = new Option(null, "verify-normalize", false, "compare the fast local contrast normalization with NormalizeLocalContrast on the first tile of each layer");
+        options.addOption(verify_op);
+        
+        Option inmemory_op = new Option(null, "in-memory", false, "calibrate on the MIPs in memory without a TrakEM2 project");
+        options.addOption(inmemory_op);
+        
+        Option saveproject_op = new Option(null, "save-project", false, "with --in-memory, also save the MIPs and a TrakEM2 project of the result for inspection");
+        options.addOption(saveproject_op);
+        
+        Option memory_op = new Option(null, "memory-budget", true, "memory budget, e.g. 8g; avoid copies of the MIPs, release image caches and report peak memory per stage");
+        options.addOption(memory_op);
+        
+        Option extensions_op = new Option(null, "extensions", true, "comma separated extensions of the input files, default lsm,LSM");
+        options.addOption(extensions_op);
 
         CommandLineParser parser = new DefaultParser();
         HelpFormatter formatter = new HelpFormatter();
@@ -576,6 +937,18 @@ public class Automation {
         String scope = cmd.getOptionValue("scope");
         String sample = cmd.getOptionValue("sample");
         String pname = scope + "_" + sample;
+        String warmStartPath = cmd.getOptionValue("warm-start");
+        String tileConfigurationPath = cmd.getOptionValue("tile-configuration");
+        String tileGrid = cmd.getOptionValue("tile-grid");
+        int pyramid = Integer.parseInt(cmd.getOptionValue("pyramid", "1"));
+        String timingReferencePath = cmd.getOptionValue("timing-reference");
+        boolean beads = cmd.getOptionValue("matcher", "sift").equals("beads");
+        boolean fastNormalize = cmd.hasOption("fast-normalize");
+        boolean verifyNormalize = cmd.hasOption("verify-normalize");
+        boolean inMemory = cmd.hasOption("in-memory");
+        boolean saveProject = cmd.hasOption("save-project");
+        boolean lowMemory = cmd.hasOption("memory-budget");
+        MemoryBudget memory = new MemoryBudget(lowMemory ? MemoryBudget.parseSize(cmd.getOptionValue("memory-budget")) : 0);
         
         System.out.println("input_dir: " + dir_path);
         System.out.println("output_dir: " + outdir);
@@ -603,28 +976,22 @@ public class Automation {
 	        
 	        int maxNumThreads = Runtime.getRuntime().availableProcessors();
 	        
+	        JSONObject warm_defaults = new JSONObject("{\"maxEpsilon\" : 5.0, \"iterationScale\" : 0.25, \"maxResidual\" : 1.0, \"lambda\" : 1e-6, \"meanFactor\" : 3.0, \"iterations\" : 2}");
+	        JSONObject warm_jo = jo.optJSONObject("warmStart");
+	        if (warm_jo == null)
+	        	warm_jo = warm_defaults;
+	        else
+	        	for (String key : warm_defaults.keySet())
+	        		if (!warm_jo.has(key))
+	        			warm_jo.put(key, warm_defaults.get(key));
+	        double maxResidual = Double.parseDouble(cmd.getOptionValue("max-residual", Double.toString(warm_jo.getDouble("maxResidual"))));
+	        
+	        JSONObject bead_jo = jo.optJSONObject("beads");
+	        if (bead_jo == null)
+	        	bead_jo = new JSONObject("{\"sigma\" : 2.0, \"threshold\" : 0.05, \"numNeighbors\" : 3, \"rod\" : 0.9, \"maxEpsilon\" : 3.0, \"minNumInliers\" : 10, \"lambda\" : 1e-6, \"meanFactor\" : 3.0, \"iterations\" : 2}");
+	        
 	        JSONObject montage_jo = jo.getJSONObject("montageLayers");
-	        Align.ParamOptimize param = new Align.ParamOptimize();
-			param.sift.initialSigma = (float)montage_jo.getDouble("initialSigma");
-			param.sift.steps = montage_jo.getInt("steps");
-			param.sift.minOctaveSize = montage_jo.getInt("minOctaveSize");
-			param.sift.maxOctaveSize = montage_jo.getInt("maxOctaveSize");
-			param.sift.fdSize = montage_jo.getInt("fdSize");
-			param.sift.fdBins = montage_jo.getInt("fdBins");
-			param.rod = (float)montage_jo.getDouble("rod");
-			param.maxEpsilon = (float)montage_jo.getDouble("maxEpsilon");
-			param.minInlierRatio = (float)montage_jo.getDouble("minInlierRatio");
-			param.minNumInliers = montage_jo.getInt("minNumInliers");
-			param.expectedModelIndex = montage_jo.getInt("expectedModelIndex");
-			param.rejectIdentity = montage_jo.getBoolean("rejectIdentity");
-			param.identityTolerance = (float)montage_jo.getDouble("identityTolerance");
-			param.desiredModelIndex = montage_jo.getInt("desiredModelIndex");
-			param.correspondenceWeight = (float)montage_jo.getDouble("correspondenceWeight");
-			param.regularize = montage_jo.getBoolean("regularize");
-			param.maxIterations = montage_jo.getInt("maxIterations");
-			param.maxPlateauwidth = montage_jo.getInt("maxPlateauwidth");
-			param.filterOutliers = montage_jo.getBoolean("filterOutliers");
-			param.meanFactor = (float)montage_jo.getDouble("meanFactor");
+	        Align.ParamOptimize param = createMontageParam(montage_jo);
 	            
 //			param.sift.initialSigma = 1.6f;
 //			param.sift.steps = 3;
@@ -649,64 +1016,36 @@ public class Automation {
 
 			
 			JSONObject align_jo = jo.getJSONObject("alignLayers");
-			RegularizedAffineLayerAlignment.Param param2 = new RegularizedAffineLayerAlignment.Param(
-					align_jo.getInt("SIFTfdBins"),//SIFTfdBins, 
-					align_jo.getInt("SIFTfdSize"),//SIFTfdSize, 
-					(float)align_jo.getDouble("SIFTinitialSigma"),//SIFTinitialSigma, 
-					align_jo.getInt("SIFTmaxOctaveSize"),//SIFTmaxOctaveSize, 
-					align_jo.getInt("SIFTminOctaveSize"),//SIFTminOctaveSize, 
-					align_jo.getInt("SIFTsteps"),//SIFTsteps, 
-					align_jo.getBoolean("clearCache"),//clearCache, 
-					maxNumThreads,//maxNumThreadsSift,
-					(float)align_jo.getDouble("rod"),//rod, 
-					align_jo.getInt("desiredModelIndex"),//desiredModelIndex,
-					align_jo.getInt("expectedModelIndex"),//expectedModelIndex, 
-					(float)align_jo.getDouble("identityTolerance"),//identityTolerance,
-					(float)align_jo.getDouble("lambda"),//lambda, 
-					(float)align_jo.getDouble("maxEpsilon"),////maxEpsilon,
-					align_jo.getInt("maxIterationsOptimize"),//maxIterationsOptimize,
-					align_jo.getInt("maxNumFailures"),//maxNumFailures,
-					align_jo.getInt("maxNumNeighbors"),//maxNumNeighbors, 
-					maxNumThreads,//maxNumThreads, 
-					align_jo.getInt("maxPlateauwidthOptimize"),//maxPlateauwidthOptimize,
-					(float)align_jo.getDouble("minInlierRatio"),//minInlierRatio,
-					align_jo.getInt("minNumInliers"),//minNumInliers,
-					align_jo.getBoolean("multipleHypotheses"),//multipleHypotheses,
-					align_jo.getBoolean("widestSetOnly"),//widestSetOnly,
-					align_jo.getBoolean("regularize"),//regularize, 
-					align_jo.getInt("regularizerIndex"),//regularizerIndex, 
-					align_jo.getBoolean("rejectIdentity"),//rejectIdentity, 
-					false//visualize
-			);
+			RegularizedAffineLayerAlignment.Param param2 = createLayerAlignmentParam(align_jo, maxNumThreads);
 			
 //			RegularizedAffineLayerAlignment.Param param2 = new RegularizedAffineLayerAlignment.Param(
-//					8,//SIFTfdBins, 
-//					4,//SIFTfdSize, 
-//					1.6f,//SIFTinitialSigma, 
-//					1200,//SIFTmaxOctaveSize, 
-//					400,//SIFTminOctaveSize, 
-//					3,//SIFTsteps, 
-//					true,//clearCache, 
-//					maxNumThreads,//maxNumThreadsSift,
-//					0.92f,//rod, 
-//					0,//desiredModelIndex,
-//					0,//expectedModelIndex, 
-//					5.0f,//identityTolerance,
-//					0.1f,//lambda, 
-//					200.0f,////maxEpsilon,
-//					1000,//maxIterationsOptimize,
-//					5,//maxNumFailures,
-//					5,//maxNumNeighbors, 
-//					maxNumThreads,//maxNumThreads, 
-//					200,//maxPlateauwidthOptimize,
-//					0.0f,//minInlierRatio,
-//					20,//minNumInliers,
-//					true,//multipleHypotheses,
-//					false,//widestSetOnly,
-//					false,//regularize, 
-//					1,//regularizerIndex, 
-//					false,//rejectIdentity, 
-//					false//visualize
+//				8,//SIFTfdBins, 
+//				4,//SIFTfdSize, 
+//				1.6f,//SIFTinitialSigma, 
+//				1200,//SIFTmaxOctaveSize, 
+//				400,//SIFTminOctaveSize, 
+//				3,//SIFTsteps, 
+//				true,//clearCache, 
+//				maxNumThreads,//maxNumThreadsSift,
+//				0.92f,//rod, 
+//				0,//desiredModelIndex,
+//				0,//expectedModelIndex, 
+//				5.0f,//identityTolerance,
+//				0.1f,//lambda, 
+//				200.0f,////maxEpsilon,
+//				1000,//maxIterationsOptimize,
+//				5,//maxNumFailures,
+//				5,//maxNumNeighbors, 
+//				maxNumThreads,//maxNumThreads, 
+//				200,//maxPlateauwidthOptimize,
+//				0.0f,//minInlierRatio,
+//				20,//minNumInliers,
+//				true,//multipleHypotheses,
+//				false,//widestSetOnly,
+//				false,//regularize, 
+//				1,//regularizerIndex, 
+//				false,//rejectIdentity, 
+//				false//visualize
 //			);		
 //			boolean propagateTransformBefore = false;
 //			boolean propagateTransformAfter = false;
@@ -776,134 +1115,91 @@ public class Automation {
 //			p.visualize = false;
 			
 			JSONObject align2_jo = jo.getJSONObject("alignLayers2");
-			RegularizedAffineLayerAlignment.Param param3 = new RegularizedAffineLayerAlignment.Param(
-					align2_jo.getInt("SIFTfdBins"),//SIFTfdBins, 
-					align2_jo.getInt("SIFTfdSize"),//SIFTfdSize, 
-					(float)align2_jo.getDouble("SIFTinitialSigma"),//SIFTinitialSigma, 
-					align2_jo.getInt("SIFTmaxOctaveSize"),//SIFTmaxOctaveSize, 
-					align2_jo.getInt("SIFTminOctaveSize"),//SIFTminOctaveSize, 
-					align2_jo.getInt("SIFTsteps"),//SIFTsteps, 
-					align2_jo.getBoolean("clearCache"),//clearCache, 
-					maxNumThreads,//maxNumThreadsSift,
-					(float)align2_jo.getDouble("rod"),//rod, 
-					align2_jo.getInt("desiredModelIndex"),//desiredModelIndex,
-					align2_jo.getInt("expectedModelIndex"),//expectedModelIndex, 
-					(float)align2_jo.getDouble("identityTolerance"),//identityTolerance,
-					(float)align2_jo.getDouble("lambda"),//lambda, 
-					(float)align2_jo.getDouble("maxEpsilon"),////maxEpsilon,
-					align2_jo.getInt("maxIterationsOptimize"),//maxIterationsOptimize,
-					align2_jo.getInt("maxNumFailures"),//maxNumFailures,
-					align2_jo.getInt("maxNumNeighbors"),//maxNumNeighbors, 
-					maxNumThreads,//maxNumThreads, 
-					align2_jo.getInt("maxPlateauwidthOptimize"),//maxPlateauwidthOptimize,
-					(float)align2_jo.getDouble("minInlierRatio"),//minInlierRatio,
-					align2_jo.getInt("minNumInliers"),//minNumInliers,
-					align2_jo.getBoolean("multipleHypotheses"),//multipleHypotheses,
-					align2_jo.getBoolean("widestSetOnly"),//widestSetOnly,
-					align2_jo.getBoolean("regularize"),//regularize, 
-					align2_jo.getInt("regularizerIndex"),//regularizerIndex, 
-					align2_jo.getBoolean("rejectIdentity"),//rejectIdentity, 
-					false//visualize
-			);
+			RegularizedAffineLayerAlignment.Param param3 = createLayerAlignmentParam(align2_jo, maxNumThreads);
 //			RegularizedAffineLayerAlignment.Param param3 = new RegularizedAffineLayerAlignment.Param(
-//					8,//SIFTfdBins, 
-//					4,//SIFTfdSize, 
-//					1.6f,//SIFTinitialSigma, 
-//					1200,//SIFTmaxOctaveSize, 
-//					400,//SIFTminOctaveSize, 
-//					3,//SIFTsteps, 
-//					true,//clearCache, 
-//					maxNumThreads,//maxNumThreadsSift,
-//					0.92f,//rod, 
-//					3,//desiredModelIndex,
-//					0,//expectedModelIndex, 
-//					5.0f,//identityTolerance,
-//					0.01f,//lambda, 
-//					200.0f,////maxEpsilon,
-//					1000,//maxIterationsOptimize,
-//					5,//maxNumFailures,
-//					5,//maxNumNeighbors, 
-//					maxNumThreads,//maxNumThreads, 
-//					200,//maxPlateauwidthOptimize,
-//					0.0f,//minInlierRatio,
-//					20,//minNumInliers,
-//					true,//multipleHypotheses,
-//					false,//widestSetOnly,
-//					true,//regularize, 
-//					0,//regularizerIndex, 
-//					false,//rejectIdentity, 
-//					false//visualize
+//				8,//SIFTfdBins, 
+//				4,//SIFTfdSize, 
+//				1.6f,//SIFTinitialSigma, 
+//				1200,//SIFTmaxOctaveSize, 
+//				400,//SIFTminOctaveSize, 
+//				3,//SIFTsteps, 
+//				true,//clearCache, 
+//				maxNumThreads,//maxNumThreadsSift,
+//				0.92f,//rod, 
+//				3,//desiredModelIndex,
+//				0,//expectedModelIndex, 
+//				5.0f,//identityTolerance,
+//				0.01f,//lambda, 
+//				200.0f,////maxEpsilon,
+//				1000,//maxIterationsOptimize,
+//				5,//maxNumFailures,
+//				5,//maxNumNeighbors, 
+//				maxNumThreads,//maxNumThreads, 
+//				200,//maxPlateauwidthOptimize,
+//				0.0f,//minInlierRatio,
+//				20,//minNumInliers,
+//				true,//multipleHypotheses,
+//				false,//widestSetOnly,
+//				true,//regularize, 
+//				0,//regularizerIndex, 
+//				false,//rejectIdentity, 
+//				false//visualize
 //			);
 			
 			JSONObject align3_jo = jo.getJSONObject("alignLayers3");
-			RegularizedAffineLayerAlignment.Param param4 = new RegularizedAffineLayerAlignment.Param(
-					align3_jo.getInt("SIFTfdBins"),//SIFTfdBins, 
-					align3_jo.getInt("SIFTfdSize"),//SIFTfdSize, 
-					(float)align3_jo.getDouble("SIFTinitialSigma"),//SIFTinitialSigma, 
-					align3_jo.getInt("SIFTmaxOctaveSize"),//SIFTmaxOctaveSize, 
-					align3_jo.getInt("SIFTminOctaveSize"),//SIFTminOctaveSize, 
-					align3_jo.getInt("SIFTsteps"),//SIFTsteps, 
-					align3_jo.getBoolean("clearCache"),//clearCache, 
-					maxNumThreads,//maxNumThreadsSift,
-					(float)align3_jo.getDouble("rod"),//rod, 
-					align3_jo.getInt("desiredModelIndex"),//desiredModelIndex,
-					align3_jo.getInt("expectedModelIndex"),//expectedModelIndex, 
-					(float)align3_jo.getDouble("identityTolerance"),//identityTolerance,
-					(float)align3_jo.getDouble("lambda"),//lambda, 
-					(float)align3_jo.getDouble("maxEpsilon"),////maxEpsilon,
-					align3_jo.getInt("maxIterationsOptimize"),//maxIterationsOptimize,
-					align3_jo.getInt("maxNumFailures"),//maxNumFailures,
-					align3_jo.getInt("maxNumNeighbors"),//maxNumNeighbors, 
-					maxNumThreads,//maxNumThreads, 
-					align3_jo.getInt("maxPlateauwidthOptimize"),//maxPlateauwidthOptimize,
-					(float)align3_jo.getDouble("minInlierRatio"),//minInlierRatio,
-					align3_jo.getInt("minNumInliers"),//minNumInliers,
-					align3_jo.getBoolean("multipleHypotheses"),//multipleHypotheses,
-					align3_jo.getBoolean("widestSetOnly"),//widestSetOnly,
-					align3_jo.getBoolean("regularize"),//regularize, 
-					align3_jo.getInt("regularizerIndex"),//regularizerIndex, 
-					align3_jo.getBoolean("rejectIdentity"),//rejectIdentity, 
-					false//visualize
-			);
+			RegularizedAffineLayerAlignment.Param param4 = createLayerAlignmentParam(align3_jo, maxNumThreads);
 //			RegularizedAffineLayerAlignment.Param param4 = new RegularizedAffineLayerAlignment.Param(
-//					8,//SIFTfdBins, 
-//					4,//SIFTfdSize, 
-//					1.6f,//SIFTinitialSigma, 
-//					1200,//SIFTmaxOctaveSize, 
-//					400,//SIFTminOctaveSize, 
-//					3,//SIFTsteps, 
-//					true,//clearCache, 
-//					maxNumThreads,//maxNumThreadsSift,
-//					0.92f,//rod, 
-//					3,//desiredModelIndex,
-//					0,//expectedModelIndex, 
-//					5.0f,//identityTolerance,
-//					0.01f,//lambda, 
-//					50.0f,////maxEpsilon,
-//					1000,//maxIterationsOptimize,
-//					5,//maxNumFailures,
-//					5,//maxNumNeighbors, 
-//					maxNumThreads,//maxNumThreads, 
-//					200,//maxPlateauwidthOptimize,
-//					0.0f,//minInlierRatio,
-//					20,//minNumInliers,
-//					true,//multipleHypotheses,
-//					false,//widestSetOnly,
-//					true,//regularize, 
-//					0,//regularizerIndex, 
-//					false,//rejectIdentity, 
-//					false//visualize
+//				8,//SIFTfdBins, 
+//				4,//SIFTfdSize, 
+//				1.6f,//SIFTinitialSigma, 
+//				1200,//SIFTmaxOctaveSize, 
+//				400,//SIFTminOctaveSize, 
+//				3,//SIFTsteps, 
+//				true,//clearCache, 
+//				maxNumThreads,//maxNumThreadsSift,
+//				0.92f,//rod, 
+//				3,//desiredModelIndex,
+//				0,//expectedModelIndex, 
+//				5.0f,//identityTolerance,
+//				0.01f,//lambda, 
+//				50.0f,////maxEpsilon,
+//				1000,//maxIterationsOptimize,
+//				5,//maxNumFailures,
+//				5,//maxNumNeighbors, 
+//				maxNumThreads,//maxNumThreads, 
+//				200,//maxPlateauwidthOptimize,
+//				0.0f,//minInlierRatio,
+//				20,//minNumInliers,
+//				true,//multipleHypotheses,
+//				false,//widestSetOnly,
+//				true,//regularize, 
+//				0,//regularizerIndex, 
+//				false,//rejectIdentity, 
+//				false//visualize
 //			);
 			
-			String[] extensions = {"lsm", "LSM"};
+			if (pyramid > 1)
+			{
+				//coarse-to-fine, early stages on downsampled mips, final alignment and lens correction at full resolution
+				param = createMontageParam(downsampleOctaves(montage_jo, pyramid));
+				param2 = createLayerAlignmentParam(downsampleOctaves(align_jo, pyramid), maxNumThreads);
+				param3 = createLayerAlignmentParam(downsampleOctaves(align2_jo, pyramid), maxNumThreads);
+			}
+			
+			StageTimer timer = new StageTimer(warmStartPath != null ? "warm" : pyramid > 1 ? "pyramid-" + pyramid : "full");
+			timer.setMemoryBudget(memory);
+			
+			String[] extensions = cmd.getOptionValue("extensions", "lsm,LSM").split(",");
 			
 			//new ImageJ();
 			
 			//read lsm files and generate mip images
+			timer.start("mips");
 			List<String> flist = findFiles(Paths.get(dir_path), extensions);		
 			flist.sort(Comparator.naturalOrder());
 			
 			List<ImagePlus> mips = new ArrayList<ImagePlus>();
+			List<String> mip_names = new ArrayList<String>();
 			for (int i = 0; i < flist.size(); i++) 
 			{
 				String path = flist.get(i);
@@ -916,6 +1212,7 @@ public class Automation {
 					throw new RuntimeException("More than one image was opened, please check the input carefully.");
 
 				final ImagePlus imp = impStack[0];
+				memory.hold("lsm", MemoryBudget.bytes(imp.getStack()));
 
 				System.out.println("dimensions: " + imp.getStack().getProcessor(1).getWidth() + "x"
 						+ imp.getStack().getProcessor(1).getHeight() + ", channels: " + imp.getNChannels()
@@ -925,6 +1222,7 @@ public class Automation {
 				
 				ImagePlus mip_imp = ZMaxProjection(imp);
 				HyperStackConverter.toStack(mip_imp);
+				memory.hold("mips", MemoryBudget.bytes(mip_imp.getStack()));
 				//ImagePlus mip_imp = ZProjector.run(imp, "max");
 				//mip_imp.show();
 				
@@ -939,16 +1237,19 @@ public class Automation {
 					ImageStack dst_stack = prev_mip.getStack();
 					ImageStack src_stack = mip_imp.getStack();
 					for (int j = 1; j <= src_stack.getSize(); j++)
-						dst_stack.addSlice(src_stack.getProcessor(j).duplicate());
+						dst_stack.addSlice(lowMemory ? src_stack.getProcessor(j) : src_stack.getProcessor(j).duplicate());
 					prev_mip.setStack(dst_stack);
-					mip_imp.close();
+					if (!lowMemory)
+						mip_imp.close();
 				}
 				else
 				{
 					mips.add(mip_imp);
+					mip_names.add(fname);
 				}
 				
 				imp.close();
+				memory.release("lsm");
 			}
 			
 			if (mips.size() == 0)
@@ -957,6 +1258,16 @@ public class Automation {
 			int layernum = mips.get(0).getNSlices();
 			int w = mips.get(0).getWidth();
 			int h = mips.get(0).getHeight();
+			
+			//known tile placement, limits matching to neighboring tiles
+			TileLayout layout = null;
+			if (tileConfigurationPath != null)
+				layout = TileLayout.fromTileConfiguration(tileConfigurationPath, mip_names, w, h);
+			else if (tileGrid != null)
+				layout = TileLayout.parseGrid(tileGrid, w, h);
+			if (layout != null && layout.size() != mips.size())
+				throw new RuntimeException("Tile layout has " + layout.size() + " tiles but there are " + mips.size() + " mips.");
+			
 			List<ImageStack> layer_stacks = new ArrayList<ImageStack>();
 			for (int i = 0; i < layernum; i++) 
 				layer_stacks.add(new ImageStack(w, h));
@@ -967,10 +1278,16 @@ public class Automation {
 				ImageStack sstack = mip.getStack();
 				for(int j = 0; j < layernum; j++)
 				{
-					layer_stacks.get(j).addSlice(sstack.getProcessor(j+1).duplicate());
+					layer_stacks.get(j).addSlice(lowMemory ? sstack.getProcessor(j+1) : sstack.getProcessor(j+1).duplicate());
 				}
-				mip.close();
+				if (!lowMemory)
+					mip.close();
 			}
+			//the layer stacks share the pixels of the mips with --memory-budget
+			mips.clear();
+			memory.release("mips");
+			for (ImageStack layer_stack : layer_stacks)
+				memory.hold("layers", MemoryBudget.bytes(layer_stack));
 			
 			List<ImagePlus> layers = new ArrayList<ImagePlus>();
 			for (int i = 0; i < layernum; i++) 
@@ -988,151 +1305,227 @@ public class Automation {
 			int brx = 127;
 			int bry = 127;
 			float stds = 3.0f;
+			boolean saveMips = !inMemory || saveProject;
 			ArrayList<ArrayList<String>> layer_patch_paths = new ArrayList<ArrayList<String>>();
+			ArrayList<ArrayList<ImageProcessor>> layer_ips = new ArrayList<ArrayList<ImageProcessor>>();
 			for (int layer_id = 0; layer_id < layernum; layer_id++) 
 			{
 				ImagePlus layer = layers.get(layer_id);
 				//layer.show();
 				ImageStack sstack = layer.getStack();
 				ArrayList<String> path_list = new ArrayList<String>();
+				ArrayList<ImageProcessor> ip_list = new ArrayList<ImageProcessor>();
+				if (fastNormalize)
+				{
+					ArrayList<ImageProcessor> ips = new ArrayList<ImageProcessor>();
+					for (int i = 1; i <= sstack.getSize(); i++)
+					{
+						ImageProcessor ip = sstack.getProcessor(i);
+						if (verifyNormalize && i == 1)
+						{
+							double[] diff = LocalContrast.verify(ip, brx, bry, stds, true, true);
+							System.out.println(String.format("normalization layer %d: max difference %.2f, mean %.3f, %.4f%% above tolerance %.1f", layer_id, diff[0], diff[1], 100 * diff[2], LocalContrast.TOLERANCE));
+						}
+						ips.add(ip);
+					}
+					LocalContrast.run(ips, brx, bry, stds, true, true);
+				}
 				for (int i = 1; i <= sstack.getSize(); i++)
 				{
-					NormalizeLocalContrast.run(sstack.getProcessor(i), brx, bry, stds, true, true);
-					String fname = String.format("layer_%02d_pos_%02d.tif", layer_id, i);
-					ImagePlus tmp = new ImagePlus(fname, sstack.getProcessor(i).duplicate());
-					FileSaver saver = new FileSaver(tmp);
-					String fpath = strage_dir + File.separator + fname;
-					saver.saveAsTiff(fpath);
-					path_list.add(fpath);
+					if (!fastNormalize)
+						NormalizeLocalContrast.run(sstack.getProcessor(i), brx, bry, stds, true, true);
+					ip_list.add(sstack.getProcessor(i));
+					if (saveMips)
+					{
+						String fname = String.format("layer_%02d_pos_%02d.tif", layer_id, i);
+						ImagePlus tmp = new ImagePlus(fname, lowMemory ? sstack.getProcessor(i) : sstack.getProcessor(i).duplicate());
+						FileSaver saver = new FileSaver(tmp);
+						String fpath = strage_dir + File.separator + fname;
+						saver.saveAsTiff(fpath);
+						path_list.add(fpath);
+					}
 				}
 				layer.updateAndDraw();
 				layer_patch_paths.add(path_list);
+				layer_ips.add(ip_list);
+			}
+			
+			if (inMemory)
+			{
+				/* lens models and layer alignment without TrakEM2 */
+				timer.start("calibration");
+				InMemoryCalibration calibration = new InMemoryCalibration(montage_jo, align3_jo, beads ? bead_jo : null, bead_jo, p.dimension);
+				if (warmStartPath != null)
+				{
+					ArrayList<CoordinateTransform> lensModels = WarmStart.loadLensModels(warmStartPath);
+					if (lensModels.size() != layernum)
+						System.out.println("warm start: " + lensModels.size() + " lens models for " + layernum + " layers, running full calibration.");
+					else
+						calibration.setWarmStart(lensModels, warm_jo, maxResidual);
+				}
+				ArrayList<CoordinateTransformList<CoordinateTransform>> models = calibration.run(layer_ips, layout);
+				
+				timer.start("export");
+				if (saveProject)
+					saveCalibratedProject(strage_dir, strage_dir + File.separator + pname + "_trakem_proj.xml", layer_patch_paths, models, calibration);
+				exportModels(models, scope, sample, outdir, pname);
+				
+				timer.stop();
+				timer.save(outdir + File.separator + pname + "_timing.json");
+				timer.report(System.out, timingReferencePath);
+				if (lowMemory)
+				{
+					memory.save(outdir + File.separator + pname + "_memory.json");
+					memory.report(System.out);
+				}
+				
+				System.out.println("Done");
+				System.exit(0);
 			}
 			
 			
+			//TrakEM2 reads the mips from disk
+			layers.clear();
+			layer_stacks.clear();
+			layer_ips.clear();
+			memory.release("layers");
+			
 			//create a new trakem project.
+			timer.start("project");
 			ControlWindow.setGUIEnabled(false);
 			
 			Project project = Project.newFSProject("blank", null, strage_dir);
+			if (lowMemory)
+				memory.addReleaser(() -> project.getLoader().releaseAll());
 			LayerSet layerset = project.getRootLayerSet();
 			for (int i = 0; i < layernum; i++)
 				  layerset.getLayer(i, 1, true);
 			project.getLayerTree().updateList(layerset);
 			Display.updateLayerScroller(layerset);
 			
+			ArrayList<ArrayList<Patch>> layer_tiles = new ArrayList<ArrayList<Patch>>();
 			for (int i = 0; i < layernum; i++)
 			{
 				Layer layer = layerset.getLayer(i);
 				ArrayList<String> path_list = layer_patch_paths.get(i);
+				ArrayList<Patch> tiles = new ArrayList<Patch>();
 				for (int s = 0; s < path_list.size(); s++)
 				{
 					Patch patch = Patch.createPatch(project, path_list.get(s));
+					if (layout != null)
+						patch.setLocation(layout.getX(s), layout.getY(s));
 					layer.add(patch);
+					tiles.add(patch);
 				}
 				layer.recreateBuckets();
+				layer_tiles.add(tiles);
 			}
 			
-			//montage all layers. least square, translation.
-			AlignTask.montageLayers(param, layerset.getLayers(), true, true, true, false, true);
-			
-			
-			//Align layers. (least square)
-			boolean propagateTransformBefore = false;
-			boolean propagateTransformAfter = false;
-			
-			Rectangle box = null;
-			HashSet< Layer > emptyLayers = new HashSet< Layer >();
-			for ( final Iterator< Layer > it = layerset.getLayers().iterator(); it.hasNext(); )
-			{
-				/* remove empty layers */
-				final Layer la = it.next();
-				if ( !la.contains( Patch.class, true ) )
-				{
-					emptyLayers.add( la );
-//					it.remove();
-				}
-				else
-				{
-					/* accumulate boxes */
-					if ( null == box ) // The first layer:
-						box = la.getMinimalBoundingBox( Patch.class, true );
-					else
-						box = box.union( la.getMinimalBoundingBox( Patch.class, true ) );
-				}
-			}
-			
-			new RegularizedAffineLayerAlignment().exec(param2, layerset.getLayers(), new HashSet<Layer>(), emptyLayers, box, propagateTransformBefore, propagateTransformAfter, null);
-			
-			
-			//Auto resize canvas
-			layerset.setMinimumDimensions();
-			
-			
-			//Lens correction (All layers)
-			for (int i = 0; i < layernum; i++)
-			{
-				p.firstLayerIndex = i;
-				p.lastLayerIndex = i;
-				final Layer layer = layerset.getLayer(i);
-				ArrayList<Patch> patches = layer.getPatches(true);
-				if (patches.size() > 0)
-					DistortionCorrectionTask.run(p, patches, patches.get(0), layer);
-			}
-			
-			
-			//Align layers. least square	
-			propagateTransformBefore = false;
-			propagateTransformAfter = false;
-			
-			box = null;
-			emptyLayers = new HashSet< Layer >();
-			for ( final Iterator< Layer > it = layerset.getLayers().iterator(); it.hasNext(); )
+			boolean warm = false;
+			if (warmStartPath != null)
 			{
-				/* remove empty layers */
-				final Layer la = it.next();
-				if ( !la.contains( Patch.class, true ) )
-				{
-					emptyLayers.add( la );
-				}
+				/* seed all patches with the previous lens models, then refine with tight search ranges */
+				ArrayList<CoordinateTransform> lensModels = WarmStart.loadLensModels(warmStartPath);
+				if (lensModels.size() != layernum)
+					System.out.println("warm start: " + lensModels.size() + " lens models for " + layernum + " layers, running full calibration.");
 				else
 				{
-					/* accumulate boxes */
-					if ( null == box ) // The first layer:
-						box = la.getMinimalBoundingBox( Patch.class, true );
+					WarmStart.seed(layerset, lensModels);
+					timer.start("montage");
+					AlignTask.montageLayers(createMontageParam(WarmStart.tighten(montage_jo, warm_jo)), layerset.getLayers(), true, true, true, false, true);
+					
+					timer.start("residual");
+					double maxMean = 0;
+					ArrayList<ArrayList<int[]>> layer_pairs = new ArrayList<ArrayList<int[]>>();
+					ArrayList<ArrayList<ArrayList<PointMatch>>> layer_matches = new ArrayList<ArrayList<ArrayList<PointMatch>>>();
+					for (int i = 0; i < layernum; i++)
+					{
+						ArrayList<Patch> tiles = layer_tiles.get(i);
+						ArrayList<int[]> pairs = tilePairs(tiles, layout);
+						ArrayList<ArrayList<PointMatch>> matches = WarmStart.matches(tiles, pairs, layout, p.sift, p.rod, p.maxEpsilon, p.minNumInliers);
+						double[] residual = WarmStart.residual(tiles, pairs, matches);
+						System.out.println(String.format("warm start: layer %d residual mean %.3fpx, max %.3fpx, %d matches", i, residual[0], residual[1], (int)residual[2]));
+						maxMean = Math.max(maxMean, residual[0]);
+						layer_pairs.add(pairs);
+						layer_matches.add(matches);
+					}
+					warm = maxMean <= maxResidual;
+					if (!warm)
+					{
+						System.out.println("warm start: residual exceeds " + maxResidual + "px, running full calibration.");
+						WarmStart.reset(layer_tiles, layout);
+					}
 					else
-						box = box.union( la.getMinimalBoundingBox( Patch.class, true ) );
+					{
+						/* refine the previous lens models from the same correspondences */
+						timer.start("refine");
+						for (int i = 0; i < layernum; i++)
+						{
+							ArrayList<Patch> tiles = layer_tiles.get(i);
+							LensModelFit fit = LensModelFit.refine(
+									lensModels.get(i),
+									tiles.size(),
+									layer_pairs.get(i),
+									layer_matches.get(i),
+									p.dimension,
+									w,
+									h,
+									warm_jo.getDouble("lambda"),
+									warm_jo.getDouble("meanFactor"),
+									warm_jo.getInt("iterations"));
+							setLensModel(tiles, fit);
+							System.out.println("warm start: refined lens model layer " + i + ": " + fit);
+						}
+						
+						timer.start("alignLayers3");
+						alignLayers(layerset, createLayerAlignmentParam(WarmStart.tighten(align3_jo, warm_jo), maxNumThreads));
+						layerset.setMinimumDimensions();
+					}
 				}
 			}
 			
-			new RegularizedAffineLayerAlignment().exec(param3, layerset.getLayers(), new HashSet<Layer>(), emptyLayers, box, propagateTransformBefore, propagateTransformAfter, null);
-			
-			
-			//Align layers. least square		
-			propagateTransformBefore = false;
-			propagateTransformAfter = false;
-			
-			box = null;
-			emptyLayers = new HashSet< Layer >();
-			for ( final Iterator< Layer > it = layerset.getLayers().iterator(); it.hasNext(); )
+			if (!warm)
 			{
-				/* remove empty layers */
-				final Layer la = it.next();
-				if ( !la.contains( Patch.class, true ) )
-				{
-					emptyLayers.add( la );
-				}
-				else
+				//montage all layers. least square, translation.
+				timer.start("montage");
+				AlignTask.montageLayers(param, layerset.getLayers(), true, true, true, false, true);
+				
+				//Align layers. (least square)
+				timer.start("alignLayers");
+				alignLayers(layerset, param2);
+				
+				//Auto resize canvas
+				layerset.setMinimumDimensions();
+				
+				//Lens correction (All layers)
+				timer.start("correctDistortion");
+				for (int i = 0; i < layernum; i++)
 				{
-					/* accumulate boxes */
-					if ( null == box ) // The first layer:
-						box = la.getMinimalBoundingBox( Patch.class, true );
-					else
-						box = box.union( la.getMinimalBoundingBox( Patch.class, true ) );
+					if (beads)
+					{
+						LensModelFit fit = correctDistortionFromBeads(layer_tiles.get(i), layout, bead_jo, p.dimension, w, h);
+						System.out.println("bead lens model layer " + i + ": " + fit);
+						continue;
+					}
+					p.firstLayerIndex = i;
+					p.lastLayerIndex = i;
+					final Layer layer = layerset.getLayer(i);
+					ArrayList<Patch> patches = layer.getPatches(true);
+					if (patches.size() > 0)
+						DistortionCorrectionTask.run(p, patches, patches.get(0), layer);
 				}
+				
+				//Align layers. least square
+				timer.start("alignLayers2");
+				alignLayers(layerset, param3);
+				
+				//Align layers. least square
+				timer.start("alignLayers3");
+				alignLayers(layerset, param4);
 			}
 			
-			new RegularizedAffineLayerAlignment().exec(param4, layerset.getLayers(), new HashSet<Layer>(), emptyLayers, box, propagateTransformBefore, propagateTransformAfter, null);
 			
+			timer.start("export");
 			
 			//save trakem project
 			project.saveAs(strage_dir + File.separator + pname + "_trakem_proj.xml", true);
@@ -1142,8 +1535,6 @@ public class Automation {
 			//LayerSet layerset = project.getRootLayerSet();
 			
 			//output coordinate transform
-			Gson gson = new GsonBuilder().setPrettyPrinting().create();
-
 			layerset.setMinimumDimensions();
 
 			Rectangle topLeftBox = new Rectangle(100, 100);
@@ -1164,7 +1555,7 @@ public class Automation {
 			AffineModel2D affineModel = new AffineModel2D();
 			affineModel.set(model.createAffine());
 
-			ArrayList<HashMap<String, Object>> transformExports = new ArrayList<HashMap<String, Object>>();
+			ArrayList<CoordinateTransformList<CoordinateTransform>> models = new ArrayList<CoordinateTransformList<CoordinateTransform>>();
 			for (int i = 0; i < patches.size(); ++i) {
 				Patch patch = patches.get(i);
 				@SuppressWarnings("unchecked")
@@ -1172,97 +1563,21 @@ public class Automation {
 				List<CoordinateTransform> cts = ctl.getList(null);
 				AffineModel2D affine = (AffineModel2D) cts.get(1);
 				affine.preConcatenate(affineModel);
-				List<HashMap<String, String>> maplist = new ArrayList<HashMap<String, String>>();
-				maplist.add(exportTransform(ctl.get(0)));
-				maplist.add(exportTransform(ctl.get(1)));
-				HashMap<String, Object> export = exportTransform(
-					String.format(format, scope, sample, lambdas[i]), maplist);
-				transformExports.add(export);
+				models.add(ctl);
 			}
 			
-			String result_jsontxt = gson.toJson(transformExports);
-			String jsonpath = outdir + File.separator + pname + ".json";
-			Files.write(Paths.get(jsonpath), result_jsontxt.getBytes());
-			System.out.println(result_jsontxt);
+			exportModels(models, scope, sample, outdir, pname);
 			
-			
-			//compare lenses
-			ArrayList<ArrayList<String>> tr_lists = new ArrayList<ArrayList<String>>();
-			ArrayList<String> temp_id_list = new ArrayList<String>();
-			temp_id_list.add("Identity");
-			temp_id_list.add("mpicbg.trakem2.transform.AffineModel2D");
-			temp_id_list.add("1.0 0.0 0.0 1.0 0.0 0.0");
-			tr_lists.add(temp_id_list);
-			for (int i = 0; i < patches.size(); ++i) {
-				Patch patch = patches.get(i);
-				@SuppressWarnings("unchecked")
-				final CoordinateTransformList< CoordinateTransform > ctl = (CoordinateTransformList< CoordinateTransform >) patch.getFullCoordinateTransform();
-				List<CoordinateTransform> cts = ctl.getList(null);
-				AffineModel2D affine = (AffineModel2D) cts.get(1);
-				affine.preConcatenate(affineModel);
-				ArrayList<String> templist = new ArrayList<String>();
-				String label = String.format(format, scope, sample, lambdas[i]);
-				String classname1 = ctl.get(0).getClass().getName();
-				String ctstr1 = ctl.get(0).toDataString();
-				String classname2 = ctl.get(1).getClass().getName();
-				String ctstr2 = ctl.get(1).toDataString();
-				templist.add(label);
-				templist.add(classname1);
-				templist.add(ctstr1);
-				templist.add(classname2);
-				templist.add(ctstr2);
-				tr_lists.add(templist);
-			}
-			String[][] transforms = new String[tr_lists.size()][];
-			String[] blankArray = new String[0];
-			for(int i = 0; i < tr_lists.size(); i++) {
-				transforms[i] = tr_lists.get(i).toArray(blankArray);
-			}
-			
-			int iw = 256;
-			int ih = 256;
-			double max = 5;
-			int pWidth = 1024;
-			int pHeight = 1024;
-
-			int ySkip = 4;
-			int xSkip = 4;
-			
-			ImagePlus impVectors = showDifferenceVectors(transforms, pWidth, pHeight, iw, ih, xSkip, ySkip, max);
-			ImagePlus impDists = showDifferenceVectorDistributions(transforms, pWidth, pHeight, iw, ih, xSkip, ySkip, max);
-
-			impDists.setDisplayRange(0, 32);
-			Thread.sleep(1000);
-			impDists.setLut(createFireLUT(32.0));
-			Thread.sleep(1000);
-			new ImageConverter(impDists).convertToRGB();
-			Thread.sleep(1000);
-			impDists.getProcessor().snapshot();
-			
-//			{
-//				FileSaver saver = new FileSaver(impDists);
-//				saver.saveAsTiff(outdir + File.separator + pname + "_dists" + ".tif");
-//				FileSaver saver2 = new FileSaver(impVectors);
-//				saver2.saveAsTiff(outdir + File.separator + pname + "_vectors" + ".tif");
-//			}
-			
-			ColorProcessor ip_src = (ColorProcessor)impVectors.getProcessor();
-			ColorProcessor ip_dst = (ColorProcessor)impDists.getProcessor();
-			
-			for(int y = 0; y < ip_src.getHeight(); y++) {
-				for(int x = y; x < ip_src.getWidth(); x++) {
-					ip_dst.set(x, y, ip_src.get(x, y));
-				}
+
+			timer.stop();
+			timer.save(outdir + File.separator + pname + "_timing.json");
+			timer.report(System.out, timingReferencePath);
+			if (lowMemory)
+			{
+				memory.save(outdir + File.separator + pname + "_memory.json");
+				memory.report(System.out);
 			}
 			
-			drawCircles((ColorProcessor)impDists.getProcessor(), transforms, iw, ih, xSkip, ySkip, max);
-			drawLabels(impDists, 26, transforms, iw, ih, xSkip, ySkip);
-			
-			FileSaver saver = new FileSaver(impDists);
-			String compare_path = outdir + File.separator + pname + "_compare_lenses" + ".tif";
-			saver.saveAsTiff(compare_path);
-			
-
 			System.out.println("Done");
 			System.exit(0);
 			
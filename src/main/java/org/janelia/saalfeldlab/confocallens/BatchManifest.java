@@ -0,0 +1,310 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+import mpicbg.models.CoordinateTransform;
+
+/**
+ * Records which outputs of a batch run are done and what they were made
+ * from, such that a rerun only processes new or changed inputs.  The
+ * manifest is a JSON file in the output directory that maps each output
+ * file name to the size, modification time and SHA-256 hash of its input,
+ * a checksum of the model, the crop width and the code version.
+ *
+ * An output is up to date if it exists and model, crop width and code
+ * version match.  If size and modification time of the input match too,
+ * the input is not read.  If only the modification time differs, e.g.
+ * after a copy, the input is hashed and the output is still up to date if
+ * the content did not change.  The manifest is rewritten atomically after
+ * every recorded output, so an interrupted run keeps what it finished.
+ * Threads can share a manifest, inputs are hashed outside of its lock.
+ * Processes that write into the same output directory each open their own
+ * manifest, {@link #save()} merges the records of the others under a file
+ * lock.
+ *
+ * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
+ */
+public class BatchManifest {
+
+	final static public String FILE_NAME = "lens-correction-manifest.json";
+	final static public String LOCK_FILE_NAME = FILE_NAME + ".lock";
+
+	/**
+	 * Project version and <code>git describe</code> of the build, from
+	 * version.properties that Maven fills in.  Builds from a modified
+	 * working tree or outside of git add the build time, such that every
+	 * such build reprocesses.  "dev" when running from unfiltered classes.
+	 */
+	final static public String CODE_VERSION = codeVersion();
+
+	final static protected String property(final Properties properties, final String key) {
+		final String value = properties.getProperty(key, "");
+		return value.contains("${") ? "" : value;
+	}
+
+	final static protected String codeVersion() {
+		final Properties properties = new Properties();
+		try (final InputStream in = BatchManifest.class.getResourceAsStream("version.properties")) {
+			if (in != null)
+				properties.load(in);
+		} catch (final IOException e) {
+			return "dev";
+		}
+		final String version = property(properties, "version");
+		if (version.isEmpty())
+			return "dev";
+		final String build = property(properties, "build");
+		final String timestamp = property(properties, "timestamp");
+		String codeVersion = version;
+		if (!build.isEmpty())
+			codeVersion += "-" + build;
+		if ((build.isEmpty() || build.endsWith("-dirty")) && !timestamp.isEmpty())
+			codeVersion += "-" + timestamp;
+		return codeVersion;
+	}
+
+	static public class Entry {
+
+		public String input;
+		public long size;
+		public long modified;
+		public String hash;
+		public String model;
+		public int crop;
+		public String version;
+	}
+
+	final protected Path path;
+	final protected TreeMap<String, Entry> entries = new TreeMap<>();
+
+	/* outputs recorded or updated by this process since the last save,
+	 * they replace the records on disk, all others are taken from disk */
+	final protected HashSet<String> changed = new HashSet<>();
+
+	/* input hashes computed during this run by input path, size and
+	 * modification time, such that an input that was hashed for the up to
+	 * date check is not hashed again when recording its output */
+	final protected ConcurrentHashMap<String, String> hashes = new ConcurrentHashMap<>();
+
+	/**
+	 * Open the manifest of <code>outDirStr</code>, an empty manifest if it
+	 * does not exist yet.
+	 *
+	 * @throws IOException if an existing manifest cannot be read
+	 */
+	public BatchManifest(final String outDirStr) throws IOException {
+		path = Paths.get(outDirStr, FILE_NAME);
+		entries.putAll(read(path));
+	}
+
+	/**
+	 * The entries of a manifest file, empty if it does not exist.
+	 */
+	final static protected Map<String, Entry> read(final Path path) throws IOException {
+		if (!Files.exists(path))
+			return Collections.emptyMap();
+		final Map<String, Entry> loaded;
+		try {
+			loaded = new Gson().fromJson(
+					new String(Files.readAllBytes(path), StandardCharsets.UTF_8),
+					new TypeToken<TreeMap<String, Entry>>() {}.getType());
+		} catch (final JsonParseException e) {
+			throw new IOException("Cannot parse manifest " + path + ": " + e.getMessage(), e);
+		}
+		return loaded == null ? Collections.emptyMap() : loaded;
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	synchronized public Entry get(final String outputName) {
+		return entries.get(outputName);
+	}
+
+	final static protected MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (final NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	final static protected String toHex(final byte[] digest) {
+		final StringBuilder hex = new StringBuilder(digest.length * 2);
+		for (final byte b : digest)
+			hex.append(String.format("%02x", b & 0xff));
+		return hex.toString();
+	}
+
+	/**
+	 * SHA-256 of the content of a file.
+	 */
+	final static public String hash(final Path file) throws IOException {
+		final MessageDigest digest = sha256();
+		final byte[] buffer = new byte[1 << 20];
+		try (final InputStream in = Files.newInputStream(file)) {
+			for (int n = in.read(buffer); n >= 0; n = in.read(buffer))
+				digest.update(buffer, 0, n);
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * SHA-256 of a model.  TrakEM2 transforms are hashed by their data
+	 * string, everything else by its serialized form.
+	 */
+	final static public String modelChecksum(final CoordinateTransform t) {
+		final MessageDigest digest = sha256();
+		digest.update(t.getClass().getName().getBytes(StandardCharsets.UTF_8));
+		if (t instanceof mpicbg.trakem2.transform.CoordinateTransform)
+			digest.update(((mpicbg.trakem2.transform.CoordinateTransform)t).toDataString().getBytes(StandardCharsets.UTF_8));
+		else {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (final ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+				out.writeObject(t);
+			} catch (final IOException e) {
+				throw new IllegalArgumentException("Cannot checksum model " + t.getClass().getName() + ": " + e.getMessage(), e);
+			}
+			digest.update(bytes.toByteArray());
+		}
+		return toHex(digest.digest());
+	}
+
+	protected String hashInput(final Path input) throws IOException {
+		final String key = input.toAbsolutePath() + "|" + Files.size(input) + "|" + Files.getLastModifiedTime(input).toMillis();
+		String h = hashes.get(key);
+		if (h == null) {
+			h = hash(input);
+			hashes.put(key, h);
+		}
+		return h;
+	}
+
+	/**
+	 * @param inputPath
+	 * @param outDirStr the output directory
+	 * @param outputName output file name relative to <code>outDirStr</code>
+	 * @param model checksum of the model, see {@link #modelChecksum(CoordinateTransform)}
+	 * @param cropWidth
+	 * @return true if the output exists and was made from the same input
+	 *     content with the same model, crop width and code version
+	 * @throws IOException
+	 */
+	public boolean isUpToDate(
+			final String inputPath,
+			final String outDirStr,
+			final String outputName,
+			final String model,
+			final int cropWidth) throws IOException {
+		final Entry entry = get(outputName);
+		if (entry == null ||
+				!Files.exists(Paths.get(outDirStr, outputName)) ||
+				!model.equals(entry.model) ||
+				cropWidth != entry.crop ||
+				!CODE_VERSION.equals(entry.version))
+			return false;
+		final Path input = Paths.get(inputPath);
+		if (!Files.exists(input) || Files.size(input) != entry.size)
+			return false;
+		final long modified = Files.getLastModifiedTime(input).toMillis();
+		if (modified == entry.modified)
+			return true;
+		if (!hashInput(input).equals(entry.hash))
+			return false;
+		synchronized (this) {
+			entry.modified = modified;
+			changed.add(outputName);
+			save();
+		}
+		return true;
+	}
+
+	/**
+	 * Record that <code>outputName</code> was made from
+	 * <code>inputPath</code> and save the manifest.
+	 */
+	public void record(
+			final String inputPath,
+			final String outputName,
+			final String model,
+			final int cropWidth) throws IOException {
+		final Path input = Paths.get(inputPath);
+		final Entry entry = new Entry();
+		entry.input = input.toAbsolutePath().toString();
+		entry.size = Files.size(input);
+		entry.modified = Files.getLastModifiedTime(input).toMillis();
+		entry.hash = hashInput(input);
+		entry.model = model;
+		entry.crop = cropWidth;
+		entry.version = CODE_VERSION;
+		synchronized (this) {
+			entries.put(outputName, entry);
+			changed.add(outputName);
+			save();
+		}
+	}
+
+	/**
+	 * Merge the records that other processes saved since, write the
+	 * manifest to a temporary file and move it in place, all under a lock
+	 * of {@link #LOCK_FILE_NAME}.
+	 */
+	synchronized public void save() throws IOException {
+		final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+		final Path tmp = path.resolveSibling(FILE_NAME + ".tmp");
+		try (
+				final FileChannel channel = FileChannel.open(
+						path.resolveSibling(LOCK_FILE_NAME),
+						StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE);
+				final FileLock lock = channel.lock()) {
+			for (final Map.Entry<String, Entry> saved : read(path).entrySet())
+				if (!changed.contains(saved.getKey()))
+					entries.put(saved.getKey(), saved.getValue());
+			Files.write(tmp, gson.toJson(entries).getBytes(StandardCharsets.UTF_8));
+			Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			changed.clear();
+		}
+	}
+}
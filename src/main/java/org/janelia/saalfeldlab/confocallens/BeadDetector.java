@@ -0,0 +1,277 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import ij.process.ImageProcessor;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.TranslationModel2D;
+
+/**
+ * Detection and matching of fluorescent beads as a cheap and precise
+ * alternative to SIFT for calibration samples.
+ *
+ * Beads are local maxima of a Difference of Gaussian response computed
+ * with separable convolutions, localized with sub-pixel accuracy by a
+ * quadratic fit to the 3&times;3 neighborhood.  Beads of two tiles are
+ * matched by a descriptor made of the relative positions of their nearest
+ * neighbors, which is invariant to the translation between tiles.  To be
+ * robust to a missing neighbor, every bead has one more neighbor than the
+ * descriptor uses and all subsets are compared.  Candidates are filtered
+ * with RANSAC for a translation.
+ *
+ * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
+ */
+public class BeadDetector {
+
+	final static public double K = 1.6;
+
+	final protected double sigma;
+	final protected double threshold;
+
+	/**
+	 * @param sigma approximate standard deviation of a bead in px
+	 * @param threshold minimal DoG response relative to the strongest
+	 *   response in the image
+	 */
+	public BeadDetector(final double sigma, final double threshold) {
+		this.sigma = sigma;
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Detect beads.
+	 *
+	 * @param ip
+	 * @return {x, y, DoG response} per bead
+	 */
+	public ArrayList<double[]> detect(final ImageProcessor ip) {
+		final int w = ip.getWidth();
+		final int h = ip.getHeight();
+		final float[] src = (float[])ip.convertToFloatProcessor().getPixels();
+		final float[] g1 = blur(src, w, h, sigma);
+		final float[] g2 = blur(src, w, h, sigma * K);
+		float max = 0;
+		for (int i = 0; i < g1.length; ++i) {
+			g1[i] -= g2[i];
+			max = Math.max(max, g1[i]);
+		}
+		final float minResponse = (float)(threshold * max);
+		final float[] dog = g1;
+
+		final ArrayList<double[]> beads = new ArrayList<double[]>();
+		for (int y = 1; y < h - 1; ++y) {
+			for (int x = 1, i = y * w + 1; x < w - 1; ++x, ++i) {
+				final float v = dog[i];
+				if (v < minResponse || !isMaximum(dog, i, w, v))
+					continue;
+
+				final double dx = 0.5 * (dog[i + 1] - dog[i - 1]);
+				final double dy = 0.5 * (dog[i + w] - dog[i - w]);
+				final double dxx = dog[i + 1] - 2 * v + dog[i - 1];
+				final double dyy = dog[i + w] - 2 * v + dog[i - w];
+				final double dxy = 0.25 * (dog[i + w + 1] - dog[i + w - 1] - dog[i - w + 1] + dog[i - w - 1]);
+				final double det = dxx * dyy - dxy * dxy;
+				if (det <= 0)
+					continue;
+				final double ox = (-dyy * dx + dxy * dy) / det;
+				final double oy = (dxy * dx - dxx * dy) / det;
+				if (Math.abs(ox) > 1 || Math.abs(oy) > 1)
+					continue;
+				beads.add(new double[] {x + ox, y + oy, v + 0.5 * (dx * ox + dy * oy)});
+			}
+		}
+		return beads;
+	}
+
+	final static private boolean isMaximum(final float[] dog, final int i, final int w, final float v) {
+		return
+				v > dog[i - w - 1] && v > dog[i - w] && v > dog[i - w + 1] &&
+				v > dog[i - 1] && v >= dog[i + 1] &&
+				v >= dog[i + w - 1] && v >= dog[i + w] && v >= dog[i + w + 1];
+	}
+
+	/**
+	 * Separable Gaussian convolution with the border extended, rows and
+	 * columns in parallel.
+	 */
+	final static public float[] blur(final float[] src, final int w, final int h, final double sigma) {
+		final int r = (int)Math.ceil(3 * sigma);
+		final float[] kernel = new float[2 * r + 1];
+		double sum = 0;
+		for (int k = -r; k <= r; ++k)
+			sum += kernel[k + r] = (float)Math.exp(-0.5 * k * k / (sigma * sigma));
+		for (int k = 0; k < kernel.length; ++k)
+			kernel[k] /= sum;
+
+		final float[] tmp = new float[src.length];
+		final float[] dst = new float[src.length];
+		IntStream.range(0, h).parallel().forEach(y -> {
+			final int row = y * w;
+			for (int x = 0; x < w; ++x) {
+				float v = 0;
+				for (int k = -r; k <= r; ++k)
+					v += kernel[k + r] * src[row + Math.min(w - 1, Math.max(0, x + k))];
+				tmp[row + x] = v;
+			}
+		});
+		IntStream.range(0, w).parallel().forEach(x -> {
+			for (int y = 0; y < h; ++y) {
+				float v = 0;
+				for (int k = -r; k <= r; ++k)
+					v += kernel[k + r] * tmp[Math.min(h - 1, Math.max(0, y + k)) * w + x];
+				dst[y * w + x] = v;
+			}
+		});
+		return dst;
+	}
+
+	/**
+	 * Descriptors of all beads: for each of the <code>numNeighbors + 1</code>
+	 * nearest neighbors left out, the relative positions of the remaining
+	 * <code>numNeighbors</code> neighbors, ordered by distance.
+	 */
+	final static protected double[][][] describe(final List<double[]> beads, final int numNeighbors) {
+		final int n = beads.size();
+		final int m = numNeighbors + 1;
+		final double[][][] descriptors = new double[n][][];
+		IntStream.range(0, n).parallel().forEach(i -> {
+			final double[] b = beads.get(i);
+
+			/* m nearest neighbors by insertion */
+			final int[] order = new int[m];
+			final double[] d = new double[m];
+			Arrays.fill(d, Double.MAX_VALUE);
+			for (int j = 0; j < n; ++j) {
+				if (j == i)
+					continue;
+				final double[] c = beads.get(j);
+				final double dj = (c[0] - b[0]) * (c[0] - b[0]) + (c[1] - b[1]) * (c[1] - b[1]);
+				if (dj >= d[m - 1])
+					continue;
+				int k = m - 1;
+				for (; k > 0 && d[k - 1] > dj; --k) {
+					d[k] = d[k - 1];
+					order[k] = order[k - 1];
+				}
+				d[k] = dj;
+				order[k] = j;
+			}
+			final double[][] subsets = new double[m][2 * numNeighbors];
+			for (int s = 0; s < m; ++s) {
+				for (int k = 0, l = 0; k < m; ++k) {
+					if (k == s)
+						continue;
+					final double[] c = beads.get(order[k]);
+					subsets[s][l++] = c[0] - b[0];
+					subsets[s][l++] = c[1] - b[1];
+				}
+			}
+			descriptors[i] = subsets;
+		});
+		return descriptors;
+	}
+
+	final static private double distance(final double[][] a, final double[][] b) {
+		double min = Double.MAX_VALUE;
+		for (final double[] da : a) {
+			for (final double[] db : b) {
+				double sum = 0;
+				for (int k = 0; k < da.length; ++k) {
+					final double d = da[k] - db[k];
+					sum += d * d;
+				}
+				min = Math.min(min, sum);
+			}
+		}
+		return Math.sqrt(min);
+	}
+
+	/**
+	 * Candidate matches of beads of two tiles: every bead of the first
+	 * tile is matched to the bead of the second tile with the most similar
+	 * descriptor if that is more similar than <code>rod</code> times the
+	 * second most similar.
+	 */
+	final static public ArrayList<PointMatch> matchCandidates(
+			final List<double[]> beads1,
+			final List<double[]> beads2,
+			final int numNeighbors,
+			final double rod) {
+
+		final ArrayList<PointMatch> candidates = new ArrayList<PointMatch>();
+		if (beads1.size() <= numNeighbors + 1 || beads2.size() <= numNeighbors + 1)
+			return candidates;
+
+		final double[][][] d1 = describe(beads1, numNeighbors);
+		final double[][][] d2 = describe(beads2, numNeighbors);
+		final int[] best = new int[d1.length];
+		IntStream.range(0, d1.length).parallel().forEach(i -> {
+			double first = Double.MAX_VALUE, second = Double.MAX_VALUE;
+			int j1 = -1;
+			for (int j = 0; j < d2.length; ++j) {
+				final double d = distance(d1[i], d2[j]);
+				if (d < first) {
+					second = first;
+					first = d;
+					j1 = j;
+				} else if (d < second)
+					second = d;
+			}
+			best[i] = first < rod * second ? j1 : -1;
+		});
+		for (int i = 0; i < best.length; ++i) {
+			if (best[i] >= 0) {
+				final double[] b1 = beads1.get(i);
+				final double[] b2 = beads2.get(best[i]);
+				candidates.add(new PointMatch(new Point(new double[] {b1[0], b1[1]}), new Point(new double[] {b2[0], b2[1]})));
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * Matches of beads of two tiles that are consistent with a
+	 * translation.
+	 *
+	 * @return inliers, empty if there are not enough
+	 */
+	final static public ArrayList<PointMatch> match(
+			final List<double[]> beads1,
+			final List<double[]> beads2,
+			final int numNeighbors,
+			final double rod,
+			final double maxEpsilon,
+			final int minNumInliers) {
+
+		final ArrayList<PointMatch> candidates = matchCandidates(beads1, beads2, numNeighbors, rod);
+		final ArrayList<PointMatch> inliers = new ArrayList<PointMatch>();
+		try {
+			if (!new TranslationModel2D().filterRansac(candidates, inliers, 1000, maxEpsilon, 0, minNumInliers))
+				inliers.clear();
+		} catch (final NotEnoughDataPointsException e) {
+			inliers.clear();
+		}
+		return inliers;
+	}
+}
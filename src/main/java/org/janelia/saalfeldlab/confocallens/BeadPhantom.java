@@ -0,0 +1,388 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+import mpicbg.models.CoordinateTransform;
+
+/**
+ * Synthetic bead sample for profiling and validating the calibration
+ * without a confocal session.  A field of Gaussian beads is imaged by a
+ * row-major grid of tiles in all wavelengths of {@link Automation}, each
+ * wavelength distorted by a known lens model, e.g. from
+ * <code>scripts/scope1.json</code>.  Every tile is saved like an
+ * acquisition in two passes, <code>&lt;tile&gt;_pass1.tif</code> with
+ * the channels 488nm and 594nm, and <code>&lt;tile&gt;_pass2.tif</code>
+ * with 488nm, 561nm and 647nm, as ImageJ hyperstacks of 16-bit z-slices
+ * that {@link Automation} opens with <code>--extensions tif</code>.
+ *
+ * A raw pixel p of tile i in wavelength l shows the bead field at
+ * t_l(p) + o_i where t_l is the lens model and o_i the position of the
+ * tile in the grid.  The lens models are saved as
+ * <code>truth.json</code> in the export format of {@link Automation}, the
+ * grid and rendering parameters as <code>phantom.json</code>.
+ *
+ * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
+ */
+public class BeadPhantom {
+
+	final static public String TRUTH = "truth.json";
+	final static public String PARAMETERS = "phantom.json";
+	final static public String DEFAULT_PREFIX = "scope 1, bead sample 3";
+
+	/**
+	 * Wavelength indices of the channels of the two acquisition passes
+	 * in the order of {@link Automation#lambdas}.
+	 */
+	final static public int[][] PASSES = new int[][] {{0, 1}, {2, 3, 4}};
+
+	final static protected String TILE_NAMES = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+
+	public int width = 1024;
+	public int height = 1024;
+	public int rows = 3;
+	public int cols = 3;
+	public double overlap = 0.2;
+	public int slices = 5;
+	/* beads per megapixel of the bead field */
+	public double density = 600;
+	public double sigma = 2.0;
+	public double sigmaZ = 1.0;
+	public double background = 100;
+	public double amplitude = 2000;
+	public boolean noise = true;
+	public long seed = 1;
+
+	final protected ArrayList<BinaryLensModels.Model> models;
+
+	/* bead field, positions sorted into cells of size cellSize */
+	protected double x0, y0, cellSize;
+	protected int numCellsX, numCellsY;
+	protected int[] cellStart;
+	protected double[] beadX, beadY, beadZ;
+	protected float[] beadAmplitude;
+
+	/**
+	 * @param models lens model chains in the order of
+	 * 		{@link Automation#lambdas}
+	 */
+	public BeadPhantom(final ArrayList<BinaryLensModels.Model> models) {
+		this.models = models;
+	}
+
+	/**
+	 * Select the models named <code>prefix</code>, <code>lambda</code>
+	 * for all wavelengths of {@link Automation}.
+	 */
+	final static public ArrayList<BinaryLensModels.Model> selectModels(
+			final BinaryLensModels models,
+			final String prefix) throws IOException {
+		final ArrayList<BinaryLensModels.Model> selected = new ArrayList<BinaryLensModels.Model>();
+		for (final String lambda : Automation.lambdas) {
+			final BinaryLensModels.Model model = models.get(prefix + ", " + lambda);
+			if (model == null)
+				throw new IOException("No model '" + prefix + ", " + lambda + "'.");
+			selected.add(model);
+		}
+		return selected;
+	}
+
+	public String getTileGrid() {
+		return rows + "x" + cols + "," + overlap;
+	}
+
+	/**
+	 * Scatter beads uniformly over the area covered by all tiles plus a
+	 * margin for the lens distortion.
+	 */
+	protected void createBeads(final TileLayout layout) {
+		final double margin = 8 * sigma + 0.1 * Math.max(width, height);
+		x0 = -margin;
+		y0 = -margin;
+		final double w = layout.getX(layout.size() - 1) + width + 2 * margin;
+		final double h = layout.getY(layout.size() - 1) + height + 2 * margin;
+		cellSize = 4 * sigma;
+		numCellsX = (int)Math.ceil(w / cellSize);
+		numCellsY = (int)Math.ceil(h / cellSize);
+
+		final Random random = new Random(seed);
+		final int n = (int)Math.round(w * h * 1e-6 * density);
+		final double[] xs = new double[n];
+		final double[] ys = new double[n];
+		final int[] cells = new int[n];
+		final int[] counts = new int[numCellsX * numCellsY + 1];
+		for (int i = 0; i < n; ++i) {
+			xs[i] = x0 + random.nextDouble() * w;
+			ys[i] = y0 + random.nextDouble() * h;
+			cells[i] = cell(xs[i], ys[i]);
+			++counts[cells[i] + 1];
+		}
+		cellStart = new int[counts.length];
+		for (int c = 1; c < counts.length; ++c)
+			cellStart[c] = cellStart[c - 1] + counts[c];
+
+		final int numChannels = Automation.lambdas.length;
+		beadX = new double[n];
+		beadY = new double[n];
+		beadZ = new double[n];
+		beadAmplitude = new float[n * numChannels];
+		final int[] next = cellStart.clone();
+		for (int i = 0; i < n; ++i) {
+			final int j = next[cells[i]]++;
+			beadX[j] = xs[i];
+			beadY[j] = ys[i];
+			beadZ[j] = random.nextDouble() * (slices - 1);
+			final double a = amplitude * (0.5 + 0.5 * random.nextDouble());
+			for (int c = 0; c < numChannels; ++c)
+				beadAmplitude[j * numChannels + c] = (float)(a * (0.7 + 0.3 * random.nextDouble()));
+		}
+	}
+
+	final protected int cell(final double x, final double y) {
+		final int cx = Math.min(numCellsX - 1, Math.max(0, (int)((x - x0) / cellSize)));
+		final int cy = Math.min(numCellsY - 1, Math.max(0, (int)((y - y0) / cellSize)));
+		return cy * numCellsX + cx;
+	}
+
+	/**
+	 * Render all z-slices of one tile in one wavelength.
+	 */
+	protected short[][] render(final int tile, final int channel, final double ox, final double oy) throws IOException {
+		final CoordinateTransform t = LensTransforms.flatten(models.get(channel).createTransform());
+		final int numChannels = Automation.lambdas.length;
+		final short[][] pixels = new short[slices][width * height];
+		final double r2 = cellSize * cellSize;
+		final double s = 0.5 / sigma / sigma;
+		final double sz = 0.5 / sigmaZ / sigmaZ;
+		IntStream.range(0, height).parallel().forEach(y -> {
+			final Random random = new Random(seed + (((long)tile * numChannels + channel) * height + y) * 0x9e3779b97f4a7c15L);
+			final double[] px = new double[16];
+			final double[] py = new double[16];
+			final double[] l = new double[2];
+			final double[] acc = new double[slices];
+			for (int x = 0; x < width; ++x) {
+				l[0] = x;
+				l[1] = y;
+				CoordinateMap.apply(t, l, px, py);
+				final double wx = l[0] + ox;
+				final double wy = l[1] + oy;
+				final int cx = (int)Math.floor((wx - x0) / cellSize);
+				final int cy = (int)Math.floor((wy - y0) / cellSize);
+				for (int z = 0; z < slices; ++z)
+					acc[z] = background;
+				for (int yi = Math.max(0, cy - 1); yi <= Math.min(numCellsY - 1, cy + 1); ++yi) {
+					for (int xi = Math.max(0, cx - 1); xi <= Math.min(numCellsX - 1, cx + 1); ++xi) {
+						final int c = yi * numCellsX + xi;
+						for (int b = cellStart[c]; b < cellStart[c + 1]; ++b) {
+							final double dx = wx - beadX[b];
+							final double dy = wy - beadY[b];
+							final double d2 = dx * dx + dy * dy;
+							if (d2 > r2)
+								continue;
+							final double g = beadAmplitude[b * numChannels + channel] * Math.exp(-d2 * s);
+							for (int z = 0; z < slices; ++z) {
+								final double dz = z - beadZ[b];
+								acc[z] += g * Math.exp(-dz * dz * sz);
+							}
+						}
+					}
+				}
+				for (int z = 0; z < slices; ++z) {
+					double v = acc[z];
+					if (noise)
+						v += Math.sqrt(v) * random.nextGaussian();
+					pixels[z][y * width + x] = (short)Math.max(0, Math.min(65535, Math.round(v)));
+				}
+			}
+		});
+		return pixels;
+	}
+
+	/**
+	 * Render and save all tiles, <code>truth.json</code> and
+	 * <code>phantom.json</code> into <code>dir</code>.
+	 */
+	public void write(final String dir) throws IOException {
+		final int numTiles = rows * cols;
+		if (numTiles > TILE_NAMES.length())
+			throw new IllegalArgumentException("At most " + TILE_NAMES.length() + " tiles are supported.");
+		new File(dir).mkdirs();
+
+		final TileLayout layout = TileLayout.grid(rows, cols, overlap, width, height);
+		createBeads(layout);
+		System.out.println(String.format("%d beads, %d tiles of %dx%dx%d px", beadX.length, numTiles, width, height, slices));
+
+		for (int i = 0; i < numTiles; ++i) {
+			for (int pass = 0; pass < PASSES.length; ++pass) {
+				final int[] channels = PASSES[pass];
+				final short[][][] rendered = new short[channels.length][][];
+				for (int c = 0; c < channels.length; ++c)
+					rendered[c] = render(i, channels[c], layout.getX(i), layout.getY(i));
+
+				/* ImageJ hyperstack order, channels vary fastest */
+				final ImageStack stack = new ImageStack(width, height);
+				for (int z = 0; z < slices; ++z)
+					for (int c = 0; c < channels.length; ++c)
+						stack.addSlice(Automation.lambdas[channels[c]], rendered[c][z]);
+				final String name = TILE_NAMES.charAt(i) + "_pass" + (pass + 1) + ".tif";
+				final ImagePlus imp = new ImagePlus(name, stack);
+				imp.setDimensions(channels.length, slices, 1);
+				imp.setOpenAsHyperStack(true);
+				new FileSaver(imp).saveAsTiffStack(dir + File.separator + name);
+				System.out.println(name);
+			}
+		}
+
+		new BinaryLensModels(models).writeJson(dir + File.separator + TRUTH);
+
+		final LinkedHashMap<String, Object> parameters = new LinkedHashMap<String, Object>();
+		parameters.put("tileGrid", getTileGrid());
+		parameters.put("width", width);
+		parameters.put("height", height);
+		parameters.put("slices", slices);
+		parameters.put("density", density);
+		parameters.put("sigma", sigma);
+		parameters.put("sigmaZ", sigmaZ);
+		parameters.put("background", background);
+		parameters.put("amplitude", amplitude);
+		parameters.put("noise", noise);
+		parameters.put("seed", seed);
+		final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+		Files.write(Paths.get(dir, PARAMETERS), gson.toJson(parameters).getBytes());
+	}
+
+	final static public Options createOptions() {
+		final Options options = new Options();
+		final Option modelsOption = new Option(
+				"m",
+				"models",
+				true,
+				"model file exported by Automation, e.g. scripts/scope1.json");
+		modelsOption.setRequired(true);
+		options.addOption(modelsOption);
+		options.addOption(new Option(
+				"p",
+				"prefix",
+				true,
+				"scope and sample of the models, default \"" + DEFAULT_PREFIX + "\""));
+		options.addOption(new Option(
+				"g",
+				"tile-grid",
+				true,
+				"<rows>x<cols>[,<overlap>], default 3x3,0.2"));
+		options.addOption(new Option(
+				"s",
+				"size",
+				true,
+				"<width>x<height>x<slices> of a tile, default 1024x1024x5"));
+		options.addOption(new Option(
+				"d",
+				"density",
+				true,
+				"beads per megapixel, default 600"));
+		options.addOption(new Option(
+				null,
+				"sigma",
+				true,
+				"bead size in px, default 2.0"));
+		options.addOption(new Option(
+				null,
+				"no-noise",
+				false,
+				"do not add shot noise"));
+		options.addOption(new Option(
+				null,
+				"seed",
+				true,
+				"random seed, default 1"));
+		return options;
+	}
+
+	final static private void printUsage(final Options options) {
+		new HelpFormatter().printHelp(
+				"java ... [options] <output_dir>",
+				options);
+	}
+
+	/**
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(final String[] args) throws IOException {
+
+		final Options options = createOptions();
+		final CommandLine cmd;
+		try {
+			cmd = new DefaultParser().parse(options, args);
+		} catch (final ParseException e) {
+			System.err.println(e.getMessage());
+			printUsage(options);
+			return;
+		}
+		final String[] paths = cmd.getArgs();
+		if (paths.length < 1) {
+			printUsage(options);
+			return;
+		}
+
+		final BeadPhantom phantom = new BeadPhantom(selectModels(
+				BinaryLensModels.load(cmd.getOptionValue("models")),
+				cmd.getOptionValue("prefix", DEFAULT_PREFIX)));
+		if (cmd.hasOption("tile-grid")) {
+			final String[] parts = cmd.getOptionValue("tile-grid").split(",");
+			final String[] rc = parts[0].split("x");
+			phantom.rows = Integer.parseInt(rc[0].trim());
+			phantom.cols = Integer.parseInt(rc[1].trim());
+			if (parts.length > 1)
+				phantom.overlap = Double.parseDouble(parts[1].trim());
+		}
+		if (cmd.hasOption("size")) {
+			final String[] size = cmd.getOptionValue("size").split("x");
+			phantom.width = Integer.parseInt(size[0]);
+			phantom.height = Integer.parseInt(size[1]);
+			if (size.length > 2)
+				phantom.slices = Integer.parseInt(size[2]);
+		}
+		phantom.density = Double.parseDouble(cmd.getOptionValue("density", Double.toString(phantom.density)));
+		phantom.sigma = Double.parseDouble(cmd.getOptionValue("sigma", Double.toString(phantom.sigma)));
+		phantom.noise = !cmd.hasOption("no-noise");
+		phantom.seed = Long.parseLong(cmd.getOptionValue("seed", Long.toString(phantom.seed)));
+
+		phantom.write(paths[0]);
+	}
+}
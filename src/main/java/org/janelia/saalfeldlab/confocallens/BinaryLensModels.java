@@ -0,0 +1,514 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import mpicbg.models.CoordinateTransform;
+import mpicbg.models.CoordinateTransformList;
+
+/**
+ * Named lens model chains in a compact, memory mapped binary file.  The
+ * parameters of every transform are stored as doubles, lens models and
+ * affines are created from them without formatting and parsing data
+ * strings.  Conversion from and to the JSON exported by
+ * {@link Automation} is lossless: numbers are written back in the format
+ * they were read in, data strings that do not survive this are stored as
+ * text.
+ *
+ * All numbers are big endian, arrays are aligned to 8 bytes:
+ *
+ * <pre>
+ * header  int magic "CLNS", int version, int number of models, int 0,
+ *         long offset of the index, long 0
+ * model   string name, int number of transforms, per transform
+ *           string class name, int encoding
+ *             0: int n, n bits integer flags, double[n] values
+ *             1: string data string
+ *             2: like 0, with a trailing space
+ * index   long[number of models] offsets of the models
+ * trailer long CRC32 of all preceding bytes
+ * </pre>
+ *
+ * Strings are an int number of bytes followed by UTF-8.
+ *
+ * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
+ */
+public class BinaryLensModels {
+
+	final static public int MAGIC = 0x434c4e53;
+	final static public int VERSION = 1;
+
+	final static private int NUMERIC = 0;
+	final static private int TEXT = 1;
+	final static private int NUMERIC_TRAILING_SPACE = 2;
+
+	final static private String AFFINE = "mpicbg.trakem2.transform.AffineModel2D";
+	final static private List<String> POLYNOMIALS = Arrays.asList(
+			"mpicbg.trakem2.transform.NonLinearCoordinateTransform",
+			"lenscorrection.NonLinearTransform",
+			PolynomialLensTransform.class.getName());
+
+	/**
+	 * Parameters of one transform, the values as doubles if formatting them
+	 * reproduces the data string, and the data string.  Each is derived from
+	 * the other on first use.
+	 */
+	final static public class Parameters {
+
+		protected String dataString;
+		protected double[] values;
+		protected boolean[] integer;
+		protected boolean trailingSpace;
+		protected boolean parsed;
+
+		public Parameters(final String dataString) {
+			this.dataString = dataString;
+		}
+
+		protected Parameters(final double[] values, final boolean[] integer, final boolean trailingSpace) {
+			this.values = values;
+			this.integer = integer;
+			this.trailingSpace = trailingSpace;
+			parsed = true;
+		}
+
+		synchronized public String getDataString() {
+			if (dataString == null)
+				dataString = format(values, integer) + (trailingSpace ? " " : "");
+			return dataString;
+		}
+
+		/**
+		 * @return the values, or null if the data string cannot be stored as
+		 *     numbers
+		 */
+		synchronized public double[] getValues() {
+			if (!parsed) {
+				trailingSpace = dataString.endsWith(" ");
+				final String trimmed = trailingSpace ? dataString.substring(0, dataString.length() - 1) : dataString;
+				integer = new boolean[trimmed.split(" ", -1).length];
+				values = parseValues(trimmed, integer);
+				parsed = true;
+			}
+			return values;
+		}
+	}
+
+	/**
+	 * A named transform chain as class names and parameters.
+	 */
+	final static public class Model {
+
+		final public String name;
+		final public List<String> classNames;
+		final public List<Parameters> parameters;
+
+		protected Model(final String name, final List<String> classNames, final ArrayList<Parameters> parameters) {
+			this.name = name;
+			this.classNames = classNames;
+			this.parameters = parameters;
+		}
+
+		public Model(final String name, final List<String> classNames, final List<String> dataStrings) {
+			this.name = name;
+			this.classNames = classNames;
+			parameters = new ArrayList<Parameters>();
+			for (final String dataString : dataStrings)
+				parameters.add(new Parameters(dataString));
+		}
+
+		public String getDataString(final int i) {
+			return parameters.get(i).getDataString();
+		}
+
+		/**
+		 * Instantiate the transform chain.  Polynomial lens models are
+		 * created as {@link PolynomialLensTransform}, which evaluates like
+		 * the {@link mpicbg.trakem2.transform.NonLinearCoordinateTransform}
+		 * it was exported from.  Lens models and affines are created from
+		 * the stored values, all other transforms from their data strings.
+		 */
+		public CoordinateTransformList<CoordinateTransform> createTransform() throws IOException {
+			final CoordinateTransformList<CoordinateTransform> ctl = new CoordinateTransformList<CoordinateTransform>();
+			for (int i = 0; i < classNames.size(); ++i) {
+				final String className = classNames.get(i);
+				final double[] values = parameters.get(i).getValues();
+				CoordinateTransform t = null;
+				if (values != null) {
+					if (POLYNOMIALS.contains(className))
+						t = createPolynomial(values);
+					else if (className.equals(AFFINE) && values.length == 6) {
+						final mpicbg.trakem2.transform.AffineModel2D affine = new mpicbg.trakem2.transform.AffineModel2D();
+						affine.set(values[0], values[1], values[2], values[3], values[4], values[5]);
+						t = affine;
+					}
+				}
+				if (t == null) {
+					try {
+						final mpicbg.trakem2.transform.CoordinateTransform ct =
+								(mpicbg.trakem2.transform.CoordinateTransform)Class.forName(className).getDeclaredConstructor().newInstance();
+						ct.init(getDataString(i));
+						t = ct;
+					} catch (final ReflectiveOperationException e) {
+						throw new IOException("Cannot create transform " + className, e);
+					}
+				}
+				ctl.add(t);
+			}
+			return ctl;
+		}
+	}
+
+	/**
+	 * A polynomial lens model from the values of its data string,
+	 * dimension, number of terms, interleaved x and y coefficients, means,
+	 * variances, width and height, or null if they do not fit.
+	 */
+	final static protected PolynomialLensTransform createPolynomial(final double[] values) {
+		if (values.length < 2)
+			return null;
+		final int dimension = (int)values[0];
+		final int length = (int)values[1];
+		if (length != PolynomialLensTransform.numTerms(dimension) || values.length != 4 + 4 * length)
+			return null;
+		final double[] betaX = new double[length];
+		final double[] betaY = new double[length];
+		final double[] normMean = new double[length];
+		final double[] normVar = new double[length];
+		int c = 2;
+		for (int k = 0; k < length; ++k) {
+			betaX[k] = values[c++];
+			betaY[k] = values[c++];
+		}
+		for (int k = 0; k < length; ++k)
+			normMean[k] = values[c++];
+		for (int k = 0; k < length; ++k)
+			normVar[k] = values[c++];
+		return new PolynomialLensTransform(dimension, betaX, betaY, normMean, normVar, (int)values[c], (int)values[c + 1]);
+	}
+
+	final protected ArrayList<Model> models;
+
+	protected BinaryLensModels(final ArrayList<Model> models) {
+		this.models = models;
+	}
+
+	public int size() {
+		return models.size();
+	}
+
+	public Model get(final int i) {
+		return models.get(i);
+	}
+
+	/**
+	 * @return the model or null
+	 */
+	public Model get(final String name) {
+		for (final Model model : models)
+			if (model.name.equals(name))
+				return model;
+		return null;
+	}
+
+	public List<Model> getModels() {
+		return models;
+	}
+
+	/* writing */
+
+	final static private void align(final DataOutputStream out) throws IOException {
+		while (out.size() % 8 != 0)
+			out.writeByte(0);
+	}
+
+	final static private void writeString(final DataOutputStream out, final String s) throws IOException {
+		final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	final static private boolean isInteger(final String token) {
+		return token.matches("-?[0-9]+");
+	}
+
+	/**
+	 * The values of a data string without a trailing space if formatting
+	 * them reproduces the data string exactly, otherwise null.
+	 */
+	final static protected double[] parseValues(final String dataString, final boolean[] integer) {
+		final String[] tokens = dataString.split(" ", -1);
+		if (tokens.length != integer.length)
+			return null;
+		final double[] values = new double[tokens.length];
+		try {
+			for (int i = 0; i < tokens.length; ++i) {
+				integer[i] = isInteger(tokens[i]);
+				values[i] = Double.parseDouble(tokens[i]);
+			}
+		} catch (final NumberFormatException e) {
+			return null;
+		}
+		return format(values, integer).equals(dataString) ? values : null;
+	}
+
+	final static protected String format(final double[] values, final boolean[] integer) {
+		final StringBuilder s = new StringBuilder();
+		for (int i = 0; i < values.length; ++i) {
+			if (i > 0)
+				s.append(' ');
+			if (integer[i])
+				s.append((long)values[i]);
+			else
+				s.append(values[i]);
+		}
+		return s.toString();
+	}
+
+	final static public void write(final List<Model> models, final String path) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(models.size());
+		out.writeInt(0);
+		out.writeLong(0);
+		out.writeLong(0);
+
+		final long[] offsets = new long[models.size()];
+		for (int m = 0; m < models.size(); ++m) {
+			final Model model = models.get(m);
+			offsets[m] = out.size();
+			writeString(out, model.name);
+			out.writeInt(model.classNames.size());
+			for (int t = 0; t < model.classNames.size(); ++t) {
+				writeString(out, model.classNames.get(t));
+				final Parameters parameters = model.parameters.get(t);
+				final double[] values = parameters.getValues();
+				if (values == null) {
+					out.writeInt(TEXT);
+					writeString(out, parameters.getDataString());
+				} else {
+					final boolean[] integer = parameters.integer;
+					out.writeInt(parameters.trailingSpace ? NUMERIC_TRAILING_SPACE : NUMERIC);
+					out.writeInt(values.length);
+					final byte[] flags = new byte[(values.length + 7) / 8];
+					for (int i = 0; i < values.length; ++i)
+						if (integer[i])
+							flags[i / 8] |= 1 << (i % 8);
+					out.write(flags);
+					align(out);
+					for (final double v : values)
+						out.writeDouble(v);
+				}
+			}
+		}
+		align(out);
+		final long indexOffset = out.size();
+		for (final long offset : offsets)
+			out.writeLong(offset);
+		out.flush();
+
+		final ByteBuffer buffer = ByteBuffer.allocate(bytes.size() + 8);
+		buffer.put(bytes.toByteArray());
+		buffer.putLong(16, indexOffset);
+		final CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 0, bytes.size());
+		buffer.putLong(bytes.size(), crc.getValue());
+		Files.write(Paths.get(path), buffer.array());
+	}
+
+	/* reading */
+
+	final static private String readString(final ByteBuffer buffer) {
+		final byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	final static private void align(final ByteBuffer buffer) {
+		buffer.position((buffer.position() + 7) / 8 * 8);
+	}
+
+	final static protected Model readModel(final ByteBuffer buffer) {
+		final String name = readString(buffer);
+		final int numTransforms = buffer.getInt();
+		final ArrayList<String> classNames = new ArrayList<String>();
+		final ArrayList<Parameters> parameters = new ArrayList<Parameters>();
+		for (int t = 0; t < numTransforms; ++t) {
+			classNames.add(readString(buffer));
+			final int encoding = buffer.getInt();
+			if (encoding == TEXT)
+				parameters.add(new Parameters(readString(buffer)));
+			else {
+				final int n = buffer.getInt();
+				final byte[] flags = new byte[(n + 7) / 8];
+				buffer.get(flags);
+				align(buffer);
+				final double[] values = new double[n];
+				buffer.asDoubleBuffer().get(values);
+				buffer.position(buffer.position() + 8 * n);
+				final boolean[] integer = new boolean[n];
+				for (int i = 0; i < n; ++i)
+					integer[i] = (flags[i / 8] & (1 << (i % 8))) != 0;
+				parameters.add(new Parameters(values, integer, encoding == NUMERIC_TRAILING_SPACE));
+			}
+		}
+		return new Model(name, classNames, parameters);
+	}
+
+	final static public boolean isBinary(final String path) throws IOException {
+		try (final RandomAccessFile file = new RandomAccessFile(path, "r")) {
+			return file.length() >= 4 && file.readInt() == MAGIC;
+		}
+	}
+
+	/**
+	 * Memory map and read a model file.
+	 *
+	 * @param verify compare the checksum
+	 */
+	final static public BinaryLensModels read(final String path, final boolean verify) throws IOException {
+		final MappedByteBuffer buffer;
+		try (final RandomAccessFile file = new RandomAccessFile(path, "r")) {
+			buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+		}
+		if (buffer.capacity() < 40 || buffer.getInt(0) != MAGIC)
+			throw new IOException(path + " is not a binary lens model file.");
+		final int version = buffer.getInt(4);
+		if (version != VERSION)
+			throw new IOException(path + " has version " + version + ", this reader supports version " + VERSION + ".");
+		if (verify) {
+			final CRC32 crc = new CRC32();
+			final ByteBuffer data = buffer.duplicate();
+			data.limit(buffer.capacity() - 8);
+			crc.update(data);
+			if (crc.getValue() != buffer.getLong(buffer.capacity() - 8))
+				throw new IOException("Checksum mismatch in " + path);
+		}
+
+		final int numModels = buffer.getInt(8);
+		final long indexOffset = buffer.getLong(16);
+		final ArrayList<Model> models = new ArrayList<Model>();
+		for (int m = 0; m < numModels; ++m) {
+			final ByteBuffer record = buffer.duplicate();
+			record.position((int)buffer.getLong((int)indexOffset + 8 * m));
+			models.add(readModel(record));
+		}
+		return new BinaryLensModels(models);
+	}
+
+	final static public BinaryLensModels read(final String path) throws IOException {
+		return read(path, true);
+	}
+
+	/* JSON */
+
+	final static public BinaryLensModels fromJson(final String path) throws IOException {
+		final JSONArray jo = new JSONArray(new String(Files.readAllBytes(Paths.get(path))));
+		final ArrayList<Model> models = new ArrayList<Model>();
+		for (int i = 0; i < jo.length(); ++i) {
+			final JSONObject model = jo.getJSONObject(i);
+			final JSONArray transforms = model.getJSONArray("transform");
+			final ArrayList<String> classNames = new ArrayList<String>();
+			final ArrayList<String> dataStrings = new ArrayList<String>();
+			for (int j = 0; j < transforms.length(); ++j) {
+				classNames.add(transforms.getJSONObject(j).getString("className"));
+				dataStrings.add(transforms.getJSONObject(j).getString("dataString"));
+			}
+			models.add(new Model(model.getString("name"), classNames, dataStrings));
+		}
+		return new BinaryLensModels(models);
+	}
+
+	/**
+	 * Write as JSON in the format of {@link Automation#exportTransform}.
+	 */
+	public void writeJson(final String path) throws IOException {
+		final ArrayList<LinkedHashMap<String, Object>> exports = new ArrayList<LinkedHashMap<String, Object>>();
+		for (final Model model : models) {
+			final ArrayList<LinkedHashMap<String, String>> transforms = new ArrayList<LinkedHashMap<String, String>>();
+			for (int t = 0; t < model.classNames.size(); ++t) {
+				final LinkedHashMap<String, String> transform = new LinkedHashMap<String, String>();
+				transform.put("dataString", model.getDataString(t));
+				transform.put("className", model.classNames.get(t));
+				transforms.add(transform);
+			}
+			final LinkedHashMap<String, Object> export = new LinkedHashMap<String, Object>();
+			export.put("transform", transforms);
+			export.put("name", model.name);
+			exports.add(export);
+		}
+		final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+		Files.write(Paths.get(path), gson.toJson(exports).getBytes());
+	}
+
+	public void write(final String path) throws IOException {
+		write(models, path);
+	}
+
+	/**
+	 * Read a model file in either format.
+	 */
+	final static public BinaryLensModels load(final String path) throws IOException {
+		return isBinary(path) ? read(path) : fromJson(path);
+	}
+
+	/**
+	 * Convert between JSON and binary model files, the format of the
+	 * output is chosen by its extension (.json or anything else for
+	 * binary).
+	 *
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(final String[] args) throws IOException {
+
+		if (args.length < 2) {
+			System.err.println("Usage: java ... <input.json|input.clm> <output.json|output.clm>");
+			return;
+		}
+		final BinaryLensModels models = load(args[0]);
+		if (args[1].endsWith(".json"))
+			models.writeJson(args[1]);
+		else
+			models.write(args[1]);
+		for (final Model model : models.getModels())
+			System.out.println(model.name);
+	}
+}
@@ -0,0 +1,315 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import mpicbg.models.CoordinateTransform;
+
+/**
+ * End-to-end benchmark of {@link Automation} on a {@link BeadPhantom}.
+ * The calibration runs in a separate JVM, from the MIPs through montage,
+ * alignment and lens fit to the export, with all options given after
+ * <code>--</code>.  The stage timings of the run are reported together with
+ * the error of the recovered lens models against the models that the
+ * phantom was rendered with.
+ *
+ * The calibration determines the models only up to an affine, so the
+ * error is measured after mapping all recovered models into the frame of
+ * the true models by one affine common to all wavelengths, such that
+ * shifts between wavelengths count.  The benchmark json is a superset of
+ * the timing json of {@link StageTimer} and can be passed to
+ * <code>--reference</code> of a later benchmark or
+ * <code>--timing-reference</code> of {@link Automation}.
+ *
+ * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
+ */
+public class CalibrationBenchmark {
+
+	final static public String SCOPE = "phantom";
+	final static public String SAMPLE = "benchmark";
+	final static public int ERROR_SAMPLES = 32;
+
+	private CalibrationBenchmark() {}
+
+	/**
+	 * Mean and maximal error in px of every recovered model after one
+	 * common affine into the frame of the true models.
+	 *
+	 * @return {mean, max} per model
+	 */
+	final static public double[][] modelErrors(
+			final BinaryLensModels truth,
+			final BinaryLensModels recovered,
+			final int width,
+			final int height) throws IOException {
+		final int numModels = truth.size();
+		if (recovered.size() != numModels)
+			throw new IOException("Expected " + numModels + " recovered models but there are " + recovered.size() + ".");
+
+		final int n = ERROR_SAMPLES * ERROR_SAMPLES;
+		final double[] rxs = new double[numModels * n];
+		final double[] rys = new double[numModels * n];
+		final double[] txs = new double[numModels * n];
+		final double[] tys = new double[numModels * n];
+		final double[] l = new double[2];
+		for (int m = 0, k = 0; m < numModels; ++m) {
+			final CoordinateTransform t = LensTransforms.flatten(truth.get(m).createTransform());
+			final CoordinateTransform r = LensTransforms.flatten(recovered.get(m).createTransform());
+			for (int j = 0; j < ERROR_SAMPLES; ++j) {
+				for (int i = 0; i < ERROR_SAMPLES; ++i, ++k) {
+					final double x = (i + 0.5) * width / ERROR_SAMPLES;
+					final double y = (j + 0.5) * height / ERROR_SAMPLES;
+					l[0] = x;
+					l[1] = y;
+					t.applyInPlace(l);
+					txs[k] = l[0];
+					tys[k] = l[1];
+					l[0] = x;
+					l[1] = y;
+					r.applyInPlace(l);
+					rxs[k] = l[0];
+					rys[k] = l[1];
+				}
+			}
+		}
+
+		/* a polynomial of dimension 1 is an affine */
+		final PolynomialLensTransform affine = PolynomialLensTransform.fit(1, rxs, rys, txs, tys, width, height, 0);
+		final double[][] errors = new double[numModels][2];
+		for (int m = 0, k = 0; m < numModels; ++m) {
+			for (int i = 0; i < n; ++i, ++k) {
+				l[0] = rxs[k];
+				l[1] = rys[k];
+				affine.applyInPlace(l);
+				final double d = Math.sqrt((l[0] - txs[k]) * (l[0] - txs[k]) + (l[1] - tys[k]) * (l[1] - tys[k]));
+				errors[m][0] += d;
+				errors[m][1] = Math.max(errors[m][1], d);
+			}
+			errors[m][0] /= n;
+		}
+		return errors;
+	}
+
+	/**
+	 * Run {@link Automation} on the phantom in <code>phantomDir</code> in a
+	 * new JVM with the class path of this one.
+	 *
+	 * @return the exit code
+	 */
+	final static public int runAutomation(
+			final String phantomDir,
+			final String outputDir,
+			final String paramPath,
+			final String tileGrid,
+			final String[] jvmArgs,
+			final String[] automationArgs) throws IOException, InterruptedException {
+		final ArrayList<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.addAll(Arrays.asList(jvmArgs));
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(Automation.class.getName());
+		command.addAll(Arrays.asList(
+				"--input", phantomDir,
+				"--output", outputDir,
+				"--param", paramPath,
+				"--scope", SCOPE,
+				"--sample", SAMPLE,
+				"--extensions", "tif",
+				"--tile-grid", tileGrid));
+		command.addAll(Arrays.asList(automationArgs));
+		System.out.println(String.join(" ", command));
+		return new ProcessBuilder(command).inheritIO().start().waitFor();
+	}
+
+	@SuppressWarnings("unchecked")
+	final static protected LinkedHashMap<String, Object> readJson(final String path) throws IOException {
+		return new Gson().fromJson(new String(Files.readAllBytes(Paths.get(path))), LinkedHashMap.class);
+	}
+
+	/**
+	 * Print stage timings and model errors of a benchmark json, next to
+	 * those of a previous benchmark if <code>reference</code> is not null.
+	 */
+	@SuppressWarnings("unchecked")
+	final static public void report(
+			final PrintStream out,
+			final Map<String, Object> result,
+			final Map<String, Object> reference) {
+		final Map<String, Number> seconds = (Map<String, Number>)result.get("seconds");
+		final Map<String, Number> referenceSeconds = reference == null ? null : (Map<String, Number>)reference.get("seconds");
+		final double wall = ((Number)result.get("wall")).doubleValue();
+		if (reference == null)
+			out.println(String.format("%-24s %10s", "stage", result.get("schedule")));
+		else
+			out.println(String.format("%-24s %10s %10s %8s", "stage", result.get("schedule"), reference.get("schedule"), "speedup"));
+		for (final Entry<String, Number> entry : seconds.entrySet()) {
+			final double s = entry.getValue().doubleValue();
+			if (referenceSeconds != null && referenceSeconds.containsKey(entry.getKey())) {
+				final double r = referenceSeconds.get(entry.getKey()).doubleValue();
+				out.println(String.format("%-24s %9.2fs %9.2fs %7.2fx", entry.getKey(), s, r, r / s));
+			} else
+				out.println(String.format("%-24s %9.2fs", entry.getKey(), s));
+		}
+		if (reference == null || !reference.containsKey("wall"))
+			out.println(String.format("%-24s %9.2fs", "wall", wall));
+		else {
+			final double r = ((Number)reference.get("wall")).doubleValue();
+			out.println(String.format("%-24s %9.2fs %9.2fs %7.2fx", "wall", wall, r, r / wall));
+		}
+
+		final Map<String, List<Number>> errors = (Map<String, List<Number>>)result.get("errors");
+		final Map<String, List<Number>> referenceErrors = reference == null ? null : (Map<String, List<Number>>)reference.get("errors");
+		out.println();
+		if (referenceErrors == null)
+			out.println(String.format("%-24s %10s %10s", "model error", "mean", "max"));
+		else
+			out.println(String.format("%-24s %10s %10s %10s %10s", "model error", "mean", "max", "ref mean", "ref max"));
+		for (final Entry<String, List<Number>> entry : errors.entrySet()) {
+			final List<Number> error = entry.getValue();
+			if (referenceErrors != null && referenceErrors.containsKey(entry.getKey())) {
+				final List<Number> r = referenceErrors.get(entry.getKey());
+				out.println(String.format(
+						"%-24s %8.4fpx %8.4fpx %8.4fpx %8.4fpx",
+						entry.getKey(),
+						error.get(0).doubleValue(),
+						error.get(1).doubleValue(),
+						r.get(0).doubleValue(),
+						r.get(1).doubleValue()));
+			} else
+				out.println(String.format("%-24s %8.4fpx %8.4fpx", entry.getKey(), error.get(0).doubleValue(), error.get(1).doubleValue()));
+		}
+	}
+
+	final static public Options createOptions() {
+		final Options options = new Options();
+		final Option paramOption = new Option(
+				"p",
+				"param",
+				true,
+				"parameter file of Automation");
+		paramOption.setRequired(true);
+		options.addOption(paramOption);
+		options.addOption(new Option(
+				"j",
+				"jvm-args",
+				true,
+				"space separated options of the calibration JVM, e.g. \"-Xmx16g\""));
+		options.addOption(new Option(
+				"r",
+				"reference",
+				true,
+				"benchmark json of a previous run to compare against"));
+		return options;
+	}
+
+	final static private void printUsage(final Options options) {
+		new HelpFormatter().printHelp(
+				"java ... [options] <phantom_dir> <output_dir> [-- <Automation options>]",
+				options);
+	}
+
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(final String[] args) throws Exception {
+
+		final Options options = createOptions();
+		final CommandLine cmd;
+		try {
+			cmd = new DefaultParser().parse(options, args);
+		} catch (final ParseException e) {
+			System.err.println(e.getMessage());
+			printUsage(options);
+			return;
+		}
+		final String[] paths = cmd.getArgs();
+		if (paths.length < 2) {
+			printUsage(options);
+			return;
+		}
+		final String phantomDir = paths[0];
+		final String outputDir = paths[1];
+		final String[] automationArgs = Arrays.copyOfRange(paths, 2, paths.length);
+		final String[] jvmArgs = cmd.hasOption("jvm-args") ? cmd.getOptionValue("jvm-args").trim().split("\\s+") : new String[0];
+
+		final LinkedHashMap<String, Object> phantom = readJson(phantomDir + File.separator + BeadPhantom.PARAMETERS);
+		new File(outputDir).mkdirs();
+
+		final String pname = SCOPE + "_" + SAMPLE;
+		final String timingPath = outputDir + File.separator + pname + "_timing.json";
+		final String modelsPath = outputDir + File.separator + pname + ".json";
+		Files.deleteIfExists(Paths.get(timingPath));
+		Files.deleteIfExists(Paths.get(modelsPath));
+
+		final long t0 = System.nanoTime();
+		runAutomation(phantomDir, outputDir, cmd.getOptionValue("param"), (String)phantom.get("tileGrid"), jvmArgs, automationArgs);
+		final double wall = (System.nanoTime() - t0) * 1e-9;
+		if (!Files.exists(Paths.get(modelsPath)) || !Files.exists(Paths.get(timingPath))) {
+			System.err.println("The calibration did not export " + modelsPath + ".");
+			System.exit(1);
+		}
+
+		final LinkedHashMap<String, Object> timing = readJson(timingPath);
+		final BinaryLensModels truth = BinaryLensModels.load(phantomDir + File.separator + BeadPhantom.TRUTH);
+		final double[][] errors = modelErrors(
+				truth,
+				BinaryLensModels.load(modelsPath),
+				((Number)phantom.get("width")).intValue(),
+				((Number)phantom.get("height")).intValue());
+
+		final LinkedHashMap<String, Object> export = new LinkedHashMap<String, Object>();
+		export.put("schedule", timing.get("schedule"));
+		export.put("seconds", timing.get("seconds"));
+		export.put("wall", wall);
+		final LinkedHashMap<String, double[]> errorMap = new LinkedHashMap<String, double[]>();
+		for (int i = 0; i < errors.length; ++i)
+			errorMap.put(Automation.lambdas[i], errors[i]);
+		export.put("errors", errorMap);
+		export.put("automation", automationArgs);
+		final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+		final String benchmarkPath = outputDir + File.separator + pname + "_benchmark.json";
+		Files.write(Paths.get(benchmarkPath), gson.toJson(export).getBytes());
+
+		report(
+				System.out,
+				readJson(benchmarkPath),
+				cmd.hasOption("reference") ? readJson(cmd.getOptionValue("reference")) : null);
+	}
+}
@@ -109,6 +109,38 @@ public class ConfocalLens {
 		return offsets;
 	}
 
+	/**
+	 * Parse the full (x, y[, z]) placement of all tiles from a
+	 * TileConfiguration.txt.  Missing z is 0.
+	 *
+	 * @param tileConfigurationStr
+	 * @return map from file name to {x, y, z}
+	 * @throws IOException
+	 */
+	final static public HashMap<String, double[]> parseOffsets(final String tileConfigurationStr) throws IOException {
+
+		final HashMap<String, double[]> offsets = new HashMap<String, double[]>();
+
+		try (
+				final BufferedReader reader =
+				new BufferedReader(
+						new FileReader(
+								tileConfigurationStr))) {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				if (line.matches("^[^;]*;.*\\(.*\\)$")) {
+					final String fileStr = line.replaceAll("^([^;]*);.*$", "$1");
+					final String[] xyzStr = line.replaceAll("^[^;]*;.*\\((.*)\\)$", "$1").split(",");
+					final double[] xyz = new double[3];
+					for (int d = 0; d < Math.min(3, xyzStr.length); ++d)
+						xyz[d] = Double.parseDouble(xyzStr[d].trim());
+					offsets.put(fileStr, xyz);
+				}
+			}
+		}
+
+		return offsets;
+	}
+
 	final static public ImagePlus openImagePlus(
 			final String dirStr,
 			final String fileStr) {
@@ -216,7 +248,7 @@ public class ConfocalLens {
 			final CoordinateTransform t,
 			final int cropWidth,
 			final int meshResolution) {
-		final TransformMesh mesh = new TransformMesh(t, meshResolution, srcStack.getWidth(), srcStack.getHeight());
+		final TransformMesh mesh = new TransformMesh(LensTransforms.flatten(t), meshResolution, srcStack.getWidth(), srcStack.getHeight());
 		final Rectangle bounds = mesh.getBoundingBox();
 		final ImageStack stack = new ImageStack(bounds.width - 2 * cropWidth, bounds.height - 2 * cropWidth);
 		final TransformMeshMappingWithMasks<TransformMesh> mapping = new TransformMeshMappingWithMasks<TransformMesh>(mesh);
@@ -265,6 +297,66 @@ public class ConfocalLens {
 		return null;
 	}
 
+	/**
+	 * Load an {@link ImagePlus} and transform it with its lens model, z shift
+	 * and xy placement in a single resampling pass.  The global position of
+	 * the first pixel is stored as the negative origin of the calibration.
+	 *
+	 * @param dirStr
+	 * @param fileName
+	 * @param model
+	 * @param offset {x, y, z}
+	 * @param cropWidth
+	 * @return
+	 */
+	final static public ImagePlus loadAndTransformPlacedImagePlus(
+			final String dirStr,
+			final String fileName,
+			final InverseLensModel model,
+			final double[] offset,
+			final int cropWidth) {
+		final ImagePlus imp = openImagePlus(dirStr, fileName);
+		if (imp != null) {
+			final PlacedLensTransform placed = new PlacedLensTransform(model, offset, cropWidth);
+			imp.setStack(placed.apply(imp));
+			imp.getCalibration().xOrigin = -placed.getX();
+			imp.getCalibration().yOrigin = -placed.getY();
+			return imp;
+		}
+		return null;
+	}
+
+	/**
+	 * Save all tiles of a TileConfiguration.txt lens corrected and placed
+	 * with a single resampling pass per tile.  The inverse lens model is
+	 * fitted once per tile size.
+	 */
+	final static public void savePlacedTransformedImages(
+			final String dirStr,
+			final Map<String, double[]> offsets,
+			final String outDirStr,
+			final CoordinateTransform t,
+			final int cropWidth) {
+		final HashMap<String, InverseLensModel> models = new HashMap<String, InverseLensModel>();
+		for (final Entry<String, double[]> entry : offsets.entrySet()) {
+			final ImagePlus src = openImagePlus(dirStr, entry.getKey());
+			if (src == null)
+				continue;
+			final String size = src.getWidth() + "x" + src.getHeight();
+			InverseLensModel model = models.get(size);
+			if (model == null) {
+				model = InverseLensModel.fit(t, src.getWidth(), src.getHeight());
+				System.out.println(model);
+				models.put(size, model);
+			}
+			final PlacedLensTransform placed = new PlacedLensTransform(model, entry.getValue(), cropWidth);
+			src.setStack(placed.apply(src));
+			src.getCalibration().xOrigin = -placed.getX();
+			src.getCalibration().yOrigin = -placed.getY();
+			IJ.saveAsTiff(src, outDirStr + entry.getKey() + ".tif");
+		}
+	}
+
 	final static public void showTransformedImages(
 			final String dirStr,
 			final Iterable<String> fileNames,
@@ -282,21 +374,60 @@ public class ConfocalLens {
 		}
 	}
 
+	/**
+	 * Transform and save all <code>fileNames</code> that are not up to date
+	 * in the {@link BatchManifest} of <code>outDirStr</code>.
+	 */
 	final static public void saveTransformedImages(
 			final String dirStr,
 			final Iterable<String> fileNames,
 			final String outDirStr,
 			final CoordinateTransform t,
 			final int cropWidth) {
+		BatchManifest manifest = null;
+		try {
+			manifest = new BatchManifest(outDirStr);
+		} catch (final IOException e) {
+			System.err.println(e.getMessage() + ", processing all files");
+		}
+		saveTransformedImages(dirStr, fileNames, outDirStr, t, cropWidth, manifest);
+	}
+
+	/**
+	 * Transform and save <code>fileNames</code>, skipping outputs that are
+	 * up to date in <code>manifest</code> and recording each new output.
+	 *
+	 * @param manifest null to process and save all files
+	 */
+	final static public void saveTransformedImages(
+			final String dirStr,
+			final Iterable<String> fileNames,
+			final String outDirStr,
+			final CoordinateTransform t,
+			final int cropWidth,
+			final BatchManifest manifest) {
+		final String model = manifest == null ? null : BatchManifest.modelChecksum(t);
 		for (final String fileName : fileNames) {
+			final String outputName = fileName + ".tif";
+			try {
+				if (manifest != null && manifest.isUpToDate(dirStr + fileName, outDirStr, outputName, model, cropWidth)) {
+					System.out.println("Skipping up to date " + outputName);
+					continue;
+				}
+			} catch (final IOException e) {
+				System.err.println(e.getMessage());
+			}
 			final ImagePlus imp = loadAndTransformImagePlus(
 					dirStr,
 					fileName,
 					t,
 					cropWidth);
-			if (imp != null) {
-				IJ.saveAsTiff(imp, outDirStr + fileName + ".tif");
-				//imp.show();
+			if (imp != null && IJ.saveAsTiff(imp, outDirStr + outputName) && manifest != null) {
+				try {
+					manifest.record(dirStr + fileName, outputName, model, cropWidth);
+				} catch (final IOException e) {
+					System.err.println("Cannot record " + outputName + " in " + manifest.getPath() + ": " + e.getMessage());
+				}
 			}
 		}
 	}
@@ -0,0 +1,198 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.stream.IntStream;
+
+import mpicbg.models.CoordinateTransform;
+
+/**
+ * Source coordinates for every pixel of a target raster.  Pixel (i, j) of
+ * the target is located at (x0 + i, y0 + j) in target space and pulls its
+ * value from (x[j * width + i], y[j * width + i]) in the source.  The map
+ * only depends on the lens model and the image size, so it is computed
+ * once and reused for all slices and channels that share a model.
+ */
+public class CoordinateMap {
+
+	final protected int width;
+	final protected int height;
+	final protected double x0;
+	final protected double y0;
+	final protected float[] x;
+	final protected float[] y;
+	final protected EnumMap<Interpolation, InterpolationWeights> weights = new EnumMap<Interpolation, InterpolationWeights>(Interpolation.class);
+	final protected HashMap<String, MapTiles> tiles = new HashMap<String, MapTiles>();
+
+	public CoordinateMap(
+			final int width,
+			final int height,
+			final double x0,
+			final double y0,
+			final float[] x,
+			final float[] y) {
+		this.width = width;
+		this.height = height;
+		this.x0 = x0;
+		this.y0 = y0;
+		this.x = x;
+		this.y = y;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public double getX0() {
+		return x0;
+	}
+
+	public double getY0() {
+		return y0;
+	}
+
+	public float[] getX() {
+		return x;
+	}
+
+	public float[] getY() {
+		return y;
+	}
+
+	/**
+	 * The kernel weights of <code>interpolation</code> for all pixels of
+	 * this map, computed on first use and kept with the map such that all
+	 * slices resampled through a cached map share them.
+	 */
+	synchronized public InterpolationWeights getWeights(final Interpolation interpolation) {
+		InterpolationWeights w = weights.get(interpolation);
+		if (w == null) {
+			w = new InterpolationWeights(this, interpolation);
+			weights.put(interpolation, w);
+		}
+		return w;
+	}
+
+	/**
+	 * Target tiles of <code>tileSize</code> pixels with their windows in a
+	 * source of <code>sw</code>x<code>sh</code> pixels, computed on first
+	 * use and kept with the map like the kernel weights.
+	 */
+	synchronized public MapTiles getTiles(final int tileSize, final int sw, final int sh) {
+		final String key = tileSize + "/" + sw + "x" + sh;
+		MapTiles t = tiles.get(key);
+		if (t == null) {
+			t = new MapTiles(this, tileSize, sw, sh);
+			tiles.put(key, t);
+		}
+		return t;
+	}
+
+	/**
+	 * @return the size of the coordinates and of the kernel weights and
+	 *   tiles computed so far in bytes
+	 */
+	synchronized public long bytes() {
+		long bytes = 4L * (x.length + y.length);
+		for (final InterpolationWeights w : weights.values())
+			bytes += w.bytes();
+		for (final MapTiles t : tiles.values())
+			bytes += t.bytes();
+		return bytes;
+	}
+
+	/**
+	 * Release all cached kernel weights and tiles.
+	 */
+	synchronized public void clearWeights() {
+		weights.clear();
+		tiles.clear();
+	}
+
+	/**
+	 * Apply <code>t</code> without allocating scratch space if it is a
+	 * {@link PolynomialLensTransform} of dimension &lt; 16.
+	 */
+	final static protected void apply(
+			final CoordinateTransform t,
+			final double[] l,
+			final double[] px,
+			final double[] py) {
+		if (t instanceof PolynomialLensTransform && ((PolynomialLensTransform)t).getDimension() < px.length)
+			((PolynomialLensTransform)t).apply(l[0], l[1], l, 0, px, py);
+		else
+			t.applyInPlace(l);
+	}
+
+	/**
+	 * Evaluate <code>inverse</code> for all target pixels and refine each
+	 * source coordinate with <code>iterations</code> fixed point steps
+	 * s = s + inverse(q) - inverse(forward(s)) that reduce the residual of
+	 * an approximate inverse.  Rows are processed in parallel.
+	 */
+	final static public CoordinateMap create(
+			final CoordinateTransform inverse,
+			final CoordinateTransform forward,
+			final int iterations,
+			final double x0,
+			final double y0,
+			final int width,
+			final int height) {
+		final float[] x = new float[width * height];
+		final float[] y = new float[width * height];
+		IntStream.range(0, height).parallel().forEach(j -> {
+			final double[] px = new double[16];
+			final double[] py = new double[16];
+			final double[] s0 = new double[2];
+			final double[] s = new double[2];
+			final double[] r = new double[2];
+			for (int i = 0, k = j * width; i < width; ++i, ++k) {
+				s0[0] = x0 + i;
+				s0[1] = y0 + j;
+				apply(inverse, s0, px, py);
+				s[0] = s0[0];
+				s[1] = s0[1];
+				for (int it = 0; it < iterations; ++it) {
+					r[0] = s[0];
+					r[1] = s[1];
+					apply(forward, r, px, py);
+					apply(inverse, r, px, py);
+					s[0] += s0[0] - r[0];
+					s[1] += s0[1] - r[1];
+				}
+				x[k] = (float)s[0];
+				y[k] = (float)s[1];
+			}
+		});
+		return new CoordinateMap(width, height, x0, y0, x, y);
+	}
+
+	final static public CoordinateMap create(
+			final CoordinateTransform inverse,
+			final double x0,
+			final double y0,
+			final int width,
+			final int height) {
+		return create(inverse, null, 0, x0, y0, width, height);
+	}
+}
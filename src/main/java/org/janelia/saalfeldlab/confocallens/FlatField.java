@@ -0,0 +1,118 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+import java.util.WeakHashMap;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+/**
+ * Flat-field and dark-frame correction of one channel that is applied in
+ * the resampling loop of {@link Resampler}.  A raw value v at source pixel
+ * p is corrected to (v - dark(p)) * gain(p) with
+ * gain = mean(flat - dark) / (flat - dark), such that the corrected image
+ * keeps the mean intensity of the flat field.
+ *
+ * Offset and gain are looked up at the source coordinates of every target
+ * pixel of a {@link CoordinateMap} once and cached per map, the resampling
+ * loop then corrects each interpolated value before rounding.
+ *
+ * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
+ */
+public class FlatField {
+
+	final protected int width;
+	final protected int height;
+	final protected float[] dark;
+	final protected float[] gain;
+	final protected WeakHashMap<CoordinateMap, float[][]> targets = new WeakHashMap<CoordinateMap, float[][]>();
+
+	/**
+	 * @param flat flat-field image, or null for dark-frame subtraction only
+	 * @param dark dark frame of the same size, or null
+	 */
+	public FlatField(final ImageProcessor flat, final ImageProcessor dark) {
+		final ImageProcessor any = flat == null ? dark : flat;
+		width = any.getWidth();
+		height = any.getHeight();
+		if (dark != null && (dark.getWidth() != width || dark.getHeight() != height))
+			throw new IllegalArgumentException("The dark frame does not have the size of the flat field.");
+		final int n = width * height;
+		this.dark = new float[n];
+		gain = new float[n];
+		double sum = 0;
+		for (int i = 0; i < n; ++i) {
+			this.dark[i] = dark == null ? 0 : dark.getf(i);
+			gain[i] = flat == null ? 1 : flat.getf(i) - this.dark[i];
+			sum += gain[i];
+		}
+		final double mean = sum / n;
+		/* pixels without signal in the flat field are not amplified more than 1000x */
+		final double min = Math.max(1e-3 * Math.abs(mean), Float.MIN_NORMAL);
+		for (int i = 0; i < n; ++i)
+			gain[i] = (float)(mean / Math.max(min, gain[i]));
+	}
+
+	/**
+	 * One flat field per channel from images with one slice per channel
+	 * or a single slice that is used for all channels.
+	 *
+	 * @param flat may be null
+	 * @param dark may be null
+	 */
+	final static public FlatField[] create(final ImagePlus flat, final ImagePlus dark, final int numChannels) {
+		for (final ImagePlus imp : new ImagePlus[] {flat, dark})
+			if (imp != null && imp.getStackSize() != 1 && imp.getStackSize() != numChannels)
+				throw new IllegalArgumentException(imp.getTitle() + " has " + imp.getStackSize() + " slices for " + numChannels + " channels.");
+		final FlatField[] flatFields = new FlatField[numChannels];
+		for (int c = 0; c < numChannels; ++c) {
+			final ImageProcessor f = flat == null ? null : flat.getStack().getProcessor(flat.getStackSize() == 1 ? 1 : c + 1);
+			final ImageProcessor d = dark == null ? null : dark.getStack().getProcessor(dark.getStackSize() == 1 ? 1 : c + 1);
+			flatFields[c] = new FlatField(f, d);
+		}
+		return flatFields;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Dark offset and gain interpolated at the source coordinates of all
+	 * target pixels of <code>map</code>, computed on first use.
+	 *
+	 * @return {offsets, gains}
+	 */
+	synchronized public float[][] getTarget(final CoordinateMap map) {
+		float[][] target = targets.get(map);
+		if (target == null) {
+			final int n = map.getWidth() * map.getHeight();
+			final float[] offsets = new float[n];
+			final float[] gains = new float[n];
+			ResamplingKernel.bilinear(dark, width, height, map.getX(), map.getY(), 0, n, offsets);
+			ResamplingKernel.bilinear(gain, width, height, map.getX(), map.getY(), 0, n, gains);
+			target = new float[][] {offsets, gains};
+			targets.put(map, target);
+		}
+		return target;
+	}
+}
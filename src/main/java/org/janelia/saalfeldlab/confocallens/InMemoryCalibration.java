@@ -0,0 +1,396 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+import java.awt.geom.AffineTransform;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.json.JSONObject;
+
+import ij.process.ImageProcessor;
+import mpicbg.ij.SIFT;
+import mpicbg.imagefeatures.Feature;
+import mpicbg.imagefeatures.FeatureTransform;
+import mpicbg.imagefeatures.FloatArray2DSIFT;
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.CoordinateTransformList;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.RigidModel2D;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.trakem2.transform.CoordinateTransform;
+import mpicbg.trakem2.transform.NonLinearCoordinateTransform;
+
+/**
+ * Headless calibration on MIPs in memory, without a TrakEM2 project.
+ *
+ * For every layer (wavelength), features of all tiles are extracted in
+ * parallel (SIFT or beads), overlapping tiles are matched, and the lens
+ * model of the layer and the translations of its tiles are estimated with
+ * {@link LensModelFit}.  With a tile layout, SIFT features for the
+ * montage are extracted only in the overlap regions of each tile.  Every
+ * layer is then registered to the first with an affine estimated from
+ * correspondences between tiles at the same position in lens corrected
+ * coordinates.  Like {@link Automation}, the result is normalized by the
+ * rigid transform that best maps the first tile of all layers back to its
+ * pixel coordinates.
+ *
+ * With {@link #setWarmStart}, the lens models of a previous calibration
+ * are refined with {@link LensModelFit#refine} instead.  A layer whose
+ * refined model leaves a mean residual above the threshold is calibrated
+ * from scratch.
+ *
+ * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
+ */
+public class InMemoryCalibration {
+
+	/**
+	 * Features of one tile that can be matched with the features of
+	 * another tile of the same kind.
+	 */
+	static interface TileFeatures {
+
+		public ArrayList<PointMatch> matchCandidates(TileFeatures other);
+	}
+
+	static class SIFTFeatures implements TileFeatures {
+
+		final ArrayList<Feature> features;
+		final float rod;
+
+		SIFTFeatures(final ArrayList<Feature> features, final float rod) {
+			this.features = features;
+			this.rod = rod;
+		}
+
+		@Override
+		public ArrayList<PointMatch> matchCandidates(final TileFeatures other) {
+			final ArrayList<PointMatch> candidates = new ArrayList<PointMatch>();
+			FeatureTransform.matchFeatures(features, ((SIFTFeatures)other).features, candidates, rod);
+			return candidates;
+		}
+	}
+
+	static class BeadFeatures implements TileFeatures {
+
+		final ArrayList<double[]> beads;
+		final int numNeighbors;
+		final double rod;
+
+		BeadFeatures(final ArrayList<double[]> beads, final int numNeighbors, final double rod) {
+			this.beads = beads;
+			this.numNeighbors = numNeighbors;
+			this.rod = rod;
+		}
+
+		@Override
+		public ArrayList<PointMatch> matchCandidates(final TileFeatures other) {
+			return BeadDetector.matchCandidates(beads, ((BeadFeatures)other).beads, numNeighbors, rod);
+		}
+	}
+
+	final protected JSONObject montageParam;
+	final protected JSONObject alignParam;
+	final protected JSONObject beadParam;
+	final protected JSONObject fitParam;
+	final protected int dimension;
+
+	protected List<? extends mpicbg.models.CoordinateTransform> warmStartModels = null;
+	protected JSONObject warmStartParam = null;
+	protected double maxResidual;
+
+	protected ArrayList<LensModelFit> fits;
+
+	/**
+	 * @param montageParam <code>montageLayers</code> parameters, SIFT and
+	 *   RANSAC for matching tiles of a layer
+	 * @param alignParam <code>alignLayers3</code> parameters, SIFT and
+	 *   RANSAC for matching layers
+	 * @param beadParam <code>beads</code> parameters, if not null, beads
+	 *   instead of SIFT features are matched
+	 * @param fitParam <code>beads</code> parameters <code>lambda</code>,
+	 *   <code>meanFactor</code> and <code>iterations</code> of the
+	 *   {@link LensModelFit}, used with either matcher
+	 * @param dimension polynomial degree of the lens models
+	 */
+	public InMemoryCalibration(
+			final JSONObject montageParam,
+			final JSONObject alignParam,
+			final JSONObject beadParam,
+			final JSONObject fitParam,
+			final int dimension) {
+		this.montageParam = montageParam;
+		this.alignParam = alignParam;
+		this.beadParam = beadParam;
+		this.fitParam = fitParam;
+		this.dimension = dimension;
+	}
+
+	/**
+	 * Refine the lens models of a previous calibration instead of
+	 * estimating them from scratch.
+	 *
+	 * @param lensModels previous lens model of each layer
+	 * @param warmStartParam <code>warmStart</code> parameters,
+	 *   <code>lambda</code>, <code>meanFactor</code> and
+	 *   <code>iterations</code> of the refinement
+	 * @param maxResidual mean residual in px above which a layer is
+	 *   calibrated from scratch
+	 */
+	public void setWarmStart(
+			final List<? extends mpicbg.models.CoordinateTransform> lensModels,
+			final JSONObject warmStartParam,
+			final double maxResidual) {
+		this.warmStartModels = lensModels;
+		this.warmStartParam = warmStartParam;
+		this.maxResidual = maxResidual;
+	}
+
+	final static protected FloatArray2DSIFT.Param createSIFTParam(final JSONObject jo, final String prefix) {
+		final FloatArray2DSIFT.Param sift = new FloatArray2DSIFT.Param();
+		sift.initialSigma = (float)jo.getDouble(prefix + "initialSigma");
+		sift.steps = jo.getInt(prefix + "steps");
+		sift.minOctaveSize = jo.getInt(prefix + "minOctaveSize");
+		sift.maxOctaveSize = jo.getInt(prefix + "maxOctaveSize");
+		sift.fdSize = jo.getInt(prefix + "fdSize");
+		sift.fdBins = jo.getInt(prefix + "fdBins");
+		return sift;
+	}
+
+	/**
+	 * @param layout if not null, SIFT features are extracted only in the
+	 *   overlap regions of each tile
+	 */
+	protected ArrayList<TileFeatures> extract(
+			final List<ImageProcessor> tiles,
+			final JSONObject param,
+			final String prefix,
+			final TileLayout layout) {
+		if (beadParam != null) {
+			final BeadDetector detector = new BeadDetector(beadParam.getDouble("sigma"), beadParam.getDouble("threshold"));
+			final int numNeighbors = beadParam.getInt("numNeighbors");
+			final double rod = beadParam.getDouble("rod");
+			return tiles.parallelStream()
+					.map(ip -> new BeadFeatures(detector.detect(ip), numNeighbors, rod))
+					.collect(Collectors.toCollection(ArrayList::new));
+		} else {
+			final FloatArray2DSIFT.Param sift = createSIFTParam(param, prefix);
+			final float rod = (float)param.getDouble("rod");
+			if (layout != null) {
+				final int margin = (int)Math.ceil(maxEpsilon(param));
+				return IntStream.range(0, tiles.size()).parallel()
+						.mapToObj(i -> new SIFTFeatures(layout.extractOverlapFeatures(i, tiles.get(i), margin, sift), rod))
+						.collect(Collectors.toCollection(ArrayList::new));
+			}
+			return tiles.parallelStream()
+					.map(ip -> {
+						final ArrayList<Feature> features = new ArrayList<Feature>();
+						new SIFT(new FloatArray2DSIFT(sift)).extractFeatures(ip, features);
+						return new SIFTFeatures(features, rod);
+					})
+					.collect(Collectors.toCollection(ArrayList::new));
+		}
+	}
+
+	/**
+	 * Candidates consistent with a translation in local coordinates.
+	 */
+	final static protected ArrayList<PointMatch> filter(
+			final ArrayList<PointMatch> candidates,
+			final double maxEpsilon,
+			final int minNumInliers) {
+		final ArrayList<PointMatch> inliers = new ArrayList<PointMatch>();
+		try {
+			if (!new TranslationModel2D().filterRansac(candidates, inliers, 1000, maxEpsilon, 0, minNumInliers))
+				inliers.clear();
+		} catch (final NotEnoughDataPointsException e) {
+			inliers.clear();
+		}
+		return inliers;
+	}
+
+	final protected double maxEpsilon(final JSONObject param) {
+		return beadParam == null ? param.getDouble("maxEpsilon") : beadParam.getDouble("maxEpsilon");
+	}
+
+	final protected int minNumInliers(final JSONObject param) {
+		return beadParam == null ? param.getInt("minNumInliers") : beadParam.getInt("minNumInliers");
+	}
+
+	/**
+	 * Calibrate.
+	 *
+	 * @param layers tiles of each layer in acquisition order, all of the
+	 *   same size
+	 * @param layout may be null, then all pairs of tiles are tested
+	 * @return lens model and affine of each layer
+	 * @throws Exception if a layer cannot be calibrated
+	 */
+	public ArrayList<CoordinateTransformList<CoordinateTransform>> run(
+			final List<? extends List<ImageProcessor>> layers,
+			final TileLayout layout) throws Exception {
+
+		if (warmStartModels != null && warmStartModels.size() != layers.size())
+			throw new IllegalArgumentException("Warm start has " + warmStartModels.size() + " lens models for " + layers.size() + " layers.");
+
+		final int numTiles = layers.get(0).size();
+		final int width = layers.get(0).get(0).getWidth();
+		final int height = layers.get(0).get(0).getHeight();
+
+		final ArrayList<int[]> pairs = new ArrayList<int[]>();
+		if (layout != null)
+			pairs.addAll(layout.getNeighborPairs());
+		else
+			for (int i = 0; i < numTiles; ++i)
+				for (int j = i + 1; j < numTiles; ++j)
+					pairs.add(new int[] {i, j});
+
+		/* lens model and tile translations per layer */
+		fits = new ArrayList<LensModelFit>();
+		final ArrayList<ArrayList<TileFeatures>> alignFeatures = new ArrayList<ArrayList<TileFeatures>>();
+		for (int l = 0; l < layers.size(); ++l) {
+			final ArrayList<TileFeatures> features = extract(layers.get(l), montageParam, "", layout);
+			final ArrayList<ArrayList<PointMatch>> matches = pairs.parallelStream()
+					.map(pair -> filter(
+							features.get(pair[0]).matchCandidates(features.get(pair[1])),
+							maxEpsilon(montageParam),
+							minNumInliers(montageParam)))
+					.collect(Collectors.toCollection(ArrayList::new));
+			LensModelFit fit = null;
+			if (warmStartModels != null) {
+				fit = LensModelFit.refine(
+						warmStartModels.get(l),
+						numTiles,
+						pairs,
+						matches,
+						dimension,
+						width,
+						height,
+						warmStartParam.getDouble("lambda"),
+						warmStartParam.getDouble("meanFactor"),
+						warmStartParam.getInt("iterations"));
+				if (fit.getMeanResidual() > maxResidual) {
+					System.out.println("layer " + l + " refined lens model: " + fit + ", residual exceeds " + maxResidual + "px, running full calibration.");
+					fit = null;
+				} else
+					System.out.println("layer " + l + " refined lens model: " + fit);
+			}
+			if (fit == null) {
+				fit = LensModelFit.fit(
+						numTiles,
+						pairs,
+						matches,
+						dimension,
+						width,
+						height,
+						fitParam.getDouble("lambda"),
+						fitParam.getDouble("meanFactor"),
+						fitParam.getInt("iterations"));
+				System.out.println("layer " + l + " lens model: " + fit);
+			}
+			fits.add(fit);
+			alignFeatures.add(beadParam == null ? extract(layers.get(l), alignParam, "SIFT", null) : features);
+		}
+
+		/* affine of each layer to the first layer */
+		final ArrayList<AffineTransform> affines = new ArrayList<AffineTransform>();
+		affines.add(new AffineTransform());
+		for (int l = 1; l < layers.size(); ++l) {
+			final int layer = l;
+			final ArrayList<PointMatch> worldMatches = new ArrayList<PointMatch>();
+			for (int k = 0; k < numTiles; ++k) {
+				final ArrayList<PointMatch> inliers = filter(
+						alignFeatures.get(layer).get(k).matchCandidates(alignFeatures.get(0).get(k)),
+						maxEpsilon(alignParam),
+						minNumInliers(alignParam));
+				for (final PointMatch m : inliers)
+					worldMatches.add(new PointMatch(
+							new Point(toWorld(layer, k, m.getP1().getL())),
+							new Point(toWorld(0, k, m.getP2().getL()))));
+			}
+			final AffineModel2D model = new AffineModel2D();
+			model.fit(worldMatches);
+			System.out.println("layer " + l + " affine from " + worldMatches.size() + " matches");
+			affines.add(model.createAffine());
+		}
+
+		/* per layer [lens, affine], the world coordinates of a layer are those of its tile 0 */
+		final ArrayList<CoordinateTransformList<CoordinateTransform>> models = new ArrayList<CoordinateTransformList<CoordinateTransform>>();
+		for (int l = 0; l < layers.size(); ++l) {
+			final NonLinearCoordinateTransform lens = new NonLinearCoordinateTransform();
+			lens.init(fits.get(l).getLens().toDataString());
+			final CoordinateTransformList<CoordinateTransform> ctl = new CoordinateTransformList<CoordinateTransform>();
+			ctl.add(lens);
+			ctl.add(createAffineModel(affines.get(l)));
+			models.add(ctl);
+		}
+
+		/* rigid normalization, see Automation.samplePoints */
+		final ArrayList<PointMatch> samples = new ArrayList<PointMatch>();
+		final double scaleX = (width - 1.0) / 63.0;
+		final double scaleY = (height - 1.0) / 63.0;
+		for (final CoordinateTransformList<CoordinateTransform> ctl : models) {
+			for (int y = 0; y < 64; ++y) {
+				for (int x = 0; x < 64; ++x) {
+					final double[] l = new double[] {scaleX * x, scaleY * y};
+					final Point q = new Point(l.clone());
+					ctl.applyInPlace(l);
+					samples.add(new PointMatch(new Point(l), q));
+				}
+			}
+		}
+		final RigidModel2D rigid = new RigidModel2D();
+		rigid.fit(samples);
+		for (final CoordinateTransformList<CoordinateTransform> ctl : models) {
+			final mpicbg.trakem2.transform.AffineModel2D affine = (mpicbg.trakem2.transform.AffineModel2D)ctl.get(1);
+			final AffineTransform at = affine.createAffine();
+			at.preConcatenate(rigid.createAffine());
+			affine.set(at);
+		}
+
+		return models;
+	}
+
+	/**
+	 * World coordinates of a local coordinate of tile k in layer l, i.e.
+	 * lens corrected and translated, relative to tile 0.
+	 */
+	protected double[] toWorld(final int l, final int k, final double[] local) {
+		final double[] world = fits.get(l).getLens().apply(local);
+		final double[] t = fits.get(l).getTranslation(k);
+		world[0] += t[0];
+		world[1] += t[1];
+		return world;
+	}
+
+	/**
+	 * Lens model fits of the last run.
+	 */
+	public List<LensModelFit> getFits() {
+		return fits;
+	}
+
+	final static private mpicbg.trakem2.transform.AffineModel2D createAffineModel(final AffineTransform at) {
+		final mpicbg.trakem2.transform.AffineModel2D model = new mpicbg.trakem2.transform.AffineModel2D();
+		model.set(at);
+		return model;
+	}
+}
@@ -0,0 +1,70 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+/**
+ * Interpolation methods of {@link Resampler}.  Bilinear interpolation
+ * uses {@link ResamplingKernel}, the separable higher order kernels
+ * use {@link InterpolationWeights} that are computed once per
+ * {@link CoordinateMap}.
+ *
+ * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
+ */
+public enum Interpolation {
+
+	BILINEAR(2),
+	/* Keys cubic convolution with a = -0.5 like ImageJ's BICUBIC */
+	BICUBIC(4),
+	LANCZOS3(6);
+
+	final public int taps;
+
+	private Interpolation(final int taps) {
+		this.taps = taps;
+	}
+
+	/**
+	 * Kernel weight at distance <code>d</code> from the sample.
+	 */
+	public double weight(final double d) {
+		final double a = Math.abs(d);
+		switch (this) {
+		case BILINEAR:
+			return a < 1 ? 1 - a : 0;
+		case BICUBIC:
+			if (a <= 1)
+				return (1.5 * a - 2.5) * a * a + 1;
+			if (a < 2)
+				return ((-0.5 * a + 2.5) * a - 4) * a + 2;
+			return 0;
+		default:
+			if (a < 1e-8)
+				return 1;
+			if (a >= 3)
+				return 0;
+			final double pa = Math.PI * a;
+			return 3 * Math.sin(pa) * Math.sin(pa / 3) / (pa * pa);
+		}
+	}
+
+	/**
+	 * Parse 'bilinear', 'bicubic', or 'lanczos3'.
+	 */
+	final static public Interpolation fromString(final String name) {
+		return valueOf(name.trim().toUpperCase());
+	}
+}
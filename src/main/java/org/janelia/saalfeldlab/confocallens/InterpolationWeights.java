@@ -0,0 +1,306 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+import java.util.stream.IntStream;
+
+/**
+ * Precomputed separable kernel weights of an {@link Interpolation} for
+ * every target pixel of a {@link CoordinateMap}.  For target pixel k,
+ * <code>taps</code> weights in x and y start at the source pixel
+ * (x0[k], y0[k]).  The weights only depend on the map, so they are
+ * computed once and shared by all slices and channels that are resampled
+ * through the map, see {@link CoordinateMap#getWeights(Interpolation)}.
+ * Weights are normalized to sum to 1, source pixels beyond the border
+ * are clamped.
+ *
+ * Like the bilinear {@link ResamplingKernel}, target pixels whose source
+ * coordinate is outside of [0, sw - 1] x [0, sh - 1] are not touched.
+ * Integer results are rounded half up and clamped to the range of the
+ * type because higher order kernels overshoot.
+ *
+ * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
+ */
+public class InterpolationWeights {
+
+	final protected Interpolation interpolation;
+	final protected int taps;
+	final protected float[] xs;
+	final protected float[] ys;
+	final protected int[] x0;
+	final protected int[] y0;
+	final protected float[] wx;
+	final protected float[] wy;
+
+	public InterpolationWeights(final CoordinateMap map, final Interpolation interpolation) {
+		this.interpolation = interpolation;
+		taps = interpolation.taps;
+		xs = map.getX();
+		ys = map.getY();
+		final int n = xs.length;
+		x0 = new int[n];
+		y0 = new int[n];
+		wx = new float[n * taps];
+		wy = new float[n * taps];
+		final int width = map.getWidth();
+		IntStream.range(0, map.getHeight()).parallel().forEach(j -> {
+			for (int k = j * width, e = k + width; k < e; ++k) {
+				x0[k] = weights(xs[k], wx, k * taps);
+				y0[k] = weights(ys[k], wy, k * taps);
+			}
+		});
+	}
+
+	/**
+	 * Normalized weights for the taps around <code>x</code>.
+	 *
+	 * @return the first tap
+	 */
+	final protected int weights(final float x, final float[] w, final int offset) {
+		final int first = (int)Math.floor(x) - taps / 2 + 1;
+		double sum = 0;
+		for (int i = 0; i < taps; ++i) {
+			final double wi = interpolation.weight(x - first - i);
+			w[offset + i] = (float)wi;
+			sum += wi;
+		}
+		for (int i = 0; i < taps; ++i)
+			w[offset + i] /= sum;
+		return first;
+	}
+
+	public Interpolation getInterpolation() {
+		return interpolation;
+	}
+
+	/**
+	 * @return the size of the tables in bytes
+	 */
+	public long bytes() {
+		return 8L * x0.length + 8L * wx.length;
+	}
+
+	final static private int clamp(final int i, final int n) {
+		return i < 0 ? 0 : i >= n ? n - 1 : i;
+	}
+
+	final protected boolean inside(final int k, final int sw, final int sh) {
+		final float x = xs[k];
+		final float y = ys[k];
+		return x >= 0 && y >= 0 && x <= sw - 1 && y <= sh - 1;
+	}
+
+	final protected float sample(final byte[] src, final int sw, final int sh, final int k) {
+		final int ox = x0[k];
+		final int oy = y0[k];
+		final int o = k * taps;
+		float sum = 0;
+		if (ox >= 0 && oy >= 0 && ox + taps <= sw && oy + taps <= sh) {
+			for (int j = 0, row = oy * sw + ox; j < taps; ++j, row += sw) {
+				float r = 0;
+				for (int i = 0; i < taps; ++i)
+					r += wx[o + i] * (src[row + i] & 0xff);
+				sum += wy[o + j] * r;
+			}
+		} else {
+			for (int j = 0; j < taps; ++j) {
+				final int row = clamp(oy + j, sh) * sw;
+				float r = 0;
+				for (int i = 0; i < taps; ++i)
+					r += wx[o + i] * (src[row + clamp(ox + i, sw)] & 0xff);
+				sum += wy[o + j] * r;
+			}
+		}
+		return sum;
+	}
+
+	final protected float sample(final short[] src, final int sw, final int sh, final int k) {
+		final int ox = x0[k];
+		final int oy = y0[k];
+		final int o = k * taps;
+		float sum = 0;
+		if (ox >= 0 && oy >= 0 && ox + taps <= sw && oy + taps <= sh) {
+			for (int j = 0, row = oy * sw + ox; j < taps; ++j, row += sw) {
+				float r = 0;
+				for (int i = 0; i < taps; ++i)
+					r += wx[o + i] * (src[row + i] & 0xffff);
+				sum += wy[o + j] * r;
+			}
+		} else {
+			for (int j = 0; j < taps; ++j) {
+				final int row = clamp(oy + j, sh) * sw;
+				float r = 0;
+				for (int i = 0; i < taps; ++i)
+					r += wx[o + i] * (src[row + clamp(ox + i, sw)] & 0xffff);
+				sum += wy[o + j] * r;
+			}
+		}
+		return sum;
+	}
+
+	final protected float sample(final float[] src, final int sw, final int sh, final int k) {
+		final int ox = x0[k];
+		final int oy = y0[k];
+		final int o = k * taps;
+		float sum = 0;
+		if (ox >= 0 && oy >= 0 && ox + taps <= sw && oy + taps <= sh) {
+			for (int j = 0, row = oy * sw + ox; j < taps; ++j, row += sw) {
+				float r = 0;
+				for (int i = 0; i < taps; ++i)
+					r += wx[o + i] * src[row + i];
+				sum += wy[o + j] * r;
+			}
+		} else {
+			for (int j = 0; j < taps; ++j) {
+				final int row = clamp(oy + j, sh) * sw;
+				float r = 0;
+				for (int i = 0; i < taps; ++i)
+					r += wx[o + i] * src[row + clamp(ox + i, sw)];
+				sum += wy[o + j] * r;
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * One color channel of ARGB pixels.
+	 */
+	final protected float sample(final int[] src, final int shift, final int sw, final int sh, final int k) {
+		final int ox = x0[k];
+		final int oy = y0[k];
+		final int o = k * taps;
+		float sum = 0;
+		for (int j = 0; j < taps; ++j) {
+			final int row = clamp(oy + j, sh) * sw;
+			float r = 0;
+			for (int i = 0; i < taps; ++i)
+				r += wx[o + i] * ((src[row + clamp(ox + i, sw)] >> shift) & 0xff);
+			sum += wy[o + j] * r;
+		}
+		return sum;
+	}
+
+	final static private int round(final float v, final int max) {
+		final int i = (int)Math.floor(v + 0.5f);
+		return i < 0 ? 0 : i > max ? max : i;
+	}
+
+	/**
+	 * Interpolate <code>src0</code>, or if <code>w</code> &gt; 0, blend
+	 * <code>src0</code> and <code>src1</code> with weight <code>w</code>
+	 * for <code>src1</code>, into <code>dst[k]</code> for
+	 * <code>offset &lt;= k &lt; offset + length</code>.  If
+	 * <code>gains</code> is not null, the interpolated value v is corrected
+	 * to (v - offsets[k]) * gains[k] before rounding, see
+	 * {@link FlatField}.
+	 */
+	public void interpolate(
+			final byte[] src0,
+			final byte[] src1,
+			final float w,
+			final int sw,
+			final int sh,
+			final int offset,
+			final int length,
+			final byte[] dst,
+			final float[] offsets,
+			final float[] gains) {
+		for (int k = offset, e = offset + length; k < e; ++k) {
+			if (inside(k, sw, sh)) {
+				float v = sample(src0, sw, sh, k);
+				if (w > 0)
+					v += w * (sample(src1, sw, sh, k) - v);
+				if (gains != null)
+					v = (v - offsets[k]) * gains[k];
+				dst[k] = (byte)round(v, 0xff);
+			}
+		}
+	}
+
+	public void interpolate(
+			final short[] src0,
+			final short[] src1,
+			final float w,
+			final int sw,
+			final int sh,
+			final int offset,
+			final int length,
+			final short[] dst,
+			final float[] offsets,
+			final float[] gains) {
+		for (int k = offset, e = offset + length; k < e; ++k) {
+			if (inside(k, sw, sh)) {
+				float v = sample(src0, sw, sh, k);
+				if (w > 0)
+					v += w * (sample(src1, sw, sh, k) - v);
+				if (gains != null)
+					v = (v - offsets[k]) * gains[k];
+				dst[k] = (short)round(v, 0xffff);
+			}
+		}
+	}
+
+	public void interpolate(
+			final float[] src0,
+			final float[] src1,
+			final float w,
+			final int sw,
+			final int sh,
+			final int offset,
+			final int length,
+			final float[] dst,
+			final float[] offsets,
+			final float[] gains) {
+		for (int k = offset, e = offset + length; k < e; ++k) {
+			if (inside(k, sw, sh)) {
+				float v = sample(src0, sw, sh, k);
+				if (w > 0)
+					v += w * (sample(src1, sw, sh, k) - v);
+				if (gains != null)
+					v = (v - offsets[k]) * gains[k];
+				dst[k] = v;
+			}
+		}
+	}
+
+	public void interpolate(
+			final int[] src0,
+			final int[] src1,
+			final float w,
+			final int sw,
+			final int sh,
+			final int offset,
+			final int length,
+			final int[] dst,
+			final float[] offsets,
+			final float[] gains) {
+		for (int k = offset, e = offset + length; k < e; ++k) {
+			if (inside(k, sw, sh)) {
+				int rgb = 0xff000000;
+				for (int shift = 0; shift < 24; shift += 8) {
+					float v = sample(src0, shift, sw, sh, k);
+					if (w > 0)
+						v += w * (sample(src1, shift, sw, sh, k) - v);
+					if (gains != null)
+						v = (v - offsets[k]) * gains[k];
+					rgb |= round(v, 0xff) << shift;
+				}
+				dst[k] = rgb;
+			}
+		}
+	}
+}
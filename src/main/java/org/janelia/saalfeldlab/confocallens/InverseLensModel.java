@@ -0,0 +1,223 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+import java.awt.Rectangle;
+
+import mpicbg.models.CoordinateTransform;
+
+/**
+ * A lens model together with a fitted polynomial inverse that maps target
+ * coordinates back into the source image, and the bounding box of the
+ * transformed source image.  With the inverse, every target pixel can pull
+ * its value from the source directly which is what {@link Resampler} does.
+ *
+ * The residual of the inverse, |forward(inverse(q)) - q|, is estimated on
+ * samples that were not used for the fit.  If it exceeds
+ * {@link #maxRefinedResidual}, coordinate maps are refined with a few fixed
+ * point iterations against the forward model.
+ */
+public class InverseLensModel {
+
+	final static public int DEFAULT_DIMENSION = 5;
+	final static public int DEFAULT_SAMPLES = 64;
+
+	static public double maxRefinedResidual = 0.01;
+	static public int refinementIterations = 2;
+
+	final protected CoordinateTransform forward;
+	final protected PolynomialLensTransform inverse;
+	final protected int sourceWidth;
+	final protected int sourceHeight;
+	final protected Rectangle bounds;
+	final protected double meanResidual;
+	final protected double maxResidual;
+
+	protected InverseLensModel(
+			final CoordinateTransform forward,
+			final PolynomialLensTransform inverse,
+			final int sourceWidth,
+			final int sourceHeight,
+			final Rectangle bounds,
+			final double meanResidual,
+			final double maxResidual) {
+		this.forward = forward;
+		this.inverse = inverse;
+		this.sourceWidth = sourceWidth;
+		this.sourceHeight = sourceHeight;
+		this.bounds = bounds;
+		this.meanResidual = meanResidual;
+		this.maxResidual = maxResidual;
+	}
+
+	/**
+	 * Fit the inverse of <code>t</code> over a source image of the given
+	 * size by a polynomial of the given dimension on
+	 * <code>samples</code> x <code>samples</code> grid points.
+	 */
+	final static public InverseLensModel fit(
+			final CoordinateTransform t,
+			final int sourceWidth,
+			final int sourceHeight,
+			final int dimension,
+			final int samples) {
+		final CoordinateTransform forward = LensTransforms.flatten(t);
+
+		final int n = samples * samples;
+		final double[] xs = new double[n];
+		final double[] ys = new double[n];
+		final double[] txs = new double[n];
+		final double[] tys = new double[n];
+		final double sx = (double)sourceWidth / (samples - 1);
+		final double sy = (double)sourceHeight / (samples - 1);
+		final double[] l = new double[2];
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+		double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		for (int j = 0, k = 0; j < samples; ++j) {
+			for (int i = 0; i < samples; ++i, ++k) {
+				l[0] = xs[k] = i * sx;
+				l[1] = ys[k] = j * sy;
+				forward.applyInPlace(l);
+				txs[k] = l[0];
+				tys[k] = l[1];
+				minX = Math.min(minX, l[0]);
+				minY = Math.min(minY, l[1]);
+				maxX = Math.max(maxX, l[0]);
+				maxY = Math.max(maxY, l[1]);
+			}
+		}
+
+		final int bx = (int)Math.floor(minX);
+		final int by = (int)Math.floor(minY);
+		final Rectangle bounds = new Rectangle(
+				bx,
+				by,
+				(int)Math.ceil(maxX - bx),
+				(int)Math.ceil(maxY - by));
+
+		final PolynomialLensTransform inverse = PolynomialLensTransform.fit(
+				dimension,
+				txs,
+				tys,
+				xs,
+				ys,
+				bounds.width,
+				bounds.height,
+				1e-12);
+
+		/* residual between the fitted samples */
+		double sum = 0, max = 0;
+		int m = 0;
+		for (int j = 0; j < samples - 1; ++j) {
+			for (int i = 0; i < samples - 1; ++i, ++m) {
+				l[0] = (i + 0.5) * sx;
+				l[1] = (j + 0.5) * sy;
+				forward.applyInPlace(l);
+				final double qx = l[0];
+				final double qy = l[1];
+				inverse.applyInPlace(l);
+				forward.applyInPlace(l);
+				final double d = Math.sqrt((l[0] - qx) * (l[0] - qx) + (l[1] - qy) * (l[1] - qy));
+				sum += d;
+				max = Math.max(max, d);
+			}
+		}
+
+		return new InverseLensModel(forward, inverse, sourceWidth, sourceHeight, bounds, sum / m, max);
+	}
+
+	final static public InverseLensModel fit(
+			final CoordinateTransform t,
+			final int sourceWidth,
+			final int sourceHeight) {
+		return fit(t, sourceWidth, sourceHeight, DEFAULT_DIMENSION, DEFAULT_SAMPLES);
+	}
+
+	public CoordinateTransform getForward() {
+		return forward;
+	}
+
+	public PolynomialLensTransform getInverse() {
+		return inverse;
+	}
+
+	public int getSourceWidth() {
+		return sourceWidth;
+	}
+
+	public int getSourceHeight() {
+		return sourceHeight;
+	}
+
+	/**
+	 * @return the bounding box of the transformed source image
+	 */
+	public Rectangle getBounds() {
+		return new Rectangle(bounds);
+	}
+
+	public double getMeanResidual() {
+		return meanResidual;
+	}
+
+	public double getMaxResidual() {
+		return maxResidual;
+	}
+
+	/**
+	 * Create the {@link CoordinateMap} for the transformed image with
+	 * <code>cropWidth</code> pixels removed on each side, placed at
+	 * (<code>offsetX</code>, <code>offsetY</code>) in a global frame.  The
+	 * target raster starts at the integer global position
+	 * (floor(bounds.x + cropWidth + offsetX), floor(bounds.y + cropWidth + offsetY))
+	 * which is the origin of the returned map, the sub-pixel remainder of
+	 * the placement is part of the source coordinates.
+	 */
+	public CoordinateMap createCoordinateMap(final int cropWidth, final double offsetX, final double offsetY) {
+		final double x0 = Math.floor(bounds.x + cropWidth + offsetX);
+		final double y0 = Math.floor(bounds.y + cropWidth + offsetY);
+		final CoordinateMap map = CoordinateMap.create(
+				inverse,
+				forward,
+				maxResidual > maxRefinedResidual ? refinementIterations : 0,
+				x0 - offsetX,
+				y0 - offsetY,
+				bounds.width - 2 * cropWidth,
+				bounds.height - 2 * cropWidth);
+		return new CoordinateMap(map.getWidth(), map.getHeight(), x0, y0, map.getX(), map.getY());
+	}
+
+	/**
+	 * Create the {@link CoordinateMap} for the transformed image with
+	 * <code>cropWidth</code> pixels removed on each side, i.e. the same
+	 * target raster that the mesh based createTransformedStack produces.
+	 */
+	public CoordinateMap createCoordinateMap(final int cropWidth) {
+		return createCoordinateMap(cropWidth, 0, 0);
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"inverse lens model %dx%d -> %s, inverse residual mean %.5fpx, max %.5fpx",
+				sourceWidth,
+				sourceHeight,
+				bounds,
+				meanResidual,
+				maxResidual);
+	}
+}
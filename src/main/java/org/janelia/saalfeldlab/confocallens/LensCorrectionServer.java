@@ -0,0 +1,525 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.io.IOUtils;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import mpicbg.models.CoordinateTransform;
+import mpicbg.trakem2.transform.NonLinearCoordinateTransform;
+import mpicbg.trakem2.transform.TransformMesh;
+
+/**
+ * Lens correction server that keeps one JVM alive for many {@link Apply}
+ * jobs.  It listens on a local HTTP port and accepts:
+ *
+ * <dl>
+ * <dt><code>POST /apply</code></dt>
+ * <dd>a job <code>{"input" : path, "output" : path, "model" : name or
+ *   lens model, "crop" : 0, "resampling" : "mesh" | "map",
+ *   "interpolation" : "bilinear" | "bicubic" | "lanczos3",
+ *   "flatField" : path, "darkFrame" : path, "summary" : "max,mean,stats",
+ *   "compression" : "lzw" | "deflate" | "none", "tileSize" : 256,
+ *   "predictor" : true}</code>, responds when the job is done,</dd>
+ * <dt><code>POST /models</code></dt>
+ * <dd><code>{"path" : models.json}</code>, registers the named models
+ *   exported by {@link Automation}, JSON or {@link BinaryLensModels},</dd>
+ * <dt><code>GET /stats</code></dt>
+ * <dd>queue depth, job counts, latencies and cache hit rates,</dd>
+ * <dt><code>POST /shutdown</code></dt>
+ * <dd>rejects further jobs, finishes queued jobs and exits.</dd>
+ * </dl>
+ *
+ * Parsed models, coordinate maps with their interpolation weights, and
+ * meshes are cached across jobs by model checksum, image size and crop
+ * width, such that a model registered again under the same name is not
+ * served from stale maps.  Flat fields are cached by their paths and
+ * number of channels.  Coordinate maps are also bounded by their size in
+ * bytes, Lanczos-3 weights alone take 56 bytes per target pixel.
+ * Jobs run on a fixed number of workers, further jobs wait in the queue.
+ *
+ * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
+ */
+public class LensCorrectionServer {
+
+	final static public int DEFAULT_PORT = 8512;
+	final static public int DEFAULT_CACHE_SIZE = 16;
+
+	/**
+	 * Default bound of the coordinate map cache, a quarter of the heap.
+	 */
+	final static public long DEFAULT_MAP_CACHE_BYTES = Runtime.getRuntime().maxMemory() / 4;
+	final static public int MESH_RESOLUTION = 128;
+	final static public int LATENCY_WINDOW = 1000;
+
+	/**
+	 * Seconds that {@link #stop()} waits for responses of finished jobs.
+	 */
+	final static public int STOP_DELAY = 5;
+
+	/**
+	 * Least recently used cache with hit statistics, bounded by the number
+	 * of entries and optionally by their size in bytes.
+	 */
+	final static protected class Cache<T> {
+
+		final protected LinkedHashMap<String, T> map;
+		final protected long maxBytes;
+		final protected ToLongFunction<T> bytes;
+		protected long hits = 0;
+		protected long misses = 0;
+
+		public Cache(final int size) {
+			this(size, Long.MAX_VALUE, null);
+		}
+
+		/**
+		 * @param size maximum number of entries
+		 * @param maxBytes maximum size of all entries, the most recently
+		 *   used entry is kept even if it is larger
+		 * @param bytes size of an entry, may grow while it is cached
+		 */
+		public Cache(final int size, final long maxBytes, final ToLongFunction<T> bytes) {
+			this.maxBytes = maxBytes;
+			this.bytes = bytes;
+			map = new LinkedHashMap<String, T>(16, 0.75f, true) {
+
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(final Map.Entry<String, T> eldest) {
+					return size() > size;
+				}
+			};
+		}
+
+		/**
+		 * Cached value or the computed value for a missing key.  Values are
+		 * computed outside of the lock, concurrent misses of the same key
+		 * may compute it twice.
+		 */
+		public T get(final String key, final Function<String, T> compute) {
+			synchronized (this) {
+				final T value = map.get(key);
+				if (value != null) {
+					++hits;
+					return value;
+				}
+				++misses;
+			}
+			final T value = compute.apply(key);
+			synchronized (this) {
+				map.put(key, value);
+				trim();
+			}
+			return value;
+		}
+
+		synchronized protected long bytes() {
+			long sum = 0;
+			if (bytes != null)
+				for (final T value : map.values())
+					sum += bytes.applyAsLong(value);
+			return sum;
+		}
+
+		/**
+		 * Evict least recently used entries until the size in bytes is
+		 * within the bound.  Call after entries have grown.
+		 */
+		synchronized public void trim() {
+			if (bytes == null)
+				return;
+			long sum = bytes();
+			for (final Iterator<T> i = map.values().iterator(); sum > maxBytes && map.size() > 1;) {
+				sum -= bytes.applyAsLong(i.next());
+				i.remove();
+			}
+		}
+
+		synchronized public JSONObject stats() {
+			final JSONObject jo = new JSONObject()
+					.put("size", map.size())
+					.put("hits", hits)
+					.put("misses", misses);
+			if (bytes != null)
+				jo.put("bytes", bytes());
+			return jo;
+		}
+	}
+
+	/**
+	 * Latencies of the most recent jobs.
+	 */
+	final static protected class Latencies {
+
+		final protected double[] window = new double[LATENCY_WINDOW];
+		protected long n = 0;
+		protected double max = 0;
+		protected double sum = 0;
+
+		synchronized public void add(final double seconds) {
+			window[(int)(n++ % window.length)] = seconds;
+			max = Math.max(max, seconds);
+			sum += seconds;
+		}
+
+		synchronized public JSONObject stats() {
+			final double[] recent = Arrays.copyOf(window, (int)Math.min(n, window.length));
+			Arrays.sort(recent);
+			final JSONObject jo = new JSONObject()
+					.put("count", n)
+					.put("mean", n == 0 ? 0 : sum / n)
+					.put("max", max);
+			if (recent.length > 0) {
+				jo.put("p50", recent[recent.length / 2]);
+				jo.put("p95", recent[Math.min(recent.length - 1, (int)(0.95 * recent.length))]);
+			}
+			return jo;
+		}
+	}
+
+	final protected Map<String, CoordinateTransform> namedModels = new LinkedHashMap<String, CoordinateTransform>();
+	final protected Cache<CoordinateTransform> models;
+	final protected Cache<CoordinateMap> maps;
+	final protected Cache<TransformMesh> meshes;
+	final protected Cache<FlatField[]> flatFields;
+	final protected ThreadPoolExecutor workers;
+	final protected Latencies queueLatencies = new Latencies();
+	final protected Latencies jobLatencies = new Latencies();
+	protected long failed = 0;
+	protected HttpServer server;
+
+	/**
+	 * @param numWorkers
+	 * @param cacheSize number of entries of each cache
+	 * @param mapCacheBytes bound of the coordinate map cache in bytes
+	 */
+	public LensCorrectionServer(final int numWorkers, final int cacheSize, final long mapCacheBytes) {
+		models = new Cache<CoordinateTransform>(cacheSize);
+		maps = new Cache<CoordinateMap>(cacheSize, mapCacheBytes, CoordinateMap::bytes);
+		meshes = new Cache<TransformMesh>(cacheSize);
+		flatFields = new Cache<FlatField[]>(cacheSize);
+		workers = new ThreadPoolExecutor(numWorkers, numWorkers, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+	}
+
+	public LensCorrectionServer(final int numWorkers, final int cacheSize) {
+		this(numWorkers, cacheSize, DEFAULT_MAP_CACHE_BYTES);
+	}
+
+	/**
+	 * Register all named models of a model file exported by
+	 * {@link Automation} or its {@link BinaryLensModels} version.
+	 *
+	 * @return the names
+	 */
+	public ArrayList<String> loadModels(final String path) throws IOException {
+		final ArrayList<String> names = new ArrayList<String>();
+		for (final BinaryLensModels.Model model : BinaryLensModels.load(path).getModels()) {
+			final CoordinateTransform t = LensTransforms.flatten(model.createTransform());
+			synchronized (namedModels) {
+				namedModels.put(model.name, t);
+			}
+			names.add(model.name);
+		}
+		return names;
+	}
+
+	/**
+	 * A registered model by name, or a {@link NonLinearCoordinateTransform}
+	 * parsed from a data string as passed to {@link Apply}.
+	 */
+	protected CoordinateTransform getModel(final String model) {
+		synchronized (namedModels) {
+			final CoordinateTransform t = namedModels.get(model);
+			if (t != null)
+				return t;
+		}
+		return models.get(model, key -> {
+			final NonLinearCoordinateTransform t = new NonLinearCoordinateTransform();
+			t.init(key);
+			return LensTransforms.flatten(t);
+		});
+	}
+
+	/**
+	 * Run a job.
+	 *
+	 * @return job result
+	 */
+	protected JSONObject apply(final JSONObject job) throws IOException {
+		final long t0 = System.nanoTime();
+		final String input = job.getString("input");
+		final String output = job.getString("output");
+		final String model = job.getString("model");
+		final int crop = job.optInt("crop", 0);
+		final Interpolation interpolation = Interpolation.fromString(job.optString("interpolation", "bilinear"));
+		final String flatPath = job.optString("flatField", null);
+		final String darkPath = job.optString("darkFrame", null);
+		final boolean flatField = flatPath != null || darkPath != null;
+		final EnumSet<Projections.Output> summary = Projections.Output.parse(job.optString("summary", ""));
+		final String resampling = job.optString("resampling", interpolation == Interpolation.BILINEAR && !flatField ? Apply.DEFAULT_RESAMPLING : "map");
+		if (!resampling.equals("map") && (interpolation != Interpolation.BILINEAR || flatField))
+			throw new IllegalArgumentException("Resampling " + resampling + " does not support " + (flatField ? "flat-field correction" : "interpolation " + job.getString("interpolation")) + ", use map.");
+
+		final ImagePlus imp = Apply.openImagePlus(input);
+		if (imp == null)
+			throw new IOException("Cannot open " + input);
+		final int width = imp.getWidth();
+		final int height = imp.getHeight();
+		final CoordinateTransform t = getModel(model);
+		final String key = BatchManifest.modelChecksum(t) + "@" + width + "x" + height;
+
+		final ImageStack stack;
+		final Projections projections;
+		if (resampling.equals("map")) {
+			final CoordinateMap map = maps.get(key + "/" + crop, k -> InverseLensModel.fit(t, width, height).createCoordinateMap(crop));
+			final FlatField[] ff = flatField ?
+					flatFields.get(flatPath + "|" + darkPath + "|" + imp.getNChannels(), k -> {
+						try {
+							return Apply.openFlatFields(flatPath, darkPath, imp.getNChannels());
+						} catch (final IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					}) :
+					null;
+			projections = Projections.create(imp, map.getWidth(), map.getHeight(), summary);
+			stack = Apply.createTransformedStack(imp.getStack(), map, interpolation, ff, projections);
+			/* the map has grown by the kernel weights */
+			maps.trim();
+		} else if (resampling.equals("mesh")) {
+			final TransformMesh mesh = meshes.get(key, k -> new TransformMesh(t, MESH_RESOLUTION, width, height));
+			final Rectangle bounds = mesh.getBoundingBox();
+			projections = Projections.create(imp, bounds.width - 2 * crop, bounds.height - 2 * crop, summary);
+			stack = Apply.createTransformedStack(imp.getStack(), mesh, crop, projections);
+		} else
+			throw new IllegalArgumentException("Unknown resampling " + resampling);
+		imp.setStack(stack);
+
+		final File parent = new File(output).getParentFile();
+		if (parent != null)
+			parent.mkdirs();
+		if (job.has("compression"))
+			new TiledTiffWriter(
+					job.optInt("tileSize", TiledTiffWriter.DEFAULT_TILE_SIZE),
+					TiledTiffWriter.Compression.valueOf(job.getString("compression").toUpperCase()),
+					job.optBoolean("predictor", true)).write(imp, output);
+		else
+			IJ.saveAsTiff(imp, output);
+		if (projections != null)
+			projections.save(output);
+
+		return new JSONObject()
+				.put("output", output)
+				.put("seconds", (System.nanoTime() - t0) * 1e-9);
+	}
+
+	/**
+	 * Queue a job and wait for it.
+	 */
+	public JSONObject submit(final JSONObject job) throws InterruptedException, ExecutionException {
+		final long queued = System.nanoTime();
+		final Future<JSONObject> future = workers.submit(() -> {
+			final double wait = (System.nanoTime() - queued) * 1e-9;
+			queueLatencies.add(wait);
+			try {
+				final JSONObject result = apply(job);
+				jobLatencies.add(result.getDouble("seconds"));
+				return result.put("queueSeconds", wait);
+			} catch (final Exception e) {
+				synchronized (this) {
+					++failed;
+				}
+				throw e;
+			}
+		});
+		return future.get();
+	}
+
+	synchronized public JSONObject stats() {
+		return new JSONObject()
+				.put("queued", workers.getQueue().size())
+				.put("running", workers.getActiveCount())
+				.put("completed", workers.getCompletedTaskCount())
+				.put("failed", failed)
+				.put("queueLatency", queueLatencies.stats())
+				.put("jobLatency", jobLatencies.stats())
+				.put("models", models.stats().put("named", namedModels.size()))
+				.put("maps", maps.stats())
+				.put("meshes", meshes.stats())
+				.put("flatFields", flatFields.stats());
+	}
+
+	final static protected void respond(final HttpExchange exchange, final int status, final JSONObject response) throws IOException {
+		final byte[] bytes = response.toString(2).getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (final OutputStream os = exchange.getResponseBody()) {
+			os.write(bytes);
+		}
+	}
+
+	final static protected JSONObject readRequest(final HttpExchange exchange) throws IOException {
+		try (final InputStream is = exchange.getRequestBody()) {
+			return new JSONObject(IOUtils.toString(is, "UTF-8"));
+		}
+	}
+
+	/**
+	 * Start listening on the loopback interface.
+	 */
+	public void start(final int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		/* request handlers only wait for jobs */
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/apply", exchange -> {
+			try {
+				respond(exchange, 200, submit(readRequest(exchange)));
+			} catch (final ExecutionException e) {
+				respond(exchange, 500, new JSONObject().put("error", String.valueOf(e.getCause())));
+			} catch (final RejectedExecutionException e) {
+				respond(exchange, 503, new JSONObject().put("error", "shutting down"));
+			} catch (final Exception e) {
+				respond(exchange, 400, new JSONObject().put("error", String.valueOf(e)));
+			}
+		});
+		server.createContext("/models", exchange -> {
+			try {
+				respond(exchange, 200, new JSONObject().put("names", loadModels(readRequest(exchange).getString("path"))));
+			} catch (final Exception e) {
+				respond(exchange, 400, new JSONObject().put("error", String.valueOf(e)));
+			}
+		});
+		server.createContext("/stats", exchange -> respond(exchange, 200, stats()));
+		server.createContext("/shutdown", exchange -> {
+			respond(exchange, 200, new JSONObject().put("queued", workers.getQueue().size()));
+			new Thread(this::stop).start();
+		});
+		server.start();
+	}
+
+	/**
+	 * Reject further jobs, finish queued jobs, then stop the HTTP server
+	 * once the responses of all jobs are sent, or after
+	 * {@link #STOP_DELAY} seconds, and exit.
+	 */
+	public void stop() {
+		workers.shutdown();
+		try {
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		server.stop(STOP_DELAY);
+		System.exit(0);
+	}
+
+	final static public Options createOptions() {
+		final Options options = new Options();
+		options.addOption(new Option(
+				"p",
+				"port",
+				true,
+				"local port, default " + DEFAULT_PORT));
+		options.addOption(new Option(
+				"w",
+				"workers",
+				true,
+				"number of jobs processed at the same time, default 1"));
+		options.addOption(new Option(
+				"m",
+				"models",
+				true,
+				"comma separated model files exported by Automation, their models can be used by name"));
+		options.addOption(new Option(
+				null,
+				"cache-size",
+				true,
+				"number of parsed models, coordinate maps, meshes, and flat fields cached each, default " + DEFAULT_CACHE_SIZE));
+		options.addOption(new Option(
+				null,
+				"map-cache-memory",
+				true,
+				"size bound of the cached coordinate maps with their kernel weights, e.g. 4g, default a quarter of the heap"));
+		return options;
+	}
+
+	/**
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(final String[] args) throws IOException {
+
+		final Options options = createOptions();
+		final CommandLine cmd;
+		try {
+			cmd = new DefaultParser().parse(options, args);
+		} catch (final ParseException e) {
+			System.err.println(e.getMessage());
+			new HelpFormatter().printHelp("java ... [options]", options);
+			return;
+		}
+
+		final LensCorrectionServer server = new LensCorrectionServer(
+				Integer.parseInt(cmd.getOptionValue("workers", "1")),
+				Integer.parseInt(cmd.getOptionValue("cache-size", Integer.toString(DEFAULT_CACHE_SIZE))),
+				cmd.hasOption("map-cache-memory") ? MemoryBudget.parseSize(cmd.getOptionValue("map-cache-memory")) : DEFAULT_MAP_CACHE_BYTES);
+		if (cmd.hasOption("models"))
+			for (final String path : cmd.getOptionValue("models").split(","))
+				System.out.println(path + ": " + server.loadModels(path));
+
+		final int port = Integer.parseInt(cmd.getOptionValue("port", Integer.toString(DEFAULT_PORT)));
+		server.start(port);
+		System.out.println("Listening on http://localhost:" + port);
+	}
+}
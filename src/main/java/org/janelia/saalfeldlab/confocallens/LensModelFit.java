@@ -0,0 +1,376 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import mpicbg.models.CoordinateTransform;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+
+/**
+ * Joint least squares estimate of a lens model shared by all tiles of a
+ * mosaic and the translation of each tile from point correspondences
+ * between overlapping tiles.
+ *
+ * The lens model is <code>l(p) = p + d(p)</code> with a polynomial
+ * <code>d</code> that has no constant and no linear terms, any affine part
+ * cannot be observed from correspondences between translated tiles.  For
+ * a match of <code>p</code> in tile i and <code>q</code> in tile j,
+ * <code>l(p) + t_i = l(q) + t_j</code> is linear in the coefficients of
+ * <code>d</code> and in the translations, so both are found by solving one
+ * regularized linear system per dimension.  The translation of the first
+ * tile is fixed at 0.  Matches with a residual larger than
+ * <code>meanFactor</code> times the mean are removed and the system is
+ * solved again.  Tiles that are not connected to the first tile by
+ * matches, e.g. because RANSAC failed for all their pairs, are held at
+ * translation 0 by a small ridge and reported by
+ * {@link #getUnconnectedTiles()}.
+ *
+ * {@link #refine} starts from a previous lens model instead, it estimates
+ * a correction of the previous model from the matches mapped through it,
+ * the regularizer pulls the result towards the previous model.
+ *
+ * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
+ */
+public class LensModelFit {
+
+	/**
+	 * Regularizer of the tile translations relative to the number of
+	 * matches, only relevant for tiles without matches.
+	 */
+	final static public double TRANSLATION_RIDGE = 1e-9;
+
+	final protected PolynomialLensTransform lens;
+	final protected double[][] translations;
+	final protected double meanResidual;
+	final protected double maxResidual;
+	final protected int numMatches;
+	final protected int[] unconnectedTiles;
+
+	protected LensModelFit(
+			final PolynomialLensTransform lens,
+			final double[][] translations,
+			final double meanResidual,
+			final double maxResidual,
+			final int numMatches,
+			final int[] unconnectedTiles) {
+		this.lens = lens;
+		this.translations = translations;
+		this.meanResidual = meanResidual;
+		this.maxResidual = maxResidual;
+		this.numMatches = numMatches;
+		this.unconnectedTiles = unconnectedTiles;
+	}
+
+	/**
+	 * @param numTiles
+	 * @param pairs tile index pairs (i, j)
+	 * @param matches for each pair, matches from local coordinates of tile i
+	 *   (p1) to local coordinates of tile j (p2)
+	 * @param dimension polynomial degree
+	 * @param width tile width
+	 * @param height tile height
+	 * @param lambda regularizer of the non-linear coefficients
+	 * @param meanFactor outlier threshold relative to the mean residual
+	 * @param iterations number of outlier removal rounds
+	 * @return
+	 */
+	final static public LensModelFit fit(
+			final int numTiles,
+			final List<int[]> pairs,
+			final List<? extends List<PointMatch>> matches,
+			final int dimension,
+			final int width,
+			final int height,
+			final double lambda,
+			final double meanFactor,
+			final int iterations) {
+
+		/* flatten matches, centered and scaled to [-1,1] for conditioning */
+		final double cx = 0.5 * width;
+		final double cy = 0.5 * height;
+		final double s = Math.max(cx, cy);
+		final ArrayList<double[]> samples = new ArrayList<double[]>();
+		for (int k = 0; k < pairs.size(); ++k) {
+			final int[] pair = pairs.get(k);
+			for (final PointMatch m : matches.get(k)) {
+				final double[] p = m.getP1().getL();
+				final double[] q = m.getP2().getL();
+				samples.add(new double[] {pair[0], pair[1], (p[0] - cx) / s, (p[1] - cy) / s, (q[0] - cx) / s, (q[1] - cy) / s});
+			}
+		}
+
+		final int numCoefficients = PolynomialLensTransform.numTerms(dimension) - 3;
+		final int numUnknowns = numCoefficients + numTiles - 1;
+		final double[] mp = new double[numCoefficients];
+		final double[] mq = new double[numCoefficients];
+		final double[] row = new double[numUnknowns];
+
+		double[] betaX = null, betaY = null;
+		final boolean[] inlier = new boolean[samples.size()];
+		Arrays.fill(inlier, true);
+		double mean = 0, max = 0;
+		int n = 0;
+		for (int iteration = 0; iteration <= iterations; ++iteration) {
+			final double[][] a = new double[numUnknowns][numUnknowns];
+			final double[] bx = new double[numUnknowns];
+			final double[] by = new double[numUnknowns];
+			n = 0;
+			for (int k = 0; k < samples.size(); ++k) {
+				if (!inlier[k])
+					continue;
+				final double[] sample = samples.get(k);
+				monomials(sample[2], sample[3], dimension, mp);
+				monomials(sample[4], sample[5], dimension, mq);
+				Arrays.fill(row, 0);
+				for (int c = 0; c < numCoefficients; ++c)
+					row[c] = mp[c] - mq[c];
+				final int i = (int)sample[0];
+				final int j = (int)sample[1];
+				if (i > 0)
+					row[numCoefficients + i - 1] += 1;
+				if (j > 0)
+					row[numCoefficients + j - 1] -= 1;
+				final double rx = sample[4] - sample[2];
+				final double ry = sample[5] - sample[3];
+				for (int u = 0; u < numUnknowns; ++u) {
+					if (row[u] == 0)
+						continue;
+					for (int v = u; v < numUnknowns; ++v)
+						a[u][v] += row[u] * row[v];
+					bx[u] += row[u] * rx;
+					by[u] += row[u] * ry;
+				}
+				++n;
+			}
+			if (n == 0)
+				throw new IllegalArgumentException("No matches.");
+			for (int u = 0; u < numUnknowns; ++u) {
+				for (int v = 0; v < u; ++v)
+					a[u][v] = a[v][u];
+				a[u][u] += (u < numCoefficients ? lambda : TRANSLATION_RIDGE) * n;
+			}
+			betaX = PolynomialLensTransform.solveSymmetric(a, bx);
+			betaY = PolynomialLensTransform.solveSymmetric(a, by);
+
+			/* residuals in px */
+			final double[] residuals = new double[samples.size()];
+			mean = 0;
+			max = 0;
+			for (int k = 0; k < samples.size(); ++k) {
+				final double[] sample = samples.get(k);
+				final double[] lp = lens(sample[2], sample[3], dimension, betaX, betaY, mp);
+				final double[] lq = lens(sample[4], sample[5], dimension, betaX, betaY, mq);
+				final int i = (int)sample[0];
+				final int j = (int)sample[1];
+				final double dx = lp[0] + translation(betaX, numCoefficients, i) - lq[0] - translation(betaX, numCoefficients, j);
+				final double dy = lp[1] + translation(betaY, numCoefficients, i) - lq[1] - translation(betaY, numCoefficients, j);
+				residuals[k] = s * Math.sqrt(dx * dx + dy * dy);
+				if (inlier[k]) {
+					mean += residuals[k];
+					max = Math.max(max, residuals[k]);
+				}
+			}
+			mean /= n;
+			if (iteration < iterations)
+				for (int k = 0; k < samples.size(); ++k)
+					inlier[k] = residuals[k] <= meanFactor * mean;
+		}
+
+		/* tiles connected to the first tile by inliers */
+		final boolean[] connected = new boolean[numTiles];
+		connected[0] = true;
+		for (boolean grown = true; grown;) {
+			grown = false;
+			for (int k = 0; k < samples.size(); ++k) {
+				final int i = (int)samples.get(k)[0];
+				final int j = (int)samples.get(k)[1];
+				if (inlier[k] && connected[i] != connected[j]) {
+					connected[i] = connected[j] = true;
+					grown = true;
+				}
+			}
+		}
+		final int[] unconnectedTiles = IntStream.range(0, numTiles).filter(i -> !connected[i]).toArray();
+
+		/* translations in px */
+		final double[][] translations = new double[numTiles][2];
+		for (int i = 1; i < numTiles; ++i) {
+			translations[i][0] = s * betaX[numCoefficients + i - 1];
+			translations[i][1] = s * betaY[numCoefficients + i - 1];
+		}
+
+		/* express the lens model in pixel coordinates by sampling it on a grid */
+		final int samplesPerDimension = InverseLensModel.DEFAULT_SAMPLES;
+		final int numSamples = samplesPerDimension * samplesPerDimension;
+		final double[] xs = new double[numSamples];
+		final double[] ys = new double[numSamples];
+		final double[] txs = new double[numSamples];
+		final double[] tys = new double[numSamples];
+		for (int y = 0, k = 0; y < samplesPerDimension; ++y) {
+			for (int x = 0; x < samplesPerDimension; ++x, ++k) {
+				xs[k] = (width - 1) * x / (samplesPerDimension - 1.0);
+				ys[k] = (height - 1) * y / (samplesPerDimension - 1.0);
+				final double[] l = lens((xs[k] - cx) / s, (ys[k] - cy) / s, dimension, betaX, betaY, mp);
+				txs[k] = l[0] * s + cx;
+				tys[k] = l[1] * s + cy;
+			}
+		}
+		final PolynomialLensTransform lens = PolynomialLensTransform.fit(dimension, xs, ys, txs, tys, width, height, 0);
+
+		return new LensModelFit(lens, translations, mean, max, n, unconnectedTiles);
+	}
+
+	/**
+	 * Refine a previous lens model.  The matches are mapped through
+	 * <code>seed</code>, a correction and the tile translations are fit to
+	 * the mapped matches as in
+	 * {@link #fit(int, List, List, int, int, int, double, double, int)}, and
+	 * the correction concatenated with <code>seed</code> is fit with a
+	 * polynomial of degree <code>dimension</code>.  Residuals and
+	 * translations are those of the correction.
+	 *
+	 * @param seed previous lens model
+	 * @param numTiles
+	 * @param pairs tile index pairs (i, j)
+	 * @param matches for each pair, matches in local coordinates of the
+	 *   uncorrected tiles
+	 * @param dimension polynomial degree
+	 * @param width tile width
+	 * @param height tile height
+	 * @param lambda regularizer of the correction
+	 * @param meanFactor outlier threshold relative to the mean residual
+	 * @param iterations number of outlier removal rounds
+	 * @return
+	 */
+	final static public LensModelFit refine(
+			final CoordinateTransform seed,
+			final int numTiles,
+			final List<int[]> pairs,
+			final List<? extends List<PointMatch>> matches,
+			final int dimension,
+			final int width,
+			final int height,
+			final double lambda,
+			final double meanFactor,
+			final int iterations) {
+
+		final ArrayList<ArrayList<PointMatch>> seededMatches = new ArrayList<ArrayList<PointMatch>>();
+		for (final List<PointMatch> pairMatches : matches) {
+			final ArrayList<PointMatch> seeded = new ArrayList<PointMatch>();
+			for (final PointMatch m : pairMatches)
+				seeded.add(new PointMatch(
+						new Point(seed.apply(m.getP1().getL())),
+						new Point(seed.apply(m.getP2().getL()))));
+			seededMatches.add(seeded);
+		}
+		final LensModelFit correction = fit(numTiles, pairs, seededMatches, dimension, width, height, lambda, meanFactor, iterations);
+
+		final int samplesPerDimension = InverseLensModel.DEFAULT_SAMPLES;
+		final int numSamples = samplesPerDimension * samplesPerDimension;
+		final double[] xs = new double[numSamples];
+		final double[] ys = new double[numSamples];
+		final double[] txs = new double[numSamples];
+		final double[] tys = new double[numSamples];
+		for (int y = 0, k = 0; y < samplesPerDimension; ++y) {
+			for (int x = 0; x < samplesPerDimension; ++x, ++k) {
+				xs[k] = (width - 1) * x / (samplesPerDimension - 1.0);
+				ys[k] = (height - 1) * y / (samplesPerDimension - 1.0);
+				final double[] l = correction.lens.apply(seed.apply(new double[] {xs[k], ys[k]}));
+				txs[k] = l[0];
+				tys[k] = l[1];
+			}
+		}
+		final PolynomialLensTransform lens = PolynomialLensTransform.fit(dimension, xs, ys, txs, tys, width, height, 0);
+
+		return new LensModelFit(lens, correction.translations, correction.meanResidual, correction.maxResidual, correction.numMatches, correction.unconnectedTiles);
+	}
+
+	/**
+	 * Monomials of degree 2 to <code>dimension</code> in the order of
+	 * {@link PolynomialLensTransform}.
+	 */
+	final static private void monomials(final double x, final double y, final int dimension, final double[] m) {
+		int k = 0;
+		for (int i = 2; i <= dimension; ++i) {
+			for (int j = i; j >= 0; --j)
+				m[k++] = Math.pow(x, j) * Math.pow(y, i - j);
+		}
+	}
+
+	final static private double[] lens(
+			final double x,
+			final double y,
+			final int dimension,
+			final double[] betaX,
+			final double[] betaY,
+			final double[] m) {
+		monomials(x, y, dimension, m);
+		double dx = 0, dy = 0;
+		for (int c = 0; c < m.length; ++c) {
+			dx += betaX[c] * m[c];
+			dy += betaY[c] * m[c];
+		}
+		return new double[] {x + dx, y + dy};
+	}
+
+	final static private double translation(final double[] beta, final int numCoefficients, final int i) {
+		return i == 0 ? 0 : beta[numCoefficients + i - 1];
+	}
+
+	public PolynomialLensTransform getLens() {
+		return lens;
+	}
+
+	/**
+	 * Translation of tile i relative to the first tile in lens corrected
+	 * coordinates.
+	 */
+	public double[] getTranslation(final int i) {
+		return translations[i].clone();
+	}
+
+	public double getMeanResidual() {
+		return meanResidual;
+	}
+
+	public double getMaxResidual() {
+		return maxResidual;
+	}
+
+	public int getNumMatches() {
+		return numMatches;
+	}
+
+	/**
+	 * Tiles that are not connected to the first tile by matches, their
+	 * translation is 0.
+	 */
+	public int[] getUnconnectedTiles() {
+		return unconnectedTiles.clone();
+	}
+
+	@Override
+	public String toString() {
+		final String fit = String.format("%d matches, residual mean %.3fpx, max %.3fpx", numMatches, meanResidual, maxResidual);
+		return unconnectedTiles.length == 0 ? fit : fit + ", tiles " + Arrays.toString(unconnectedTiles) + " not connected";
+	}
+}
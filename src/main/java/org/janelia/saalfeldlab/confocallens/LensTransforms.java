@@ -0,0 +1,121 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+import java.awt.geom.AffineTransform;
+import java.util.ArrayList;
+import java.util.List;
+
+import mpicbg.models.AbstractAffineModel2D;
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.CoordinateTransform;
+import mpicbg.models.CoordinateTransformList;
+import mpicbg.trakem2.transform.NonLinearCoordinateTransform;
+
+/**
+ * Helpers to simplify the lens model chains that we export and load.
+ */
+public class LensTransforms {
+
+	private LensTransforms() {}
+
+	final static public boolean isNonLinear(final CoordinateTransform t) {
+		return
+				t instanceof NonLinearCoordinateTransform ||
+				t instanceof PolynomialLensTransform ||
+				t.getClass().getName().equals("lenscorrection.NonLinearTransform");
+	}
+
+	/**
+	 * Parse the polynomial lens model of a non-linear transform into a new
+	 * {@link PolynomialLensTransform}, or copy it if it is one.
+	 */
+	final static public PolynomialLensTransform toPolynomial(final CoordinateTransform t) {
+		if (t instanceof PolynomialLensTransform)
+			return ((PolynomialLensTransform)t).copy();
+		final PolynomialLensTransform p = new PolynomialLensTransform();
+		p.init(((mpicbg.trakem2.transform.CoordinateTransform)t).toDataString());
+		return p;
+	}
+
+	final static private void unroll(final CoordinateTransform t, final List<CoordinateTransform> list) {
+		if (t instanceof CoordinateTransformList) {
+			@SuppressWarnings("unchecked")
+			final List<CoordinateTransform> ts = ((CoordinateTransformList<CoordinateTransform>)t).getList(null);
+			for (final CoordinateTransform ti : ts)
+				unroll(ti, list);
+		} else
+			list.add(t);
+	}
+
+	/**
+	 * Collapse a transform chain such that every non-linear lens model
+	 * absorbs all affines that follow it and consecutive affines are
+	 * merged.  The typical exported chain of a
+	 * {@link NonLinearCoordinateTransform} followed by an
+	 * {@link AffineModel2D} becomes a single
+	 * {@link PolynomialLensTransform}.  Transforms that cannot be folded are
+	 * kept as they are.  The input is not modified.
+	 */
+	final static public CoordinateTransform flatten(final CoordinateTransform t) {
+		final ArrayList<CoordinateTransform> chain = new ArrayList<CoordinateTransform>();
+		unroll(t, chain);
+
+		final ArrayList<CoordinateTransform> flat = new ArrayList<CoordinateTransform>();
+		AffineTransform affine = null;
+		for (final CoordinateTransform ti : chain) {
+			if (isNonLinear(ti)) {
+				if (affine != null) {
+					flat.add(createAffineModel(affine));
+					affine = null;
+				}
+				flat.add(toPolynomial(ti));
+			} else if (ti instanceof AbstractAffineModel2D) {
+				final AffineTransform a = ((AbstractAffineModel2D<?>)ti).createAffine();
+				final CoordinateTransform last = flat.isEmpty() ? null : flat.get(flat.size() - 1);
+				if (affine == null && last instanceof PolynomialLensTransform)
+					((PolynomialLensTransform)last).preConcatenate(a);
+				else if (affine == null)
+					affine = new AffineTransform(a);
+				else
+					affine.preConcatenate(a);
+			} else {
+				if (affine != null) {
+					flat.add(createAffineModel(affine));
+					affine = null;
+				}
+				flat.add(ti);
+			}
+		}
+		if (affine != null)
+			flat.add(createAffineModel(affine));
+
+		if (flat.size() == 1)
+			return flat.get(0);
+
+		final CoordinateTransformList<CoordinateTransform> ctl = new CoordinateTransformList<CoordinateTransform>();
+		for (final CoordinateTransform ti : flat)
+			ctl.add(ti);
+		return ctl;
+	}
+
+	final static private AffineModel2D createAffineModel(final AffineTransform a) {
+		final AffineModel2D model = new AffineModel2D();
+		model.set(a);
+		return model;
+	}
+}
@@ -0,0 +1,157 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+import java.util.List;
+
+import ij.process.ImageProcessor;
+import mpicbg.ij.plugin.NormalizeLocalContrast;
+
+/**
+ * Local contrast normalization like {@link NormalizeLocalContrast} with
+ * block mean and standard deviation from integral images, such that the
+ * cost per pixel does not depend on the block size.  Blocks are clipped at
+ * the image border.  The block mean is mapped to the center of the range
+ * [min, max] of the processor (cent), and <code>stds</code> times the block
+ * standard deviation to half of that range (stret).  Multiple tiles are
+ * processed in parallel.
+ *
+ * Integral images are accumulated in double precision, results are
+ * rounded to the pixel type.  Differences to {@link NormalizeLocalContrast}
+ * above {@link #TOLERANCE} are reported by {@link #verify}.
+ *
+ * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
+ */
+public class LocalContrast {
+
+	/**
+	 * Accepted maximal absolute difference to {@link NormalizeLocalContrast}
+	 * in gray values.
+	 */
+	final static public double TOLERANCE = 1.0;
+
+	private LocalContrast() {}
+
+	/**
+	 * Normalize <code>ip</code> in place.
+	 */
+	final static public void run(
+			final ImageProcessor ip,
+			final int brx,
+			final int bry,
+			final float stds,
+			final boolean cent,
+			final boolean stret) {
+
+		if (!(cent || stret))
+			return;
+
+		final int w = ip.getWidth();
+		final int h = ip.getHeight();
+		final double min = ip.getMin();
+		final double max = ip.getMax();
+		final double center = 0.5 * (min + max);
+		final double halfRange = 0.5 * (max - min);
+		final boolean integer = !(ip.getPixels() instanceof float[]);
+
+		/* integral images with a leading row and column of zeros */
+		final int iw = w + 1;
+		final double[] sum = new double[iw * (h + 1)];
+		final double[] sum2 = new double[iw * (h + 1)];
+		for (int y = 0; y < h; ++y) {
+			double rowSum = 0, rowSum2 = 0;
+			final int o = (y + 1) * iw;
+			for (int x = 0; x < w; ++x) {
+				final double v = ip.getf(x, y);
+				rowSum += v;
+				rowSum2 += v * v;
+				sum[o + x + 1] = sum[o - iw + x + 1] + rowSum;
+				sum2[o + x + 1] = sum2[o - iw + x + 1] + rowSum2;
+			}
+		}
+
+		for (int y = 0; y < h; ++y) {
+			final int y0 = Math.max(0, y - bry);
+			final int y1 = Math.min(h, y + bry + 1);
+			final int o0 = y0 * iw;
+			final int o1 = y1 * iw;
+			for (int x = 0; x < w; ++x) {
+				final int x0 = Math.max(0, x - brx);
+				final int x1 = Math.min(w, x + brx + 1);
+				final double n = (x1 - x0) * (y1 - y0);
+				final double s = sum[o1 + x1] - sum[o1 + x0] - sum[o0 + x1] + sum[o0 + x0];
+				final double s2 = sum2[o1 + x1] - sum2[o1 + x0] - sum2[o0 + x1] + sum2[o0 + x0];
+				final double mean = s / n;
+				final double std = Math.sqrt(Math.max(0, s2 / n - mean * mean));
+
+				double d = ip.getf(x, y) - mean;
+				if (stret)
+					d = std == 0 ? 0 : d / (stds * std) * halfRange;
+				double v = (cent ? center : mean) + d;
+				v = Math.max(min, Math.min(max, v));
+				ip.setf(x, y, (float)(integer ? Math.round(v) : v));
+			}
+		}
+	}
+
+	/**
+	 * Normalize all processors in place and in parallel.
+	 */
+	final static public void run(
+			final List<ImageProcessor> ips,
+			final int brx,
+			final int bry,
+			final float stds,
+			final boolean cent,
+			final boolean stret) {
+
+		ips.parallelStream().forEach(ip -> run(ip, brx, bry, stds, cent, stret));
+	}
+
+	/**
+	 * Compare with {@link NormalizeLocalContrast} on copies of
+	 * <code>ip</code>.
+	 *
+	 * @return {maximal absolute difference, mean absolute difference,
+	 *   fraction of pixels that differ by more than {@link #TOLERANCE}}
+	 */
+	final static public double[] verify(
+			final ImageProcessor ip,
+			final int brx,
+			final int bry,
+			final float stds,
+			final boolean cent,
+			final boolean stret) {
+
+		final ImageProcessor reference = ip.duplicate();
+		final ImageProcessor fast = ip.duplicate();
+		NormalizeLocalContrast.run(reference, brx, bry, stds, cent, stret);
+		run(fast, brx, bry, stds, cent, stret);
+
+		final int n = ip.getWidth() * ip.getHeight();
+		double max = 0, sum = 0;
+		int outside = 0;
+		for (int i = 0; i < n; ++i) {
+			final double d = Math.abs(reference.getf(i) - fast.getf(i));
+			max = Math.max(max, d);
+			sum += d;
+			if (d > TOLERANCE)
+				++outside;
+		}
+		return new double[] {max, sum / n, (double)outside / n};
+	}
+}
@@ -0,0 +1,180 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+import java.util.stream.IntStream;
+
+/**
+ * Square target tiles of a {@link CoordinateMap} with the source window
+ * that each tile reads from.  A window is the bounding box of the source
+ * coordinates of its tile extended by the second bilinear sample and
+ * clipped to the source, the coordinates of the tile are stored relative
+ * to the window.  Resampling a tile from a compact copy of its window
+ * then gives exactly the same result as resampling from the source
+ * because integer offsets do not round and the window touches the source
+ * borders wherever the tile reads beyond them.  Like
+ * {@link InterpolationWeights}, tiles only depend on the map and the
+ * source size, so they are computed once and shared by all slices and
+ * channels, see {@link CoordinateMap#getTiles(int, int, int)}.
+ *
+ * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
+ */
+public class MapTiles {
+
+	final protected int tileSize;
+	final protected int tilesX;
+	final protected int tilesY;
+	final protected int width;
+	final protected int height;
+
+	/* per tile, windows are {x, y, width, height}, width 0 if the tile does
+	 * not read from the source */
+	final protected int[][] windows;
+	final protected boolean[] inside;
+	final protected float[][] xs;
+	final protected float[][] ys;
+
+	public MapTiles(final CoordinateMap map, final int tileSize, final int sw, final int sh) {
+		this.tileSize = tileSize;
+		width = map.getWidth();
+		height = map.getHeight();
+		tilesX = (width + tileSize - 1) / tileSize;
+		tilesY = (height + tileSize - 1) / tileSize;
+		final int numTiles = tilesX * tilesY;
+		windows = new int[numTiles][];
+		inside = new boolean[numTiles];
+		xs = new float[numTiles][];
+		ys = new float[numTiles][];
+
+		final float[] mx = map.getX();
+		final float[] my = map.getY();
+		final float maxX = sw - 1;
+		final float maxY = sh - 1;
+		IntStream.range(0, numTiles).parallel().forEach(t -> {
+			final int x0 = getX(t);
+			final int y0 = getY(t);
+			final int tw = getWidth(t);
+			final int th = getHeight(t);
+
+			/* NaN coordinates are ignored */
+			float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY;
+			float maxTileX = Float.NEGATIVE_INFINITY, maxTileY = Float.NEGATIVE_INFINITY;
+			boolean any = false, all = true;
+			for (int y = y0; y < y0 + th; ++y) {
+				for (int k = y * width + x0, e = k + tw; k < e; ++k) {
+					final float x = mx[k];
+					final float yy = my[k];
+					if (x < minX) minX = x;
+					if (x > maxTileX) maxTileX = x;
+					if (yy < minY) minY = yy;
+					if (yy > maxTileY) maxTileY = yy;
+					if (x >= 0 && yy >= 0 && x <= maxX && yy <= maxY)
+						any = true;
+					else
+						all = false;
+				}
+			}
+			if (!any) {
+				windows[t] = new int[] {0, 0, 0, 0};
+				return;
+			}
+			final int wx0 = Math.max(0, (int)Math.floor(minX));
+			final int wy0 = Math.max(0, (int)Math.floor(minY));
+			final int wx1 = (int)Math.min(sw, Math.floor(maxTileX) + 2);
+			final int wy1 = (int)Math.min(sh, Math.floor(maxTileY) + 2);
+			windows[t] = new int[] {wx0, wy0, wx1 - wx0, wy1 - wy0};
+			inside[t] = all;
+
+			final float[] lx = new float[tw * th];
+			final float[] ly = new float[tw * th];
+			for (int y = y0, l = 0; y < y0 + th; ++y) {
+				for (int k = y * width + x0, e = k + tw; k < e; ++k, ++l) {
+					lx[l] = mx[k] - wx0;
+					ly[l] = my[k] - wy0;
+				}
+			}
+			xs[t] = lx;
+			ys[t] = ly;
+		});
+	}
+
+	/**
+	 * @return the size of the window relative coordinates in bytes
+	 */
+	public long bytes() {
+		long bytes = 16L * windows.length;
+		for (int t = 0; t < xs.length; ++t)
+			if (xs[t] != null)
+				bytes += 4L * (xs[t].length + ys[t].length);
+		return bytes;
+	}
+
+	public int getTileSize() {
+		return tileSize;
+	}
+
+	public int numTiles() {
+		return windows.length;
+	}
+
+	public int getX(final int tile) {
+		return tile % tilesX * tileSize;
+	}
+
+	public int getY(final int tile) {
+		return tile / tilesX * tileSize;
+	}
+
+	public int getWidth(final int tile) {
+		return Math.min(tileSize, width - getX(tile));
+	}
+
+	public int getHeight(final int tile) {
+		return Math.min(tileSize, height - getY(tile));
+	}
+
+	/**
+	 * @return {x, y, width, height} of the source window of
+	 *     <code>tile</code>, width is 0 if the tile does not read from the
+	 *     source
+	 */
+	public int[] getWindow(final int tile) {
+		return windows[tile];
+	}
+
+	/**
+	 * @return true if all coordinates of <code>tile</code> are inside of
+	 *     the source
+	 */
+	public boolean isInside(final int tile) {
+		return inside[tile];
+	}
+
+	/**
+	 * @return x-coordinates of <code>tile</code> relative to its window
+	 */
+	public float[] getXs(final int tile) {
+		return xs[tile];
+	}
+
+	/**
+	 * @return y-coordinates of <code>tile</code> relative to its window
+	 */
+	public float[] getYs(final int tile) {
+		return ys[tile];
+	}
+}
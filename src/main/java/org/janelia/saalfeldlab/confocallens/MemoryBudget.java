@@ -0,0 +1,180 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+/**
+ * Accounting of the image data held by a pipeline run.  Image data is
+ * registered under a label with {@link #hold} and removed with
+ * {@link #release}.  For every stage, the peak of the registered bytes and
+ * of the JVM heap in use at the time of sampling are recorded.  If the
+ * heap in use exceeds the budget when a stage starts, the registered
+ * releasers are run, e.g. to flush the image caches of TrakEM2.
+ *
+ * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
+ */
+public class MemoryBudget {
+
+	final protected long budget;
+	final protected LinkedHashMap<String, Long> held = new LinkedHashMap<String, Long>();
+	final protected LinkedHashMap<String, long[]> stages = new LinkedHashMap<String, long[]>();
+	final protected ArrayList<Runnable> releasers = new ArrayList<Runnable>();
+	protected String stage = "setup";
+	protected long current = 0;
+	protected long peak = 0;
+	protected long peakHeap = 0;
+
+	/**
+	 * @param budget in bytes, 0 for accounting only
+	 */
+	public MemoryBudget(final long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Parse a size like <code>512m</code>, <code>8g</code>, or a number of
+	 * bytes.
+	 */
+	final static public long parseSize(final String size) {
+		final String s = size.trim().toLowerCase();
+		final char unit = s.charAt(s.length() - 1);
+		switch (unit) {
+		case 'k':
+			return (long)(Double.parseDouble(s.substring(0, s.length() - 1)) * 1024L);
+		case 'm':
+			return (long)(Double.parseDouble(s.substring(0, s.length() - 1)) * 1024L * 1024L);
+		case 'g':
+			return (long)(Double.parseDouble(s.substring(0, s.length() - 1)) * 1024L * 1024L * 1024L);
+		default:
+			return Long.parseLong(s);
+		}
+	}
+
+	final static public long bytes(final ImageProcessor ip) {
+		final int bitDepth = ip.getBitDepth();
+		return (long)ip.getPixelCount() * (bitDepth == 24 ? 4 : bitDepth / 8);
+	}
+
+	final static public long bytes(final ImageStack stack) {
+		long bytes = 0;
+		for (int i = 1; i <= stack.getSize(); ++i)
+			bytes += bytes(stack.getProcessor(i));
+		return bytes;
+	}
+
+	/**
+	 * Add a releaser that is run when a stage starts with the heap in use
+	 * over budget.
+	 */
+	public void addReleaser(final Runnable releaser) {
+		releasers.add(releaser);
+	}
+
+	public void start(final String stage) {
+		this.stage = stage;
+		if (budget > 0 && heap() > budget)
+			for (final Runnable releaser : releasers)
+				releaser.run();
+		sample();
+	}
+
+	/**
+	 * Register bytes under a label, repeated labels accumulate.
+	 */
+	public void hold(final String label, final long bytes) {
+		final Long previous = held.get(label);
+		held.put(label, previous == null ? bytes : previous + bytes);
+		current += bytes;
+		sample();
+	}
+
+	/**
+	 * Remove all bytes registered under a label.
+	 */
+	public void release(final String label) {
+		final Long bytes = held.remove(label);
+		if (bytes != null)
+			current -= bytes;
+		sample();
+	}
+
+	final static protected long heap() {
+		final Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	public void sample() {
+		final long heap = heap();
+		peak = Math.max(peak, current);
+		peakHeap = Math.max(peakHeap, heap);
+		long[] stagePeaks = stages.get(stage);
+		if (stagePeaks == null) {
+			stagePeaks = new long[2];
+			stages.put(stage, stagePeaks);
+		}
+		stagePeaks[0] = Math.max(stagePeaks[0], current);
+		stagePeaks[1] = Math.max(stagePeaks[1], heap);
+	}
+
+	public long getPeak() {
+		return peak;
+	}
+
+	public long getPeakHeap() {
+		return peakHeap;
+	}
+
+	public boolean isExceeded() {
+		return budget > 0 && Math.max(peak, peakHeap) > budget;
+	}
+
+	final static private String mb(final long bytes) {
+		return String.format("%9.1fMB", bytes / 1024.0 / 1024.0);
+	}
+
+	public void report(final PrintStream out) {
+		out.println(String.format("%-24s %11s %11s", "stage", "images", "heap"));
+		for (final Entry<String, long[]> entry : stages.entrySet())
+			out.println(String.format("%-24s %s %s", entry.getKey(), mb(entry.getValue()[0]), mb(entry.getValue()[1])));
+		out.println(String.format("%-24s %s %s", "peak", mb(peak), mb(peakHeap)));
+		if (budget > 0)
+			out.println(String.format("%-24s %s%s", "budget", mb(budget), isExceeded() ? " exceeded" : ""));
+	}
+
+	public void save(final String path) throws IOException {
+		final LinkedHashMap<String, Object> export = new LinkedHashMap<String, Object>();
+		export.put("budget", budget);
+		export.put("peak", peak);
+		export.put("peakHeap", peakHeap);
+		export.put("stages", stages);
+		final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+		Files.write(Paths.get(path), gson.toJson(export).getBytes());
+	}
+}
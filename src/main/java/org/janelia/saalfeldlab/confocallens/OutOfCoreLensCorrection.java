@@ -0,0 +1,341 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+import java.io.IOException;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import loci.formats.FormatException;
+import loci.plugins.BF;
+import loci.plugins.in.ImporterOptions;
+import net.imglib2.RandomAccess;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.DiskCachedCellImg;
+import net.imglib2.cache.img.DiskCachedCellImgFactory;
+import net.imglib2.cache.img.DiskCachedCellImgOptions;
+import net.imglib2.cache.img.DiskCachedCellImgOptions.CacheType;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Lens correction of stacks that do not fit into memory.  The source is
+ * opened as a virtual stack and read through a cached cell image with one
+ * slice per cell.  The transformed stack is a disk cached cell image whose
+ * cells are computed on demand from the source slice and written to a
+ * temporary directory when they are evicted.  Both caches are bounded to a
+ * number of slices, so memory consumption does not depend on the depth of
+ * the stack.  Saving streams the transformed stack slice by slice.
+ *
+ * Channels, slices, and frames are treated as one flat list of planes like
+ * in {@link Apply}.
+ *
+ * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
+ */
+public class OutOfCoreLensCorrection {
+
+	final static public int DEFAULT_CACHED_SLICES = 16;
+
+	private OutOfCoreLensCorrection() {}
+
+	/**
+	 * Open a tif, tiff or lsm file as a virtual stack.
+	 *
+	 * @param path
+	 * @return null if the file type is not supported
+	 * @throws IOException
+	 * @throws FormatException
+	 */
+	final static public ImagePlus openVirtualImagePlus(final String path) throws IOException, FormatException {
+		final String lower = path.toLowerCase();
+		if (lower.endsWith(".tif") || lower.endsWith(".tiff"))
+			return IJ.openVirtual(path);
+		else if (lower.endsWith(".lsm")) {
+			final ImporterOptions options = new ImporterOptions();
+			options.setId(path);
+			options.setVirtual(true);
+			return BF.openImagePlus(options)[0];
+		}
+		else
+			return null;
+	}
+
+	final static protected NativeType<?> createType(final int type) {
+		switch (type) {
+		case ImagePlus.GRAY8:
+			return new UnsignedByteType();
+		case ImagePlus.GRAY16:
+			return new UnsignedShortType();
+		case ImagePlus.GRAY32:
+			return new FloatType();
+		case ImagePlus.COLOR_RGB:
+			return new ARGBType();
+		default:
+			throw new IllegalArgumentException("Unsupported image type " + type);
+		}
+	}
+
+	/**
+	 * Wrap a pixel array into an {@link ImageProcessor} of the given
+	 * {@link ImagePlus} type without copying.
+	 */
+	final static protected ImageProcessor createProcessor(
+			final int type,
+			final int width,
+			final int height,
+			final Object pixels) {
+		switch (type) {
+		case ImagePlus.GRAY8:
+			return new ByteProcessor(width, height, (byte[])pixels, null);
+		case ImagePlus.GRAY16:
+			return new ShortProcessor(width, height, (short[])pixels, null);
+		case ImagePlus.GRAY32:
+			return new FloatProcessor(width, height, (float[])pixels, null);
+		case ImagePlus.COLOR_RGB:
+			return new ColorProcessor(width, height, (int[])pixels);
+		default:
+			throw new IllegalArgumentException("Unsupported image type " + type);
+		}
+	}
+
+	/**
+	 * Cached cell image over all planes of a (virtual) {@link ImagePlus}
+	 * with one plane per cell and at most <code>cachedSlices</code> planes
+	 * in memory.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	final static public CachedCellImg<?, ?> createCachedSource(
+			final ImagePlus imp,
+			final int cachedSlices) {
+		final ImageStack stack = imp.getStack();
+		final int width = imp.getWidth();
+		final int height = imp.getHeight();
+		final int type = imp.getType();
+		final CellLoader loader = cell -> {
+			final ImageProcessor ip;
+			/* virtual stacks read from a single file and are not thread safe */
+			synchronized (stack) {
+				ip = stack.getProcessor((int)cell.min(2) + 1);
+			}
+			final Object dst = ((ArrayDataAccess<?>)cell.update(null)).getCurrentStorageArray();
+			System.arraycopy(ip.getPixels(), 0, dst, 0, width * height);
+		};
+		final ReadOnlyCachedCellImgOptions options = ReadOnlyCachedCellImgOptions
+				.options()
+				.cellDimensions(width, height, 1)
+				.cacheType(CacheType.BOUNDED)
+				.maxCacheSize(cachedSlices);
+		return new ReadOnlyCachedCellImgFactory(options).create(
+				new long[] {width, height, stack.getSize()},
+				(NativeType)createType(type),
+				loader);
+	}
+
+	/**
+	 * Lazily lens corrected planes of <code>src</code>.  Each plane is
+	 * resampled through <code>map</code> when it is first accessed, at most
+	 * <code>cachedSlices</code> planes are kept in memory, evicted planes
+	 * are stored on disk.
+	 *
+	 * @param src one plane per cell as created by
+	 *     {@link #createCachedSource(ImagePlus, int)}
+	 * @param type the {@link ImagePlus} type of the source
+	 * @param flatFields plane z is corrected with
+	 *     <code>flatFields[z % flatFields.length]</code>, may be null
+	 * @param projections every resampled plane is added when it is loaded,
+	 *     may be null
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	final static public DiskCachedCellImg<?, ?> createTransformed(
+			final CachedCellImg<?, ?> src,
+			final int type,
+			final CoordinateMap map,
+			final int cachedSlices,
+			final Interpolation interpolation,
+			final FlatField[] flatFields,
+			final Projections projections) {
+		final int sw = (int)src.dimension(0);
+		final int sh = (int)src.dimension(1);
+		final int width = map.getWidth();
+		final int height = map.getHeight();
+		final CellLoader loader = cell -> {
+			final RandomAccess<? extends Cell<?>> cells = src.getCells().randomAccess();
+			cells.setPosition(new long[] {0, 0, cell.min(2)});
+			final Object srcPixels = ((ArrayDataAccess<?>)cells.get().getData()).getCurrentStorageArray();
+			final Object dstPixels = ((ArrayDataAccess<?>)cell.update(null)).getCurrentStorageArray();
+			Resampler.mapInterpolated(
+					createProcessor(type, sw, sh, srcPixels),
+					map,
+					createProcessor(type, width, height, dstPixels),
+					interpolation,
+					flatFields == null ? null : flatFields[(int)(cell.min(2) % flatFields.length)]);
+			if (projections != null)
+				projections.add((int)cell.min(2), dstPixels, 0, width * height);
+		};
+		final DiskCachedCellImgOptions options = DiskCachedCellImgOptions
+				.options()
+				.cellDimensions(width, height, 1)
+				.cacheType(CacheType.BOUNDED)
+				.maxCacheSize(cachedSlices);
+		return new DiskCachedCellImgFactory((NativeType)createType(type), options).create(
+				new long[] {width, height, src.dimension(2)},
+				loader);
+	}
+
+	final static public DiskCachedCellImg<?, ?> createTransformed(
+			final CachedCellImg<?, ?> src,
+			final int type,
+			final CoordinateMap map,
+			final int cachedSlices,
+			final Interpolation interpolation,
+			final FlatField[] flatFields) {
+		return createTransformed(src, type, map, cachedSlices, interpolation, flatFields, null);
+	}
+
+	final static public DiskCachedCellImg<?, ?> createTransformed(
+			final CachedCellImg<?, ?> src,
+			final int type,
+			final CoordinateMap map,
+			final int cachedSlices,
+			final Interpolation interpolation) {
+		return createTransformed(src, type, map, cachedSlices, interpolation, null, null);
+	}
+
+	final static public DiskCachedCellImg<?, ?> createTransformed(
+			final CachedCellImg<?, ?> src,
+			final int type,
+			final CoordinateMap map,
+			final int cachedSlices) {
+		return createTransformed(src, type, map, cachedSlices, Interpolation.BILINEAR);
+	}
+
+	/**
+	 * Lens correct <code>imp</code> and save the result as a tif file with
+	 * the dimensions and calibration of <code>imp</code>.
+	 *
+	 * @param imp the source, ideally a virtual stack
+	 * @param map
+	 * @param cachedSlices number of planes cached for reading and writing each
+	 * @param interpolation
+	 * @param flatFields one per channel, may be null
+	 * @param projections complete when this method returns, may be null
+	 * @param writer a tiled TIFF writer, or null to save with ImageJ
+	 * @param path
+	 * @return true if saving was successful
+	 * @throws IOException
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	final static public boolean saveTransformed(
+			final ImagePlus imp,
+			final CoordinateMap map,
+			final int cachedSlices,
+			final Interpolation interpolation,
+			final FlatField[] flatFields,
+			final Projections projections,
+			final TiledTiffWriter writer,
+			final String path) throws IOException {
+		final CachedCellImg<?, ?> src = createCachedSource(imp, cachedSlices);
+		final DiskCachedCellImg<?, ?> transformed = createTransformed(
+				src,
+				imp.getType(),
+				map,
+				cachedSlices,
+				interpolation,
+				flatFields,
+				projections);
+		final ImagePlus out = ImageJFunctions.wrap((DiskCachedCellImg)transformed, imp.getTitle());
+		out.setDimensions(imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+		out.setOpenAsHyperStack(imp.isHyperStack());
+		out.setCalibration(imp.getCalibration());
+		if (writer == null)
+			return IJ.saveAsTiff(out, path);
+		writer.write(out, path);
+		return true;
+	}
+
+	/**
+	 * Lens correct <code>imp</code> and save the result as a tif file with
+	 * the dimensions and calibration of <code>imp</code>.
+	 *
+	 * @param imp the source, ideally a virtual stack
+	 * @param model
+	 * @param cropWidth
+	 * @param cachedSlices number of planes cached for reading and writing each
+	 * @param interpolation
+	 * @param flatFields one per channel, may be null
+	 * @param writer a tiled TIFF writer, or null to save with ImageJ
+	 * @param path
+	 * @return true if saving was successful
+	 * @throws IOException
+	 */
+	final static public boolean saveTransformed(
+			final ImagePlus imp,
+			final InverseLensModel model,
+			final int cropWidth,
+			final int cachedSlices,
+			final Interpolation interpolation,
+			final FlatField[] flatFields,
+			final TiledTiffWriter writer,
+			final String path) throws IOException {
+		return saveTransformed(imp, model.createCoordinateMap(cropWidth), cachedSlices, interpolation, flatFields, null, writer, path);
+	}
+
+	final static public boolean saveTransformed(
+			final ImagePlus imp,
+			final InverseLensModel model,
+			final int cropWidth,
+			final int cachedSlices,
+			final TiledTiffWriter writer,
+			final String path) throws IOException {
+		return saveTransformed(imp, model, cropWidth, cachedSlices, Interpolation.BILINEAR, null, writer, path);
+	}
+
+	final static public boolean saveTransformed(
+			final ImagePlus imp,
+			final InverseLensModel model,
+			final int cropWidth,
+			final int cachedSlices,
+			final Interpolation interpolation,
+			final TiledTiffWriter writer,
+			final String path) throws IOException {
+		return saveTransformed(imp, model, cropWidth, cachedSlices, interpolation, null, writer, path);
+	}
+
+	final static public boolean saveTransformed(
+			final ImagePlus imp,
+			final InverseLensModel model,
+			final int cropWidth,
+			final int cachedSlices,
+			final String path) throws IOException {
+		return saveTransformed(imp, model, cropWidth, cachedSlices, null, path);
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * The lens model of a tile followed by its placement in the mosaic, i.e. a
+ * translation by (x, y, z) as listed in a TileConfiguration.txt.  Applying
+ * it to a stack resamples every voxel exactly once with trilinear
+ * interpolation instead of correcting the lens, shifting in z, and
+ * placing the tile in separate passes that each blur the data.
+ *
+ * The transformed stack is a raster in the global frame starting at
+ * ({@link #getX()}, {@link #getY()}), the sub-pixel part of the xy
+ * placement and the z shift are resolved by the interpolation.
+ */
+public class PlacedLensTransform {
+
+	final protected InverseLensModel model;
+	final protected double offsetX;
+	final protected double offsetY;
+	final protected double offsetZ;
+	final protected CoordinateMap map;
+
+	public PlacedLensTransform(
+			final InverseLensModel model,
+			final double offsetX,
+			final double offsetY,
+			final double offsetZ,
+			final int cropWidth) {
+		this.model = model;
+		this.offsetX = offsetX;
+		this.offsetY = offsetY;
+		this.offsetZ = offsetZ;
+		map = model.createCoordinateMap(cropWidth, offsetX, offsetY);
+	}
+
+	/**
+	 * @param offset (x, y, z) as returned by {@link ConfocalLens#parseOffsets(String)}
+	 */
+	public PlacedLensTransform(
+			final InverseLensModel model,
+			final double[] offset,
+			final int cropWidth) {
+		this(model, offset[0], offset[1], offset.length > 2 ? offset[2] : 0, cropWidth);
+	}
+
+	public InverseLensModel getModel() {
+		return model;
+	}
+
+	public CoordinateMap getCoordinateMap() {
+		return map;
+	}
+
+	/**
+	 * @return global x-coordinate of the first column of the transformed stack
+	 */
+	public int getX() {
+		return (int)map.getX0();
+	}
+
+	/**
+	 * @return global y-coordinate of the first row of the transformed stack
+	 */
+	public int getY() {
+		return (int)map.getY0();
+	}
+
+	public double getOffsetZ() {
+		return offsetZ;
+	}
+
+	/**
+	 * Resample all slices of <code>src</code> into the placed raster, all
+	 * slices are treated as z.
+	 */
+	public ImageStack apply(final ImageStack src) {
+		checkSize(src.getWidth(), src.getHeight());
+		return Resampler.mapInterpolated(src, map, offsetZ);
+	}
+
+	/**
+	 * Resample all slices of the hyperstack <code>imp</code> into the placed
+	 * raster, shifting in z within each channel and frame.
+	 */
+	public ImageStack apply(final ImagePlus imp) {
+		checkSize(imp.getWidth(), imp.getHeight());
+		return Resampler.mapInterpolated(imp, map, offsetZ);
+	}
+
+	protected void checkSize(final int width, final int height) {
+		if (width != model.getSourceWidth() || height != model.getSourceHeight())
+			throw new IllegalArgumentException("Stack size does not match the lens model.");
+	}
+}
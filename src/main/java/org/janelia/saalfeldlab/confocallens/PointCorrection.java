@@ -0,0 +1,669 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import mpicbg.models.CoordinateTransform;
+
+/**
+ * Lens correction of point coordinates, e.g. bead centroids, neuron traces
+ * or synapse detections, without rasterizing.  Every point carries a
+ * channel label that selects a model of a model file exported by
+ * {@link Automation} (JSON or {@link BinaryLensModels}).  The forward
+ * direction maps pixel coordinates of the raw images to pixel coordinates
+ * of the corrected images as written by {@link Apply} and {@link ApplyLite}
+ * with the same crop width, i.e. relative to their origin
+ * floor(bounds.x + crop), floor(bounds.y + crop) of the
+ * {@link InverseLensModel}.  The inverse direction maps pixel coordinates
+ * of the corrected images back into the raw images with the fitted
+ * {@link InverseLensModel} refined against the forward model like
+ * {@link CoordinateMap}.
+ *
+ * Points are processed in batches of primitive arrays, parsing, transforming
+ * and formatting are parallel within a batch.  Supported files are
+ * <ul>
+ * <li>CSV with optional header, columns <code>channel</code>,
+ * <code>x</code>, <code>y</code> (in this order without header), all other
+ * columns are kept,</li>
+ * <li>SWC, all points of a file share one channel,</li>
+ * <li>a binary format: magic, version, the channel labels, and then records
+ * of channel index (int), x, y, z (double), big endian.</li>
+ * </ul>
+ *
+ * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
+ */
+public class PointCorrection {
+
+	final static public int MAGIC = 0x434c5054;
+	final static public int VERSION = 1;
+	final static public int DEFAULT_BATCH_SIZE = 1 << 18;
+
+	final static protected int CHUNK_SIZE = 1 << 12;
+	final static protected int RECORD_SIZE = 4 + 3 * 8;
+
+	public static enum Format {
+		CSV, SWC, BINARY;
+
+		final static public Format fromPath(final String path) {
+			final String p = path.toLowerCase();
+			if (p.endsWith(".csv") || p.endsWith(".txt"))
+				return CSV;
+			if (p.endsWith(".swc"))
+				return SWC;
+			return BINARY;
+		}
+	}
+
+	/**
+	 * One model in one direction, safe to share between threads.
+	 */
+	final static public class Correction {
+
+		final protected CoordinateTransform forward;
+		final protected PolynomialLensTransform inverse;
+		final protected int iterations;
+
+		/* origin of the corrected image in the frame of the forward model */
+		final protected double originX;
+		final protected double originY;
+
+		/**
+		 * @param t the model chain
+		 * @param inverse create the inverse correction
+		 * @param width source image width for fitting the inverse and the
+		 * 		bounds of the corrected image, 0 to use the size stored
+		 * 		with the lens model
+		 * @param height source image height
+		 * @param cropWidth crop width of the corrected images
+		 */
+		public Correction(
+				final CoordinateTransform t,
+				final boolean inverse,
+				final int width,
+				final int height,
+				final int cropWidth) {
+			forward = LensTransforms.flatten(t);
+			int w = width, h = height;
+			if (w <= 0 || h <= 0) {
+				if (!(forward instanceof PolynomialLensTransform))
+					throw new IllegalArgumentException("The image size is required for a model chain that is not a single lens model.");
+				w = ((PolynomialLensTransform)forward).getWidth();
+				h = ((PolynomialLensTransform)forward).getHeight();
+			}
+			final InverseLensModel model = InverseLensModel.fit(forward, w, h);
+			final Rectangle bounds = model.getBounds();
+			originX = Math.floor(bounds.x + cropWidth);
+			originY = Math.floor(bounds.y + cropWidth);
+			if (inverse) {
+				this.inverse = model.getInverse();
+				iterations = model.getMaxResidual() > InverseLensModel.maxRefinedResidual ? InverseLensModel.refinementIterations : 0;
+			} else {
+				this.inverse = null;
+				iterations = 0;
+			}
+		}
+
+		public Correction(
+				final CoordinateTransform t,
+				final boolean inverse,
+				final int width,
+				final int height) {
+			this(t, inverse, width, height, 0);
+		}
+
+		/**
+		 * Correct point <code>i</code> in place.  <code>px</code> and
+		 * <code>py</code> are scratch arrays of length 16, <code>l</code>,
+		 * <code>r</code> of length 2.
+		 */
+		final public void apply(
+				final double[] x,
+				final double[] y,
+				final int i,
+				final double[] px,
+				final double[] py,
+				final double[] l,
+				final double[] r) {
+			if (inverse == null) {
+				l[0] = x[i];
+				l[1] = y[i];
+				CoordinateMap.apply(forward, l, px, py);
+				l[0] -= originX;
+				l[1] -= originY;
+			} else {
+				l[0] = x[i] + originX;
+				l[1] = y[i] + originY;
+				CoordinateMap.apply(inverse, l, px, py);
+				final double s0x = l[0];
+				final double s0y = l[1];
+				for (int it = 0; it < iterations; ++it) {
+					r[0] = l[0];
+					r[1] = l[1];
+					CoordinateMap.apply(forward, r, px, py);
+					CoordinateMap.apply(inverse, r, px, py);
+					l[0] += s0x - r[0];
+					l[1] += s0y - r[1];
+				}
+			}
+			x[i] = l[0];
+			y[i] = l[1];
+		}
+	}
+
+	final protected BinaryLensModels models;
+	final protected boolean inverse;
+	final protected int width;
+	final protected int height;
+	final protected int cropWidth;
+	final protected String prefix;
+	final protected Correction[] corrections;
+	final protected ConcurrentHashMap<String, Integer> labels = new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * @param models
+	 * @param inverse apply the inverse corrections
+	 * @param width source image width for fitting inverses, 0 to use the
+	 * 		size stored with the lens models
+	 * @param height
+	 * @param cropWidth crop width of the corrected images as passed to
+	 * 		{@link Apply}
+	 * @param prefix only models whose name starts with this prefix are
+	 * 		matched by channel label, e.g. "scope 1, bead sample 3", or null
+	 */
+	public PointCorrection(
+			final BinaryLensModels models,
+			final boolean inverse,
+			final int width,
+			final int height,
+			final int cropWidth,
+			final String prefix) {
+		this.models = models;
+		this.inverse = inverse;
+		this.width = width;
+		this.height = height;
+		this.cropWidth = cropWidth;
+		this.prefix = prefix == null ? "" : prefix;
+		corrections = new Correction[models.size()];
+	}
+
+	public PointCorrection(
+			final BinaryLensModels models,
+			final boolean inverse,
+			final int width,
+			final int height,
+			final String prefix) {
+		this(models, inverse, width, height, 0, prefix);
+	}
+
+	/**
+	 * Whether <code>part</code> is a complete comma separated part or the
+	 * complete tail of <code>name</code>.
+	 */
+	final static protected boolean matchesPart(final String name, final String part) {
+		return name.endsWith(", " + part) || name.contains(", " + part + ", ");
+	}
+
+	/**
+	 * The index of the model for a channel label.  A label is either the
+	 * full name of a model, a trailing part of a name such as "594nm" or
+	 * "488nm, pass2", a wavelength without unit such as "594", or the
+	 * index of the model in the file.
+	 *
+	 * @throws IllegalArgumentException if no or more than one model match
+	 */
+	public int resolve(final String label) {
+		final Integer cached = labels.get(label);
+		if (cached != null)
+			return cached;
+
+		final ArrayList<Integer> matches = new ArrayList<Integer>();
+		for (int i = 0; i < models.size(); ++i) {
+			final String name = models.get(i).name;
+			if (name.equals(label)) {
+				matches.clear();
+				matches.add(i);
+				break;
+			}
+			if (name.startsWith(prefix) && (matchesPart(name, label) || matchesPart(name, label + "nm")))
+				matches.add(i);
+		}
+		if (matches.isEmpty() && label.matches("[0-9]+") && Integer.parseInt(label) < models.size())
+			matches.add(Integer.parseInt(label));
+		if (matches.isEmpty())
+			throw new IllegalArgumentException("No model for channel '" + label + "'.");
+		if (matches.size() > 1) {
+			final StringBuilder names = new StringBuilder();
+			for (final int i : matches)
+				names.append("\n  ").append(models.get(i).name);
+			throw new IllegalArgumentException("Channel '" + label + "' matches more than one model, use a longer label or --prefix:" + names);
+		}
+		final int i = matches.get(0);
+		get(i);
+		labels.put(label, i);
+		return i;
+	}
+
+	/**
+	 * The correction for a model, created on first use.
+	 */
+	public Correction get(final int model) {
+		final Correction correction = corrections[model];
+		return correction == null ? create(model) : correction;
+	}
+
+	synchronized protected Correction create(final int model) {
+		if (corrections[model] == null) {
+			try {
+				corrections[model] = new Correction(models.get(model).createTransform(), inverse, width, height, cropWidth);
+			} catch (final IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return corrections[model];
+	}
+
+	/**
+	 * Correct the first <code>n</code> points in place in parallel, point
+	 * i with model <code>models[i]</code>.  Points with a negative model
+	 * index are skipped.
+	 */
+	public void apply(final int[] models, final double[] x, final double[] y, final int n) {
+		IntStream.range(0, (n + CHUNK_SIZE - 1) / CHUNK_SIZE).parallel().forEach(c -> {
+			final double[] px = new double[16];
+			final double[] py = new double[16];
+			final double[] l = new double[2];
+			final double[] r = new double[2];
+			for (int i = c * CHUNK_SIZE, e = Math.min(n, i + CHUNK_SIZE); i < e; ++i)
+				if (models[i] >= 0)
+					get(models[i]).apply(x, y, i, px, py, l, r);
+		});
+	}
+
+	/**
+	 * Correct the first <code>n</code> points in place in parallel with
+	 * one model.
+	 */
+	public void apply(final int model, final double[] x, final double[] y, final int n) {
+		final Correction correction = get(model);
+		IntStream.range(0, (n + CHUNK_SIZE - 1) / CHUNK_SIZE).parallel().forEach(c -> {
+			final double[] px = new double[16];
+			final double[] py = new double[16];
+			final double[] l = new double[2];
+			final double[] r = new double[2];
+			for (int i = c * CHUNK_SIZE, e = Math.min(n, i + CHUNK_SIZE); i < e; ++i)
+				correction.apply(x, y, i, px, py, l, r);
+		});
+	}
+
+	/* files */
+
+	/**
+	 * Split at <code>delimiter</code>, or at runs of white space if
+	 * <code>delimiter</code> is 0.  Quoted fields are not supported.
+	 */
+	final static protected String[] split(final String line, final char delimiter) {
+		if (delimiter == 0)
+			return line.trim().split("\\s+");
+		final ArrayList<String> fields = new ArrayList<String>();
+		int start = 0;
+		for (int i = line.indexOf(delimiter); i >= 0; i = line.indexOf(delimiter, start)) {
+			fields.add(line.substring(start, i));
+			start = i + 1;
+		}
+		fields.add(line.substring(start));
+		return fields.toArray(new String[fields.size()]);
+	}
+
+	final static protected String join(final String[] fields, final char delimiter) {
+		final StringBuilder s = new StringBuilder();
+		for (int k = 0; k < fields.length; ++k) {
+			if (k > 0)
+				s.append(delimiter == 0 ? ' ' : delimiter);
+			s.append(fields[k]);
+		}
+		return s.toString();
+	}
+
+	/**
+	 * Correct a CSV or SWC file.  Comments, blank lines and the CSV header
+	 * are copied.
+	 *
+	 * @param channel the label of all points if the file has no channel
+	 * 		column, or null
+	 * @return the number of points
+	 */
+	public long correctText(
+			final String inputPath,
+			final String outputPath,
+			final Format format,
+			final String channel,
+			final int batchSize) throws IOException {
+		final char delimiter = format == Format.CSV ? ',' : 0;
+		int xColumn = format == Format.CSV ? 1 : 2;
+		int yColumn = xColumn + 1;
+		int channelColumn = format == Format.CSV ? 0 : -1;
+		final String[] lines = new String[batchSize];
+		final int[] ms = new int[batchSize];
+		final double[] x = new double[batchSize];
+		final double[] y = new double[batchSize];
+		long count = 0;
+		try (
+				final BufferedReader in = Files.newBufferedReader(Paths.get(inputPath), StandardCharsets.UTF_8);
+				final BufferedWriter out = Files.newBufferedWriter(Paths.get(outputPath), StandardCharsets.UTF_8)) {
+			String line = in.readLine();
+			if (format == Format.CSV && line != null) {
+				final String[] header = split(line, delimiter);
+				boolean isHeader = false;
+				try {
+					Double.parseDouble(header[xColumn]);
+				} catch (final RuntimeException e) {
+					isHeader = true;
+				}
+				if (isHeader) {
+					channelColumn = xColumn = yColumn = -1;
+					for (int k = 0; k < header.length; ++k) {
+						final String name = header[k].trim().toLowerCase();
+						if (name.equals("x"))
+							xColumn = k;
+						else if (name.equals("y"))
+							yColumn = k;
+						else if (name.equals("channel"))
+							channelColumn = k;
+					}
+					if (xColumn < 0 || yColumn < 0)
+						throw new IOException("No x and y columns in the header of " + inputPath);
+					out.write(line);
+					out.newLine();
+					line = in.readLine();
+				}
+			}
+			if (channelColumn < 0 && channel == null)
+				throw new IllegalArgumentException(inputPath + " has no channel column, pass the channel of all points.");
+			final int defaultModel = channel == null ? -1 : resolve(channel);
+
+			final int xc = xColumn, yc = yColumn, cc = channelColumn;
+			while (line != null) {
+				int n = 0;
+				for (; n < batchSize && line != null; ++n) {
+					lines[n] = line;
+					line = in.readLine();
+				}
+				final int size = n;
+				IntStream.range(0, (size + CHUNK_SIZE - 1) / CHUNK_SIZE).parallel().forEach(c -> {
+					for (int i = c * CHUNK_SIZE, e = Math.min(size, i + CHUNK_SIZE); i < e; ++i) {
+						final String l = lines[i].trim();
+						if (l.isEmpty() || l.startsWith("#")) {
+							ms[i] = -1;
+							continue;
+						}
+						final String[] fields = split(lines[i], delimiter);
+						try {
+							x[i] = Double.parseDouble(fields[xc]);
+							y[i] = Double.parseDouble(fields[yc]);
+						} catch (final RuntimeException ex) {
+							throw new IllegalArgumentException("Cannot parse x and y in '" + lines[i] + "'.", ex);
+						}
+						ms[i] = cc < 0 ? defaultModel : resolve(fields[cc].trim());
+					}
+				});
+				apply(ms, x, y, size);
+				IntStream.range(0, (size + CHUNK_SIZE - 1) / CHUNK_SIZE).parallel().forEach(c -> {
+					for (int i = c * CHUNK_SIZE, e = Math.min(size, i + CHUNK_SIZE); i < e; ++i) {
+						if (ms[i] < 0)
+							continue;
+						final String[] fields = split(lines[i], delimiter);
+						fields[xc] = Double.toString(x[i]);
+						fields[yc] = Double.toString(y[i]);
+						lines[i] = join(fields, delimiter);
+					}
+				});
+				for (int i = 0; i < size; ++i) {
+					out.write(lines[i]);
+					out.newLine();
+					if (ms[i] >= 0)
+						++count;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Correct a binary point file, the output has the same channel labels.
+	 *
+	 * @return the number of points
+	 */
+	public long correctBinary(
+			final String inputPath,
+			final String outputPath,
+			final int batchSize) throws IOException {
+		final byte[] bytes = new byte[batchSize * RECORD_SIZE];
+		final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		final int[] ms = new int[batchSize];
+		final double[] x = new double[batchSize];
+		final double[] y = new double[batchSize];
+		long count = 0;
+		try (
+				final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(inputPath)));
+				final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputPath)))) {
+			if (in.readInt() != MAGIC)
+				throw new IOException(inputPath + " is not a binary point file.");
+			final int version = in.readInt();
+			if (version > VERSION)
+				throw new IOException("Unsupported point file version " + version + " in " + inputPath);
+			final int numLabels = in.readInt();
+			final int[] labelModels = new int[numLabels];
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(numLabels);
+			for (int k = 0; k < numLabels; ++k) {
+				final String label = in.readUTF();
+				labelModels[k] = resolve(label);
+				out.writeUTF(label);
+			}
+
+			while (true) {
+				int length = 0;
+				for (int r; length < bytes.length && (r = in.read(bytes, length, bytes.length - length)) >= 0;)
+					length += r;
+				if (length % RECORD_SIZE != 0)
+					throw new EOFException("Truncated point record in " + inputPath);
+				final int size = length / RECORD_SIZE;
+				if (size == 0)
+					break;
+				for (int i = 0, p = 0; i < size; ++i, p += RECORD_SIZE) {
+					ms[i] = labelModels[buffer.getInt(p)];
+					x[i] = buffer.getDouble(p + 4);
+					y[i] = buffer.getDouble(p + 12);
+				}
+				apply(ms, x, y, size);
+				for (int i = 0, p = 0; i < size; ++i, p += RECORD_SIZE) {
+					buffer.putDouble(p + 4, x[i]);
+					buffer.putDouble(p + 12, y[i]);
+				}
+				out.write(bytes, 0, length);
+				count += size;
+				if (length < bytes.length)
+					break;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Write a binary point file.
+	 *
+	 * @param labels channel labels
+	 * @param channels index into <code>labels</code> for each point
+	 * @param z may be null
+	 */
+	final static public void writeBinary(
+			final String path,
+			final String[] labels,
+			final int[] channels,
+			final double[] x,
+			final double[] y,
+			final double[] z,
+			final int n) throws IOException {
+		try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(labels.length);
+			for (final String label : labels)
+				out.writeUTF(label);
+			for (int i = 0; i < n; ++i) {
+				out.writeInt(channels[i]);
+				out.writeDouble(x[i]);
+				out.writeDouble(y[i]);
+				out.writeDouble(z == null ? 0 : z[i]);
+			}
+		}
+	}
+
+	final static public Options createOptions() {
+		final Options options = new Options();
+		final Option modelsOption = new Option(
+				"m",
+				"models",
+				true,
+				"model file exported by Automation, JSON or binary");
+		modelsOption.setRequired(true);
+		options.addOption(modelsOption);
+		options.addOption(new Option(
+				"i",
+				"inverse",
+				false,
+				"map corrected coordinates back into the raw images"));
+		options.addOption(new Option(
+				"c",
+				"channel",
+				true,
+				"channel label of all points for files without channel column (SWC)"));
+		options.addOption(new Option(
+				"p",
+				"prefix",
+				true,
+				"match channel labels only against models whose name starts with this prefix, e.g. \"scope 1, bead sample 3\""));
+		options.addOption(new Option(
+				"s",
+				"size",
+				true,
+				"<width>x<height> of the raw images, default is the size stored with the lens model"));
+		options.addOption(new Option(
+				null,
+				"crop",
+				true,
+				"crop width of the corrected images as passed to Apply, default 0"));
+		options.addOption(new Option(
+				"f",
+				"format",
+				true,
+				"'csv', 'swc', or 'binary', default by the extension of the input path"));
+		options.addOption(new Option(
+				"b",
+				"batch",
+				true,
+				"points per batch, default " + DEFAULT_BATCH_SIZE));
+		return options;
+	}
+
+	final static private void printUsage(final Options options) {
+		new HelpFormatter().printHelp(
+				"java ... [options] <input> <output>",
+				options);
+	}
+
+	/**
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(final String[] args) throws IOException {
+
+		final Options options = createOptions();
+		final CommandLine cmd;
+		try {
+			cmd = new DefaultParser().parse(options, args);
+		} catch (final ParseException e) {
+			System.err.println(e.getMessage());
+			printUsage(options);
+			return;
+		}
+		final String[] paths = cmd.getArgs();
+		if (paths.length < 2) {
+			printUsage(options);
+			return;
+		}
+
+		int width = 0, height = 0;
+		if (cmd.hasOption("size")) {
+			final String[] size = cmd.getOptionValue("size").split("x");
+			width = Integer.parseInt(size[0]);
+			height = Integer.parseInt(size[1]);
+		}
+		final Format format = cmd.hasOption("format") ?
+				Format.valueOf(cmd.getOptionValue("format").toUpperCase()) :
+				Format.fromPath(paths[0]);
+		final int batchSize = Integer.parseInt(cmd.getOptionValue("batch", Integer.toString(DEFAULT_BATCH_SIZE)));
+
+		final PointCorrection correction = new PointCorrection(
+				BinaryLensModels.load(cmd.getOptionValue("models")),
+				cmd.hasOption("inverse"),
+				width,
+				height,
+				Integer.parseInt(cmd.getOptionValue("crop", "0")),
+				cmd.getOptionValue("prefix"));
+
+		final long t = System.currentTimeMillis();
+		final long count;
+		try {
+			if (format == Format.BINARY)
+				count = correction.correctBinary(paths[0], paths[1], batchSize);
+			else
+				count = correction.correctText(paths[0], paths[1], format, cmd.getOptionValue("channel"), batchSize);
+		} catch (final IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			return;
+		}
+		final double seconds = Math.max(1, System.currentTimeMillis() - t) * 1e-3;
+		System.out.println(String.format("%d points in %.2fs, %.1f million points per minute", count, seconds, count / seconds * 60e-6));
+	}
+}
@@ -0,0 +1,381 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+import java.awt.geom.AffineTransform;
+
+import mpicbg.trakem2.transform.CoordinateTransform;
+
+/**
+ * Polynomial lens model that reads and writes the data string format of
+ * {@link mpicbg.trakem2.transform.NonLinearCoordinateTransform} but keeps
+ * its coefficients in flat arrays with the normalization folded in, and
+ * can absorb a trailing affine into its coefficients.  A chain of a
+ * non-linear lens model followed by an affine therefore collapses into a
+ * single polynomial evaluation with the same result up to rounding.
+ *
+ * The data string is
+ * <pre>dimension length beta_0x beta_0y ... normMean_0 ... normVar_0 ... width height</pre>
+ * where the first <code>length - 1</code> monomials are normalized by
+ * <code>(m - normMean) / normVar</code> and the last one is the constant
+ * 100.
+ */
+public class PolynomialLensTransform implements CoordinateTransform {
+
+	private static final long serialVersionUID = 6302447915236624154L;
+
+	final static public double CONSTANT_TERM = 100.0;
+
+	protected int dimension;
+	protected int length;
+	protected double[] betaX;
+	protected double[] betaY;
+	protected double[] normMean;
+	protected double[] normVar;
+	protected int width;
+	protected int height;
+
+	/* normalization folded into the coefficients, updated on every change */
+	protected double[] cX;
+	protected double[] cY;
+	protected double c0X;
+	protected double c0Y;
+
+	public PolynomialLensTransform() {}
+
+	public PolynomialLensTransform(
+			final int dimension,
+			final double[] betaX,
+			final double[] betaY,
+			final double[] normMean,
+			final double[] normVar,
+			final int width,
+			final int height) {
+		set(dimension, betaX, betaY, normMean, normVar, width, height);
+	}
+
+	final static public int numTerms(final int dimension) {
+		return (dimension + 1) * (dimension + 2) / 2;
+	}
+
+	public void set(
+			final int dimension,
+			final double[] betaX,
+			final double[] betaY,
+			final double[] normMean,
+			final double[] normVar,
+			final int width,
+			final int height) {
+		final int length = numTerms(dimension);
+		if (betaX.length != length || betaY.length != length || normMean.length != length || normVar.length != length)
+			throw new IllegalArgumentException("Expected " + length + " terms for a polynomial of dimension " + dimension + ".");
+		this.dimension = dimension;
+		this.length = length;
+		this.betaX = betaX.clone();
+		this.betaY = betaY.clone();
+		this.normMean = normMean.clone();
+		this.normVar = normVar.clone();
+		this.width = width;
+		this.height = height;
+		update();
+	}
+
+	protected void update() {
+		cX = new double[length - 1];
+		cY = new double[length - 1];
+		c0X = betaX[length - 1] * CONSTANT_TERM;
+		c0Y = betaY[length - 1] * CONSTANT_TERM;
+		for (int k = 0; k < length - 1; ++k) {
+			cX[k] = betaX[k] / normVar[k];
+			cY[k] = betaY[k] / normVar[k];
+			c0X -= cX[k] * normMean[k];
+			c0Y -= cY[k] * normMean[k];
+		}
+	}
+
+	public int getDimension() {
+		return dimension;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Concatenate an affine after this transform, i.e. this transform will
+	 * then map x to a(t(x)).  The affine is linear in the coefficients, so
+	 * the result is exact.
+	 */
+	public void preConcatenate(final AffineTransform a) {
+		final double m00 = a.getScaleX();
+		final double m01 = a.getShearX();
+		final double m10 = a.getShearY();
+		final double m11 = a.getScaleY();
+		for (int k = 0; k < length; ++k) {
+			final double bx = betaX[k];
+			final double by = betaY[k];
+			betaX[k] = m00 * bx + m01 * by;
+			betaY[k] = m10 * bx + m11 * by;
+		}
+		betaX[length - 1] += a.getTranslateX() / CONSTANT_TERM;
+		betaY[length - 1] += a.getTranslateY() / CONSTANT_TERM;
+		update();
+	}
+
+	/**
+	 * Evaluate the transform at (x, y) and write the result into
+	 * <code>target</code> at <code>offset</code>, <code>offset + 1</code>.
+	 * <code>px</code> and <code>py</code> are scratch arrays of at least
+	 * <code>dimension + 1</code> elements such that batch callers do not
+	 * allocate per point.
+	 */
+	final public void apply(
+			final double x,
+			final double y,
+			final double[] target,
+			final int offset,
+			final double[] px,
+			final double[] py) {
+		px[0] = 1;
+		py[0] = 1;
+		for (int i = 1; i <= dimension; ++i) {
+			px[i] = px[i - 1] * x;
+			py[i] = py[i - 1] * y;
+		}
+		double rx = c0X;
+		double ry = c0Y;
+		int k = 0;
+		for (int i = 1; i <= dimension; ++i) {
+			/* monomials of degree i in the order x^i, x^(i-1) y, ..., y^i */
+			for (int j = i; j >= 0; --j) {
+				final double m = px[j] * py[i - j];
+				rx += cX[k] * m;
+				ry += cY[k] * m;
+				++k;
+			}
+		}
+		target[offset] = rx;
+		target[offset + 1] = ry;
+	}
+
+	final public double[] createScratch() {
+		return new double[dimension + 1];
+	}
+
+	/**
+	 * Transform <code>n</code> interleaved 2D points in place.
+	 */
+	final public void applyInPlace(final double[] xy, final int offset, final int n) {
+		final double[] px = createScratch();
+		final double[] py = createScratch();
+		for (int i = offset, e = offset + 2 * n; i < e; i += 2)
+			apply(xy[i], xy[i + 1], xy, i, px, py);
+	}
+
+	/**
+	 * Least squares fit of a polynomial of the given dimension that maps
+	 * (xs, ys) to (txs, tys).  Monomials are normalized by their mean and
+	 * standard deviation over the samples like the original lens
+	 * correction does.  <code>lambda</code> is a small Tikhonov
+	 * regularizer on all but the constant term.
+	 */
+	final static public PolynomialLensTransform fit(
+			final int dimension,
+			final double[] xs,
+			final double[] ys,
+			final double[] txs,
+			final double[] tys,
+			final int width,
+			final int height,
+			final double lambda) {
+		final int length = numTerms(dimension);
+		final int n = xs.length;
+		final double[] px = new double[dimension + 1];
+		final double[] py = new double[dimension + 1];
+
+		/* monomials per sample */
+		final double[][] m = new double[n][length];
+		for (int s = 0; s < n; ++s) {
+			px[0] = 1;
+			py[0] = 1;
+			for (int i = 1; i <= dimension; ++i) {
+				px[i] = px[i - 1] * xs[s];
+				py[i] = py[i - 1] * ys[s];
+			}
+			int k = 0;
+			for (int i = 1; i <= dimension; ++i)
+				for (int j = i; j >= 0; --j)
+					m[s][k++] = px[j] * py[i - j];
+			m[s][k] = CONSTANT_TERM;
+		}
+
+		/* normalization */
+		final double[] normMean = new double[length];
+		final double[] normVar = new double[length];
+		for (int k = 0; k < length - 1; ++k) {
+			double sum = 0;
+			for (int s = 0; s < n; ++s)
+				sum += m[s][k];
+			final double mean = sum / n;
+			double sum2 = 0;
+			for (int s = 0; s < n; ++s) {
+				final double d = m[s][k] - mean;
+				sum2 += d * d;
+			}
+			final double std = Math.sqrt(sum2 / n);
+			normMean[k] = mean;
+			normVar[k] = std == 0 ? 1 : std;
+			for (int s = 0; s < n; ++s)
+				m[s][k] = (m[s][k] - mean) / normVar[k];
+		}
+		normMean[length - 1] = CONSTANT_TERM;
+		normVar[length - 1] = 0;
+
+		/* normal equations */
+		final double[][] a = new double[length][length];
+		final double[] bx = new double[length];
+		final double[] by = new double[length];
+		for (int s = 0; s < n; ++s) {
+			final double[] ms = m[s];
+			for (int k = 0; k < length; ++k) {
+				for (int l = k; l < length; ++l)
+					a[k][l] += ms[k] * ms[l];
+				bx[k] += ms[k] * txs[s];
+				by[k] += ms[k] * tys[s];
+			}
+		}
+		for (int k = 0; k < length; ++k) {
+			for (int l = 0; l < k; ++l)
+				a[k][l] = a[l][k];
+			if (k < length - 1)
+				a[k][k] += lambda * n;
+		}
+
+		final double[] betaX = solveSymmetric(a, bx);
+		final double[] betaY = solveSymmetric(a, by);
+
+		return new PolynomialLensTransform(dimension, betaX, betaY, normMean, normVar, width, height);
+	}
+
+	/**
+	 * Solve a x = b for a symmetric positive definite a by Cholesky
+	 * decomposition.  Neither a nor b are modified.
+	 */
+	final static protected double[] solveSymmetric(final double[][] a, final double[] b) {
+		final int n = b.length;
+		final double[][] l = new double[n][n];
+		for (int i = 0; i < n; ++i) {
+			for (int j = 0; j <= i; ++j) {
+				double sum = a[i][j];
+				for (int k = 0; k < j; ++k)
+					sum -= l[i][k] * l[j][k];
+				if (i == j) {
+					if (sum <= 0)
+						throw new IllegalArgumentException("Normal equations are not positive definite, not enough samples?");
+					l[i][i] = Math.sqrt(sum);
+				} else
+					l[i][j] = sum / l[j][j];
+			}
+		}
+		final double[] y = new double[n];
+		for (int i = 0; i < n; ++i) {
+			double sum = b[i];
+			for (int k = 0; k < i; ++k)
+				sum -= l[i][k] * y[k];
+			y[i] = sum / l[i][i];
+		}
+		final double[] x = new double[n];
+		for (int i = n - 1; i >= 0; --i) {
+			double sum = y[i];
+			for (int k = i + 1; k < n; ++k)
+				sum -= l[k][i] * x[k];
+			x[i] = sum / l[i][i];
+		}
+		return x;
+	}
+
+	@Override
+	public double[] apply(final double[] location) {
+		final double[] target = location.clone();
+		applyInPlace(target);
+		return target;
+	}
+
+	@Override
+	public void applyInPlace(final double[] location) {
+		apply(location[0], location[1], location, 0, createScratch(), createScratch());
+	}
+
+	@Override
+	public void init(final String data) throws NumberFormatException {
+		final String[] fields = data.trim().split("\\s+");
+		final int dimension = Integer.parseInt(fields[0]);
+		final int length = Integer.parseInt(fields[1]);
+		if (length != numTerms(dimension) || fields.length != 4 + 4 * length)
+			throw new NumberFormatException("Inappropriate parameters for " + getClass().getCanonicalName());
+
+		final double[] betaX = new double[length];
+		final double[] betaY = new double[length];
+		final double[] normMean = new double[length];
+		final double[] normVar = new double[length];
+		int c = 2;
+		for (int k = 0; k < length; ++k) {
+			betaX[k] = Double.parseDouble(fields[c++]);
+			betaY[k] = Double.parseDouble(fields[c++]);
+		}
+		for (int k = 0; k < length; ++k)
+			normMean[k] = Double.parseDouble(fields[c++]);
+		for (int k = 0; k < length; ++k)
+			normVar[k] = Double.parseDouble(fields[c++]);
+		final int width = Integer.parseInt(fields[c++]);
+		final int height = Integer.parseInt(fields[c++]);
+
+		set(dimension, betaX, betaY, normMean, normVar, width, height);
+	}
+
+	@Override
+	public String toDataString() {
+		final StringBuilder data = new StringBuilder();
+		data.append(dimension).append(' ');
+		data.append(length).append(' ');
+		for (int k = 0; k < length; ++k) {
+			data.append(betaX[k]).append(' ');
+			data.append(betaY[k]).append(' ');
+		}
+		for (int k = 0; k < length; ++k)
+			data.append(normMean[k]).append(' ');
+		for (int k = 0; k < length; ++k)
+			data.append(normVar[k]).append(' ');
+		data.append(width).append(' ');
+		data.append(height).append(' ');
+		return data.toString();
+	}
+
+	@Override
+	public String toXML(final String indent) {
+		return indent + "<ict_transform class=\"" + this.getClass().getCanonicalName() + "\" data=\"" + toDataString() + "\"/>";
+	}
+
+	@Override
+	public PolynomialLensTransform copy() {
+		return new PolynomialLensTransform(dimension, betaX, betaY, normMean, normVar, width, height);
+	}
+}
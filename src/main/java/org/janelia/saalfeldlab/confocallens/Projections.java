@@ -0,0 +1,375 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Quality control side outputs of a lens corrected hyperstack that are
+ * accumulated in the resampling loop while the corrected pixels are still
+ * in cache: a Z-max and a mean projection per channel and frame, and the
+ * minimum, maximum, mean and standard deviation of every slice.  Pixels
+ * are added in ranges, e.g. blocks of rows, of any slice in any order and
+ * from any thread, each projection is locked in stripes of
+ * {@link Resampler#ROWS_PER_BLOCK} rows.
+ *
+ * Next to an output <code>name.tif</code>, {@link #save(String)} writes
+ * <code>name.max.tif</code>, <code>name.mean.tif</code> and
+ * <code>name.stats.csv</code>.
+ *
+ * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
+ */
+public class Projections {
+
+	public enum Output {
+		MAX, MEAN, STATS;
+
+		/**
+		 * Parse a comma separated list like <code>max,mean,stats</code>.
+		 */
+		final static public EnumSet<Output> parse(final String outputs) {
+			final EnumSet<Output> set = EnumSet.noneOf(Output.class);
+			for (final String output : outputs.split(","))
+				if (!output.trim().isEmpty())
+					set.add(valueOf(output.trim().toUpperCase()));
+			return set;
+		}
+	}
+
+	final static public String STATISTICS_HEADER = "slice,channel,z,frame,min,max,mean,stdev";
+
+	final protected int width;
+	final protected int height;
+	final protected int bitDepth;
+	final protected int numChannels;
+	final protected int numSlices;
+	final protected int numFrames;
+	final protected EnumSet<Output> outputs;
+	final protected int stripeSize;
+
+	/* per channel and frame */
+	final protected float[][] max;
+	final protected double[][] sum;
+	final protected Object[][] stripeLocks;
+
+	/* per slice */
+	final protected float[] sliceMin;
+	final protected float[] sliceMax;
+	final protected double[] sliceSum;
+	final protected double[] sliceSumOfSquares;
+	final protected long[] sliceCount;
+
+	protected Calibration calibration = null;
+
+	/**
+	 * @param width
+	 * @param height
+	 * @param bitDepth 8, 16 or 32, the bit depth of the max projection
+	 * @param numChannels
+	 * @param numSlices
+	 * @param numFrames
+	 * @param outputs
+	 */
+	public Projections(
+			final int width,
+			final int height,
+			final int bitDepth,
+			final int numChannels,
+			final int numSlices,
+			final int numFrames,
+			final EnumSet<Output> outputs) {
+		if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32)
+			throw new IllegalArgumentException("Projections of " + bitDepth + "-bit images are not supported.");
+		this.width = width;
+		this.height = height;
+		this.bitDepth = bitDepth;
+		this.numChannels = numChannels;
+		this.numSlices = numSlices;
+		this.numFrames = numFrames;
+		this.outputs = outputs;
+		stripeSize = Resampler.ROWS_PER_BLOCK * width;
+
+		final int n = width * height;
+		final int numProjections = numChannels * numFrames;
+		max = new float[outputs.contains(Output.MAX) ? numProjections : 0][];
+		for (int i = 0; i < max.length; ++i) {
+			max[i] = new float[n];
+			Arrays.fill(max[i], Float.NEGATIVE_INFINITY);
+		}
+		sum = new double[outputs.contains(Output.MEAN) ? numProjections : 0][];
+		for (int i = 0; i < sum.length; ++i)
+			sum[i] = new double[n];
+		stripeLocks = new Object[numProjections][(n + stripeSize - 1) / stripeSize];
+		for (final Object[] locks : stripeLocks)
+			for (int i = 0; i < locks.length; ++i)
+				locks[i] = new Object();
+
+		final int depth = numChannels * numSlices * numFrames;
+		sliceMin = new float[depth];
+		sliceMax = new float[depth];
+		sliceSum = new double[depth];
+		sliceSumOfSquares = new double[depth];
+		sliceCount = new long[depth];
+		Arrays.fill(sliceMin, Float.POSITIVE_INFINITY);
+		Arrays.fill(sliceMax, Float.NEGATIVE_INFINITY);
+	}
+
+	/**
+	 * Projections of the lens corrected version of <code>imp</code> with
+	 * <code>width</code>x<code>height</code> pixels, with the dimensions
+	 * and calibration of <code>imp</code>.
+	 *
+	 * @return null if <code>outputs</code> is empty
+	 */
+	final static public Projections create(
+			final ImagePlus imp,
+			final int width,
+			final int height,
+			final EnumSet<Output> outputs) {
+		if (outputs.isEmpty())
+			return null;
+		final Projections projections = new Projections(
+				width,
+				height,
+				imp.getBitDepth(),
+				imp.getNChannels(),
+				imp.getNSlices(),
+				imp.getNFrames(),
+				outputs);
+		projections.calibration = imp.getCalibration().copy();
+		return projections;
+	}
+
+	public int getSize() {
+		return sliceCount.length;
+	}
+
+	/**
+	 * Add pixels <code>[offset, offset + length)</code> of the 0-based
+	 * hyperstack slice <code>slice</code>.
+	 *
+	 * @param pixels byte[], short[] or float[] with the corrected slice
+	 */
+	public void add(final int slice, final Object pixels, final int offset, final int length) {
+		final int c = slice % numChannels;
+		final int t = slice / (numChannels * numSlices);
+		final int p = t * numChannels + c;
+		final float[] max = this.max.length == 0 ? null : this.max[p];
+		final double[] sum = this.sum.length == 0 ? null : this.sum[p];
+
+		float min = Float.POSITIVE_INFINITY;
+		float sliceMax = Float.NEGATIVE_INFINITY;
+		double s = 0, ss = 0;
+		for (int stripeStart = offset - offset % stripeSize, end = offset + length; stripeStart < end; stripeStart += stripeSize) {
+			final int a = Math.max(offset, stripeStart);
+			final int b = Math.min(end, stripeStart + stripeSize);
+			synchronized (stripeLocks[p][stripeStart / stripeSize]) {
+				if (pixels instanceof short[]) {
+					final short[] v = (short[])pixels;
+					for (int i = a; i < b; ++i) {
+						final int x = v[i] & 0xffff;
+						if (x < min) min = x;
+						if (x > sliceMax) sliceMax = x;
+						s += x;
+						ss += (double)x * x;
+						if (max != null && x > max[i]) max[i] = x;
+						if (sum != null) sum[i] += x;
+					}
+				} else if (pixels instanceof byte[]) {
+					final byte[] v = (byte[])pixels;
+					for (int i = a; i < b; ++i) {
+						final int x = v[i] & 0xff;
+						if (x < min) min = x;
+						if (x > sliceMax) sliceMax = x;
+						s += x;
+						ss += (double)x * x;
+						if (max != null && x > max[i]) max[i] = x;
+						if (sum != null) sum[i] += x;
+					}
+				} else if (pixels instanceof float[]) {
+					final float[] v = (float[])pixels;
+					for (int i = a; i < b; ++i) {
+						final float x = v[i];
+						if (x < min) min = x;
+						if (x > sliceMax) sliceMax = x;
+						s += x;
+						ss += (double)x * x;
+						if (max != null && x > max[i]) max[i] = x;
+						if (sum != null) sum[i] += x;
+					}
+				} else
+					throw new IllegalArgumentException("Unsupported pixel type " + pixels.getClass().getSimpleName());
+			}
+		}
+		synchronized (sliceCount) {
+			if (min < sliceMin[slice]) sliceMin[slice] = min;
+			if (sliceMax > this.sliceMax[slice]) this.sliceMax[slice] = sliceMax;
+			sliceSum[slice] += s;
+			sliceSumOfSquares[slice] += ss;
+			sliceCount[slice] += length;
+		}
+	}
+
+	public void add(final int slice, final ImageProcessor ip) {
+		add(slice, ip.getPixels(), 0, width * height);
+	}
+
+	/**
+	 * Add the max projection of some slices of a channel and frame, e.g.
+	 * of one {@link StackShard}.
+	 *
+	 * @param channel 0-based
+	 * @param frame 0-based
+	 */
+	public void addMax(final int channel, final int frame, final ImageProcessor ip) {
+		final float[] m = max[frame * numChannels + channel];
+		for (int i = 0; i < m.length; ++i)
+			m[i] = Math.max(m[i], ip.getf(i));
+	}
+
+	/**
+	 * Add the mean projection of <code>n</code> slices of a channel and
+	 * frame, e.g. of one {@link StackShard}.
+	 *
+	 * @param channel 0-based
+	 * @param frame 0-based
+	 */
+	public void addMean(final int channel, final int frame, final ImageProcessor ip, final int n) {
+		final double[] s = sum[frame * numChannels + channel];
+		for (int i = 0; i < s.length; ++i)
+			s[i] += (double)ip.getf(i) * n;
+	}
+
+	/**
+	 * Max projection with one slice per channel and frame in the bit depth
+	 * of the source.
+	 */
+	public ImagePlus getMax(final String title) {
+		if (max.length == 0)
+			return null;
+		final ImageStack stack = new ImageStack(width, height);
+		for (final float[] m : max) {
+			final FloatProcessor fp = new FloatProcessor(width, height, m.clone());
+			if (bitDepth == 8)
+				stack.addSlice(fp.convertToByteProcessor(false));
+			else if (bitDepth == 16)
+				stack.addSlice(fp.convertToShortProcessor(false));
+			else
+				stack.addSlice(fp);
+		}
+		return createImagePlus(title, stack);
+	}
+
+	/**
+	 * 32-bit mean projection with one slice per channel and frame.
+	 */
+	public ImagePlus getMean(final String title) {
+		if (sum.length == 0)
+			return null;
+		final ImageStack stack = new ImageStack(width, height);
+		for (final double[] s : sum) {
+			final float[] mean = new float[s.length];
+			for (int i = 0; i < s.length; ++i)
+				mean[i] = (float)(s[i] / numSlices);
+			stack.addSlice(new FloatProcessor(width, height, mean));
+		}
+		return createImagePlus(title, stack);
+	}
+
+	protected ImagePlus createImagePlus(final String title, final ImageStack stack) {
+		final ImagePlus imp = new ImagePlus(title, stack);
+		imp.setDimensions(numChannels, 1, numFrames);
+		if (numChannels > 1 || numFrames > 1)
+			imp.setOpenAsHyperStack(true);
+		if (calibration != null)
+			imp.setCalibration(calibration);
+		return imp;
+	}
+
+	/**
+	 * Save the slice statistics as CSV with the columns <code>slice</code>
+	 * (1-based stack index), <code>channel</code>, <code>z</code>,
+	 * <code>frame</code> (1-based), <code>min</code>, <code>max</code>,
+	 * <code>mean</code> and <code>stdev</code>.
+	 */
+	public void saveStatistics(final String path) throws IOException {
+		try (final PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8))) {
+			out.println(STATISTICS_HEADER);
+			for (int i = 0; i < sliceCount.length; ++i) {
+				final long n = Math.max(1, sliceCount[i]);
+				final double mean = sliceSum[i] / n;
+				/* sample standard deviation like ImageJ's statistics */
+				final double stdev = n < 2 ? 0 : Math.sqrt(Math.max(0, (sliceSumOfSquares[i] - sliceSum[i] * mean) / (n - 1)));
+				out.println(
+						(i + 1) + "," +
+						(i % numChannels + 1) + "," +
+						(i / numChannels % numSlices + 1) + "," +
+						(i / (numChannels * numSlices) + 1) + "," +
+						sliceMin[i] + "," +
+						sliceMax[i] + "," +
+						mean + "," +
+						stdev);
+			}
+		}
+	}
+
+	/**
+	 * Base path of the side outputs of <code>outputPath</code>, i.e. the
+	 * path without a <code>.tif</code> or <code>.tiff</code> extension.
+	 */
+	final static public String getBasePath(final String outputPath) {
+		final String lower = outputPath.toLowerCase();
+		if (lower.endsWith(".tif"))
+			return outputPath.substring(0, outputPath.length() - 4);
+		if (lower.endsWith(".tiff"))
+			return outputPath.substring(0, outputPath.length() - 5);
+		return outputPath;
+	}
+
+	/**
+	 * Path of a side output of <code>outputPath</code>.
+	 */
+	final static public String getPath(final String outputPath, final Output output) {
+		return getBasePath(outputPath) + (output == Output.STATS ? ".stats.csv" : "." + output.name().toLowerCase() + ".tif");
+	}
+
+	/**
+	 * Save all requested side outputs next to <code>outputPath</code>.
+	 */
+	public void save(final String outputPath) throws IOException {
+		final String name = Paths.get(getBasePath(outputPath)).getFileName().toString();
+		if (outputs.contains(Output.MAX) && !IJ.saveAsTiff(getMax(name + ".max"), getPath(outputPath, Output.MAX)))
+			throw new IOException("Cannot save " + getPath(outputPath, Output.MAX));
+		if (outputs.contains(Output.MEAN) && !IJ.saveAsTiff(getMean(name + ".mean"), getPath(outputPath, Output.MEAN)))
+			throw new IOException("Cannot save " + getPath(outputPath, Output.MEAN));
+		if (outputs.contains(Output.STATS))
+			saveStatistics(getPath(outputPath, Output.STATS));
+	}
+}
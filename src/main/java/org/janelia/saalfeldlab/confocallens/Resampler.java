@@ -0,0 +1,472 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+import java.lang.reflect.Array;
+import java.util.stream.IntStream;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Pull based resampling through a {@link CoordinateMap}.  Every target
+ * pixel is visited exactly once in memory order and interpolates its value
+ * at its source coordinate.  Target pixels whose source coordinate is
+ * outside of the source image are not touched.  Blocks of rows are
+ * processed in parallel, {@link #mapInterpolatedTiled} instead processes
+ * cache sized tiles that resample from a copy of their source window.
+ * Besides bilinear interpolation, bicubic and Lanczos-3
+ * {@link Interpolation}s use kernel weights that are computed once per
+ * map.  A {@link FlatField} correction is applied to every
+ * interpolated value in the same loop.
+ */
+public class Resampler {
+
+	final static public int ROWS_PER_BLOCK = 16;
+	final static public int DEFAULT_TILE_SIZE = 128;
+
+	private Resampler() {}
+
+	/**
+	 * Bilinear interpolation of <code>src</code> at the coordinates of
+	 * <code>map</code> into <code>dst</code> which must have the size of the
+	 * map.
+	 */
+	final static public void mapInterpolated(
+			final ImageProcessor src,
+			final CoordinateMap map,
+			final ImageProcessor dst) {
+		if (dst.getWidth() != map.getWidth() || dst.getHeight() != map.getHeight())
+			throw new IllegalArgumentException("Target size does not match the coordinate map.");
+
+		final int sw = src.getWidth();
+		final int sh = src.getHeight();
+		final float[] xs = map.getX();
+		final float[] ys = map.getY();
+		final int width = map.getWidth();
+		final int numBlocks = (map.getHeight() + ROWS_PER_BLOCK - 1) / ROWS_PER_BLOCK;
+
+		final Object srcPixels = src.getPixels();
+		final Object dstPixels = dst.getPixels();
+
+		IntStream.range(0, numBlocks).parallel().forEach(b -> {
+			final int offset = b * ROWS_PER_BLOCK * width;
+			final int length = Math.min(map.getHeight() - b * ROWS_PER_BLOCK, ROWS_PER_BLOCK) * width;
+			if (src instanceof ByteProcessor)
+				ResamplingKernel.bilinear((byte[])srcPixels, sw, sh, xs, ys, offset, length, (byte[])dstPixels);
+			else if (src instanceof ShortProcessor)
+				ResamplingKernel.bilinear((short[])srcPixels, sw, sh, xs, ys, offset, length, (short[])dstPixels);
+			else if (src instanceof FloatProcessor)
+				ResamplingKernel.bilinear((float[])srcPixels, sw, sh, xs, ys, offset, length, (float[])dstPixels);
+			else if (src instanceof ColorProcessor)
+				ResamplingKernel.bilinear((int[])srcPixels, sw, sh, xs, ys, offset, length, (int[])dstPixels);
+			else
+				throw new IllegalArgumentException("Unsupported processor type " + src.getClass().getName());
+		});
+	}
+
+	/**
+	 * Per thread source window and target tile of
+	 * {@link #mapInterpolatedTiled}.
+	 */
+	final static private class TileBuffer {
+
+		Object window = null;
+		Object tile = null;
+
+		Object window(final Object type, final int size) {
+			if (window == null || Array.getLength(window) < size)
+				window = Array.newInstance(type.getClass().getComponentType(), size);
+			return window;
+		}
+
+		Object tile(final Object type, final int size) {
+			if (tile == null || Array.getLength(tile) < size)
+				tile = Array.newInstance(type.getClass().getComponentType(), size);
+			return tile;
+		}
+	}
+
+	/**
+	 * Bilinear interpolation like
+	 * {@link #mapInterpolated(ImageProcessor, CoordinateMap, ImageProcessor)}
+	 * in square target tiles of <code>tileSize</code> pixels that are
+	 * processed in parallel.  The source window of each tile is copied into
+	 * a compact buffer and the tile is resampled from there with the
+	 * window relative coordinates of the {@link MapTiles} cached with the
+	 * map, such that all source reads of a tile stay in cache independent
+	 * of the frame width.  The result is identical to the row block
+	 * traversal.
+	 */
+	final static public void mapInterpolatedTiled(
+			final ImageProcessor src,
+			final CoordinateMap map,
+			final ImageProcessor dst,
+			final int tileSize) {
+		if (dst.getWidth() != map.getWidth() || dst.getHeight() != map.getHeight())
+			throw new IllegalArgumentException("Target size does not match the coordinate map.");
+
+		final int sw = src.getWidth();
+		final int width = map.getWidth();
+		final MapTiles tiles = map.getTiles(tileSize, sw, src.getHeight());
+		final Object srcPixels = src.getPixels();
+		final Object dstPixels = dst.getPixels();
+		final ThreadLocal<TileBuffer> buffers = ThreadLocal.withInitial(TileBuffer::new);
+
+		IntStream.range(0, tiles.numTiles()).parallel().forEach(t -> {
+			final int[] w = tiles.getWindow(t);
+			final int ww = w[2];
+			final int wh = w[3];
+			if (ww == 0)
+				return;
+			final int x0 = tiles.getX(t);
+			final int y0 = tiles.getY(t);
+			final int tw = tiles.getWidth(t);
+			final int th = tiles.getHeight(t);
+			final int n = tw * th;
+
+			final TileBuffer buffer = buffers.get();
+			final Object window = buffer.window(srcPixels, ww * wh);
+			for (int y = 0; y < wh; ++y)
+				System.arraycopy(srcPixels, (w[1] + y) * sw + w[0], window, y * ww, ww);
+			final Object tile = buffer.tile(dstPixels, n);
+			/* pixels outside of the source are not touched */
+			if (!tiles.isInside(t))
+				for (int y = 0; y < th; ++y)
+					System.arraycopy(dstPixels, (y0 + y) * width + x0, tile, y * tw, tw);
+
+			final float[] xs = tiles.getXs(t);
+			final float[] ys = tiles.getYs(t);
+			if (src instanceof ByteProcessor)
+				ResamplingKernel.bilinear((byte[])window, ww, wh, xs, ys, 0, n, (byte[])tile);
+			else if (src instanceof ShortProcessor)
+				ResamplingKernel.bilinear((short[])window, ww, wh, xs, ys, 0, n, (short[])tile);
+			else if (src instanceof FloatProcessor)
+				ResamplingKernel.bilinear((float[])window, ww, wh, xs, ys, 0, n, (float[])tile);
+			else if (src instanceof ColorProcessor)
+				ResamplingKernel.bilinear((int[])window, ww, wh, xs, ys, 0, n, (int[])tile);
+			else
+				throw new IllegalArgumentException("Unsupported processor type " + src.getClass().getName());
+
+			for (int y = 0; y < th; ++y)
+				System.arraycopy(tile, y * tw, dstPixels, (y0 + y) * width + x0, tw);
+		});
+	}
+
+	/**
+	 * Interpolation of <code>src</code> at the coordinates of
+	 * <code>map</code> into <code>dst</code> which must have the size of the
+	 * map.  Higher order interpolations use the kernel weights cached with
+	 * the map.
+	 */
+	final static public void mapInterpolated(
+			final ImageProcessor src,
+			final CoordinateMap map,
+			final ImageProcessor dst,
+			final Interpolation interpolation) {
+		mapInterpolated(src, map, dst, interpolation, null);
+	}
+
+	/**
+	 * Interpolation of <code>src</code> at the coordinates of
+	 * <code>map</code> into <code>dst</code> with flat-field correction in
+	 * the same loop.  With a {@link FlatField}, bilinear interpolation also
+	 * uses kernel weights cached with the map.
+	 *
+	 * @param flatField may be null
+	 */
+	final static public void mapInterpolated(
+			final ImageProcessor src,
+			final CoordinateMap map,
+			final ImageProcessor dst,
+			final Interpolation interpolation,
+			final FlatField flatField) {
+		if (interpolation == Interpolation.BILINEAR && flatField == null) {
+			mapInterpolated(src, map, dst);
+			return;
+		}
+		if (dst.getWidth() != map.getWidth() || dst.getHeight() != map.getHeight())
+			throw new IllegalArgumentException("Target size does not match the coordinate map.");
+		checkSize(flatField, src.getWidth(), src.getHeight());
+
+		final int sw = src.getWidth();
+		final int sh = src.getHeight();
+		final int width = map.getWidth();
+		final int numBlocks = (map.getHeight() + ROWS_PER_BLOCK - 1) / ROWS_PER_BLOCK;
+		final Object srcPixels = src.getPixels();
+		final Object dstPixels = dst.getPixels();
+		final InterpolationWeights weights = map.getWeights(interpolation);
+		final float[][] correction = flatField == null ? new float[2][] : flatField.getTarget(map);
+
+		IntStream.range(0, numBlocks).parallel().forEach(b -> {
+			final int offset = b * ROWS_PER_BLOCK * width;
+			final int length = Math.min(map.getHeight() - b * ROWS_PER_BLOCK, ROWS_PER_BLOCK) * width;
+			interpolate(weights, src, srcPixels, srcPixels, 0, sw, sh, offset, length, dstPixels, correction[0], correction[1]);
+		});
+	}
+
+	final static private void checkSize(final FlatField flatField, final int sw, final int sh) {
+		if (flatField != null && (flatField.getWidth() != sw || flatField.getHeight() != sh))
+			throw new IllegalArgumentException("The flat field does not have the size of the source image.");
+	}
+
+	final static private void interpolate(
+			final InterpolationWeights weights,
+			final ImageProcessor type,
+			final Object s0,
+			final Object s1,
+			final float w,
+			final int sw,
+			final int sh,
+			final int offset,
+			final int length,
+			final Object d,
+			final float[] offsets,
+			final float[] gains) {
+		if (type instanceof ByteProcessor)
+			weights.interpolate((byte[])s0, (byte[])s1, w, sw, sh, offset, length, (byte[])d, offsets, gains);
+		else if (type instanceof ShortProcessor)
+			weights.interpolate((short[])s0, (short[])s1, w, sw, sh, offset, length, (short[])d, offsets, gains);
+		else if (type instanceof FloatProcessor)
+			weights.interpolate((float[])s0, (float[])s1, w, sw, sh, offset, length, (float[])d, offsets, gains);
+		else if (type instanceof ColorProcessor)
+			weights.interpolate((int[])s0, (int[])s1, w, sw, sh, offset, length, (int[])d, offsets, gains);
+		else
+			throw new IllegalArgumentException("Unsupported processor type " + type.getClass().getName());
+	}
+
+	/**
+	 * Resample all slices of <code>src</code> at the coordinates of
+	 * <code>map</code> and shifted by <code>zShift</code> slices in one
+	 * trilinear pass.  Target slice z interpolates between the source slices
+	 * around z - zShift, slices beyond the first and last slice are clamped
+	 * like the border extension of {@link ConfocalLens#zShift}.  Blocks of
+	 * rows of all target slices are processed in parallel.  All slices of
+	 * <code>src</code> are treated as z, use
+	 * {@link #mapInterpolated(ImagePlus, CoordinateMap, double)} for
+	 * hyperstacks with channels or frames.
+	 *
+	 * @return a new stack with the size of the map and as many slices as
+	 *     <code>src</code>
+	 */
+	final static public ImageStack mapInterpolated(
+			final ImageStack src,
+			final CoordinateMap map,
+			final double zShift) {
+		return mapInterpolated(src, map, zShift, Interpolation.BILINEAR);
+	}
+
+	/**
+	 * Resample all slices of <code>src</code> at the coordinates of
+	 * <code>map</code> with <code>interpolation</code> in the plane and
+	 * linearly between slices shifted by <code>zShift</code>.
+	 */
+	final static public ImageStack mapInterpolated(
+			final ImageStack src,
+			final CoordinateMap map,
+			final double zShift,
+			final Interpolation interpolation) {
+		return mapInterpolated(src, map, zShift, interpolation, null);
+	}
+
+	/**
+	 * Resample all slices of <code>src</code> like
+	 * {@link #mapInterpolated(ImageStack, CoordinateMap, double, Interpolation)}
+	 * and correct target slice z with flat field
+	 * <code>flatFields[z % flatFields.length]</code> in the same loop, i.e.
+	 * one flat field per channel of an ImageJ hyperstack.
+	 *
+	 * @param flatFields may be null
+	 */
+	final static public ImageStack mapInterpolated(
+			final ImageStack src,
+			final CoordinateMap map,
+			final double zShift,
+			final Interpolation interpolation,
+			final FlatField[] flatFields) {
+		return mapInterpolated(src, map, zShift, interpolation, flatFields, null);
+	}
+
+	/**
+	 * Resample all slices of <code>src</code> like
+	 * {@link #mapInterpolated(ImageStack, CoordinateMap, double, Interpolation, FlatField[])}
+	 * and add every block of resampled rows to <code>projections</code>
+	 * right after it was written.
+	 *
+	 * @param flatFields may be null
+	 * @param projections may be null
+	 */
+	final static public ImageStack mapInterpolated(
+			final ImageStack src,
+			final CoordinateMap map,
+			final double zShift,
+			final Interpolation interpolation,
+			final FlatField[] flatFields,
+			final Projections projections) {
+		return mapInterpolated(src, 1, src.getSize(), 1, map, zShift, interpolation, flatFields, projections);
+	}
+
+	/**
+	 * Resample all slices of the hyperstack <code>imp</code> at the
+	 * coordinates of <code>map</code> and shifted by <code>zShift</code>
+	 * slices, interpolating in z only between slices of the same channel
+	 * and frame.
+	 *
+	 * @return a new stack with the size of the map and as many slices as
+	 *     <code>imp</code>
+	 */
+	final static public ImageStack mapInterpolated(
+			final ImagePlus imp,
+			final CoordinateMap map,
+			final double zShift) {
+		return mapInterpolated(imp, map, zShift, Interpolation.BILINEAR, null, null);
+	}
+
+	/**
+	 * Resample all slices of the hyperstack <code>imp</code> like
+	 * {@link #mapInterpolated(ImageStack, CoordinateMap, double, Interpolation, FlatField[], Projections)},
+	 * interpolating in z only between slices of the same channel and frame.
+	 *
+	 * @param flatFields may be null
+	 * @param projections may be null
+	 */
+	final static public ImageStack mapInterpolated(
+			final ImagePlus imp,
+			final CoordinateMap map,
+			final double zShift,
+			final Interpolation interpolation,
+			final FlatField[] flatFields,
+			final Projections projections) {
+		return mapInterpolated(
+				imp.getStack(),
+				imp.getNChannels(),
+				imp.getNSlices(),
+				imp.getNFrames(),
+				map,
+				zShift,
+				interpolation,
+				flatFields,
+				projections);
+	}
+
+	/**
+	 * Resample all slices of <code>src</code>, a hyperstack of
+	 * <code>nChannels</code> x <code>nSlices</code> x <code>nFrames</code>
+	 * slices in ImageJ order (channel fastest, then z, then frame).  Slice
+	 * (c, z, t) interpolates between the source slices (c, z - zShift, t),
+	 * z is clamped to the slices of its channel and frame.
+	 */
+	final static public ImageStack mapInterpolated(
+			final ImageStack src,
+			final int nChannels,
+			final int nSlices,
+			final int nFrames,
+			final CoordinateMap map,
+			final double zShift,
+			final Interpolation interpolation,
+			final FlatField[] flatFields,
+			final Projections projections) {
+		final int depth = src.getSize();
+		if (nChannels * nSlices * nFrames != depth)
+			throw new IllegalArgumentException(
+					"Stack of " + depth + " slices is not " + nChannels + " channels x " + nSlices + " slices x " + nFrames + " frames.");
+		final int sw = src.getWidth();
+		final int sh = src.getHeight();
+		final float[] xs = map.getX();
+		final float[] ys = map.getY();
+		final int width = map.getWidth();
+		final int height = map.getHeight();
+		final int numBlocks = (height + ROWS_PER_BLOCK - 1) / ROWS_PER_BLOCK;
+
+		final ImageProcessor[] srcs = new ImageProcessor[depth];
+		final Object[] srcPixels = new Object[depth];
+		final Object[] dstPixels = new Object[depth];
+		final ImageStack stack = new ImageStack(width, height);
+		for (int z = 0; z < depth; ++z) {
+			srcs[z] = src.getProcessor(z + 1);
+			srcPixels[z] = srcs[z].getPixels();
+			final ImageProcessor dst = srcs[z].createProcessor(width, height);
+			dstPixels[z] = dst.getPixels();
+			stack.addSlice(src.getSliceLabel(z + 1), dst);
+		}
+		final ImageProcessor type = srcs[0];
+		final InterpolationWeights weights = interpolation == Interpolation.BILINEAR && flatFields == null ? null : map.getWeights(interpolation);
+		final float[][][] corrections = new float[flatFields == null ? 1 : flatFields.length][][];
+		for (int c = 0; c < corrections.length; ++c) {
+			if (flatFields == null)
+				corrections[c] = new float[2][];
+			else {
+				checkSize(flatFields[c], sw, sh);
+				corrections[c] = flatFields[c].getTarget(map);
+			}
+		}
+
+		IntStream.range(0, depth * numBlocks).parallel().forEach(i -> {
+			final int z = i / numBlocks;
+			final int b = i % numBlocks;
+			/* stack index z = (t * nSlices + slice) * nChannels + c */
+			final int slice = z / nChannels % nSlices;
+			final int base = z - slice * nChannels;
+			final double zs = Math.max(0, Math.min(nSlices - 1, slice - zShift));
+			final int slice0 = (int)zs;
+			final int slice1 = Math.min(nSlices - 1, slice0 + 1);
+			final int z0 = base + slice0 * nChannels;
+			final int z1 = base + slice1 * nChannels;
+			final float w = (float)(zs - slice0);
+			final Object s0 = srcPixels[z0];
+			final Object s1 = srcPixels[z1];
+			final Object d = dstPixels[z];
+			final int offset = b * ROWS_PER_BLOCK * width;
+			final int length = Math.min(height - b * ROWS_PER_BLOCK, ROWS_PER_BLOCK) * width;
+			if (weights != null) {
+				final float[][] correction = corrections[z % corrections.length];
+				interpolate(weights, type, s0, s1, z0 == z1 ? 0 : w, sw, sh, offset, length, d, correction[0], correction[1]);
+			} else if (w == 0 || z0 == z1) {
+				if (type instanceof ByteProcessor)
+					ResamplingKernel.bilinear((byte[])s0, sw, sh, xs, ys, offset, length, (byte[])d);
+				else if (type instanceof ShortProcessor)
+					ResamplingKernel.bilinear((short[])s0, sw, sh, xs, ys, offset, length, (short[])d);
+				else if (type instanceof FloatProcessor)
+					ResamplingKernel.bilinear((float[])s0, sw, sh, xs, ys, offset, length, (float[])d);
+				else if (type instanceof ColorProcessor)
+					ResamplingKernel.bilinear((int[])s0, sw, sh, xs, ys, offset, length, (int[])d);
+				else
+					throw new IllegalArgumentException("Unsupported processor type " + type.getClass().getName());
+			} else {
+				if (type instanceof ByteProcessor)
+					ResamplingKernel.trilinear((byte[])s0, (byte[])s1, w, sw, sh, xs, ys, offset, length, (byte[])d);
+				else if (type instanceof ShortProcessor)
+					ResamplingKernel.trilinear((short[])s0, (short[])s1, w, sw, sh, xs, ys, offset, length, (short[])d);
+				else if (type instanceof FloatProcessor)
+					ResamplingKernel.trilinear((float[])s0, (float[])s1, w, sw, sh, xs, ys, offset, length, (float[])d);
+				else if (type instanceof ColorProcessor)
+					ResamplingKernel.trilinear((int[])s0, (int[])s1, w, sw, sh, xs, ys, offset, length, (int[])d);
+				else
+					throw new IllegalArgumentException("Unsupported processor type " + type.getClass().getName());
+			}
+			if (projections != null)
+				projections.add(z, d, offset, length);
+		});
+
+		return stack;
+	}
+}
@@ -0,0 +1,209 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+import mpicbg.models.CoordinateTransform;
+import mpicbg.trakem2.transform.TransformMesh;
+
+/**
+ * Resampling time of one 16-bit slice by mesh rendering, row block
+ * traversal of a {@link CoordinateMap} and tiled traversal with
+ * {@link Resampler#mapInterpolatedTiled} for growing frame sizes.  The
+ * lens is a synthetic radial distortion with a small rotation that scales
+ * with the frame, such that source reads of a target row spread over more
+ * rows in larger frames.  Setup, i.e. fitting the inverse, the coordinate
+ * map and the tiles, is timed once, resampling is the best of several
+ * iterations.
+ *
+ * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
+ */
+public class ResamplingBenchmark {
+
+	final static public double RADIAL = 0.03;
+	final static public double ROTATION = 0.02;
+
+	private ResamplingBenchmark() {}
+
+	/**
+	 * Radial distortion and rotation about the center of a
+	 * <code>width</code>x<code>height</code> frame.
+	 */
+	final static public CoordinateTransform createLens(final int width, final int height) {
+		final double cx = 0.5 * width;
+		final double cy = 0.5 * height;
+		final double r2 = cx * cx + cy * cy;
+		final double cos = Math.cos(ROTATION);
+		final double sin = Math.sin(ROTATION);
+		return new CoordinateTransform() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public double[] apply(final double[] location) {
+				final double[] l = location.clone();
+				applyInPlace(l);
+				return l;
+			}
+
+			@Override
+			public void applyInPlace(final double[] l) {
+				final double x = l[0] - cx;
+				final double y = l[1] - cy;
+				final double f = 1.0 + RADIAL * (x * x + y * y) / r2;
+				l[0] = cx + f * (cos * x - sin * y);
+				l[1] = cy + f * (sin * x + cos * y);
+			}
+		};
+	}
+
+	/**
+	 * Best time in ms of <code>iterations</code> runs.
+	 */
+	final static protected double bestTime(final Runnable run, final int iterations) {
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < iterations; ++i) {
+			final long t = System.nanoTime();
+			run.run();
+			best = Math.min(best, System.nanoTime() - t);
+		}
+		return best * 1e-6;
+	}
+
+	final static protected double time(final Runnable run) {
+		final long t = System.nanoTime();
+		run.run();
+		return (System.nanoTime() - t) * 1e-6;
+	}
+
+	/**
+	 * Benchmark one frame size and print one line per method.
+	 */
+	final static public void run(
+			final int size,
+			final int[] tileSizes,
+			final int iterations,
+			final boolean mesh,
+			final PrintStream out) {
+		final ShortProcessor src = new ShortProcessor(size, size);
+		final short[] pixels = (short[])src.getPixels();
+		final Random rnd = new Random(size);
+		for (int i = 0; i < pixels.length; ++i)
+			pixels[i] = (short)rnd.nextInt(65536);
+		final CoordinateTransform lens = createLens(size, size);
+		final double mpx = size * size * 1e-6;
+
+		if (mesh) {
+			final ImageStack stack = new ImageStack(size, size);
+			stack.addSlice(src);
+			final TransformMesh[] transformMesh = new TransformMesh[1];
+			final double setup = time(() -> transformMesh[0] = new TransformMesh(lens, 128, size, size));
+			final double t = bestTime(() -> Apply.createTransformedStack(stack, transformMesh[0], 0), iterations);
+			out.println(String.format("%6d %-12s %10.1fms %10.1fms %8.1f Mpx/s", size, "mesh", setup, t, mpx / t * 1e3));
+		}
+
+		final CoordinateMap[] map = new CoordinateMap[1];
+		final double setup = time(() -> map[0] = InverseLensModel.fit(lens, size, size).createCoordinateMap(0));
+		final ShortProcessor dst = new ShortProcessor(map[0].getWidth(), map[0].getHeight());
+		final ShortProcessor reference = new ShortProcessor(map[0].getWidth(), map[0].getHeight());
+		Resampler.mapInterpolated(src, map[0], reference);
+		final double t = bestTime(() -> Resampler.mapInterpolated(src, map[0], dst), iterations);
+		out.println(String.format("%6d %-12s %10.1fms %10.1fms %8.1f Mpx/s", size, "map", setup, t, mpx / t * 1e3));
+
+		for (final int tileSize : tileSizes) {
+			final double tileSetup = time(() -> map[0].getTiles(tileSize, size, size));
+			final double tt = bestTime(() -> Resampler.mapInterpolatedTiled(src, map[0], dst, tileSize), iterations);
+			final String name = "tiled " + tileSize;
+			out.println(String.format("%6d %-12s %10.1fms %10.1fms %8.1f Mpx/s %6.2fx", size, name, tileSetup, tt, mpx / tt * 1e3, t / tt));
+			if (!Arrays.equals((short[])dst.getPixels(), (short[])reference.getPixels()))
+				out.println("  tiled result differs from the row block traversal");
+		}
+		map[0].clearWeights();
+	}
+
+	final static public Options createOptions() {
+		final Options options = new Options();
+		options.addOption(new Option(
+				"s",
+				"sizes",
+				true,
+				"comma separated frame sizes, default 1024,2048,4096"));
+		options.addOption(new Option(
+				"t",
+				"tile-sizes",
+				true,
+				"comma separated tile sizes, default 64,128,256"));
+		options.addOption(new Option(
+				"i",
+				"iterations",
+				true,
+				"resampling iterations per method, the best is reported, default 5"));
+		options.addOption(new Option(
+				null,
+				"no-mesh",
+				false,
+				"skip mesh rendering"));
+		return options;
+	}
+
+	final static private void printUsage(final Options options) {
+		new HelpFormatter().printHelp("java ... [options]", options);
+	}
+
+	final static private int[] parseInts(final String csv) {
+		final String[] values = csv.split(",");
+		final int[] ints = new int[values.length];
+		for (int i = 0; i < values.length; ++i)
+			ints[i] = Integer.parseInt(values[i].trim());
+		return ints;
+	}
+
+	/**
+	 * @param args
+	 */
+	public static void main(final String[] args) {
+
+		final Options options = createOptions();
+		final CommandLine cmd;
+		try {
+			cmd = new DefaultParser().parse(options, args);
+		} catch (final ParseException e) {
+			System.err.println(e.getMessage());
+			printUsage(options);
+			return;
+		}
+		final int[] sizes = parseInts(cmd.getOptionValue("sizes", "1024,2048,4096"));
+		final int[] tileSizes = parseInts(cmd.getOptionValue("tile-sizes", "64,128,256"));
+		final int iterations = Integer.parseInt(cmd.getOptionValue("iterations", "5"));
+
+		System.out.println(String.format("%6s %-12s %12s %12s %14s %7s", "size", "method", "setup", "resample", "throughput", "speedup"));
+		for (final int size : sizes)
+			run(size, tileSizes, iterations, !cmd.hasOption("no-mesh"), System.out);
+	}
+}
@@ -0,0 +1,326 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+/**
+ * Bilinear interpolation of a source pixel array at the coordinates
+ * <code>xs[k], ys[k]</code> for <code>offset &lt;= k &lt; offset + length</code>
+ * into <code>dst[k]</code>.  Target pixels whose source coordinate is
+ * outside of [0, sw - 1] x [0, sh - 1] are not touched.  Integer results
+ * are rounded half up.
+ *
+ * The trilinear variants interpolate bilinearly in two slices
+ * <code>src0</code> and <code>src1</code> of a stack and linearly between
+ * them with weight <code>w</code> for <code>src1</code>, rounding only once.
+ */
+final class ResamplingKernel {
+
+	private ResamplingKernel() {}
+
+	final static public void bilinear(
+			final byte[] src,
+			final int sw,
+			final int sh,
+			final float[] xs,
+			final float[] ys,
+			final int offset,
+			final int length,
+			final byte[] dst) {
+		final float maxX = sw - 1;
+		final float maxY = sh - 1;
+		for (int k = offset, e = offset + length; k < e; ++k) {
+			final float x = xs[k];
+			final float y = ys[k];
+			if (x >= 0 && y >= 0 && x <= maxX && y <= maxY) {
+				final int ix = (int)x;
+				final int iy = (int)y;
+				final float fx = x - ix;
+				final float fy = y - iy;
+				final int i00 = iy * sw + ix;
+				final int i01 = ix < sw - 1 ? i00 + 1 : i00;
+				final int i10 = iy < sh - 1 ? i00 + sw : i00;
+				final int i11 = ix < sw - 1 ? i10 + 1 : i10;
+				final float a = (src[i00] & 0xff) + fx * ((src[i01] & 0xff) - (src[i00] & 0xff));
+				final float b = (src[i10] & 0xff) + fx * ((src[i11] & 0xff) - (src[i10] & 0xff));
+				dst[k] = (byte)(int)(a + fy * (b - a) + 0.5f);
+			}
+		}
+	}
+
+	final static public void bilinear(
+			final short[] src,
+			final int sw,
+			final int sh,
+			final float[] xs,
+			final float[] ys,
+			final int offset,
+			final int length,
+			final short[] dst) {
+		final float maxX = sw - 1;
+		final float maxY = sh - 1;
+		for (int k = offset, e = offset + length; k < e; ++k) {
+			final float x = xs[k];
+			final float y = ys[k];
+			if (x >= 0 && y >= 0 && x <= maxX && y <= maxY) {
+				final int ix = (int)x;
+				final int iy = (int)y;
+				final float fx = x - ix;
+				final float fy = y - iy;
+				final int i00 = iy * sw + ix;
+				final int i01 = ix < sw - 1 ? i00 + 1 : i00;
+				final int i10 = iy < sh - 1 ? i00 + sw : i00;
+				final int i11 = ix < sw - 1 ? i10 + 1 : i10;
+				final float a = (src[i00] & 0xffff) + fx * ((src[i01] & 0xffff) - (src[i00] & 0xffff));
+				final float b = (src[i10] & 0xffff) + fx * ((src[i11] & 0xffff) - (src[i10] & 0xffff));
+				dst[k] = (short)(int)(a + fy * (b - a) + 0.5f);
+			}
+		}
+	}
+
+	final static public void bilinear(
+			final float[] src,
+			final int sw,
+			final int sh,
+			final float[] xs,
+			final float[] ys,
+			final int offset,
+			final int length,
+			final float[] dst) {
+		final float maxX = sw - 1;
+		final float maxY = sh - 1;
+		for (int k = offset, e = offset + length; k < e; ++k) {
+			final float x = xs[k];
+			final float y = ys[k];
+			if (x >= 0 && y >= 0 && x <= maxX && y <= maxY) {
+				final int ix = (int)x;
+				final int iy = (int)y;
+				final float fx = x - ix;
+				final float fy = y - iy;
+				final int i00 = iy * sw + ix;
+				final int i01 = ix < sw - 1 ? i00 + 1 : i00;
+				final int i10 = iy < sh - 1 ? i00 + sw : i00;
+				final int i11 = ix < sw - 1 ? i10 + 1 : i10;
+				final float a = src[i00] + fx * (src[i01] - src[i00]);
+				final float b = src[i10] + fx * (src[i11] - src[i10]);
+				dst[k] = a + fy * (b - a);
+			}
+		}
+	}
+
+	/**
+	 * ARGB pixels, each color channel is interpolated separately.
+	 */
+	final static public void bilinear(
+			final int[] src,
+			final int sw,
+			final int sh,
+			final float[] xs,
+			final float[] ys,
+			final int offset,
+			final int length,
+			final int[] dst) {
+		final float maxX = sw - 1;
+		final float maxY = sh - 1;
+		for (int k = offset, e = offset + length; k < e; ++k) {
+			final float x = xs[k];
+			final float y = ys[k];
+			if (x >= 0 && y >= 0 && x <= maxX && y <= maxY) {
+				final int ix = (int)x;
+				final int iy = (int)y;
+				final float fx = x - ix;
+				final float fy = y - iy;
+				final int i00 = iy * sw + ix;
+				final int i01 = ix < sw - 1 ? i00 + 1 : i00;
+				final int i10 = iy < sh - 1 ? i00 + sw : i00;
+				final int i11 = ix < sw - 1 ? i10 + 1 : i10;
+				int rgb = 0xff000000;
+				for (int shift = 0; shift < 24; shift += 8) {
+					final int v00 = (src[i00] >> shift) & 0xff;
+					final int v01 = (src[i01] >> shift) & 0xff;
+					final int v10 = (src[i10] >> shift) & 0xff;
+					final int v11 = (src[i11] >> shift) & 0xff;
+					final float a = v00 + fx * (v01 - v00);
+					final float b = v10 + fx * (v11 - v10);
+					rgb |= ((int)(a + fy * (b - a) + 0.5f)) << shift;
+				}
+				dst[k] = rgb;
+			}
+		}
+	}
+
+	final static public void trilinear(
+			final byte[] src0,
+			final byte[] src1,
+			final float w,
+			final int sw,
+			final int sh,
+			final float[] xs,
+			final float[] ys,
+			final int offset,
+			final int length,
+			final byte[] dst) {
+		final float maxX = sw - 1;
+		final float maxY = sh - 1;
+		for (int k = offset, e = offset + length; k < e; ++k) {
+			final float x = xs[k];
+			final float y = ys[k];
+			if (x >= 0 && y >= 0 && x <= maxX && y <= maxY) {
+				final int ix = (int)x;
+				final int iy = (int)y;
+				final float fx = x - ix;
+				final float fy = y - iy;
+				final int i00 = iy * sw + ix;
+				final int i01 = ix < sw - 1 ? i00 + 1 : i00;
+				final int i10 = iy < sh - 1 ? i00 + sw : i00;
+				final int i11 = ix < sw - 1 ? i10 + 1 : i10;
+				final float a0 = (src0[i00] & 0xff) + fx * ((src0[i01] & 0xff) - (src0[i00] & 0xff));
+				final float b0 = (src0[i10] & 0xff) + fx * ((src0[i11] & 0xff) - (src0[i10] & 0xff));
+				final float a1 = (src1[i00] & 0xff) + fx * ((src1[i01] & 0xff) - (src1[i00] & 0xff));
+				final float b1 = (src1[i10] & 0xff) + fx * ((src1[i11] & 0xff) - (src1[i10] & 0xff));
+				final float v0 = a0 + fy * (b0 - a0);
+				final float v1 = a1 + fy * (b1 - a1);
+				dst[k] = (byte)(int)(v0 + w * (v1 - v0) + 0.5f);
+			}
+		}
+	}
+
+	final static public void trilinear(
+			final short[] src0,
+			final short[] src1,
+			final float w,
+			final int sw,
+			final int sh,
+			final float[] xs,
+			final float[] ys,
+			final int offset,
+			final int length,
+			final short[] dst) {
+		final float maxX = sw - 1;
+		final float maxY = sh - 1;
+		for (int k = offset, e = offset + length; k < e; ++k) {
+			final float x = xs[k];
+			final float y = ys[k];
+			if (x >= 0 && y >= 0 && x <= maxX && y <= maxY) {
+				final int ix = (int)x;
+				final int iy = (int)y;
+				final float fx = x - ix;
+				final float fy = y - iy;
+				final int i00 = iy * sw + ix;
+				final int i01 = ix < sw - 1 ? i00 + 1 : i00;
+				final int i10 = iy < sh - 1 ? i00 + sw : i00;
+				final int i11 = ix < sw - 1 ? i10 + 1 : i10;
+				final float a0 = (src0[i00] & 0xffff) + fx * ((src0[i01] & 0xffff) - (src0[i00] & 0xffff));
+				final float b0 = (src0[i10] & 0xffff) + fx * ((src0[i11] & 0xffff) - (src0[i10] & 0xffff));
+				final float a1 = (src1[i00] & 0xffff) + fx * ((src1[i01] & 0xffff) - (src1[i00] & 0xffff));
+				final float b1 = (src1[i10] & 0xffff) + fx * ((src1[i11] & 0xffff) - (src1[i10] & 0xffff));
+				final float v0 = a0 + fy * (b0 - a0);
+				final float v1 = a1 + fy * (b1 - a1);
+				dst[k] = (short)(int)(v0 + w * (v1 - v0) + 0.5f);
+			}
+		}
+	}
+
+	final static public void trilinear(
+			final float[] src0,
+			final float[] src1,
+			final float w,
+			final int sw,
+			final int sh,
+			final float[] xs,
+			final float[] ys,
+			final int offset,
+			final int length,
+			final float[] dst) {
+		final float maxX = sw - 1;
+		final float maxY = sh - 1;
+		for (int k = offset, e = offset + length; k < e; ++k) {
+			final float x = xs[k];
+			final float y = ys[k];
+			if (x >= 0 && y >= 0 && x <= maxX && y <= maxY) {
+				final int ix = (int)x;
+				final int iy = (int)y;
+				final float fx = x - ix;
+				final float fy = y - iy;
+				final int i00 = iy * sw + ix;
+				final int i01 = ix < sw - 1 ? i00 + 1 : i00;
+				final int i10 = iy < sh - 1 ? i00 + sw : i00;
+				final int i11 = ix < sw - 1 ? i10 + 1 : i10;
+				final float a0 = src0[i00] + fx * (src0[i01] - src0[i00]);
+				final float b0 = src0[i10] + fx * (src0[i11] - src0[i10]);
+				final float a1 = src1[i00] + fx * (src1[i01] - src1[i00]);
+				final float b1 = src1[i10] + fx * (src1[i11] - src1[i10]);
+				final float v0 = a0 + fy * (b0 - a0);
+				final float v1 = a1 + fy * (b1 - a1);
+				dst[k] = v0 + w * (v1 - v0);
+			}
+		}
+	}
+
+	final static public void trilinear(
+			final int[] src0,
+			final int[] src1,
+			final float w,
+			final int sw,
+			final int sh,
+			final float[] xs,
+			final float[] ys,
+			final int offset,
+			final int length,
+			final int[] dst) {
+		final float maxX = sw - 1;
+		final float maxY = sh - 1;
+		for (int k = offset, e = offset + length; k < e; ++k) {
+			final float x = xs[k];
+			final float y = ys[k];
+			if (x >= 0 && y >= 0 && x <= maxX && y <= maxY) {
+				final int ix = (int)x;
+				final int iy = (int)y;
+				final float fx = x - ix;
+				final float fy = y - iy;
+				final int i00 = iy * sw + ix;
+				final int i01 = ix < sw - 1 ? i00 + 1 : i00;
+				final int i10 = iy < sh - 1 ? i00 + sw : i00;
+				final int i11 = ix < sw - 1 ? i10 + 1 : i10;
+				int rgb = 0xff000000;
+				for (int shift = 0; shift < 24; shift += 8) {
+					final float v0 = bilinear(src0, i00, i01, i10, i11, shift, fx, fy);
+					final float v1 = bilinear(src1, i00, i01, i10, i11, shift, fx, fy);
+					rgb |= ((int)(v0 + w * (v1 - v0) + 0.5f)) << shift;
+				}
+				dst[k] = rgb;
+			}
+		}
+	}
+
+	final static private float bilinear(
+			final int[] src,
+			final int i00,
+			final int i01,
+			final int i10,
+			final int i11,
+			final int shift,
+			final float fx,
+			final float fy) {
+		final int v00 = (src[i00] >> shift) & 0xff;
+		final int v01 = (src[i01] >> shift) & 0xff;
+		final int v10 = (src[i10] >> shift) & 0xff;
+		final int v11 = (src[i11] >> shift) & 0xff;
+		final float a = v00 + fx * (v01 - v00);
+		final float b = v10 + fx * (v11 - v10);
+		return a + fy * (b - a);
+	}
+}
@@ -0,0 +1,451 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+
+/**
+ * A range of slices and a subset of channels of a hyperstack that one
+ * {@link Apply} process corrects independently, e.g. one task of a cluster
+ * array job.  The planes of a shard are read lazily from a virtual stack
+ * and the corrected shard is saved as an uncompressed ImageJ TIFF part
+ * file next to the output, named by its range such that
+ * {@link #merge(String, TiledTiffWriter, boolean)} can assemble all parts
+ * into the output by streaming their planes in hyperstack order.  Their
+ * {@link Projections} side outputs are merged without reading the planes
+ * again.
+ *
+ * Slices and channels are 1-based like in ImageJ, slice ranges are
+ * inclusive.
+ *
+ * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
+ */
+public class StackShard {
+
+	final static private Pattern PART = Pattern.compile("\\.part-z(\\d+)-(\\d+)-c([0-9+]+)\\.tif$");
+
+	final protected int firstSlice;
+	final protected int lastSlice;
+	final protected int[] channels;
+
+	/**
+	 * @param firstSlice 1-based
+	 * @param lastSlice 1-based, inclusive
+	 * @param channels 1-based, ascending
+	 */
+	public StackShard(final int firstSlice, final int lastSlice, final int[] channels) {
+		if (firstSlice < 1 || lastSlice < firstSlice)
+			throw new IllegalArgumentException("Invalid slice range " + firstSlice + "-" + lastSlice);
+		if (channels.length == 0)
+			throw new IllegalArgumentException("No channels.");
+		for (int i = 0; i < channels.length; ++i)
+			if (channels[i] < 1 || (i > 0 && channels[i] <= channels[i - 1]))
+				throw new IllegalArgumentException("Channels must be ascending and positive " + Arrays.toString(channels));
+		this.firstSlice = firstSlice;
+		this.lastSlice = lastSlice;
+		this.channels = channels;
+	}
+
+	/**
+	 * Parse <code>--z-range</code> and <code>--channels</code> options.
+	 *
+	 * @param zRange <code>first-last</code> or <code>slice</code>, null for
+	 *     all slices
+	 * @param channels comma separated, null for all channels
+	 */
+	final static public StackShard parse(final String zRange, final String channels, final ImagePlus imp) {
+		final int first, last;
+		if (zRange == null) {
+			first = 1;
+			last = imp.getNSlices();
+		} else {
+			final String[] range = zRange.split("-");
+			first = Integer.parseInt(range[0].trim());
+			last = range.length > 1 ? Integer.parseInt(range[1].trim()) : first;
+		}
+		final int[] cs;
+		if (channels == null) {
+			cs = new int[imp.getNChannels()];
+			for (int c = 0; c < cs.length; ++c)
+				cs[c] = c + 1;
+		} else {
+			cs = Arrays.stream(channels.split(",")).mapToInt(c -> Integer.parseInt(c.trim())).sorted().distinct().toArray();
+		}
+		if (first > imp.getNSlices() || (cs.length > 0 && cs[cs.length - 1] > imp.getNChannels()))
+			throw new IllegalArgumentException(
+					"Slices " + zRange + " or channels " + channels + " outside of " + imp.getNSlices() + " slices and " + imp.getNChannels() + " channels.");
+		return new StackShard(first, Math.min(last, imp.getNSlices()), cs);
+	}
+
+	public int getFirstSlice() {
+		return firstSlice;
+	}
+
+	public int getLastSlice() {
+		return lastSlice;
+	}
+
+	public int[] getChannels() {
+		return channels;
+	}
+
+	public int numSlices() {
+		return lastSlice - firstSlice + 1;
+	}
+
+	/**
+	 * Path of the part file of this shard for <code>outputPath</code>.
+	 */
+	public String getPartPath(final String outputPath) {
+		return Projections.getBasePath(outputPath) + ".part-" + this + ".tif";
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder s = new StringBuilder("z" + firstSlice + "-" + lastSlice + "-c");
+		for (int i = 0; i < channels.length; ++i)
+			s.append(i == 0 ? "" : "+").append(channels[i]);
+		return s.toString();
+	}
+
+	/**
+	 * Lazy view of selected planes of a stack.  Planes are read from the
+	 * source stack only when they are accessed.
+	 */
+	final static protected class PlaneView extends VirtualStack {
+
+		final protected ImageStack[] stacks;
+		final protected int[] stackIndices;
+		final protected int[] sliceIndices;
+
+		/**
+		 * Plane n (1-based) is slice <code>sliceIndices[n - 1]</code>
+		 * (1-based) of <code>stacks[stackIndices[n - 1]]</code>.
+		 */
+		public PlaneView(
+				final ImageStack[] stacks,
+				final int[] stackIndices,
+				final int[] sliceIndices) {
+			super(stacks[0].getWidth(), stacks[0].getHeight(), null, null);
+			this.stacks = stacks;
+			this.stackIndices = stackIndices;
+			this.sliceIndices = sliceIndices;
+			setBitDepth(stacks[0].getBitDepth());
+		}
+
+		@Override
+		public ImageProcessor getProcessor(final int n) {
+			return stacks[stackIndices[n - 1]].getProcessor(sliceIndices[n - 1]);
+		}
+
+		@Override
+		public Object getPixels(final int n) {
+			return getProcessor(n).getPixels();
+		}
+
+		@Override
+		public int getSize() {
+			return sliceIndices.length;
+		}
+
+		@Override
+		public int size() {
+			return getSize();
+		}
+
+		@Override
+		public String getSliceLabel(final int n) {
+			return stacks[stackIndices[n - 1]].getSliceLabel(sliceIndices[n - 1]);
+		}
+	}
+
+	/**
+	 * The planes of this shard as a hyperstack with the selected channels
+	 * and slices and all frames of <code>imp</code>, read lazily.
+	 */
+	public ImagePlus select(final ImagePlus imp) {
+		final int nc = imp.getNChannels();
+		final int nz = imp.getNSlices();
+		final int nt = imp.getNFrames();
+		final int[] indices = new int[channels.length * numSlices() * nt];
+		for (int t = 0, i = 0; t < nt; ++t)
+			for (int z = firstSlice - 1; z < lastSlice; ++z)
+				for (final int c : channels)
+					indices[i++] = (t * nz + z) * nc + c;
+		final ImagePlus shard = new ImagePlus(
+				imp.getTitle(),
+				new PlaneView(new ImageStack[] {imp.getStack()}, new int[indices.length], indices));
+		shard.setDimensions(channels.length, numSlices(), nt);
+		shard.setOpenAsHyperStack(channels.length > 1 || nt > 1);
+		shard.setCalibration(imp.getCalibration());
+		return shard;
+	}
+
+	/**
+	 * Select the entries of per channel arrays that belong to this shard.
+	 */
+	public <T> T[] select(final T[] perChannel) {
+		if (perChannel == null)
+			return null;
+		final T[] selected = Arrays.copyOf(perChannel, channels.length);
+		for (int i = 0; i < channels.length; ++i)
+			selected[i] = perChannel[channels[i] - 1];
+		return selected;
+	}
+
+	/**
+	 * Paths of all part files of <code>outputPath</code>.
+	 */
+	final static public ArrayList<String> findParts(final String outputPath) {
+		final File base = new File(Projections.getBasePath(outputPath));
+		final File dir = base.getAbsoluteFile().getParentFile();
+		final String prefix = base.getName() + ".part-";
+		final ArrayList<String> parts = new ArrayList<String>();
+		final String[] names = dir.list();
+		if (names != null) {
+			Arrays.sort(names);
+			for (final String name : names)
+				if (name.startsWith(prefix) && PART.matcher(name.substring(base.getName().length())).find())
+					parts.add(new File(dir, name).getPath());
+		}
+		return parts;
+	}
+
+	final static protected StackShard fromPartPath(final String path) {
+		final Matcher m = PART.matcher(path);
+		if (!m.find())
+			throw new IllegalArgumentException("Not a part file " + path);
+		return new StackShard(
+				Integer.parseInt(m.group(1)),
+				Integer.parseInt(m.group(2)),
+				Arrays.stream(m.group(3).split("\\+")).mapToInt(Integer::parseInt).toArray());
+	}
+
+	/**
+	 * Assemble all part files of <code>outputPath</code> into one
+	 * hyperstack with the union of their channels and slices.  Every plane
+	 * has to be covered by exactly one part.  Planes are streamed from the
+	 * parts to the writer, so the merge needs memory for few planes only.
+	 * Side outputs that all parts have are merged too, see
+	 * {@link #mergeProjections}.
+	 *
+	 * @param writer a tiled TIFF writer, or null to save with ImageJ
+	 * @param deleteParts delete the part files after a successful merge
+	 * @return the number of merged parts
+	 */
+	final static public int merge(
+			final String outputPath,
+			final TiledTiffWriter writer,
+			final boolean deleteParts) throws IOException {
+		final ArrayList<String> paths = findParts(outputPath);
+		if (paths.isEmpty())
+			throw new IOException("No part files of " + outputPath);
+
+		final StackShard[] shards = new StackShard[paths.size()];
+		final ImagePlus[] parts = new ImagePlus[paths.size()];
+		final TreeSet<Integer> channelSet = new TreeSet<Integer>();
+		int first = Integer.MAX_VALUE, last = 0;
+		for (int p = 0; p < parts.length; ++p) {
+			shards[p] = fromPartPath(paths.get(p));
+			parts[p] = IJ.openVirtual(paths.get(p));
+			if (parts[p] == null)
+				throw new IOException("Cannot open " + paths.get(p));
+			if (parts[p].getNChannels() != shards[p].channels.length || parts[p].getNSlices() != shards[p].numSlices())
+				throw new IOException("Dimensions of " + paths.get(p) + " do not match its name.");
+			if (parts[p].getNFrames() != parts[0].getNFrames() || parts[p].getBitDepth() != parts[0].getBitDepth())
+				throw new IOException("Frames or type of " + paths.get(p) + " differ from " + paths.get(0));
+			for (final int c : shards[p].channels)
+				channelSet.add(c);
+			first = Math.min(first, shards[p].firstSlice);
+			last = Math.max(last, shards[p].lastSlice);
+		}
+		final int[] channels = channelSet.stream().mapToInt(Integer::intValue).toArray();
+		final int nc = channels.length;
+		final int nz = last - first + 1;
+		final int nt = parts[0].getNFrames();
+
+		/* part and plane of every (channel, slice) */
+		final int[] partIndices = new int[nc * nz];
+		final int[] planeIndices = new int[nc * nz];
+		Arrays.fill(partIndices, -1);
+		for (int p = 0; p < shards.length; ++p) {
+			final StackShard shard = shards[p];
+			for (int z = shard.firstSlice; z <= shard.lastSlice; ++z) {
+				for (int ci = 0; ci < shard.channels.length; ++ci) {
+					final int k = (z - first) * nc + Arrays.binarySearch(channels, shard.channels[ci]);
+					if (partIndices[k] != -1)
+						throw new IOException("Slice " + z + " channel " + shard.channels[ci] + " is in " + paths.get(partIndices[k]) + " and " + paths.get(p));
+					partIndices[k] = p;
+					planeIndices[k] = (z - shard.firstSlice) * shard.channels.length + ci;
+				}
+			}
+		}
+		for (int k = 0; k < partIndices.length; ++k)
+			if (partIndices[k] == -1)
+				throw new IOException("Slice " + (k / nc + first) + " channel " + channels[k % nc] + " is missing.");
+
+		final ImageStack[] stacks = new ImageStack[parts.length];
+		for (int p = 0; p < parts.length; ++p)
+			stacks[p] = parts[p].getStack();
+		final int[] stackIndices = new int[nc * nz * nt];
+		final int[] sliceIndices = new int[nc * nz * nt];
+		for (int t = 0, i = 0; t < nt; ++t) {
+			for (int k = 0; k < nc * nz; ++k, ++i) {
+				final StackShard shard = shards[partIndices[k]];
+				stackIndices[i] = partIndices[k];
+				sliceIndices[i] = t * shard.numSlices() * shard.channels.length + planeIndices[k] + 1;
+			}
+		}
+
+		final EnumSet<Projections.Output> outputs = findProjections(paths);
+
+		final String name = new File(outputPath).getName();
+		final ImagePlus merged = new ImagePlus(name, new PlaneView(stacks, stackIndices, sliceIndices));
+		merged.setDimensions(nc, nz, nt);
+		merged.setOpenAsHyperStack(nc > 1 || nt > 1);
+		merged.setCalibration(parts[0].getCalibration());
+		if (writer == null) {
+			if (!IJ.saveAsTiff(merged, outputPath))
+				throw new IOException("Cannot save " + outputPath);
+		} else
+			writer.write(merged, outputPath);
+
+		mergeProjections(outputPath, paths, shards, channels, first, merged, outputs);
+
+		if (deleteParts) {
+			for (final String path : paths) {
+				new File(path).delete();
+				for (final Projections.Output output : outputs)
+					new File(Projections.getPath(path, output)).delete();
+			}
+		}
+		return parts.length;
+	}
+
+	/**
+	 * The side outputs that all parts have.
+	 *
+	 * @throws IOException if only some parts have a side output
+	 */
+	final static protected EnumSet<Projections.Output> findProjections(final List<String> paths) throws IOException {
+		final EnumSet<Projections.Output> outputs = EnumSet.noneOf(Projections.Output.class);
+		for (final Projections.Output output : Projections.Output.values()) {
+			int n = 0;
+			for (final String path : paths)
+				if (new File(Projections.getPath(path, output)).exists())
+					++n;
+			if (n == paths.size())
+				outputs.add(output);
+			else if (n > 0)
+				throw new IOException("Only " + n + " of " + paths.size() + " parts have a " + output.name().toLowerCase() + " side output.");
+		}
+		return outputs;
+	}
+
+	/**
+	 * Merge the side outputs of all parts, see {@link Projections}: max
+	 * projections by their maximum, mean projections weighted by the number
+	 * of slices of each part, and slice statistics by renumbering their
+	 * rows.
+	 *
+	 * @param merged the merged hyperstack
+	 * @param outputs the side outputs to merge, see {@link #findProjections}
+	 */
+	final static protected void mergeProjections(
+			final String outputPath,
+			final ArrayList<String> paths,
+			final StackShard[] shards,
+			final int[] channels,
+			final int first,
+			final ImagePlus merged,
+			final EnumSet<Projections.Output> outputs) throws IOException {
+		final int nc = channels.length;
+		final int nz = merged.getNSlices();
+		final int nt = merged.getNFrames();
+
+		final EnumSet<Projections.Output> images = EnumSet.copyOf(outputs);
+		images.remove(Projections.Output.STATS);
+		if (!images.isEmpty()) {
+			final Projections projections = Projections.create(merged, merged.getWidth(), merged.getHeight(), images);
+			for (int p = 0; p < shards.length; ++p) {
+				final StackShard shard = shards[p];
+				for (final Projections.Output output : images) {
+					final String path = Projections.getPath(paths.get(p), output);
+					final ImagePlus imp = IJ.openImage(path);
+					if (imp == null || imp.getStackSize() != shard.channels.length * nt)
+						throw new IOException("Cannot open " + path + " or its size does not match the part.");
+					for (int t = 0; t < nt; ++t) {
+						for (int ci = 0; ci < shard.channels.length; ++ci) {
+							final int c = Arrays.binarySearch(channels, shard.channels[ci]);
+							final ImageProcessor ip = imp.getStack().getProcessor(t * shard.channels.length + ci + 1);
+							if (output == Projections.Output.MAX)
+								projections.addMax(c, t, ip);
+							else
+								projections.addMean(c, t, ip, shard.numSlices());
+						}
+					}
+				}
+			}
+			projections.save(outputPath);
+		}
+
+		if (outputs.contains(Projections.Output.STATS)) {
+			final String[] rows = new String[nc * nz * nt];
+			for (int p = 0; p < shards.length; ++p) {
+				final StackShard shard = shards[p];
+				final List<String> lines = Files.readAllLines(Paths.get(Projections.getPath(paths.get(p), Projections.Output.STATS)), StandardCharsets.UTF_8);
+				for (final String line : lines.subList(1, lines.size())) {
+					if (line.trim().isEmpty())
+						continue;
+					/* slice, channel, z, frame, then the statistics that are copied */
+					final String[] fields = line.split(",", 5);
+					final int c = Arrays.binarySearch(channels, shard.channels[Integer.parseInt(fields[1]) - 1]);
+					final int z = shard.firstSlice - first + Integer.parseInt(fields[2]) - 1;
+					final int t = Integer.parseInt(fields[3]) - 1;
+					final int k = (t * nz + z) * nc + c;
+					rows[k] = (k + 1) + "," + (c + 1) + "," + (z + 1) + "," + (t + 1) + "," + fields[4];
+				}
+			}
+			for (int k = 0; k < rows.length; ++k)
+				if (rows[k] == null)
+					throw new IOException("Statistics of slice " + (k + 1) + " are missing.");
+			try (final PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(Projections.getPath(outputPath, Projections.Output.STATS)), StandardCharsets.UTF_8))) {
+				out.println(Projections.STATISTICS_HEADER);
+				for (final String row : rows)
+					out.println(row);
+			}
+		}
+	}
+}
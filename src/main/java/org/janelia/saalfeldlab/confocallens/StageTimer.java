@@ -0,0 +1,143 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import org.json.JSONObject;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * Wall clock time of the named stages of a pipeline run.  Timings are
+ * saved as JSON such that the report of a later run, e.g. with a
+ * different alignment schedule, can compare against them stage by stage.
+ *
+ * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
+ */
+public class StageTimer {
+
+	final protected String schedule;
+	final protected LinkedHashMap<String, Double> seconds = new LinkedHashMap<String, Double>();
+	protected String stage = null;
+	protected long t0;
+	protected MemoryBudget memory = null;
+
+	public StageTimer(final String schedule) {
+		this.schedule = schedule;
+	}
+
+	/**
+	 * Start the stages of <code>memory</code> together with the timed
+	 * stages.
+	 */
+	public void setMemoryBudget(final MemoryBudget memory) {
+		this.memory = memory;
+	}
+
+	/**
+	 * Start a stage, stopping the previous one.  Repeated stage names
+	 * accumulate.
+	 */
+	public void start(final String stage) {
+		stop();
+		if (memory != null)
+			memory.start(stage);
+		this.stage = stage;
+		t0 = System.nanoTime();
+	}
+
+	/**
+	 * Add the time of a stage that was measured elsewhere, e.g. JVM
+	 * startup.
+	 */
+	public void add(final String stage, final double seconds) {
+		final Double previous = this.seconds.get(stage);
+		this.seconds.put(stage, previous == null ? seconds : previous + seconds);
+	}
+
+	public void stop() {
+		if (stage != null) {
+			add(stage, (System.nanoTime() - t0) * 1e-9);
+			stage = null;
+		}
+	}
+
+	public double getTotal() {
+		double total = 0;
+		for (final double t : seconds.values())
+			total += t;
+		return total;
+	}
+
+	public void save(final String path) throws IOException {
+		final LinkedHashMap<String, Object> export = new LinkedHashMap<String, Object>();
+		export.put("schedule", schedule);
+		export.put("seconds", seconds);
+		final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+		Files.write(Paths.get(path), gson.toJson(export).getBytes());
+	}
+
+	/**
+	 * Print the stage timings, next to those of a timing file of a
+	 * previous run if <code>referencePath</code> is not null.
+	 */
+	public void report(final PrintStream out, final String referencePath) throws IOException {
+		JSONObject reference = null;
+		String referenceSchedule = null;
+		if (referencePath != null) {
+			final JSONObject jo = new JSONObject(new String(Files.readAllBytes(Paths.get(referencePath))));
+			reference = jo.getJSONObject("seconds");
+			referenceSchedule = jo.getString("schedule");
+		}
+
+		if (reference == null)
+			out.println(String.format("%-24s %10s", "stage", schedule));
+		else
+			out.println(String.format("%-24s %10s %10s %8s", "stage", schedule, referenceSchedule, "speedup"));
+
+		double referenceTotal = 0;
+		for (final Entry<String, Double> entry : seconds.entrySet()) {
+			if (reference != null && reference.has(entry.getKey())) {
+				final double r = reference.getDouble(entry.getKey());
+				referenceTotal += r;
+				out.println(String.format("%-24s %9.2fs %9.2fs %7.2fx", entry.getKey(), entry.getValue(), r, r / entry.getValue()));
+			} else
+				out.println(String.format("%-24s %9.2fs", entry.getKey(), entry.getValue()));
+		}
+		if (reference != null) {
+			/* stages that only the reference run had */
+			for (final Iterator<String> it = reference.keys(); it.hasNext();) {
+				final String key = it.next();
+				if (!seconds.containsKey(key)) {
+					final double r = reference.getDouble(key);
+					referenceTotal += r;
+					out.println(String.format("%-24s %10s %9.2fs", key, "-", r));
+				}
+			}
+			out.println(String.format("%-24s %9.2fs %9.2fs %7.2fx", "total", getTotal(), referenceTotal, referenceTotal / getTotal()));
+		} else
+			out.println(String.format("%-24s %9.2fs", "total", getTotal()));
+	}
+}
@@ -0,0 +1,358 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Minimal reader for uncompressed classic TIFF and Zeiss LSM stacks with
+ * 8, 16 bit unsigned or 32 bit float samples, contiguous or planar.
+ * Thumbnail IFDs of LSM files are skipped.  Hyperstack dimensions and
+ * calibration are read from the LSM info tag or the ImageJ description.
+ * Everything else, e.g. compressed, BigTIFF or LSM files over 4GB,
+ * throws an {@link UnsupportedFormatException} such that callers can fall
+ * back to a full reader.
+ *
+ * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
+ */
+public class TiffReader {
+
+	final static private int NEW_SUBFILE_TYPE = 254;
+	final static private int IMAGE_WIDTH = 256;
+	final static private int IMAGE_LENGTH = 257;
+	final static private int BITS_PER_SAMPLE = 258;
+	final static private int COMPRESSION = 259;
+	final static private int IMAGE_DESCRIPTION = 270;
+	final static private int STRIP_OFFSETS = 273;
+	final static private int SAMPLES_PER_PIXEL = 277;
+	final static private int STRIP_BYTE_COUNTS = 279;
+	final static private int X_RESOLUTION = 282;
+	final static private int PLANAR_CONFIGURATION = 284;
+	final static private int SAMPLE_FORMAT = 339;
+	final static private int CZ_LSM_INFO = 34412;
+
+	/**
+	 * The file is valid but needs a full reader.
+	 */
+	static public class UnsupportedFormatException extends Exception {
+
+		private static final long serialVersionUID = -2958405361029315371L;
+
+		public UnsupportedFormatException(final String message) {
+			super(message);
+		}
+	}
+
+	final static private class IFD {
+
+		int newSubfileType = 0;
+		int width;
+		int height;
+		int bitsPerSample = 1;
+		int compression = 1;
+		int samplesPerPixel = 1;
+		int planarConfiguration = 1;
+		int sampleFormat = 1;
+		long[] stripOffsets;
+		long[] stripByteCounts;
+		String description = null;
+		double xResolution = 0;
+		long lsmInfo = 0;
+	}
+
+	final protected FileChannel channel;
+	protected ByteOrder order;
+
+	protected TiffReader(final FileChannel channel) {
+		this.channel = channel;
+	}
+
+	protected ByteBuffer read(final long offset, final int length) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(length).order(order);
+		while (buffer.hasRemaining())
+			if (channel.read(buffer, offset + buffer.position()) < 0)
+				throw new IOException("Unexpected end of file.");
+		buffer.flip();
+		return buffer;
+	}
+
+	final static private int typeSize(final int type) {
+		switch (type) {
+		case 3:
+		case 8:
+			return 2;
+		case 4:
+		case 9:
+		case 11:
+			return 4;
+		case 5:
+		case 10:
+		case 12:
+			return 8;
+		default:
+			return 1;
+		}
+	}
+
+	protected long[] values(final int type, final int count, final ByteBuffer entry) throws IOException {
+		final int size = typeSize(type) * count;
+		final ByteBuffer buffer = size <= 4 ? entry : read(entry.getInt() & 0xffffffffL, size);
+		final long[] values = new long[count];
+		for (int i = 0; i < count; ++i) {
+			if (type == 3)
+				values[i] = buffer.getShort() & 0xffff;
+			else if (type == 4)
+				values[i] = buffer.getInt() & 0xffffffffL;
+			else
+				values[i] = buffer.get() & 0xff;
+		}
+		return values;
+	}
+
+	protected IFD readIFD(final long offset, final long[] next) throws IOException {
+		final int n = read(offset, 2).getShort() & 0xffff;
+		final ByteBuffer entries = read(offset + 2, n * 12 + 4);
+		final IFD ifd = new IFD();
+		for (int i = 0; i < n; ++i) {
+			entries.position(i * 12);
+			final int tag = entries.getShort() & 0xffff;
+			final int type = entries.getShort() & 0xffff;
+			final int count = entries.getInt();
+			final ByteBuffer value = entries.slice().order(order);
+			value.limit(4);
+			switch (tag) {
+			case NEW_SUBFILE_TYPE:
+				ifd.newSubfileType = (int)values(type, 1, value)[0];
+				break;
+			case IMAGE_WIDTH:
+				ifd.width = (int)values(type, 1, value)[0];
+				break;
+			case IMAGE_LENGTH:
+				ifd.height = (int)values(type, 1, value)[0];
+				break;
+			case BITS_PER_SAMPLE:
+				ifd.bitsPerSample = (int)values(type, count, value)[0];
+				break;
+			case COMPRESSION:
+				ifd.compression = (int)values(type, 1, value)[0];
+				break;
+			case SAMPLES_PER_PIXEL:
+				ifd.samplesPerPixel = (int)values(type, 1, value)[0];
+				break;
+			case PLANAR_CONFIGURATION:
+				ifd.planarConfiguration = (int)values(type, 1, value)[0];
+				break;
+			case SAMPLE_FORMAT:
+				ifd.sampleFormat = (int)values(type, count, value)[0];
+				break;
+			case STRIP_OFFSETS:
+				ifd.stripOffsets = values(type, count, value);
+				break;
+			case STRIP_BYTE_COUNTS:
+				ifd.stripByteCounts = values(type, count, value);
+				break;
+			case IMAGE_DESCRIPTION: {
+				final ByteBuffer text = count <= 4 ? value : read(value.getInt() & 0xffffffffL, count);
+				final byte[] bytes = new byte[count];
+				text.get(bytes);
+				ifd.description = new String(bytes, StandardCharsets.ISO_8859_1).trim();
+				break;
+			}
+			case X_RESOLUTION: {
+				final ByteBuffer rational = read(value.getInt() & 0xffffffffL, 8);
+				final double numerator = rational.getInt() & 0xffffffffL;
+				final double denominator = rational.getInt() & 0xffffffffL;
+				ifd.xResolution = denominator == 0 ? 0 : numerator / denominator;
+				break;
+			}
+			case CZ_LSM_INFO:
+				ifd.lsmInfo = value.getInt() & 0xffffffffL;
+				break;
+			}
+		}
+		entries.position(n * 12);
+		next[0] = entries.getInt() & 0xffffffffL;
+		return ifd;
+	}
+
+	/**
+	 * Samples of all channels of an IFD, one array per channel.
+	 */
+	protected Object[] readPlanes(final IFD ifd, final IFD first) throws IOException, UnsupportedFormatException {
+		if (ifd.compression != 1)
+			throw new UnsupportedFormatException("Compressed TIFF.");
+		if (ifd.width != first.width || ifd.height != first.height || ifd.bitsPerSample != first.bitsPerSample)
+			throw new UnsupportedFormatException("Images of different size or type.");
+
+		final int bytesPerSample = ifd.bitsPerSample / 8;
+		final int n = ifd.width * ifd.height;
+		final int channels = ifd.samplesPerPixel;
+		final ByteBuffer data = ByteBuffer.allocate(n * channels * bytesPerSample).order(order);
+		for (int s = 0; s < ifd.stripOffsets.length && data.hasRemaining(); ++s) {
+			final int length = (int)Math.min(ifd.stripByteCounts[s], data.remaining());
+			data.put(read(ifd.stripOffsets[s], length));
+		}
+		data.flip();
+		return planes(data, ifd.bitsPerSample, ifd.sampleFormat, n, channels, ifd.planarConfiguration == 2);
+	}
+
+	final static protected Object[] planes(
+			final ByteBuffer data,
+			final int bitsPerSample,
+			final int sampleFormat,
+			final int n,
+			final int channels,
+			final boolean planar) throws UnsupportedFormatException {
+		final Object[] planes = new Object[channels];
+		for (int c = 0; c < channels; ++c) {
+			final int start = planar ? c * n : c;
+			final int step = planar ? 1 : channels;
+			if (bitsPerSample == 8) {
+				final byte[] plane = new byte[n];
+				for (int i = 0, j = start; i < n; ++i, j += step)
+					plane[i] = data.get(j);
+				planes[c] = plane;
+			} else if (bitsPerSample == 16 && sampleFormat != 3) {
+				final short[] plane = new short[n];
+				for (int i = 0, j = start; i < n; ++i, j += step)
+					plane[i] = data.getShort(j * 2);
+				planes[c] = plane;
+			} else if (bitsPerSample == 32 && sampleFormat == 3) {
+				final float[] plane = new float[n];
+				for (int i = 0, j = start; i < n; ++i, j += step)
+					plane[i] = data.getFloat(j * 4);
+				planes[c] = plane;
+			} else
+				throw new UnsupportedFormatException(bitsPerSample + " bit samples of format " + sampleFormat + ".");
+		}
+		return planes;
+	}
+
+	final static protected ImageProcessor createProcessor(final int width, final int height, final Object pixels) {
+		if (pixels instanceof byte[])
+			return new ByteProcessor(width, height, (byte[])pixels);
+		else if (pixels instanceof short[])
+			return new ShortProcessor(width, height, (short[])pixels, null);
+		else
+			return new FloatProcessor(width, height, (float[])pixels);
+	}
+
+	final static private String property(final String description, final String key) {
+		for (final String line : description.split("\n"))
+			if (line.startsWith(key + "="))
+				return line.substring(key.length() + 1).trim();
+		return null;
+	}
+
+	protected ImagePlus read(final String path) throws IOException, UnsupportedFormatException {
+		final ByteBuffer header = ByteBuffer.allocate(8);
+		channel.read(header, 0);
+		header.flip();
+		final short byteOrder = header.getShort();
+		if (byteOrder == 0x4949)
+			order = ByteOrder.LITTLE_ENDIAN;
+		else if (byteOrder == 0x4d4d)
+			order = ByteOrder.BIG_ENDIAN;
+		else
+			throw new UnsupportedFormatException("Not a TIFF.");
+		header.order(order);
+		if (header.getShort() != 42)
+			throw new UnsupportedFormatException("BigTIFF.");
+
+		final ArrayList<IFD> ifds = new ArrayList<IFD>();
+		final long[] next = new long[] {header.getInt() & 0xffffffffL};
+		while (next[0] != 0) {
+			final IFD ifd = readIFD(next[0], next);
+			/* LSM files over 4GB store offsets modulo 2^32 */
+			if (ifd.lsmInfo != 0 && channel.size() > 0xffffffffL)
+				throw new UnsupportedFormatException("LSM file over 4GB.");
+			/* skip LSM thumbnails */
+			if (ifd.newSubfileType == 0)
+				ifds.add(ifd);
+		}
+		if (ifds.isEmpty())
+			throw new IOException("No images in " + path);
+
+		final IFD first = ifds.get(0);
+		final ImageStack stack = new ImageStack(first.width, first.height);
+		for (final IFD ifd : ifds)
+			for (final Object pixels : readPlanes(ifd, first))
+				stack.addSlice(createProcessor(ifd.width, ifd.height, pixels));
+
+		final String name = path.substring(path.lastIndexOf('/') + 1);
+		final ImagePlus imp = new ImagePlus(name, stack);
+		final Calibration calibration = imp.getCalibration();
+		int channels = first.samplesPerPixel;
+		int frames = 1;
+		if (first.lsmInfo != 0) {
+			/* CZ_LSMINFO: dimensions from byte 8, voxel sizes in m from byte 40 */
+			final ByteBuffer info = read(first.lsmInfo, 64);
+			frames = Math.max(1, info.getInt(24));
+			calibration.pixelWidth = info.getDouble(40) * 1e6;
+			calibration.pixelHeight = info.getDouble(48) * 1e6;
+			calibration.pixelDepth = info.getDouble(56) * 1e6;
+			calibration.setUnit("micron");
+		} else if (first.description != null && first.description.startsWith("ImageJ=")) {
+			final String images = property(first.description, "images");
+			if (images != null && Integer.parseInt(images) > stack.getSize())
+				throw new UnsupportedFormatException("ImageJ TIFF without IFDs for all images.");
+			final String c = property(first.description, "channels");
+			final String t = property(first.description, "frames");
+			final String unit = property(first.description, "unit");
+			final String spacing = property(first.description, "spacing");
+			channels = c == null ? 1 : Integer.parseInt(c);
+			frames = t == null ? 1 : Integer.parseInt(t);
+			if (unit != null)
+				calibration.setUnit(unit);
+			if (first.xResolution > 0)
+				calibration.pixelWidth = calibration.pixelHeight = 1.0 / first.xResolution;
+			if (spacing != null)
+				calibration.pixelDepth = Double.parseDouble(spacing);
+		}
+		final int slices = stack.getSize() / (channels * frames);
+		if (channels * slices * frames == stack.getSize()) {
+			imp.setDimensions(channels, slices, frames);
+			imp.setOpenAsHyperStack(channels > 1 || frames > 1);
+		}
+		return imp;
+	}
+
+	/**
+	 * Open an uncompressed TIFF or LSM file.
+	 *
+	 * @throws UnsupportedFormatException if the file needs a full reader
+	 */
+	final static public ImagePlus open(final String path) throws IOException, UnsupportedFormatException {
+		try (final RandomAccessFile file = new RandomAccessFile(path, "r")) {
+			return new TiffReader(file.getChannel()).read(path);
+		}
+	}
+}
@@ -0,0 +1,230 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import ij.process.ImageProcessor;
+import mpicbg.ij.SIFT;
+import mpicbg.imagefeatures.Feature;
+import mpicbg.imagefeatures.FloatArray2DSIFT;
+
+/**
+ * Known placement of the tiles of a mosaic, either from a
+ * TileConfiguration.txt or from a regular grid.  Tiles are indexed in
+ * acquisition order.  Two tiles are neighbors if their rectangles overlap,
+ * only those pairs need to be matched, and only features in the overlap
+ * regions can contribute to a match.
+ *
+ * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
+ */
+public class TileLayout {
+
+	final protected double[][] positions;
+	final protected int width;
+	final protected int height;
+
+	public TileLayout(final double[][] positions, final int width, final int height) {
+		this.positions = positions;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Layout from the (x, y) placement of the given files in a
+	 * TileConfiguration.txt.
+	 *
+	 * @param tileConfigurationStr
+	 * @param fileNames tile file names in acquisition order
+	 * @param width
+	 * @param height
+	 * @return
+	 * @throws IOException if a file is not listed in the TileConfiguration
+	 */
+	final static public TileLayout fromTileConfiguration(
+			final String tileConfigurationStr,
+			final List<String> fileNames,
+			final int width,
+			final int height) throws IOException {
+
+		final HashMap<String, double[]> offsets = ConfocalLens.parseOffsets(tileConfigurationStr);
+		final double[][] positions = new double[fileNames.size()][];
+		for (int i = 0; i < positions.length; ++i) {
+			final double[] xyz = offsets.get(fileNames.get(i));
+			if (xyz == null)
+				throw new IOException(fileNames.get(i) + " is not listed in " + tileConfigurationStr);
+			positions[i] = new double[] {xyz[0], xyz[1]};
+		}
+		return new TileLayout(positions, width, height);
+	}
+
+	/**
+	 * Row-major grid of <code>rows</code> &times; <code>cols</code> tiles
+	 * that overlap by a fraction <code>overlap</code> of their size.
+	 */
+	final static public TileLayout grid(
+			final int rows,
+			final int cols,
+			final double overlap,
+			final int width,
+			final int height) {
+
+		final double[][] positions = new double[rows * cols][];
+		for (int r = 0, i = 0; r < rows; ++r)
+			for (int c = 0; c < cols; ++c, ++i)
+				positions[i] = new double[] {
+						c * width * (1.0 - overlap),
+						r * height * (1.0 - overlap)};
+		return new TileLayout(positions, width, height);
+	}
+
+	/**
+	 * Parse a grid specification <code>rows</code>x<code>cols</code>[,<code>overlap</code>],
+	 * e.g. <code>4x4,0.1</code>.  Overlap defaults to 0.1.
+	 */
+	final static public TileLayout parseGrid(final String spec, final int width, final int height) {
+		final String[] parts = spec.split(",");
+		final String[] rc = parts[0].trim().split("x");
+		if (rc.length != 2)
+			throw new IllegalArgumentException("Grid specification '" + spec + "' is not <rows>x<cols>[,<overlap>].");
+		final double overlap = parts.length > 1 ? Double.parseDouble(parts[1].trim()) : 0.1;
+		return grid(Integer.parseInt(rc[0].trim()), Integer.parseInt(rc[1].trim()), overlap, width, height);
+	}
+
+	public int size() {
+		return positions.length;
+	}
+
+	public double getX(final int i) {
+		return positions[i][0];
+	}
+
+	public double getY(final int i) {
+		return positions[i][1];
+	}
+
+	public Rectangle getBounds(final int i) {
+		return new Rectangle(
+				(int)Math.floor(positions[i][0]),
+				(int)Math.floor(positions[i][1]),
+				width,
+				height);
+	}
+
+	/**
+	 * Overlap of tiles i and j in the local coordinates of tile i, empty
+	 * if they do not overlap.
+	 */
+	public Rectangle getOverlap(final int i, final int j) {
+		final Rectangle bounds = getBounds(i);
+		final Rectangle overlap = bounds.intersection(getBounds(j));
+		overlap.translate(-bounds.x, -bounds.y);
+		return overlap;
+	}
+
+	/**
+	 * All pairs (i, j) with i &lt; j whose tiles overlap.
+	 */
+	public ArrayList<int[]> getNeighborPairs() {
+		final ArrayList<int[]> pairs = new ArrayList<int[]>();
+		for (int i = 0; i < positions.length; ++i)
+			for (int j = i + 1; j < positions.length; ++j)
+				if (!getOverlap(i, j).isEmpty())
+					pairs.add(new int[] {i, j});
+		return pairs;
+	}
+
+	/**
+	 * The overlaps of tile i with each of its neighbors, grown by
+	 * <code>margin</code> and clipped to the tile, in local coordinates of
+	 * tile i.  Overlaps that are contained in another, e.g. with diagonal
+	 * neighbors, are left out.  Empty if tile i has no neighbors.
+	 */
+	public ArrayList<Rectangle> getOverlapRegions(final int i, final int margin) {
+		final Rectangle tile = new Rectangle(width, height);
+		final ArrayList<Rectangle> overlaps = new ArrayList<Rectangle>();
+		for (int j = 0; j < positions.length; ++j) {
+			if (j == i)
+				continue;
+			final Rectangle overlap = getOverlap(i, j);
+			if (!overlap.isEmpty()) {
+				overlap.grow(margin, margin);
+				overlaps.add(overlap.intersection(tile));
+			}
+		}
+		final ArrayList<Rectangle> regions = new ArrayList<Rectangle>();
+		for (int k = 0; k < overlaps.size(); ++k) {
+			final Rectangle overlap = overlaps.get(k);
+			boolean contained = false;
+			for (int l = 0; l < overlaps.size() && !contained; ++l)
+				contained = l != k && overlaps.get(l).contains(overlap) && (l < k || !overlap.contains(overlaps.get(l)));
+			if (!contained)
+				regions.add(overlap);
+		}
+		return regions;
+	}
+
+	/**
+	 * SIFT features of tile i in local coordinates, extracted only in its
+	 * overlap regions, see {@link #getOverlapRegions(int, int)}.  Every
+	 * region is cropped and processed separately, features of a region
+	 * that lie in an earlier region are dropped such that no feature is
+	 * found twice.  Regions narrower than the smallest SIFT octave are
+	 * widened to it.  <code>ip</code> is left without ROI.
+	 */
+	public ArrayList<Feature> extractOverlapFeatures(
+			final int i,
+			final ImageProcessor ip,
+			final int margin,
+			final FloatArray2DSIFT.Param siftParam) {
+		final ArrayList<Rectangle> regions = getOverlapRegions(i, margin);
+		final ArrayList<Feature> features = new ArrayList<Feature>();
+		for (int k = 0; k < regions.size(); ++k) {
+			final Rectangle region = regions.get(k);
+			final Rectangle roi = new Rectangle(region);
+			if (roi.width < siftParam.minOctaveSize) {
+				roi.width = Math.min(siftParam.minOctaveSize, width);
+				roi.x = Math.max(0, Math.min(region.x + (region.width - roi.width) / 2, width - roi.width));
+			}
+			if (roi.height < siftParam.minOctaveSize) {
+				roi.height = Math.min(siftParam.minOctaveSize, height);
+				roi.y = Math.max(0, Math.min(region.y + (region.height - roi.height) / 2, height - roi.height));
+			}
+			ip.setRoi(roi);
+			final ImageProcessor crop = ip.crop();
+			ip.resetRoi();
+			final ArrayList<Feature> fs = new ArrayList<Feature>();
+			new SIFT(new FloatArray2DSIFT(siftParam)).extractFeatures(crop, fs);
+			for (final Feature f : fs) {
+				f.location[0] += roi.x;
+				f.location[1] += roi.y;
+				if (!region.contains(f.location[0], f.location[1]))
+					continue;
+				boolean found = false;
+				for (int l = 0; l < k && !found; ++l)
+					found = regions.get(l).contains(f.location[0], f.location[1]);
+				if (!found)
+					features.add(f);
+			}
+		}
+		return features;
+	}
+}
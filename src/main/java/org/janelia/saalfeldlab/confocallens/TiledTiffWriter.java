@@ -0,0 +1,553 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.Deflater;
+import java.util.stream.IntStream;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+import ij.measure.Calibration;
+
+/**
+ * Writes stacks as optionally compressed, little endian TIFF.  The blocks
+ * of each plane are compressed in parallel and then written in order,
+ * followed by the IFD of the plane, so only one plane and its compressed
+ * blocks are in memory at any time and virtual stacks are streamed.
+ *
+ * Stacks that certainly fit into 4GB are written as classic TIFF with
+ * strips of <code>tileSize</code> rows, which the ImageJ built-in TIFF
+ * reader opens.  Larger stacks are written as BigTIFF with square tiles
+ * of <code>tileSize</code>, which Fiji opens with Bio-Formats.
+ *
+ * Compression is LZW (5) or Adobe Deflate (8), the optional predictor is
+ * horizontal differencing (2) and only applied to integer samples, and to
+ * classic TIFF only with LZW because ImageJ does not undo it after
+ * Deflate.  Pixel data of all planes precede the IFDs such that
+ * uncompressed planes are contiguous as ImageJ expects.  The
+ * first IFD carries the ImageJ description with the hyperstack dimensions
+ * and calibration.
+ *
+ * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
+ */
+public class TiledTiffWriter {
+
+	public enum Compression {
+		NONE(1),
+		LZW(5),
+		DEFLATE(8);
+
+		final public int code;
+
+		Compression(final int code) {
+			this.code = code;
+		}
+	}
+
+	final static public int DEFAULT_TILE_SIZE = 256;
+
+	/**
+	 * Largest offset of a classic TIFF.
+	 */
+	final static public long CLASSIC_TIFF_LIMIT = 0xffffffffL;
+
+	/* TIFF field types */
+	final static private short ASCII = 2;
+	final static private short SHORT = 3;
+	final static private short LONG = 4;
+	final static private short RATIONAL = 5;
+	final static private short LONG8 = 16;
+
+	final protected int tileSize;
+	final protected Compression compression;
+	final protected boolean predictor;
+
+	/**
+	 * @param tileSize tile width and height, must be a multiple of 16
+	 * @param compression
+	 * @param predictor apply horizontal differencing before compression
+	 */
+	public TiledTiffWriter(
+			final int tileSize,
+			final Compression compression,
+			final boolean predictor) {
+		if (tileSize <= 0 || tileSize % 16 != 0)
+			throw new IllegalArgumentException("Tile size must be a positive multiple of 16.");
+		this.tileSize = tileSize;
+		this.compression = compression;
+		this.predictor = predictor && compression != Compression.NONE;
+	}
+
+	public TiledTiffWriter(final Compression compression) {
+		this(DEFAULT_TILE_SIZE, compression, true);
+	}
+
+	final static private class Entry {
+
+		final int tag;
+		final short type;
+		final long count;
+		final byte[] value;
+		long offset;
+
+		Entry(final int tag, final short type, final long count, final byte[] value) {
+			this.tag = tag;
+			this.type = type;
+			this.count = count;
+			this.value = value;
+		}
+	}
+
+	final static private ByteBuffer buffer(final int size) {
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	final static private Entry shorts(final int tag, final int... values) {
+		final ByteBuffer b = buffer(2 * values.length);
+		for (final int v : values)
+			b.putShort((short)v);
+		return new Entry(tag, SHORT, values.length, b.array());
+	}
+
+	final static private Entry longs(final int tag, final long value) {
+		return new Entry(tag, LONG, 1, buffer(4).putInt((int)value).array());
+	}
+
+	final static private Entry offsets(final int tag, final long[] values, final boolean bigTiff) {
+		final ByteBuffer b = buffer((bigTiff ? 8 : 4) * values.length);
+		for (final long v : values) {
+			if (bigTiff)
+				b.putLong(v);
+			else
+				b.putInt((int)v);
+		}
+		return new Entry(tag, bigTiff ? LONG8 : LONG, values.length, b.array());
+	}
+
+	final static private Entry rational(final int tag, final long numerator, final long denominator) {
+		return new Entry(tag, RATIONAL, 1, buffer(8).putInt((int)numerator).putInt((int)denominator).array());
+	}
+
+	final static private Entry ascii(final int tag, final String value) {
+		final byte[] chars = (value + "\0").getBytes(StandardCharsets.US_ASCII);
+		return new Entry(tag, ASCII, chars.length, chars);
+	}
+
+	/**
+	 * Copy one tile or strip of a plane into a zero padded little endian
+	 * byte array.  RGB pixels are stored as three 8-bit samples.
+	 */
+	final static protected byte[] extractTile(
+			final Object pixels,
+			final int width,
+			final int height,
+			final int x0,
+			final int y0,
+			final int tileWidth,
+			final int tileHeight,
+			final int bytesPerPixel) {
+		final ByteBuffer tile = buffer(tileWidth * tileHeight * bytesPerPixel);
+		final int w = Math.min(tileWidth, width - x0);
+		final int h = Math.min(tileHeight, height - y0);
+		for (int y = 0; y < h; ++y) {
+			tile.position(y * tileWidth * bytesPerPixel);
+			final int i0 = (y0 + y) * width + x0;
+			if (pixels instanceof byte[])
+				tile.put((byte[])pixels, i0, w);
+			else if (pixels instanceof short[])
+				tile.asShortBuffer().put((short[])pixels, i0, w);
+			else if (pixels instanceof float[])
+				tile.asFloatBuffer().put((float[])pixels, i0, w);
+			else {
+				final int[] rgb = (int[])pixels;
+				for (int i = i0; i < i0 + w; ++i) {
+					tile.put((byte)(rgb[i] >> 16));
+					tile.put((byte)(rgb[i] >> 8));
+					tile.put((byte)rgb[i]);
+				}
+			}
+		}
+		return tile.array();
+	}
+
+	/**
+	 * Horizontal differencing of each tile row in place.
+	 */
+	final static protected void applyPredictor(
+			final byte[] tile,
+			final int tileWidth,
+			final int bytesPerSample,
+			final int samplesPerPixel) {
+		final int rowLength = tileWidth * bytesPerSample * samplesPerPixel;
+		for (int row = 0; row < tile.length; row += rowLength) {
+			if (bytesPerSample == 1) {
+				for (int i = row + rowLength - 1; i >= row + samplesPerPixel; --i)
+					tile[i] -= tile[i - samplesPerPixel];
+			} else {
+				for (int i = row + rowLength - 2; i >= row + 2; i -= 2) {
+					final int v = (tile[i] & 0xff) | ((tile[i + 1] & 0xff) << 8);
+					final int u = (tile[i - 2] & 0xff) | ((tile[i - 1] & 0xff) << 8);
+					final int d = v - u;
+					tile[i] = (byte)d;
+					tile[i + 1] = (byte)(d >> 8);
+				}
+			}
+		}
+	}
+
+	final static protected byte[] deflate(final byte[] data) {
+		final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		deflater.setInput(data);
+		deflater.finish();
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+		final byte[] chunk = new byte[65536];
+		while (!deflater.finished())
+			out.write(chunk, 0, deflater.deflate(chunk));
+		deflater.end();
+		return out.toByteArray();
+	}
+
+	/**
+	 * TIFF flavored LZW: MSB first codes of 9 to 12 bits that grow one code
+	 * early, a clear code when the table is full, and an end of information
+	 * code.
+	 */
+	final static protected byte[] lzw(final byte[] data) {
+		final int clear = 256, eoi = 257, first = 258;
+		final short[] child = new short[4096];
+		final short[] sibling = new short[4096];
+		final byte[] symbol = new byte[4096];
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+
+		int width = 9;
+		int next = first;
+
+		/* start with a clear code */
+		long bits = clear;
+		int numBits = width;
+
+		if (data.length > 0) {
+			int prefix = data[0] & 0xff;
+			for (int i = 1; i < data.length; ++i) {
+				final byte c = data[i];
+				int code = child[prefix];
+				while (code != 0 && symbol[code] != c)
+					code = sibling[code];
+				if (code != 0) {
+					prefix = code;
+					continue;
+				}
+				bits = (bits << width) | prefix;
+				numBits += width;
+				symbol[next] = c;
+				sibling[next] = child[prefix];
+				child[prefix] = (short)next;
+				++next;
+				if (next == 4094) {
+					bits = (bits << width) | clear;
+					numBits += width;
+					Arrays.fill(child, (short)0);
+					next = first;
+					width = 9;
+				} else if (next > (1 << width) - 1)
+					++width;
+				while (numBits >= 8) {
+					out.write((int)(bits >>> (numBits - 8)));
+					numBits -= 8;
+				}
+				prefix = c & 0xff;
+			}
+			bits = (bits << width) | prefix;
+			numBits += width;
+			++next;
+			if (next == 4094) {
+				bits = (bits << width) | clear;
+				numBits += width;
+				width = 9;
+			} else if (next > (1 << width) - 1)
+				++width;
+		}
+		bits = (bits << width) | eoi;
+		numBits += width;
+		while (numBits >= 8) {
+			out.write((int)(bits >>> (numBits - 8)));
+			numBits -= 8;
+		}
+		if (numBits > 0)
+			out.write((int)(bits << (8 - numBits)));
+		return out.toByteArray();
+	}
+
+	protected byte[] encodeTile(
+			final Object pixels,
+			final int width,
+			final int height,
+			final int x0,
+			final int y0,
+			final int tileWidth,
+			final int tileHeight,
+			final int bytesPerSample,
+			final int samplesPerPixel,
+			final boolean differencing) {
+		final byte[] tile = extractTile(pixels, width, height, x0, y0, tileWidth, tileHeight, bytesPerSample * samplesPerPixel);
+		if (differencing && !(pixels instanceof float[]))
+			applyPredictor(tile, tileWidth, bytesPerSample, samplesPerPixel);
+		switch (compression) {
+		case LZW:
+			return lzw(tile);
+		case DEFLATE:
+			return deflate(tile);
+		default:
+			return tile;
+		}
+	}
+
+	final static private void write(final FileChannel channel, final ByteBuffer b) throws IOException {
+		b.flip();
+		while (b.hasRemaining())
+			channel.write(b);
+	}
+
+	final static private void write(final FileChannel channel, final byte[] bytes) throws IOException {
+		final ByteBuffer b = ByteBuffer.wrap(bytes);
+		while (b.hasRemaining())
+			channel.write(b);
+	}
+
+	/**
+	 * ImageJ's ResolutionUnit for a calibration unit, none (1) unless it is
+	 * inch (2) or cm (3), the actual unit is in the ImageJ description.
+	 */
+	final static protected int resolutionUnit(final String unit) {
+		if (unit.equals("inch"))
+			return 2;
+		else if (unit.equals("cm"))
+			return 3;
+		else
+			return 1;
+	}
+
+	/**
+	 * True if <code>imp</code> needs a BigTIFF.  The estimate is
+	 * conservative, LZW can expand incompressible data by half.
+	 */
+	protected boolean needsBigTiff(final ImagePlus imp) {
+		final long planeBytes = (long)imp.getWidth() * imp.getHeight() * imp.getBytesPerPixel();
+		return (long)imp.getStackSize() * (planeBytes + planeBytes / 2 + 65536) > CLASSIC_TIFF_LIMIT;
+	}
+
+	/**
+	 * Write all planes of <code>imp</code> in stack order.
+	 *
+	 * @param imp
+	 * @param path
+	 * @throws IOException
+	 */
+	public void write(final ImagePlus imp, final String path) throws IOException {
+
+		final ImageStack stack = imp.getStack();
+		final int width = imp.getWidth();
+		final int height = imp.getHeight();
+		final int bytesPerSample;
+		final int samplesPerPixel;
+		final int sampleFormat;
+		switch (imp.getType()) {
+		case ImagePlus.GRAY8:
+			bytesPerSample = 1;
+			samplesPerPixel = 1;
+			sampleFormat = 1;
+			break;
+		case ImagePlus.GRAY16:
+			bytesPerSample = 2;
+			samplesPerPixel = 1;
+			sampleFormat = 1;
+			break;
+		case ImagePlus.GRAY32:
+			bytesPerSample = 4;
+			samplesPerPixel = 1;
+			sampleFormat = 3;
+			break;
+		case ImagePlus.COLOR_RGB:
+			bytesPerSample = 1;
+			samplesPerPixel = 3;
+			sampleFormat = 1;
+			break;
+		default:
+			throw new IllegalArgumentException("Unsupported image type " + imp.getType());
+		}
+
+		/* classic TIFF with full width strips that ImageJ can read, or
+		 * BigTIFF with square tiles */
+		final boolean bigTiff = needsBigTiff(imp);
+		final int tileWidth = bigTiff ? tileSize : width;
+		final int tilesX = (width + tileWidth - 1) / tileWidth;
+		final int tilesY = (height + tileSize - 1) / tileSize;
+		final int numTiles = tilesX * tilesY;
+		final int offsetSize = bigTiff ? 8 : 4;
+		final int entrySize = bigTiff ? 20 : 12;
+
+		/* ImageJ reads horizontal differencing only with LZW */
+		final boolean differencing = predictor && (bigTiff || compression == Compression.LZW);
+
+		final Calibration calibration = imp.getCalibration();
+		final String description = new FileSaver(imp).getDescriptionString();
+
+		try (
+				final RandomAccessFile file = new RandomAccessFile(path, "rw");
+				final FileChannel channel = file.getChannel()) {
+			channel.truncate(0);
+
+			/* header, first IFD offset is patched later */
+			long nextIfdPointer;
+			if (bigTiff) {
+				write(channel, buffer(16).put((byte)'I').put((byte)'I').putShort((short)43).putShort((short)8).putShort((short)0).putLong(0));
+				nextIfdPointer = 8;
+			} else {
+				write(channel, buffer(8).put((byte)'I').put((byte)'I').putShort((short)42).putInt(0));
+				nextIfdPointer = 4;
+			}
+
+			/* pixel data of all planes first, such that uncompressed planes
+			 * are contiguous as ImageJ expects, then all IFDs */
+			final ArrayList<ArrayList<Entry>> ifds = new ArrayList<>();
+			for (int z = 0; z < stack.getSize(); ++z) {
+				final Object pixels = stack.getProcessor(z + 1).getPixels();
+
+				final byte[][] tiles = new byte[numTiles][];
+				IntStream.range(0, numTiles).parallel().forEach(t -> {
+					final int y0 = (t / tilesX) * tileSize;
+					tiles[t] = encodeTile(
+							pixels,
+							width,
+							height,
+							(t % tilesX) * tileWidth,
+							y0,
+							tileWidth,
+							/* the last strip is not padded */
+							bigTiff ? tileSize : Math.min(tileSize, height - y0),
+							bytesPerSample,
+							samplesPerPixel,
+							differencing);
+				});
+
+				final long[] offsets = new long[numTiles];
+				final long[] counts = new long[numTiles];
+				for (int t = 0; t < numTiles; ++t) {
+					offsets[t] = channel.position();
+					counts[t] = tiles[t].length;
+					write(channel, tiles[t]);
+					tiles[t] = null;
+				}
+
+				final ArrayList<Entry> entries = new ArrayList<Entry>();
+				entries.add(longs(256, width));
+				entries.add(longs(257, height));
+				entries.add(samplesPerPixel == 3 ? shorts(258, 8, 8, 8) : shorts(258, 8 * bytesPerSample));
+				entries.add(shorts(259, compression.code));
+				entries.add(shorts(262, samplesPerPixel == 3 ? 2 : 1));
+				if (z == 0 && description != null)
+					entries.add(ascii(270, description));
+				if (!bigTiff)
+					entries.add(offsets(273, offsets, false));
+				entries.add(shorts(277, samplesPerPixel));
+				if (!bigTiff) {
+					entries.add(longs(278, tileSize));
+					entries.add(offsets(279, counts, false));
+				}
+				if (calibration.scaled()) {
+					entries.add(rational(282, Math.round(1000000.0 / calibration.pixelWidth), 1000000));
+					entries.add(rational(283, Math.round(1000000.0 / calibration.pixelHeight), 1000000));
+					entries.add(shorts(296, resolutionUnit(calibration.getUnit())));
+				}
+				entries.add(shorts(284, 1));
+				if (differencing && sampleFormat == 1)
+					entries.add(shorts(317, 2));
+				if (bigTiff) {
+					entries.add(longs(322, tileSize));
+					entries.add(longs(323, tileSize));
+					entries.add(offsets(324, offsets, true));
+					entries.add(offsets(325, counts, true));
+				}
+				entries.add(shorts(339, samplesPerPixel == 3 ? new int[] {sampleFormat, sampleFormat, sampleFormat} : new int[] {sampleFormat}));
+				entries.sort(Comparator.comparingInt(e -> e.tag));
+				ifds.add(entries);
+			}
+
+			final int countSize = bigTiff ? 8 : 2;
+			for (final ArrayList<Entry> entries : ifds) {
+
+				/* values that do not fit into the IFD */
+				for (final Entry e : entries) {
+					if (e.value.length > offsetSize) {
+						if ((channel.position() & 1) != 0)
+							write(channel, buffer(1).put((byte)0));
+						e.offset = channel.position();
+						write(channel, e.value);
+					}
+				}
+				if ((channel.position() & 1) != 0)
+					write(channel, buffer(1).put((byte)0));
+
+				final long ifdOffset = channel.position();
+				final ByteBuffer ifd = buffer(countSize + entrySize * entries.size() + offsetSize);
+				if (bigTiff)
+					ifd.putLong(entries.size());
+				else
+					ifd.putShort((short)entries.size());
+				for (final Entry e : entries) {
+					ifd.putShort((short)e.tag);
+					ifd.putShort(e.type);
+					if (bigTiff)
+						ifd.putLong(e.count);
+					else
+						ifd.putInt((int)e.count);
+					if (e.value.length > offsetSize) {
+						if (bigTiff)
+							ifd.putLong(e.offset);
+						else
+							ifd.putInt((int)e.offset);
+					} else {
+						ifd.put(e.value);
+						for (int i = e.value.length; i < offsetSize; ++i)
+							ifd.put((byte)0);
+					}
+				}
+				if (bigTiff)
+					ifd.putLong(0);
+				else
+					ifd.putInt(0);
+				write(channel, ifd);
+
+				final ByteBuffer pointer = bigTiff ? buffer(8).putLong(ifdOffset) : buffer(4).putInt((int)ifdOffset);
+				pointer.flip();
+				channel.write(pointer, nextIfdPointer);
+				nextIfdPointer = ifdOffset + countSize + entrySize * entries.size();
+			}
+		}
+	}
+}
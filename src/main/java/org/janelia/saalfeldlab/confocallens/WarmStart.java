@@ -0,0 +1,222 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+import java.awt.geom.AffineTransform;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+
+import ij.process.ImageProcessor;
+import ini.trakem2.display.LayerSet;
+import ini.trakem2.display.Patch;
+import mpicbg.ij.SIFT;
+import mpicbg.imagefeatures.Feature;
+import mpicbg.imagefeatures.FeatureTransform;
+import mpicbg.imagefeatures.FloatArray2DSIFT;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.PointMatch;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.trakem2.transform.CoordinateTransform;
+
+/**
+ * Incremental recalibration that starts from the lens models of a previous
+ * run.  Every patch of a layer is seeded with the previous lens model of
+ * its wavelength, such that montage and layer alignment operate on
+ * corrected tiles and converge with tight search ranges and few
+ * iterations.  The result is checked by the residual of SIFT
+ * correspondences between overlapping tiles in world coordinates.  If it
+ * exceeds a threshold, the seeded transforms are removed and the caller
+ * runs the full calibration.  Otherwise, the previous lens models are
+ * refined with {@link LensModelFit#refine} from the same correspondences.
+ *
+ * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
+ */
+public class WarmStart {
+
+	private WarmStart() {}
+
+	/**
+	 * Load the non-linear lens models of an exported <code>pname.json</code>
+	 * or its {@link BinaryLensModels} version in the order of the layers.
+	 *
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	final static public ArrayList<CoordinateTransform> loadLensModels(final String path) throws IOException {
+		final BinaryLensModels models = BinaryLensModels.load(path);
+		final ArrayList<CoordinateTransform> lensModels = new ArrayList<CoordinateTransform>();
+		for (int i = 0; i < models.size(); ++i) {
+			final BinaryLensModels.Model model = models.get(i);
+			CoordinateTransform lensModel = null;
+			for (int j = 0; j < model.classNames.size() && lensModel == null; ++j) {
+				try {
+					final CoordinateTransform t = Automation.createTransform(
+							model.classNames.get(j),
+							model.getDataString(j));
+					if (LensTransforms.isNonLinear(t))
+						lensModel = t;
+				} catch (final Exception e) {
+					throw new IOException("Cannot create transform " + model.classNames.get(j), e);
+				}
+			}
+			if (lensModel == null)
+				throw new IOException("Model " + i + " in " + path + " has no lens model.");
+			lensModels.add(lensModel);
+		}
+		return lensModels;
+	}
+
+	/**
+	 * Set a copy of <code>lensModels[i]</code> as the coordinate transform
+	 * of all patches in layer i.
+	 */
+	final static public void seed(final LayerSet layerset, final List<CoordinateTransform> lensModels) {
+		for (int i = 0; i < lensModels.size(); ++i) {
+			for (final Patch patch : layerset.getLayer(i).getPatches(true))
+				patch.setCoordinateTransform(lensModels.get(i).copy());
+		}
+	}
+
+	/**
+	 * Remove the coordinate transforms of all patches and reset their
+	 * placement to the tile layout, or to the origin if there is none.
+	 *
+	 * @param tiles patches of each layer in acquisition order
+	 * @param layout may be null
+	 */
+	final static public void reset(final List<? extends List<Patch>> tiles, final TileLayout layout) {
+		for (final List<Patch> layerTiles : tiles) {
+			for (int i = 0; i < layerTiles.size(); ++i) {
+				final Patch patch = layerTiles.get(i);
+				patch.setCoordinateTransform(null);
+				if (layout == null)
+					patch.setAffineTransform(new AffineTransform());
+				else
+					patch.setAffineTransform(AffineTransform.getTranslateInstance(layout.getX(i), layout.getY(i)));
+			}
+		}
+	}
+
+	/**
+	 * A copy of <code>param</code> with <code>maxEpsilon</code> and the
+	 * iteration limits replaced by the tighter values of the
+	 * <code>warmStart</code> parameters.
+	 */
+	final static public JSONObject tighten(final JSONObject param, final JSONObject warmStart) {
+		final JSONObject tight = new JSONObject(param.toString());
+		final double iterationScale = warmStart.getDouble("iterationScale");
+		tight.put("maxEpsilon", Math.min(param.getDouble("maxEpsilon"), warmStart.getDouble("maxEpsilon")));
+		for (final String key : new String[] {"maxIterations", "maxPlateauwidth", "maxIterationsOptimize", "maxPlateauwidthOptimize"}) {
+			if (tight.has(key))
+				tight.put(key, Math.max(1, (int)Math.round(tight.getInt(key) * iterationScale)));
+		}
+		return tight;
+	}
+
+	/**
+	 * SIFT correspondences of all pairs of overlapping patches of one layer
+	 * in local patch coordinates, filtered with a translation model.  With
+	 * a tile layout, features are extracted only in the overlap regions.
+	 *
+	 * @param patches patches of the layer in acquisition order
+	 * @param pairs patch index pairs, see {@link Automation#tilePairs}
+	 * @param layout may be null
+	 * @param siftParam
+	 * @param rod
+	 * @param maxEpsilon RANSAC tolerance in distorted patch coordinates
+	 * @param minNumInliers
+	 * @return inliers of each pair, empty if the pair could not be matched
+	 */
+	final static public ArrayList<ArrayList<PointMatch>> matches(
+			final List<Patch> patches,
+			final List<int[]> pairs,
+			final TileLayout layout,
+			final FloatArray2DSIFT.Param siftParam,
+			final float rod,
+			final float maxEpsilon,
+			final int minNumInliers) {
+
+		final ArrayList<ArrayList<Feature>> features = new ArrayList<ArrayList<Feature>>();
+		for (int i = 0; i < patches.size(); ++i) {
+			final ImageProcessor ip = patches.get(i).getImageProcessor();
+			if (layout == null) {
+				final ArrayList<Feature> fs = new ArrayList<Feature>();
+				new SIFT(new FloatArray2DSIFT(siftParam)).extractFeatures(ip, fs);
+				features.add(fs);
+			} else
+				features.add(layout.extractOverlapFeatures(i, ip, (int)Math.ceil(maxEpsilon), siftParam));
+		}
+
+		final ArrayList<ArrayList<PointMatch>> matches = new ArrayList<ArrayList<PointMatch>>();
+		for (final int[] pair : pairs) {
+			final ArrayList<PointMatch> candidates = new ArrayList<PointMatch>();
+			FeatureTransform.matchFeatures(features.get(pair[0]), features.get(pair[1]), candidates, rod);
+			final ArrayList<PointMatch> inliers = new ArrayList<PointMatch>();
+			try {
+				if (!new TranslationModel2D().filterRansac(candidates, inliers, 1000, maxEpsilon, 0, minNumInliers))
+					inliers.clear();
+			} catch (final NotEnoughDataPointsException e) {
+				inliers.clear();
+			}
+			matches.add(inliers);
+		}
+		return matches;
+	}
+
+	/**
+	 * Residual of the current tile configuration of one layer: the distance
+	 * of matches in local patch coordinates after applying the full patch
+	 * transforms.
+	 *
+	 * @param patches patches of the layer in acquisition order
+	 * @param pairs patch index pairs
+	 * @param matches for each pair, see {@link #matches}
+	 * @return {mean, max, number of matches}
+	 */
+	final static public double[] residual(
+			final List<Patch> patches,
+			final List<int[]> pairs,
+			final List<? extends List<PointMatch>> matches) {
+
+		double sum = 0, max = 0;
+		int n = 0;
+		final double[] l1 = new double[2];
+		final double[] l2 = new double[2];
+		for (int k = 0; k < pairs.size(); ++k) {
+			final int[] pair = pairs.get(k);
+			final mpicbg.models.CoordinateTransform t1 = patches.get(pair[0]).getFullCoordinateTransform();
+			final mpicbg.models.CoordinateTransform t2 = patches.get(pair[1]).getFullCoordinateTransform();
+			for (final PointMatch match : matches.get(k)) {
+				System.arraycopy(match.getP1().getL(), 0, l1, 0, 2);
+				System.arraycopy(match.getP2().getL(), 0, l2, 0, 2);
+				t1.applyInPlace(l1);
+				t2.applyInPlace(l2);
+				final double dx = l1[0] - l2[0];
+				final double dy = l1[1] - l2[1];
+				final double d = Math.sqrt(dx * dx + dy * dy);
+				sum += d;
+				max = Math.max(max, d);
+				++n;
+			}
+		}
+		return new double[] {n == 0 ? Double.POSITIVE_INFINITY : sum / n, max, n};
+	}
+}
@@ -0,0 +1,457 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Corrects LSM and TIFF files as they are written into a directory.  The
+ * directory and all its subdirectories are watched with a
+ * {@link WatchService}.  A file is considered complete when its size and
+ * modification time did not change for a number of seconds, it is then
+ * queued for correction.  The queue is bounded, while it is full stable
+ * files wait, such that a backlog never holds more than the queued jobs in
+ * memory.  Files present at start-up, and all files after the watch service
+ * lost events, are picked up by a scan.
+ *
+ * Each file is corrected like a {@link LensCorrectionServer} job, with
+ * its caches of models, coordinate maps and flat fields, by the first rule
+ * whose <code>match</code> expression matches the path of the file
+ * relative to the watched directory, e.g.
+ *
+ * <pre>
+ * [
+ *   {"match" : "scope1/.*", "models" : "scope1.json", "model" : "scope 1, bead sample 3, 594nm", "crop" : 16},
+ *   {"match" : ".*_s2_.*\\.lsm", "models" : "scope2.json", "model" : "scope 2, bead sample 3, 594nm", "summary" : "max"}
+ * ]
+ * </pre>
+ *
+ * <code>models</code> is a model file exported by {@link Automation},
+ * JSON or {@link BinaryLensModels}, all other keys are job keys of
+ * {@link LensCorrectionServer}.  Files without a matching rule are
+ * ignored.  Outputs are saved with the relative path of their input and
+ * <code>.tif</code> appended in the output directory, and recorded in its
+ * {@link BatchManifest} such that a restart does not correct a file twice.
+ *
+ * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
+ */
+public class WatchFolder {
+
+	final static public Pattern FILE_PATTERN = Pattern.compile("(?i).*\\.(lsm|tiff?)");
+	final static public int DEFAULT_STABLE_SECONDS = 10;
+	final static public int DEFAULT_QUEUE_SIZE = 4;
+	final static public long POLL_MILLIS = 1000;
+
+	/**
+	 * A job template for all files whose relative path matches.
+	 */
+	final static public class Rule {
+
+		final public Pattern match;
+		final public JSONObject job;
+
+		public Rule(final Pattern match, final JSONObject job) {
+			this.match = match;
+			this.job = job;
+		}
+	}
+
+	/**
+	 * Size and modification time of a file when they last changed.
+	 */
+	final static protected class Pending {
+
+		final protected long seen;
+		protected long size;
+		protected long modified;
+		protected long changed;
+
+		protected Pending(final long now) {
+			seen = now;
+			size = -1;
+			modified = -1;
+			changed = now;
+		}
+	}
+
+	final static protected class Job {
+
+		final protected Path input;
+		final protected long seen;
+
+		protected Job(final Path input, final long seen) {
+			this.input = input;
+			this.seen = seen;
+		}
+	}
+
+	final static protected Job DONE = new Job(null, 0);
+
+	final protected Path dir;
+	final protected Path outDir;
+	final protected List<Rule> rules;
+	final protected LensCorrectionServer server;
+	final protected BatchManifest manifest;
+	final protected long stableMillis;
+	final protected ArrayBlockingQueue<Job> queue;
+	final protected Thread[] workers;
+
+	/* files waiting to become stable, in the order they appeared */
+	final protected LinkedHashMap<Path, Pending> pending = new LinkedHashMap<Path, Pending>();
+	final protected HashMap<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+	protected WatchService watchService;
+	protected volatile boolean running = false;
+	protected boolean full = false;
+
+	public WatchFolder(
+			final String dirStr,
+			final String outDirStr,
+			final List<Rule> rules,
+			final LensCorrectionServer server,
+			final int numWorkers,
+			final int queueSize,
+			final int stableSeconds) throws IOException {
+		dir = Paths.get(dirStr).toAbsolutePath().normalize();
+		outDir = Paths.get(outDirStr).toAbsolutePath().normalize();
+		if (outDir.equals(dir))
+			throw new IllegalArgumentException("The output directory must differ from the watched directory");
+		Files.createDirectories(outDir);
+		this.rules = rules;
+		this.server = server;
+		manifest = new BatchManifest(outDir.toString());
+		stableMillis = stableSeconds * 1000L;
+		queue = new ArrayBlockingQueue<Job>(queueSize);
+		workers = new Thread[numWorkers];
+		for (int i = 0; i < numWorkers; ++i)
+			workers[i] = new Thread(this::work, "lens-correction-worker-" + i);
+	}
+
+	/**
+	 * Read rules from a JSON array and register the models they refer to
+	 * with <code>server</code>.
+	 */
+	final static public ArrayList<Rule> loadRules(final String path, final LensCorrectionServer server) throws IOException {
+		final JSONArray ja = new JSONArray(new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8));
+		final ArrayList<Rule> rules = new ArrayList<Rule>();
+		final TreeSet<String> modelFiles = new TreeSet<String>();
+		for (int i = 0; i < ja.length(); ++i) {
+			final JSONObject jo = ja.getJSONObject(i);
+			if (!jo.has("match") || !jo.has("model"))
+				throw new IOException("Rule " + i + " in " + path + " needs 'match' and 'model'");
+			final JSONObject job = new JSONObject(jo.toString());
+			final Pattern match = Pattern.compile(job.getString("match"));
+			job.remove("match");
+			final Object models = job.remove("models");
+			if (models != null && modelFiles.add(models.toString()))
+				server.loadModels(models.toString());
+			rules.add(new Rule(match, job));
+		}
+		return rules;
+	}
+
+	/**
+	 * @return the first rule that matches <code>relativePath</code>, null
+	 *     if none matches
+	 */
+	public Rule match(final String relativePath) {
+		for (final Rule rule : rules)
+			if (rule.match.matcher(relativePath).matches())
+				return rule;
+		return null;
+	}
+
+	protected String relativePath(final Path file) {
+		return dir.relativize(file).toString().replace('\\', '/');
+	}
+
+	/**
+	 * Checksum of the model and all other settings of a rule that change
+	 * the output, recorded in the manifest as its model.
+	 */
+	protected String settingsChecksum(final Rule rule) {
+		final MessageDigest digest = BatchManifest.sha256();
+		digest.update(BatchManifest.modelChecksum(server.getModel(rule.job.getString("model"))).getBytes(StandardCharsets.UTF_8));
+		for (final String key : new TreeSet<String>(rule.job.keySet()))
+			if (!key.equals("model") && !key.equals("crop"))
+				digest.update((key + "=" + rule.job.get(key) + "\n").getBytes(StandardCharsets.UTF_8));
+		return BatchManifest.toHex(digest.digest());
+	}
+
+	/**
+	 * Correct one stable file unless its output is up to date.
+	 */
+	protected void process(final Job job) {
+		final String relative = relativePath(job.input);
+		final Rule rule = match(relative);
+		if (rule == null)
+			return;
+		final String input = job.input.toString();
+		final String outputName = relative + ".tif";
+		final int crop = rule.job.optInt("crop", 0);
+		try {
+			final String settings = settingsChecksum(rule);
+			if (manifest.isUpToDate(input, outDir.toString(), outputName, settings, crop)) {
+				System.out.println("Skipping up to date " + relative);
+				return;
+			}
+			final JSONObject result = server.apply(new JSONObject(rule.job.toString())
+					.put("input", input)
+					.put("output", outDir.resolve(outputName).toString()));
+			manifest.record(input, outputName, settings, crop);
+			System.out.println(String.format(
+					"Corrected %s in %.1fs, %.1fs after it appeared",
+					relative,
+					result.getDouble("seconds"),
+					(System.currentTimeMillis() - job.seen) * 1e-3));
+		} catch (final Exception e) {
+			System.err.println("Failed to correct " + relative + ": " + e);
+		}
+	}
+
+	protected void work() {
+		try {
+			for (Job job = queue.take(); job != DONE; job = queue.take())
+				process(job);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	protected void register(final Path subDir) throws IOException {
+		try (final Stream<Path> dirs = Files.walk(subDir)) {
+			for (final Iterator<Path> i = dirs.filter(Files::isDirectory).iterator(); i.hasNext();) {
+				final Path d = i.next();
+				if (!d.startsWith(outDir))
+					keys.put(d.register(watchService, ENTRY_CREATE, ENTRY_MODIFY), d);
+			}
+		}
+	}
+
+	protected void add(final Path file, final long now) {
+		if (!file.startsWith(outDir) &&
+				FILE_PATTERN.matcher(file.getFileName().toString()).matches() &&
+				!pending.containsKey(file) &&
+				match(relativePath(file)) != null)
+			pending.put(file, new Pending(now));
+	}
+
+	protected void scan(final Path subDir) throws IOException {
+		final long now = System.currentTimeMillis();
+		try (final Stream<Path> files = Files.walk(subDir)) {
+			files.filter(Files::isRegularFile).forEach(file -> add(file, now));
+		}
+	}
+
+	/**
+	 * Queue pending files whose size and modification time have not changed
+	 * for the stability period, in the order they appeared, until the queue
+	 * is full.
+	 */
+	protected void queueStable(final long now) {
+		for (final Iterator<Map.Entry<Path, Pending>> i = pending.entrySet().iterator(); i.hasNext();) {
+			final Map.Entry<Path, Pending> entry = i.next();
+			final Path file = entry.getKey();
+			final Pending p = entry.getValue();
+			final long size, modified;
+			try {
+				size = Files.size(file);
+				modified = Files.getLastModifiedTime(file).toMillis();
+			} catch (final IOException e) {
+				/* deleted or renamed */
+				i.remove();
+				continue;
+			}
+			if (size != p.size || modified != p.modified) {
+				p.size = size;
+				p.modified = modified;
+				p.changed = now;
+			} else if (now - p.changed >= stableMillis) {
+				if (!queue.offer(new Job(file, p.seen))) {
+					if (!full)
+						System.out.println("Queue full, " + pending.size() + " files waiting");
+					full = true;
+					return;
+				}
+				full = false;
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Watch until {@link #stop()} is called, then finish queued jobs.
+	 */
+	public void run() throws IOException, InterruptedException {
+		running = true;
+		watchService = dir.getFileSystem().newWatchService();
+		register(dir);
+		scan(dir);
+		for (final Thread worker : workers)
+			worker.start();
+		System.out.println("Watching " + dir + ", " + pending.size() + " files found");
+		try {
+			while (running) {
+				final WatchKey key = watchService.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				final long now = System.currentTimeMillis();
+				if (key != null) {
+					final Path keyDir = keys.get(key);
+					for (final WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == OVERFLOW) {
+							scan(dir);
+							continue;
+						}
+						final Path path = keyDir.resolve((Path)event.context());
+						if (Files.isDirectory(path)) {
+							if (event.kind() == ENTRY_CREATE) {
+								register(path);
+								scan(path);
+							}
+						} else
+							add(path, now);
+					}
+					if (!key.reset())
+						keys.remove(key);
+				}
+				queueStable(now);
+			}
+		} finally {
+			watchService.close();
+			for (int i = 0; i < workers.length; ++i)
+				queue.put(DONE);
+			for (final Thread worker : workers)
+				worker.join();
+		}
+	}
+
+	public void stop() {
+		running = false;
+	}
+
+	final static public Options createOptions() {
+		final Options options = new Options();
+		options.addOption(new Option(
+				"r",
+				"rules",
+				true,
+				"JSON array of rules {\"match\" : regex on the relative path, \"models\" : model file, \"model\" : name, job keys of LensCorrectionServer}"));
+		options.addOption(new Option(
+				"o",
+				"output",
+				true,
+				"output directory"));
+		options.addOption(new Option(
+				"w",
+				"workers",
+				true,
+				"number of files corrected at the same time, default 1"));
+		options.addOption(new Option(
+				"q",
+				"queue",
+				true,
+				"number of stable files queued for correction, further files wait, default " + DEFAULT_QUEUE_SIZE));
+		options.addOption(new Option(
+				"s",
+				"stable",
+				true,
+				"seconds that size and modification time of a file must not change before it is corrected, default " + DEFAULT_STABLE_SECONDS));
+		options.addOption(new Option(
+				null,
+				"cache-size",
+				true,
+				"number of parsed models, coordinate maps, meshes, and flat fields cached each, default " + LensCorrectionServer.DEFAULT_CACHE_SIZE));
+		return options;
+	}
+
+	final static private void printUsage(final Options options) {
+		new HelpFormatter().printHelp("java ... [options] <watched directory>", options);
+	}
+
+	/**
+	 * @param args
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static void main(final String[] args) throws IOException, InterruptedException {
+
+		final Options options = createOptions();
+		final CommandLine cmd;
+		try {
+			cmd = new DefaultParser().parse(options, args);
+		} catch (final ParseException e) {
+			System.err.println(e.getMessage());
+			printUsage(options);
+			return;
+		}
+		if (cmd.getArgs().length != 1 || !cmd.hasOption("rules") || !cmd.hasOption("output")) {
+			printUsage(options);
+			return;
+		}
+
+		final int numWorkers = Integer.parseInt(cmd.getOptionValue("workers", "1"));
+		final LensCorrectionServer server = new LensCorrectionServer(
+				numWorkers,
+				Integer.parseInt(cmd.getOptionValue("cache-size", Integer.toString(LensCorrectionServer.DEFAULT_CACHE_SIZE))));
+		final WatchFolder watchFolder = new WatchFolder(
+				cmd.getArgs()[0],
+				cmd.getOptionValue("output"),
+				loadRules(cmd.getOptionValue("rules"), server),
+				server,
+				numWorkers,
+				Integer.parseInt(cmd.getOptionValue("queue", Integer.toString(DEFAULT_QUEUE_SIZE))),
+				Integer.parseInt(cmd.getOptionValue("stable", Integer.toString(DEFAULT_STABLE_SECONDS))));
+		final Thread main = Thread.currentThread();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			watchFolder.stop();
+			try {
+				main.join();
+			} catch (final InterruptedException e) {}
+		}));
+		watchFolder.run();
+	}
+}
@@ -0,0 +1,157 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.confocallens;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Checks the resampling kernel against bilinear interpolation in double
+ * precision on random 16-bit and float data at random coordinates that
+ * include positions outside of the source and on its last row and column,
+ * and the tiled against the row block resampling.
+ *
+ * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
+ */
+public class ResamplerTest {
+
+	final static private int SW = 67, SH = 43, N = 4099;
+
+	final static private float OUTSIDE = -1;
+
+	final static private double bilinear(final double[] src, final int sw, final int sh, final double x, final double y) {
+		final int ix = (int)x;
+		final int iy = (int)y;
+		final int ix1 = Math.min(ix + 1, sw - 1);
+		final int iy1 = Math.min(iy + 1, sh - 1);
+		final double fx = x - ix;
+		final double fy = y - iy;
+		final double a = src[iy * sw + ix] * (1 - fx) + src[iy * sw + ix1] * fx;
+		final double b = src[iy1 * sw + ix] * (1 - fx) + src[iy1 * sw + ix1] * fx;
+		return a * (1 - fy) + b * fy;
+	}
+
+	final static private boolean isInside(final float x, final float y) {
+		return x >= 0 && y >= 0 && x <= SW - 1 && y <= SH - 1;
+	}
+
+	final static private float[][] randomCoordinates(final Random rnd) {
+		final float[] xs = new float[N];
+		final float[] ys = new float[N];
+		for (int i = 0; i < N; ++i) {
+			xs[i] = rnd.nextFloat() * (SW + 2) - 1;
+			ys[i] = rnd.nextFloat() * (SH + 2) - 1;
+		}
+		xs[0] = SW - 1;
+		ys[1] = SH - 1;
+		xs[2] = SW - 1;
+		ys[2] = SH - 1;
+		return new float[][] {xs, ys};
+	}
+
+	@Test
+	public void testBilinearShort() {
+		final Random rnd = new Random(2016);
+		final short[] src = new short[SW * SH];
+		final double[] ref = new double[SW * SH];
+		for (int i = 0; i < src.length; ++i) {
+			src[i] = (short)rnd.nextInt(65536);
+			ref[i] = src[i] & 0xffff;
+		}
+		final float[][] xy = randomCoordinates(rnd);
+		final short[] dst = new short[N];
+		dst[0] = dst[N - 1] = (short)12345;
+		ResamplingKernel.bilinear(src, SW, SH, xy[0], xy[1], 1, N - 2, dst);
+
+		/* the range excludes the first and last target pixel, rounding in
+		 * float precision may be off by a few ulps at 16-bit magnitudes */
+		assertEquals(12345, dst[0]);
+		assertEquals(12345, dst[N - 1]);
+		for (int i = 1; i < N - 1; ++i) {
+			if (isInside(xy[0][i], xy[1][i]))
+				assertEquals(
+						"at (" + xy[0][i] + ", " + xy[1][i] + ")",
+						bilinear(ref, SW, SH, xy[0][i], xy[1][i]),
+						dst[i] & 0xffff,
+						0.5 + 1e-2);
+			else
+				assertEquals(0, dst[i]);
+		}
+	}
+
+	@Test
+	public void testBilinearFloat() {
+		final Random rnd = new Random(2017);
+		final float[] src = new float[SW * SH];
+		final double[] ref = new double[SW * SH];
+		for (int i = 0; i < src.length; ++i)
+			ref[i] = src[i] = rnd.nextFloat() * 1000;
+		final float[][] xy = randomCoordinates(rnd);
+		final float[] dst = new float[N];
+		Arrays.fill(dst, OUTSIDE);
+		ResamplingKernel.bilinear(src, SW, SH, xy[0], xy[1], 0, N, dst);
+		for (int i = 0; i < N; ++i) {
+			if (isInside(xy[0][i], xy[1][i]))
+				assertEquals(bilinear(ref, SW, SH, xy[0][i], xy[1][i]), dst[i], 1e-3);
+			else
+				assertEquals(OUTSIDE, dst[i], 0);
+		}
+	}
+
+	@Test
+	public void testTiledMatchesRowBlocks() {
+		final Random rnd = new Random(2018);
+		final int w = 301, h = 207;
+		final FloatProcessor fp = new FloatProcessor(SW * 4, SH * 4);
+		final ShortProcessor sp = new ShortProcessor(SW * 4, SH * 4);
+		for (int i = 0; i < fp.getPixelCount(); ++i) {
+			fp.setf(i, rnd.nextFloat() * 1000);
+			sp.set(i, rnd.nextInt(65536));
+		}
+
+		/* slightly rotated and scaled such that some targets are outside */
+		final float[] xs = new float[w * h];
+		final float[] ys = new float[w * h];
+		for (int j = 0, k = 0; j < h; ++j) {
+			for (int i = 0; i < w; ++i, ++k) {
+				xs[k] = 0.9f * i + 0.05f * j - 3;
+				ys[k] = 0.9f * j - 0.05f * i + 10;
+			}
+		}
+		final CoordinateMap map = new CoordinateMap(w, h, 0, 0, xs, ys);
+
+		final FloatProcessor f1 = new FloatProcessor(w, h);
+		final FloatProcessor f2 = new FloatProcessor(w, h);
+		Resampler.mapInterpolated(fp, map, f1);
+		Resampler.mapInterpolatedTiled(fp, map, f2, 64);
+		assertArrayEquals((float[])f1.getPixels(), (float[])f2.getPixels(), 0);
+
+		final ShortProcessor s1 = new ShortProcessor(w, h);
+		final ShortProcessor s2 = new ShortProcessor(w, h);
+		Resampler.mapInterpolated(sp, map, s1);
+		Resampler.mapInterpolatedTiled(sp, map, s2, 64);
+		assertArrayEquals((short[])s1.getPixels(), (short[])s2.getPixels());
+	}
+}